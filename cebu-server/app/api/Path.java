@@ -19,4 +19,7 @@ public class Path {
 	
 	public List<Integer> edgeIds = new  ArrayList<Integer>();
 	public List<String> edgeGeoms = new ArrayList<String>();
+	
+	// whole path as one polyline, when requested instead of edgeGeoms
+	public String geom;
 }
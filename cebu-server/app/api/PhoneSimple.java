@@ -6,6 +6,9 @@ import java.util.List;
 
 import models.Phone;
 import models.MessageData;
+import utils.FleetState;
+import utils.PhoneRegistry;
+import utils.PositionBuffer;
 
 
 public class PhoneSimple {
@@ -20,6 +23,8 @@ public class PhoneSimple {
 
 	public Boolean active;
 	
+	public String operator;
+	
 	public Long driverId;
 	public Long vehicleId;
 	
@@ -49,6 +54,9 @@ public class PhoneSimple {
 	   		this.active = !phone.lastUpdate.before(recentDate);
 	   	}
 
+    	if(phone.operator != null)
+    		this.operator = phone.operator.name;
+
     	if(phone.driver != null)
     	{
     		this.driverId = phone.driver.id;
@@ -62,5 +70,32 @@ public class PhoneSimple {
     	}
     }
 
-  }
+    public PhoneSimple(FleetState.PhoneState state, Date recentDate)
+    {
+    	PhoneRegistry.Entry phone = state.phone;
+    	PositionBuffer.Position position = state.position;
+
+    	this.id = state.phoneId;
+    	this.imei = phone.imei;
+    	this.phoneNumber = phone.phoneNumber;
+    	this.panic = state.panic;
+    	this.messages = state.unread;
+
+    	this.recentLat = position.lat;
+    	this.recentLon = position.lon;
 
+    	this.lastUpdate = position.lastUpdate;
+
+    	if(recentDate != null)
+    		this.active = state.isActive(recentDate);
+
+    	this.operator = phone.operatorName;
+
+    	this.driverId = phone.driverId;
+    	this.driver = phone.driverCode;
+
+    	this.vehicleId = phone.vehicleId;
+    	this.vehicle = phone.bodyNumber;
+    }
+
+  }
@@ -4,16 +4,29 @@ import static akka.pattern.Patterns.ask;
 import akka.actor.*;
 import akka.dispatch.Future;
 import akka.dispatch.OnSuccess;
+import gnu.trove.list.array.TDoubleArrayList;
 import gov.sandia.cognition.math.matrix.Vector;
 import gov.sandia.cognition.math.matrix.VectorFactory;
 import play.*;
+import play.db.DB;
 import play.db.jpa.JPA;
 import play.mvc.*;
+import utils.ContractionHierarchy;
+import utils.Ewkb;
+import utils.IngestQueue;
+import utils.Jdbc;
+import utils.LocationPartitions;
+import utils.PhoneRegistry;
+import utils.RecentUpdates;
+import utils.UpdateGaps;
 
 import java.awt.Color;
 
 import java.io.File;
+import java.io.IOException;
 import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.*;
 
 import javax.persistence.Query;
@@ -112,7 +125,223 @@ public class Admin extends Controller {
 		
 		Long activePhones = Phone.count("lastUpdate > ?", recentDate);
 		
-		render(registeredPhones, activePhones);
+		Map<String, Object> ingest = IngestQueue.getStats();
+		
+		Map<String, Object> registry = PhoneRegistry.getStats();
+		
+		render(registeredPhones, activePhones, ingest, registry);
+	}
+	
+	public static void ingestStatus() {
+		
+		renderJSON(IngestQueue.getStats());
+	}
+	
+	public static void registryStatus() {
+		
+		renderJSON(PhoneRegistry.getStats());
+	}
+	
+	public static void recentUpdatesStatus() {
+		
+		renderJSON(RecentUpdates.getStats());
+	}
+	
+	public static void routeCacheStatus() {
+		
+		renderJSON(Api.routeCache.getStats());
+	}
+	
+	public static void routerStatus() {
+		
+		if(Api.router == null)
+			notFound("contraction hierarchy is disabled");
+		
+		renderJSON(Api.router.getStats());
+	}
+	
+	public static void mapMatchStatus() {
+		
+		if(Api.mapMatcher == null)
+			notFound("map matching is disabled");
+		
+		renderJSON(Api.mapMatcher.getStats());
+	}
+	
+	public static void matchFeedStatus() {
+		
+		renderJSON(Api.matchFeed.getStats());
+	}
+	
+	public static void tripLineStatus() {
+		
+		if(Api.tripLines == null)
+			notFound("trip line detection is disabled");
+		
+		renderJSON(Api.tripLines.getStats());
+	}
+	
+	public static void edgeSpeedStatus() {
+		
+		renderJSON(Api.edgeSpeeds.getStats());
+	}
+	
+	public static void partitionStatus() {
+		
+		renderJSON(LocationPartitions.getStats());
+	}
+	
+	/**
+	 * Compares the hierarchy's paths with TrafficGraph's under the travel
+	 * times Api.path routes on, over the checked-in origin/destination corpus,
+	 * or random node pairs if random is set or there is no corpus. Corpus
+	 * pairs with expected lengths are also checked against them, and the
+	 * response is a 409 if any fail.
+	 */
+	public static void routerRegression(Integer pairs, Long seed, Boolean random) {
+		
+		if(Api.router == null)
+			notFound("contraction hierarchy is disabled");
+		
+		ContractionHierarchy.Metric metric = Api.router.getMetric();
+		
+		if(metric == null)
+			error(503, "contraction hierarchy is not customized yet");
+		
+		File corpus = regressionCorpus();
+		
+		List<Coordinate[]> od;
+		TDoubleArrayList expected = new TDoubleArrayList();
+		
+		try
+		{
+			if(!Boolean.TRUE.equals(random) && corpus.exists())
+				od = ContractionHierarchy.readPairs(corpus, expected);
+			else
+				od = Api.router.randomPairs(pairs != null ? pairs : 500, seed != null ? seed : 1);
+		}
+		catch(IOException e)
+		{
+			error(500, "Could not read regression corpus: " + e);
+			return;
+		}
+		
+		ContractionHierarchy.Reference reference = ContractionHierarchy.reference(Api.graph);
+		
+		Map<String, Object> stats = Api.router.regression(reference, od, metric);
+		
+		if(!expected.isEmpty())
+		{
+			Map<String, Object> check = Api.router.verify(reference, od, expected);
+			
+			stats.put("expected", check);
+			
+			if(Boolean.FALSE.equals(check.get("passed")))
+				response.status = 409;
+		}
+		
+		renderJSON(stats);
+	}
+	
+	/**
+	 * The regression corpus with each pair's expected length filled in from
+	 * TrafficGraph's search on the current graph, to check in when the graph
+	 * changes.
+	 */
+	public static void routerRegressionCorpus() {
+		
+		if(Api.router == null)
+			notFound("contraction hierarchy is disabled");
+		
+		List<Coordinate[]> od;
+		
+		try
+		{
+			od = ContractionHierarchy.readPairs(regressionCorpus());
+		}
+		catch(IOException e)
+		{
+			error(500, "Could not read regression corpus: " + e);
+			return;
+		}
+		
+		TDoubleArrayList lengths = ContractionHierarchy.expectedLengths(ContractionHierarchy.reference(Api.graph), od, Api.graph);
+		
+		StringBuilder csv = new StringBuilder();
+		
+		for(int i = 0; i < od.size(); i++)
+		{
+			Coordinate[] pair = od.get(i);
+			
+			csv.append(String.format(Locale.US, "%.5f,%.5f,%.5f,%.5f", pair[0].y, pair[0].x, pair[1].y, pair[1].x));
+			
+			// pairs with no path stay without an expected length
+			if(!Double.isNaN(lengths.get(i)))
+				csv.append(String.format(Locale.US, ",%.1f", lengths.get(i)));
+			
+			csv.append("\n");
+		}
+		
+		renderText(csv.toString());
+	}
+	
+	static File regressionCorpus() {
+		
+		return Play.getFile(Play.configuration.getProperty("application.routing.regressionCorpus", "conf/router-regression.csv"));
+	}
+	
+	/**
+	 * Times geometry inserts written as WKT text against EWKB and
+	 * ST_MakePoint, on a temporary table that is rolled back.
+	 */
+	public static void geometryBenchmark(Integer rows) {
+		
+		Connection conn = null;
+		
+		try
+		{
+			conn = DB.datasource.getConnection();
+			
+			renderJSON(Ewkb.benchmark(conn, rows != null ? rows : 10000));
+		}
+		catch(SQLException e)
+		{
+			error(500, "Geometry benchmark failed: " + e);
+		}
+		finally
+		{
+			Jdbc.closeQuietly(conn);
+		}
+	}
+	
+	/**
+	 * A phone's silences and failed-network runs of at least minMinutes over
+	 * the last days (default 1).
+	 */
+	public static void connectivityGaps(String imei, Integer days, Integer minMinutes) {
+		
+		if(imei == null)
+			badRequest();
+		
+		Calendar cal = Calendar.getInstance();
+		cal.add(Calendar.DATE, -(days != null ? days : 1));
+		
+		try
+		{
+			if(minMinutes != null)
+				renderJSON(UpdateGaps.report(imei, cal.getTime(), minMinutes));
+			else
+				renderJSON(UpdateGaps.report(imei, cal.getTime()));
+		}
+		catch(SQLException e)
+		{
+			error(500, "Gap report failed: " + e);
+		}
+	}
+	
+	public static void gapStatus() {
+		
+		renderJSON(UpdateGaps.getStats());
 	}
 	
 	public static void vechicleStatus(String imei) {
@@ -4,10 +4,28 @@ import play.*;
 import play.db.jpa.JPA;
 import play.mvc.*;
 import utils.DateUtils;
+import utils.ContractionHierarchy;
 import utils.DistanceCache;
+import utils.EdgeIndex;
+import utils.EdgePolylines;
+import utils.EdgeSpeedStats;
 import utils.EncodedPolylineBean;
+import utils.FleetState;
+import utils.IngestQueue;
+import utils.IngestRecord;
+import utils.LocationPartitions;
+import utils.LocationLineParser;
+import utils.LocationParseException;
+import utils.MapMatcher;
+import utils.MatchFeed;
 import utils.Observation;
+import utils.PhoneRegistry;
+import utils.PositionBuffer;
+import utils.RouteCache;
+import utils.SpeedProfiles;
 import utils.StreetVelocityCache;
+import utils.TripLineDetector;
+import utils.TravelTimeMatrix;
 
 import java.io.BufferedInputStream;
 import java.io.DataInputStream;
@@ -16,6 +34,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -32,7 +51,6 @@ import org.opentripplanner.routing.graph.Edge;
 import org.opentripplanner.routing.graph.Vertex;
 import org.opentripplanner.routing.impl.StreetVertexIndexServiceImpl;
 import org.opentripplanner.routing.spt.GraphPath;
-import org.opentripplanner.util.PolylineEncoder;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
@@ -72,10 +90,49 @@ public class Api extends Controller {
 	
 	public static DistanceCache distanceCache = new DistanceCache();
 	
-	static StreetVelocityCache edgeVelocities = new StreetVelocityCache();
+	public static StreetVelocityCache edgeVelocities = new StreetVelocityCache();
+	
+	public static SpeedProfiles speedProfiles = new SpeedProfiles();
+	
+	public static RouteCache routeCache = new RouteCache();
 	
 	
 	public static TrafficGraph graph = new TrafficGraph(Play.configuration.getProperty("application.otpGraphPath"));
+	
+	public static EdgePolylines edgePolylines = EdgePolylines.load(graph, Play.configuration.getProperty("application.otpGraphPath"), Boolean.parseBoolean(Play.configuration.getProperty("application.edgePolylines.persist", "true")));
+	
+	public static EdgeIndex edgeIndex = EdgeIndex.build(edgePolylines, Double.parseDouble(Play.configuration.getProperty("application.edgeIndex.cellSize", "100")));
+	
+	// meters; points further than this from any street aren't snapped
+	static double maxSnapDistance = Double.parseDouble(Play.configuration.getProperty("application.snap.maxDistance", "200"));
+	
+	// null when disabled, in which case paths come from TrafficGraph's own search
+	public static ContractionHierarchy router = Boolean.parseBoolean(Play.configuration.getProperty("application.routing.contractionHierarchy", "true")) ? ContractionHierarchy.load(graph, edgePolylines, edgeVelocities) : null;
+	
+	// follows each vehicle along the streets; needs the contraction hierarchy
+	public static MapMatcher mapMatcher = router != null && Boolean.parseBoolean(Play.configuration.getProperty("application.mapMatch.enabled", "true")) ? new MapMatcher(router, edgeIndex) : null;
+	
+	// edge travel times from trip line crossings, without map matching; null when disabled
+	public static TripLineDetector tripLines = Boolean.parseBoolean(Play.configuration.getProperty("application.tripLines.enabled", "false")) ? TripLineDetector.load(Double.parseDouble(Play.configuration.getProperty("application.edgeIndex.cellSize", "100"))) : null;
+	
+	// feeds both of the above off the request threads
+	public static MatchFeed matchFeed = new MatchFeed(mapMatcher, tripLines, Integer.parseInt(Play.configuration.getProperty("application.mapMatch.queueCapacity", "20000")));
+	
+	public static EdgeSpeedStats edgeSpeeds = new EdgeSpeedStats();
+	
+	static {
+		if(mapMatcher != null)
+		{
+			mapMatcher.addListener(edgeSpeeds);
+			mapMatcher.addListener(speedProfiles.samples);
+		}
+		
+		if(tripLines != null)
+		{
+			tripLines.addListener(edgeSpeeds);
+			tripLines.addListener(speedProfiles.samples);
+		}
+	}
 		
 	public static TrafficGraph getGraph() {
 		return graph;
@@ -101,8 +158,8 @@ public class Api extends Controller {
 		Date now = new Date();
 		
 		if(imei != null && !imei.isEmpty()){
-			Phone phone = Phone.find("imei = ?", imei).first();
-			if(phone != null && phone.operator != null && phone.operator.name.equals("CITOM")) {
+			PhoneRegistry.Entry phone = PhoneRegistry.get(imei);
+			if(phone != null && phone.operatorName != null && phone.operatorName.equals("CITOM")) {
 				
 				showPublicAlertsOnly = false;
 			}
@@ -143,7 +200,8 @@ public class Api extends Controller {
 	
 	
 	public static void messages(String imei, Long message_id, Double lat, Double lon, String content) {
-		Phone phone = Phone.find("imei = ?", imei).first();
+		PhoneRegistry.Entry entry = PhoneRegistry.get(imei);
+		Phone phone = entry != null ? Phone.reference(entry.phoneId) : null;
 		if(request.method == "POST")
 		{
 			
@@ -207,12 +265,12 @@ public class Api extends Controller {
 		if(imei == null)
 			unauthorized("IMEI Required");
 		
-		Phone phone = Phone.find("imei = ?", imei).first();
+		PhoneRegistry.Entry phone = PhoneRegistry.get(imei);
 		
 		if(phone != null)
 		{
-			phone.panic = panic;
-			phone.save();
+			Phone.updatePanic(phone.phoneId, panic);
+			FleetState.setPanic(phone.phoneId, panic);
 		}
 		
 		ok();
@@ -224,7 +282,7 @@ public class Api extends Controller {
 		if(imei == null)
 			unauthorized("IMEI Required");
 		
-		Phone phone = Phone.find("imei = ?", imei).first();
+		Phone phone = Phone.findByImei(imei);
 		
 		if(phone != null)
 		{
@@ -242,24 +300,24 @@ public class Api extends Controller {
 		if(imei == null)
 			unauthorized("IMEI Required");
 		
-		Phone phone = Phone.find("imei = ?", imei).first();
+		PhoneRegistry.Entry phone = PhoneRegistry.get(imei);
 		
 		if(phone != null)
 		{
 			AuthResponse authResponse = new AuthResponse();
 			
-			authResponse.id = phone.id;
-			authResponse.name = phone.operator.name;
+			authResponse.id = phone.phoneId;
+			authResponse.name = phone.operatorName;
 			
-			if(phone.driver != null)
+			if(phone.driverId != null)
 			{
-				authResponse.driverId = phone.driver.driverId;
-				authResponse.driverName = phone.driver.name;
+				authResponse.driverId = phone.driverCode;
+				authResponse.driverName = phone.driverName;
 			}
 			
-			if(phone.vehicle != null)
+			if(phone.vehicleId != null)
 			{
-				authResponse.bodyNumber = phone.vehicle.bodyNumber;
+				authResponse.bodyNumber = phone.bodyNumber;
 			}
 			
 			authResponse.gpsInterval = 5;
@@ -284,7 +342,7 @@ public class Api extends Controller {
 	{
 		if(imei != null && !imei.isEmpty() && operator != null)
 		{
-			Phone phone = Phone.find("imei = ?", imei).first();
+			Phone phone = Phone.findByImei(imei);
 			
 			if(phone == null)
 			{
@@ -328,7 +386,7 @@ public class Api extends Controller {
 		if(imei == null)
 			unauthorized("IMEI Required");
 		
-		Phone phone = Phone.find("imei = ?", imei).first();
+		Phone phone = Phone.findByImei(imei);
 		
 		if(phone == null)
 		{
@@ -373,8 +431,6 @@ public class Api extends Controller {
 			vehicleObj.save();
 		}
 		
-		distanceCache.linkImeiToVehicle(imei, vehicleObj);
-		
 		phone.driver = driverObj;
 		phone.vehicle = vehicleObj;
 		
@@ -412,7 +468,7 @@ public class Api extends Controller {
 		if(imei == null)
 			unauthorized("IMEI Required");
 		
-		Phone phone = Phone.find("imei = ?", imei).first();
+		Phone phone = Phone.findByImei(imei);
 		
 		if(phone == null)
 		{
@@ -443,10 +499,13 @@ public class Api extends Controller {
 			
 			byte[] dataFrame = new byte[(int)data.length()];;
 			dataInputStream.read(dataFrame);
-			Ws.processPbFrame(dataFrame, "http " + request.headers.get("user-agent"));
+			boolean accepted = Ws.processPbFrame(dataFrame, "http " + request.headers.get("user-agent"));
 			
 			dataInputStream.close();
 			
+			if(!accepted)
+				error(503, "Location queue full, retry later");
+			
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -504,13 +563,32 @@ public class Api extends Controller {
               requestBody = params.get("body");
         }
 		
-		String[] lines = requestBody.split("\n");
+		// request format, one update per line: 20120430T133023,124.02342,34.43622,8.33,124,200
+		
+		byte[] body = requestBody != null ? requestBody.getBytes("ISO-8859-1") : new byte[0];
+		
+		LocationLineParser parser = new LocationLineParser(body);
+		
+		List<IngestRecord> records = new ArrayList<IngestRecord>();
+		
+		try
+		{
+			while(parser.next())
+				records.add(IngestRecord.fromParser(imei, parser));
+		}
+		catch(LocationParseException e)
+		{
+			Logger.error("Bad location update from " + imei + ": " + e.getMessage());
+			
+			// couldn't parse results
+			error(400, "Bad location update, " + e.getMessage());
+		}
 		
 		message = "location message received: imei=" + imei + " " + content;
     	
 		Date timeSentDate = null;
     	
-		Long timeDelta = null;
+		long timeDelta;
 		
     	try
     	{
@@ -520,23 +598,13 @@ public class Api extends Controller {
     	}
     	catch(Exception e)
     	{
-        	try
-        	{
-        		timeSentDate = new Date();
-        		// failed to parse local time, must fall back to time received for last update
-        		
-            	String[] lineParts = lines[lines.length-1].trim().split(",");
-        		
-        		Date lastUpdateDate = DateUtils.parseLocationUpdate(lineParts[0].replace("T", " "));
-        		
-        		timeDelta = timeReceivedDate.getTime() - lastUpdateDate.getTime();
-        	}
-        	catch(Exception e1)
-            {
-        		// failed to parse last update timestamp, setting delta to 0
-        		
-        		timeDelta = new Long(0);
-            }
+    		timeSentDate = new Date();
+    		
+    		// failed to parse local time, must fall back to time received for last update
+    		if(!records.isEmpty())
+    			timeDelta = timeReceivedDate.getTime() - records.get(records.size() - 1).timestamp.getTime();
+    		else
+    			timeDelta = 0;
     	}
     	
     	
@@ -559,83 +627,43 @@ public class Api extends Controller {
     	if(failednetwork == null)
     		failednetwork = false;
     	
-    	if(requestBody == null || requestBody.isEmpty())
+    	if(records.isEmpty())
     	{
     		Logger.info("Empty location update received for ", imei);
     		
-    		Calendar calendar = Calendar.getInstance();
-    		calendar.setTimeInMillis(timeSentDate.getTime() + timeDelta);
-
-    		Date adjustedDate = calendar.getTime();
+    		Date adjustedDate = new Date(timeSentDate.getTime() + timeDelta);
+    		
+    		if(!IngestQueue.offer(IngestRecord.status(imei, charging, battery, timeSentDate, adjustedDate, timeSentDate, timeReceivedDate, boot, shutdown, failednetwork, signal)))
+    			error(503, "Location queue full, retry later");
     		
-    		LocationUpdate.natveInsert(LocationUpdate.em(), imei, charging, battery, timeSentDate, adjustedDate, timeSentDate, timeReceivedDate, boot, shutdown, failednetwork, signal);
     		ok();
     	}	
     	
-    	// requests can contain multiple requests, split on newline
-    	
-    	
-    	 	
     	//VehicleUpdate update = new VehicleUpdate(imei);
     	
-    	Observation observation = null;
-    	
-    	for(String line : lines)
+    	for(IngestRecord record : records)
     	{
-    		// request format: 20120430T133023,124.02342,34.43622,8.33,124,200
-    		
-    		String[] lineParts = line.trim().split(",");
-    		
+    		record.adjustedTimestamp = new Date(record.timestamp.getTime() + timeDelta);
+    		record.setStatus(charging, battery, timeSentDate, timeReceivedDate, boot, shutdown, failednetwork, signal);
     		
-    		if(lineParts.length != 6)
-    			badRequest();
+    		//update.addObservation(record);
+    	}
     	
-    		try
-    		{
-	    		Date dateTime = DateUtils.parseLocationUpdate(lineParts[0].replace("T", " "));	
-	    		Calendar calendar = Calendar.getInstance();
-	    		calendar.setTimeInMillis(dateTime.getTime() + timeDelta);
-
-	    		Date adjustedDate = calendar.getTime();
-	    	    
-	    		Double lat = Double.parseDouble(lineParts[1]);
-	    		Double lon = Double.parseDouble(lineParts[2]);
-	    		Double velocity = Double.parseDouble(lineParts[3]);
-	    		Double heading = Double.parseDouble(lineParts[4]);
-	    		Double gpsError = Double.parseDouble(lineParts[5]);
-	    		
-	    		Coordinate locationCoord = new Coordinate(lon, lat);
-	    		
-	    		observation = new Observation(imei, adjustedDate, locationCoord , velocity, heading, gpsError);
-	    		
-	    		//update.addObservation(observation);
-	    		
-	    		distanceCache.updateDistance(imei, locationCoord, gpsError);
-	    		
-	    		LocationUpdate.natveInsert(LocationUpdate.em(), imei, observation, charging, battery, dateTime, timeSentDate, timeReceivedDate, boot, shutdown, failednetwork, signal);
-    		}
-    		catch(Exception e)
-    		{
-    			Logger.error("Bad location update string: ", line);
-    			
-    			// couldn't parse results
-    			badRequest();
-    		}
-    	}	
+    	// queue the whole request or nothing so the phone can safely resend
+    	if(!IngestQueue.offerAll(records))
+    		error(503, "Location queue full, retry later");
     	
+    	for(IngestRecord record : records)
+    		distanceCache.updateDistance(imei, new Coordinate(record.lon, record.lat), record.gpsError, record.adjustedTimestamp);
     	
-    	if(observation != null) {
-	    	Phone phone = Phone.find("imei = ?", observation.getVehicleId()).first();
-			
-			if(phone != null)
-			{
-				phone.recentLat = observation.getObsCoordsLatLon().y;
-				phone.recentLon = observation.getObsCoordsLatLon().x;
-				phone.lastUpdate = new Date();
-				
-				phone.save();
-			}
-    	}
+    	matchFeed.offer(records);
+    	
+    	IngestRecord latest = records.get(records.size() - 1);
+    	
+    	PhoneRegistry.Entry phone = PhoneRegistry.get(imei);
+		
+		if(phone != null)
+			PositionBuffer.record(phone.phoneId, latest.lat, latest.lon, new Date());
     	
     	//if(update.getObservations().size() > 0)
     	//{
@@ -693,21 +721,26 @@ public class Api extends Controller {
     
 	    static public void traces()
 	    {
-	    	List<LocationUpdate> updates = LocationUpdate.find("order by timestamp desc").fetch(100);
+	    	List<LocationUpdate> updates = LocationUpdate.find("received >= ? order by timestamp desc", LocationPartitions.hotSince()).fetch(100);
 	    	
 	    	renderJSON(updates);
 	    }
     
     static public void network()
     {
-    	List<LocationUpdate> updates = LocationUpdate.find("failedNetwork = true").fetch();
+    	List<LocationUpdate> updates = LocationUpdate.find("failedNetwork = true and received >= ?", LocationPartitions.hotSince()).fetch();
     	
     	Gson gson = new GsonBuilder().excludeFieldsWithoutExposeAnnotation().create();
     	
     	renderJSON(gson.toJson(updates));
     }
     
-   public static void path(String lat1, String lon1, String lat2, String lon2)
+   /**
+    * departure is epoch millis and defaults to now; minTime/maxTime are the
+    * travel time in seconds when leaving then. With merged set the geometry
+    * comes back as a single polyline in geom instead of one per edge.
+    */
+   public static void path(String lat1, String lon1, String lat2, String lon2, Long departure, Boolean merged)
     		throws JsonGenerationException, JsonMappingException,
     	      IOException {
 	    	    final Coordinate coord1 =
@@ -717,30 +750,207 @@ public class Api extends Controller {
 	    	   
 	    	    Path path = new Path();
 	    	    
-	    	    List<Integer> edgeIds = Api.graph.getEdgesBetweenPoints(coord1, coord2);
-	    	 
-				
-			    	Double total = 0.0;
-			    	
-		    	    for(Integer edgeId : edgeIds)
-		    	    {  		
-		    	    	TrafficEdge edge = Api.graph.getTrafficEdge(edgeId);
-		    	    	Geometry geom = edge.getGeometry();
-		    	    	
-		    	    	path.distance += edge.geLength();
-		    	   
-		    	    	
-		    	    	org.opentripplanner.util.model.EncodedPolylineBean polylineBean =  PolylineEncoder.createEncodings(geom);
-		    	    	total += Api.edgeVelocities.getStreetVelocity( BigInteger.valueOf(edgeId.longValue())) * edge.geLength();
-		    	    	
-		    	    	path.edgeGeoms.add(polylineBean.getPoints());
-		    	    }
-		    	    
-		    	    path.minSpeed = total / path.distance;
-		    	    path.maxSpeed = total / path.distance;
-		    	      	   
+	    	    // one table version for the whole path, even if a reload lands mid-request
+	    	    StreetVelocityCache.Snapshot velocities = Api.edgeVelocities.getSnapshot();
+	    	    SpeedProfiles.Snapshot profiles = Api.speedProfiles.getSnapshot();
+	    	    
+	    	    long departureTime = departure != null ? departure : System.currentTimeMillis();
+	    	    
+	    	    // paths are cached by the edges the two ends snap to
+	    	    EdgeIndex.Snap origin = new EdgeIndex.Snap();
+	    	    EdgeIndex.Snap destination = new EdgeIndex.Snap();
+	    	    
+	    	    boolean snapped = edgeIndex.nearest(coord1.y, coord1.x, maxSnapDistance, origin) && edgeIndex.nearest(coord2.y, coord2.x, maxSnapDistance, destination);
+	    	    
+	    	    ContractionHierarchy.Metric metric = router != null ? router.getMetric() : null;
+	    	    
+	    	    // paths only change when the hierarchy is re-customized, or without
+	    	    // one when the table is reloaded, not with the per-minute speed updates
+	    	    long routeVersion = metric != null ? metric.version : velocities.reloads;
+	    	    
+	    	    RouteCache.Route route = snapped ? routeCache.get(origin.edgeId, destination.edgeId, routeVersion) : null;
+	    	    
+	    	    if(route == null)
+	    	    {
+	    	    	long start = System.currentTimeMillis();
+	    	    	
+	    	    	int[] ids = null;
+	    	    	
+	    	    	if(metric != null && snapped)
+	    	    		ids = router.routeEdges(metric, origin.edgeId, destination.edgeId);
+	    	    	
+	    	    	if(ids == null)
+	    	    	{
+	    	    		List<Integer> edgeIds = Api.graph.getEdgesBetweenPoints(coord1, coord2);
+	    	    		
+	    	    		ids = new int[edgeIds.size()];
+	    	    		
+	    	    		for(int i = 0; i < ids.length; i++)
+	    	    			ids[i] = edgeIds.get(i);
+	    	    	}
+	    	    	
+	    	    	double[] lengths = new double[ids.length];
+	    	    	
+	    	    	double distance = 0.0;
+	    	    	
+	    	    	for(int i = 0; i < ids.length; i++)
+	    	    	{
+	    	    		TrafficEdge edge = Api.graph.getTrafficEdge(ids[i]);
+	    	    		
+	    	    		lengths[i] = edge.geLength();
+	    	    		
+	    	    		distance += lengths[i];
+	    	    	}
+	    	    	
+	    	    	route = new RouteCache.Route(ids, lengths, distance, System.currentTimeMillis() - start);
+	    	    	
+	    	    	if(snapped)
+	    	    		routeCache.put(origin.edgeId, destination.edgeId, routeVersion, route);
+	    	    }
+	    	    
+	    	    path.distance = route.distance;
+	    	    
+	    	    // geometry comes straight from the precomputed encodings
+	    	    if(merged != null && merged)
+	    	    	path.geom = edgePolylines.getMerged(route.edgeIds);
+	    	    else
+	    	    {
+	    	    	for(int edgeId : route.edgeIds)
+	    	    	{
+	    	    		String polyline = edgePolylines.getPolyline(edgeId);
+	    	    		
+	    	    		if(polyline != null)
+	    	    			path.edgeGeoms.add(polyline);
+	    	    	}
+	    	    }
+	    	    
+	    	    // speeds move every minute, so they're summed per request
+	    	    double velocityTotal = 0.0;
+	    	    
+	    	    for(int i = 0; i < route.edgeIds.length; i++)
+	    	    	velocityTotal += velocities.getStreetVelocity(route.edgeIds[i]) * route.lengths[i];
+	    	    
+	    	    path.minSpeed = velocityTotal / route.distance;
+	    	    path.maxSpeed = velocityTotal / route.distance;
+	    	    
+	    	    // travel time depends on departure, so it's worked out per request
+	    	    double travelTime = 0.0;
+	    	    
+	    	    for(int i = 0; i < route.edgeIds.length; i++)
+	    	    {
+	    	    	int edgeId = route.edgeIds[i];
+	    	    	
+	    	    	// speed for the time we expect to reach this edge, falling back to the current speed
+	    	    	double speed = profiles.getSpeed(edgeId, SpeedProfiles.bucket(departureTime + (long)(travelTime * 1000)));
+	    	    	
+	    	    	if(Double.isNaN(speed))
+	    	    		speed = velocities.getStreetVelocity(edgeId);
+	    	    	
+	    	    	if(speed > 0)
+	    	    		travelTime += route.lengths[i] / speed;
+	    	    }
+	    	    
+	    	    path.minTime = (int)Math.round(travelTime);
+	    	    path.maxTime = path.minTime;
+	    	      	   
 		    	    renderJSON(path);
 		    	    
 			   
     	  } 
+    
+	/**
+	 * Travel times and distances from every origin to every destination.
+	 * Points are "lat,lon" separated by semicolons. The result is streamed a
+	 * row per origin: as JSON, each row is [seconds, meters, seconds, meters,
+	 * ...] across the destinations; with format=bin, it's a big-endian int
+	 * count of origins and of destinations followed by the same pairs as ints.
+	 * Unreachable pairs are -1.
+	 */
+	public static void matrix(String origins, String destinations, String format) throws Exception {
+		
+		final Coordinate[] from = parsePoints(origins);
+		final Coordinate[] to = parsePoints(destinations);
+		
+		if(from == null || to == null || !TravelTimeMatrix.fits(from.length, to.length))
+			badRequest();
+		
+		final boolean binary = "bin".equals(format);
+		
+		if(binary)
+		{
+			response.contentType = "application/octet-stream";
+			response.writeChunk(ByteBuffer.allocate(8).putInt(from.length).putInt(to.length).array());
+		}
+		else
+		{
+			response.contentType = "application/json";
+			response.writeChunk("{\"origins\":" + from.length + ",\"destinations\":" + to.length + ",\"rows\":[");
+		}
+		
+		TravelTimeMatrix.compute(router, edgeIndex, maxSnapDistance, graph, edgeVelocities.getSnapshot(), from, to, new TravelTimeMatrix.RowWriter() {
+			
+			public void write(int origin, int[] seconds, int[] meters) {
+				
+				if(binary)
+				{
+					ByteBuffer row = ByteBuffer.allocate(seconds.length * 8);
+					
+					for(int j = 0; j < seconds.length; j++)
+						row.putInt(seconds[j]).putInt(meters[j]);
+					
+					response.writeChunk(row.array());
+				}
+				else
+				{
+					StringBuilder row = new StringBuilder(seconds.length * 12);
+					
+					row.append(origin > 0 ? ",[" : "[");
+					
+					for(int j = 0; j < seconds.length; j++)
+					{
+						if(j > 0)
+							row.append(',');
+						
+						row.append(seconds[j]).append(',').append(meters[j]);
+					}
+					
+					response.writeChunk(row.append(']').toString());
+				}
+			}
+		});
+		
+		if(!binary)
+			response.writeChunk("]}");
+	}
+	
+	/**
+	 * "lat,lon;lat,lon;..." as lon/lat coordinates, or null if malformed.
+	 */
+	static Coordinate[] parsePoints(String points) {
+		
+		if(points == null || points.trim().isEmpty())
+			return null;
+		
+		String[] parts = points.split(";");
+		Coordinate[] coords = new Coordinate[parts.length];
+		
+		try
+		{
+			for(int i = 0; i < parts.length; i++)
+			{
+				String[] latLon = parts[i].split(",");
+				
+				if(latLon.length != 2)
+					return null;
+				
+				coords[i] = new Coordinate(Double.parseDouble(latLon[1].trim()), Double.parseDouble(latLon[0].trim()));
+			}
+		}
+		catch(NumberFormatException e)
+		{
+			return null;
+		}
+		
+		return coords;
+	}
 }
@@ -34,9 +34,11 @@ import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.LineString;
 
+import jobs.AdjustTimes;
 import jobs.ObservationHandler;
 
 import models.*;
+import utils.TimeAdjustment;
 
 public class Application extends Controller {
 	
@@ -179,16 +181,29 @@ public class Application extends Controller {
 		render();
 	}
 	
-	public static void adjustTimes()
+	/**
+	 * Starts recomputing adjusted timestamps in the background, carrying on
+	 * from the last checkpoint unless restart is set, and returns the job's
+	 * progress. Poll adjustTimesStatus to follow it.
+	 */
+	public static void adjustTimes(Boolean restart)
 	{
-		List<LocationUpdate> updates = LocationUpdate.find("sent is not null and received is not null").fetch();
+		if(!TimeAdjustment.isRunning())
+			new AdjustTimes(restart != null && restart).now();
 		
-		for(LocationUpdate update : updates)
-		{
-			update.calcAdjustedTime();
-		}
+		renderJSON(TimeAdjustment.getStats());
+	}
+	
+	public static void adjustTimesStatus()
+	{
+		renderJSON(TimeAdjustment.getStats());
+	}
 	
-		ok();
+	public static void cancelAdjustTimes()
+	{
+		TimeAdjustment.cancel();
+		
+		renderJSON(TimeAdjustment.getStats());
 	}
 	
 	public static void sendMessage(String message)
@@ -35,6 +35,7 @@ import com.vividsolutions.jts.geom.LineString;
 import jobs.ObservationHandler;
 
 import models.*;
+import utils.FleetState;
 import api.*;
 
 @With(Secure.class)
@@ -56,22 +57,15 @@ public class Taxi extends Controller {
 		cal.add(Calendar.MINUTE, -15);
 		Date recentDate = cal.getTime();
 		
-		List<Phone> phones;
-		
-		//if(Security.getAccount().operator == null)
-			phones = Phone.find("recentLat is not null AND recentLon is not null AND lastUpdate > ? order by id", recentDate).fetch();
-		//else
-		//	phones = Phone.find("lastUpdate > ? and operator = ? order by id", recentDate, Security.getAccount().operator).fetch();
+		List<PhoneSimple> phoneData = new ArrayList<PhoneSimple>(); 
 		
-		for(Phone phone : phones)
-		{
-			phone.populateUnreadMessages();
-		}
+		for(FleetState.PhoneState state : FleetState.list(getOperatorId(), recentDate, false))
+			phoneData.add(new PhoneSimple(state, recentDate));
 		
 		if(request.format == "xml")
-			renderXml(phones);
+			renderXml(phoneData);
 		else
-			renderJSON(phones);
+			renderJSON(phoneData);
 	}
 	
 	public static void index() {
@@ -105,51 +99,18 @@ public class Taxi extends Controller {
 		if(type == null)
 			type = "all"; 
 
-		List<Phone> phones;
-
-		String sql = "recentLat is not null AND recentLon is not null";	
-		
 		Calendar cal = Calendar.getInstance();
 		cal.add(Calendar.MINUTE, -15);
 		Date recentDate = cal.getTime();
 
-		if(type.equals("active"))
-		{
-			phones = Phone.find(sql + " AND lastUpdate > ? order by id", recentDate).fetch();
-		}
-		else // active
-		{	
-
-			phones = Phone.find(sql).fetch();
-		
-		}
+		// served from the live fleet state, no per-phone queries
+		Date activeSince = type.equals("active") ? recentDate : null;
+		boolean withMessages = type.equals("messages");
 
 		List<PhoneSimple> phoneData = new ArrayList<PhoneSimple>(); 
 
-		for(Phone p : phones)
-		{
-			Boolean include = true;
-			
-			// check if operator matches
-			if(Security.getAccount().operator != null && (p.operator == null || p.operator.id != Security.getAccount().operator.id))
-			{
-				// operator not allowed
-				include = false;
-			}
-
-			// check for messages
-			if(include)
-			{
-				p.populateUnreadMessages();
-
-				// if message query filter locations without messages
-				if(type.equals("messages") && p.messages.size() < 1)
-					include = false;
-			}
-
-			if(include)
-				phoneData.add(new PhoneSimple(p, recentDate));
-		}
+		for(FleetState.PhoneState state : FleetState.list(getOperatorId(), activeSince, withMessages))
+			phoneData.add(new PhoneSimple(state, recentDate));
 		
 		if(request.format == "xml")
 			renderXml(phoneData);
@@ -157,6 +118,19 @@ public class Taxi extends Controller {
 			renderJSON(phoneData);
 	}
 
+	/**
+	 * The connected account's operator, or null for accounts that see every
+	 * operator's phones.
+	 */
+	static Long getOperatorId() {
+		
+		Account account = Security.getAccount();
+		
+		if(account == null || account.operator == null)
+			return null;
+		
+		return account.operator.id;
+	}
 	
 	public static void omReport() {
 		
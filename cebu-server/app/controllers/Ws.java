@@ -12,7 +12,7 @@ import play.mvc.WebSocketController;
 
 public class Ws extends WebSocketController {
 
-	static void processPbFrame(byte[] data, String source) {
+	static boolean processPbFrame(byte[] data, String source) {
 		try {
 			LocationUpdate locationUpdate = LocationUpdate.parseFrom(data);
 		  	
@@ -22,11 +22,13 @@ public class Ws extends WebSocketController {
 		  	if(locationUpdate.hasLevel())
 		  		Logger.info("battery charging: " + locationUpdate.getCharging() + " battery level: " + locationUpdate.getLevel() + " network signal: " + locationUpdate.getNetwork() + " gps status: "  + locationUpdate.getGps() );
 		  	
-		  	models.LocationUpdate.pbLocationUpdate(locationUpdate);
+		  	return models.LocationUpdate.pbLocationUpdate(locationUpdate);
 		}
 		catch(Exception e) {
 			e.printStackTrace();
 		}
+		
+		return true;
 	}
 	
 	public static void location() {
@@ -0,0 +1,21 @@
+package jobs;
+
+import play.jobs.Job;
+import utils.TimeAdjustment;
+
+/**
+ * Runs TimeAdjustment off the request thread.
+ */
+public class AdjustTimes extends Job {
+
+	final boolean restart;
+
+	public AdjustTimes(boolean restart) {
+		this.restart = restart;
+	}
+
+	public void doJob() {
+
+		TimeAdjustment.run(restart);
+	}
+}
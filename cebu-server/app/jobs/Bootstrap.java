@@ -2,7 +2,13 @@ package jobs;
 import play.*;
 import play.jobs.*;
 import play.test.*;
+import utils.IngestQueue;
+import utils.LocationPartitions;
+import utils.TimeAdjustment;
+import utils.FleetState;
+import utils.GeoUtils;
 import models.*;
+import controllers.Api;
 
 @OnApplicationStart
 public class Bootstrap extends Job {
@@ -20,5 +26,29 @@ public class Bootstrap extends Job {
         if(Message.count() == 0) {
             Fixtures.loadModels("initial-message-data.yml");
         }
+        
+        FleetState.warm();
+        
+        GeoUtils.warmTransforms();
+        
+        Api.edgeSpeeds.load();
+        
+        // the distance and edge speed flushes rely on them to catch racing inserts
+        VehicleDistance.ensureUniqueIndex();
+        StatsEdge.ensureUniqueIndex();
+        
+        // the writers route rows by partition, so have the current ones in place first
+        LocationPartitions.prepare();
+        
+        IngestQueue.start();
+        
+        Api.matchFeed.start();
+        
+        // expiry, the parent's index and its migration can take a while on a big table
+        new PartitionMaintenance().now();
+        
+        // pick up a time adjustment the last shutdown interrupted
+        if(TimeAdjustment.isUnfinished())
+            new AdjustTimes(false).now();
     }
 }
\ No newline at end of file
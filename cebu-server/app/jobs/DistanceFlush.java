@@ -0,0 +1,14 @@
+package jobs;
+
+import controllers.Api;
+import play.jobs.Every;
+import play.jobs.Job;
+
+@Every("1min")
+public class DistanceFlush extends Job {
+
+	public void doJob() {
+
+		Api.distanceCache.flushDistances();
+	}
+}
@@ -0,0 +1,16 @@
+package jobs;
+
+import controllers.Api;
+import play.jobs.Every;
+import play.jobs.Job;
+
+@Every("1min")
+public class EdgeSpeedFlush extends Job {
+
+	public void doJob() {
+
+		// travel times pick the new speeds up straight away; routing is only
+		// re-weighted by VelocityRefresh, so cached paths last between reloads
+		Api.edgeSpeeds.flush(Api.graph, Api.edgeVelocities);
+	}
+}
@@ -0,0 +1,14 @@
+package jobs;
+
+import play.jobs.Every;
+import play.jobs.Job;
+import utils.IngestQueue;
+
+@Every("1min")
+public class IngestRetry extends Job {
+
+	public void doJob() {
+
+		IngestQueue.retryDeadLetters();
+	}
+}
@@ -0,0 +1,15 @@
+package jobs;
+
+import controllers.Api;
+import play.jobs.Every;
+import play.jobs.Job;
+
+@Every("1min")
+public class MapMatchExpire extends Job {
+
+	public void doJob() {
+
+		if(Api.mapMatcher != null)
+			Api.mapMatcher.expireIdle();
+	}
+}
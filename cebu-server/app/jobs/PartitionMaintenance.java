@@ -0,0 +1,14 @@
+package jobs;
+
+import play.jobs.Every;
+import play.jobs.Job;
+import utils.LocationPartitions;
+
+@Every("1h")
+public class PartitionMaintenance extends Job {
+
+	public void doJob() {
+
+		LocationPartitions.maintain();
+	}
+}
@@ -0,0 +1,14 @@
+package jobs;
+
+import play.jobs.Every;
+import play.jobs.Job;
+import utils.PositionBuffer;
+
+@Every("5s")
+public class PositionFlush extends Job {
+
+	public void doJob() {
+
+		PositionBuffer.flush();
+	}
+}
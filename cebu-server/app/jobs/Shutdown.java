@@ -0,0 +1,34 @@
+package jobs;
+import play.*;
+import play.jobs.*;
+import utils.IngestQueue;
+import utils.PositionBuffer;
+import utils.TimeAdjustment;
+import controllers.Api;
+
+@OnApplicationStop
+public class Shutdown extends Job {
+    public void doJob() {
+    	
+    	// stops after the chunk in progress, which commits its checkpoint
+    	TimeAdjustment.cancel();
+    	
+    	// flush queued location updates before the datasource goes away
+    	IngestQueue.stop();
+    	
+    	PositionBuffer.flush();
+    	
+    	Api.distanceCache.flushDistances();
+    	
+    	// match what the request threads already queued
+    	Api.matchFeed.stop();
+    	
+    	// vehicles still being matched have driven edges nobody has heard about yet
+    	if(Api.mapMatcher != null)
+    		Api.mapMatcher.expire(0);
+    	
+    	Api.edgeSpeeds.flush(Api.graph, Api.edgeVelocities);
+    	
+    	Api.speedProfiles.flush();
+    }
+}
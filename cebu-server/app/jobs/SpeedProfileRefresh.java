@@ -0,0 +1,15 @@
+package jobs;
+
+import controllers.Api;
+import play.jobs.Every;
+import play.jobs.Job;
+
+@Every("1h")
+public class SpeedProfileRefresh extends Job {
+
+	public void doJob() {
+
+		// folds in the last hour's traversals, then reloads
+		Api.speedProfiles.flush();
+	}
+}
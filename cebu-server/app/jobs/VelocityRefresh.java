@@ -0,0 +1,18 @@
+package jobs;
+
+import controllers.Api;
+import play.jobs.Every;
+import play.jobs.Job;
+
+@Every("5min")
+public class VelocityRefresh extends Job {
+
+	public void doJob() {
+
+		Api.edgeVelocities.reload();
+		
+		// new weights only; the hierarchy itself doesn't change
+		if(Api.router != null)
+			Api.router.customize(Api.edgeVelocities.getSnapshot());
+	}
+}
@@ -1,12 +1,29 @@
 package models;
 
 import javax.persistence.Entity;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
 
 import play.db.jpa.Model;
+import utils.PhoneRegistry;
 
 @Entity
 public class Driver extends Model {
  
     public String name;
     public String driverId;
+
+    // relabel the phones pointing at this one in the registry and fleet state
+    
+    @PostUpdate
+    void updateRegistry()
+    {
+    	PhoneRegistry.update(this, false);
+    }
+    
+    @PostRemove
+    void removeFromRegistry()
+    {
+    	PhoneRegistry.update(this, true);
+    }
 }
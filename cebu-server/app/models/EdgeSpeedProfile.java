@@ -0,0 +1,175 @@
+package models;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.Entity;
+
+import play.db.jpa.Model;
+import utils.IdAllocator;
+import utils.SpeedProfiles;
+
+/**
+ * Speed profile for one street edge: SpeedProfiles.BUCKETS speeds in cm/s
+ * packed as big-endian shorts, 0 for buckets without data.
+ */
+@Entity
+public class EdgeSpeedProfile extends Model {
+
+	public Integer edgeId;
+	
+	public byte[] profile;
+	
+	public Date updated;
+	
+	public static void loadProfiles(Connection conn, SpeedProfiles.Builder builder) throws SQLException
+	{
+		Statement stmt = conn.createStatement();
+		
+		try
+		{
+			ResultSet rs = stmt.executeQuery("SELECT edgeid, profile FROM edgespeedprofile WHERE profile IS NOT NULL");
+			
+			short[] speeds = new short[SpeedProfiles.BUCKETS];
+			
+			while(rs.next())
+			{
+				byte[] packed = rs.getBytes(2);
+				
+				if(packed.length != SpeedProfiles.BUCKETS * 2)
+					continue;
+				
+				ByteBuffer.wrap(packed).asShortBuffer().get(speeds);
+				
+				builder.add(rs.getInt(1), speeds);
+			}
+			
+			rs.close();
+		}
+		finally
+		{
+			stmt.close();
+		}
+	}
+	
+	/**
+	 * Loads the stored profiles of just the given edges.
+	 */
+	public static void loadProfiles(Connection conn, int[] edgeIds, SpeedProfiles.Builder builder) throws SQLException
+	{
+		Integer[] ids = new Integer[edgeIds.length];
+		
+		for(int i = 0; i < edgeIds.length; i++)
+			ids[i] = edgeIds[i];
+		
+		PreparedStatement stmt = conn.prepareStatement("SELECT edgeid, profile FROM edgespeedprofile WHERE profile IS NOT NULL AND edgeid = ANY (?)");
+		
+		try
+		{
+			stmt.setArray(1, conn.createArrayOf("integer", ids));
+			
+			ResultSet rs = stmt.executeQuery();
+			
+			short[] speeds = new short[SpeedProfiles.BUCKETS];
+			
+			while(rs.next())
+			{
+				byte[] packed = rs.getBytes(2);
+				
+				if(packed.length != SpeedProfiles.BUCKETS * 2)
+					continue;
+				
+				ByteBuffer.wrap(packed).asShortBuffer().get(speeds);
+				
+				builder.add(rs.getInt(1), speeds);
+			}
+			
+			rs.close();
+		}
+		finally
+		{
+			stmt.close();
+		}
+	}
+	
+	/**
+	 * Replaces the profiles for edgeIds, inserting rows for new edges. The
+	 * caller owns the transaction.
+	 */
+	public static void saveProfiles(Connection conn, int[] edgeIds, short[][] profiles) throws SQLException
+	{
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+		
+		List<Integer> missing = new ArrayList<Integer>();
+		
+		PreparedStatement update = conn.prepareStatement("UPDATE edgespeedprofile SET profile = ?, updated = ? WHERE edgeid = ?");
+		
+		try
+		{
+			for(int i = 0; i < edgeIds.length; i++)
+			{
+				update.setBytes(1, pack(profiles[i]));
+				update.setTimestamp(2, now);
+				update.setInt(3, edgeIds[i]);
+				update.addBatch();
+			}
+			
+			int[] counts = update.executeBatch();
+			
+			for(int i = 0; i < counts.length; i++)
+			{
+				if(counts[i] == 0)
+					missing.add(i);
+			}
+		}
+		finally
+		{
+			update.close();
+		}
+		
+		if(missing.isEmpty())
+			return;
+		
+		PreparedStatement insert = conn.prepareStatement("INSERT INTO edgespeedprofile (id, edgeid, profile, updated) VALUES (?, ?, ?, ?)");
+		
+		try
+		{
+			long[] ids = new long[missing.size()];
+			IdAllocator.nextIds(ids);
+			
+			for(int i = 0; i < missing.size(); i++)
+			{
+				int index = missing.get(i);
+				
+				insert.setLong(1, ids[i]);
+				insert.setInt(2, edgeIds[index]);
+				insert.setBytes(3, pack(profiles[index]));
+				insert.setTimestamp(4, now);
+				insert.addBatch();
+			}
+			
+			insert.executeBatch();
+		}
+		finally
+		{
+			insert.close();
+		}
+	}
+	
+	static byte[] pack(short[] profile)
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(profile.length * 2);
+		
+		buffer.asShortBuffer().put(profile);
+		
+		return buffer.array();
+	}
+}
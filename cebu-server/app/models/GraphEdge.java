@@ -1,17 +1,21 @@
 package models;
 
 import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.List;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 
 import javax.persistence.Entity;
 import javax.persistence.Query;
 
-import org.apache.commons.lang.StringUtils;
 import org.hibernate.annotations.Type;
 import org.opentripplanner.routing.edgetype.PlainStreetEdge;
 
 import play.db.jpa.Model;
+import utils.Ewkb;
+import utils.IdAllocator;
+import utils.TripLineIndex;
 
 import com.conveyal.traffic.graph.TripLine;
 import com.vividsolutions.jts.geom.Coordinate;
@@ -46,62 +50,61 @@ public class GraphEdge extends Model {
     
     public static void nativeInsert(Integer edgeId, PlainStreetEdge edge, TripLine tripLine1, TripLine tripLine2)
     {
-    	List<String> edgePoints = new ArrayList<String>();
-    	List<String> tripLine1Points = new ArrayList<String>();
-    	List<String> tripLine2Points = new ArrayList<String>();
-
-    	for(Coordinate coord : edge.getGeometry().getCoordinates()) {
-    		edgePoints.add(new Double(coord.x).toString() + " " + new Double(coord.y).toString());
-    	}
-    	
-    	for(Coordinate coord : tripLine1.getGeometryLonLat().getCoordinates()) {
-    		tripLine1Points.add(new Double(coord.x).toString() + " " + new Double(coord.y).toString());
-    	}
-    	
-    	for(Coordinate coord : tripLine2.getGeometryLonLat().getCoordinates()) {
-    		tripLine2Points.add(new Double(coord.x).toString() + " " + new Double(coord.y).toString());
-    	}
-    	
-    	String edgeLinestring = "LINESTRING(" + StringUtils.join(edgePoints, ", ") + ")";
-    	String tripLine1Linestring = "LINESTRING(" + StringUtils.join(tripLine1Points, ", ") + ")";
-    	String tripLine2Linestring = "LINESTRING(" + StringUtils.join(tripLine2Points, ", ") + ")";
-
-	    Query idQuery = GraphEdge.em().createNativeQuery("SELECT NEXTVAL('hibernate_sequence');");
-    	BigInteger nextId = (BigInteger)idQuery.getSingleResult();
+    	long nextId = IdAllocator.nextId();
 
     	GraphEdge.em().createNativeQuery("INSERT INTO graphedge (id, edgeid, shape, tripLine1, tripLine2)" +
-        	"  VALUES(?, ?, ST_GeomFromText( ?, 4326), ST_GeomFromText( ?, 4326), ST_GeomFromText( ?, 4326)" +
+        	"  VALUES(?, ?, ST_GeomFromEWKB(?), ST_GeomFromEWKB(?), ST_GeomFromEWKB(?)" +
         	");")
           .setParameter(1,  nextId)
           .setParameter(2,  edgeId)	            
-          .setParameter(3,  edgeLinestring)
-          .setParameter(4,  tripLine1Linestring)
-          .setParameter(5,  tripLine2Linestring)
+          .setParameter(3,  Ewkb.lineString(edge.getGeometry()))
+          .setParameter(4,  Ewkb.lineString(tripLine1.getGeometryLonLat()))
+          .setParameter(5,  Ewkb.lineString(tripLine2.getGeometryLonLat()))
           .executeUpdate();
     	
     }
     
     public static void nativeInsert(Integer edgeId, PlainStreetEdge edge)
     {
-    	List<String> edgePoints = new ArrayList<String>();
-    	
-    	for(Coordinate coord : edge.getGeometry().getCoordinates()) {
-    		edgePoints.add(new Double(coord.x).toString() + " " + new Double(coord.y).toString());
-    	}
-    	
-    	String edgeLinestring = "LINESTRING(" + StringUtils.join(edgePoints, ", ") + ")";
-    	
-	    Query idQuery = GraphEdge.em().createNativeQuery("SELECT NEXTVAL('hibernate_sequence');");
-    	BigInteger nextId = (BigInteger)idQuery.getSingleResult();
+    	long nextId = IdAllocator.nextId();
 
     	GraphEdge.em().createNativeQuery("INSERT INTO graphedge (id, edgeid, shape)" +
-        	"  VALUES(?, ?, ST_GeomFromText( ?, 4326)" +
+        	"  VALUES(?, ?, ST_GeomFromEWKB(?)" +
         	");")
           .setParameter(1,  nextId)
           .setParameter(2,  edgeId)	            
-          .setParameter(3,  edgeLinestring)
+          .setParameter(3,  Ewkb.lineString(edge.getGeometry()))
           .executeUpdate();
     	
     }
     
+    /**
+     * Adds the end points of every edge's two trip lines to builder, for 
+     * edges that have both.
+     */
+    public static void getTripLines(Connection conn, TripLineIndex.Builder builder) throws SQLException
+    {
+    	Statement stmt = conn.createStatement();
+    	
+    	try
+    	{
+    		ResultSet rs = stmt.executeQuery("SELECT edgeid," +
+    			" ST_X(ST_StartPoint(tripline1)), ST_Y(ST_StartPoint(tripline1)), ST_X(ST_EndPoint(tripline1)), ST_Y(ST_EndPoint(tripline1))," +
+    			" ST_X(ST_StartPoint(tripline2)), ST_Y(ST_StartPoint(tripline2)), ST_X(ST_EndPoint(tripline2)), ST_Y(ST_EndPoint(tripline2))" +
+    			" FROM graphedge WHERE edgeid >= 0 AND tripline1 IS NOT NULL AND tripline2 IS NOT NULL");
+    		
+    		while(rs.next())
+    		{
+    			builder.add(rs.getInt(1), 
+    					new Coordinate(rs.getDouble(2), rs.getDouble(3)), new Coordinate(rs.getDouble(4), rs.getDouble(5)), 
+    					new Coordinate(rs.getDouble(6), rs.getDouble(7)), new Coordinate(rs.getDouble(8), rs.getDouble(9)));
+    		}
+    		
+    		rs.close();
+    	}
+    	finally
+    	{
+    		stmt.close();
+    	}
+    }
 }
@@ -0,0 +1,125 @@
+package models;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Date;
+
+import javax.persistence.Entity;
+
+import play.db.jpa.Model;
+import utils.IdAllocator;
+
+/**
+ * How far a long-running background job has got, saved in the same
+ * transaction as each chunk of its work so it can pick up where it stopped.
+ */
+@Entity
+public class JobCheckpoint extends Model {
+
+	public String name;
+
+	// last id done, and the id the run stops at
+	public Long lastId;
+	public Long endId;
+
+	public Long processed;
+
+	public Date started;
+	public Date updated;
+
+	public Boolean finished;
+
+	/**
+	 * The named checkpoint, or null if the job has never run.
+	 */
+	public static JobCheckpoint load(Connection conn, String name) throws SQLException
+	{
+		PreparedStatement statement = conn.prepareStatement("SELECT lastid, endid, processed, started, updated, finished FROM jobcheckpoint WHERE name = ?");
+
+		try
+		{
+			statement.setString(1, name);
+
+			ResultSet results = statement.executeQuery();
+
+			JobCheckpoint checkpoint = null;
+
+			if(results.next())
+			{
+				checkpoint = new JobCheckpoint();
+
+				checkpoint.name = name;
+				checkpoint.lastId = results.getLong(1);
+				checkpoint.endId = results.getLong(2);
+				checkpoint.processed = results.getLong(3);
+				checkpoint.started = results.getTimestamp(4);
+				checkpoint.updated = results.getTimestamp(5);
+				checkpoint.finished = results.getBoolean(6);
+			}
+
+			results.close();
+
+			return checkpoint;
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+
+	/**
+	 * Writes the checkpoint, creating its row the first time. The caller owns
+	 * the transaction.
+	 */
+	public void store(Connection conn) throws SQLException
+	{
+		updated = new Date();
+
+		PreparedStatement update = conn.prepareStatement("UPDATE jobcheckpoint SET lastid = ?, endid = ?, processed = ?, started = ?, updated = ?, finished = ? WHERE name = ?");
+
+		int rows;
+
+		try
+		{
+			update.setLong(1, lastId);
+			update.setLong(2, endId);
+			update.setLong(3, processed);
+			update.setTimestamp(4, new Timestamp(started.getTime()));
+			update.setTimestamp(5, new Timestamp(updated.getTime()));
+			update.setBoolean(6, finished);
+			update.setString(7, name);
+
+			rows = update.executeUpdate();
+		}
+		finally
+		{
+			update.close();
+		}
+
+		if(rows > 0)
+			return;
+
+		PreparedStatement insert = conn.prepareStatement("INSERT INTO jobcheckpoint (id, name, lastid, endid, processed, started, updated, finished) VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+
+		try
+		{
+			insert.setLong(1, IdAllocator.nextId());
+			insert.setString(2, name);
+			insert.setLong(3, lastId);
+			insert.setLong(4, endId);
+			insert.setLong(5, processed);
+			insert.setTimestamp(6, new Timestamp(started.getTime()));
+			insert.setTimestamp(7, new Timestamp(updated.getTime()));
+			insert.setBoolean(8, finished);
+
+			insert.executeUpdate();
+		}
+		finally
+		{
+			insert.close();
+		}
+	}
+}
@@ -3,6 +3,11 @@ package models;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
@@ -12,6 +17,7 @@ import javax.persistence.Entity;
 import javax.persistence.EntityManager;
 import javax.persistence.ManyToOne;
 import javax.persistence.Query;
+import javax.persistence.Transient;
 
 import org.apache.commons.httpclient.NameValuePair;
 import org.apache.http.HttpResponse;
@@ -33,7 +39,13 @@ import controllers.Api;
 
 import play.Logger;
 import play.db.jpa.Model;
+import utils.IdAllocator;
+import utils.IngestQueue;
+import utils.IngestRecord;
 import utils.Observation;
+import utils.PhoneRegistry;
+import utils.PositionBuffer;
+import utils.SqlArray;
 
 @Entity
 public class LocationUpdate extends Model {
@@ -81,6 +93,12 @@ public class LocationUpdate extends Model {
     
     public Boolean websocket;
     
+    // minutes, filled in bulk by UpdateGaps for the status pages
+    @Transient
+    public Long updateGap;
+    @Transient
+    public Long goodNetworkGap;
+    
     public Observation getObservationData()
     {
     	Observation obsData = new Observation(this.imei, this.timestamp, new Coordinate(this.lat, this.lon), this.velocity, this.heading, this.gpsError);
@@ -90,9 +108,16 @@ public class LocationUpdate extends Model {
     
     public Long getMinutesSinceLastUpdate()
     {
-    	LocationUpdate lastUpdate = LocationUpdate.find("imei = ? and id < ? order by id desc", this.imei, this.id).first();
+    	if(updateGap != null)
+    		return updateGap;
+    	
+    	if(this.received == null)
+    		return new Long(0);
     	
-    	if(lastUpdate != null && this.received != null && lastUpdate.received != null)
+    	// ids aren't in arrival order across nodes, see IdAllocator
+    	LocationUpdate lastUpdate = LocationUpdate.find("imei = ? and (received < ? or (received = ? and id < ?)) order by received desc, id desc", this.imei, this.received, this.received, this.id).first();
+    	
+    	if(lastUpdate != null && lastUpdate.received != null)
     	{
     		return (this.received.getTime() - lastUpdate.received.getTime()) / 1000 / 60;  
     	}
@@ -102,9 +127,16 @@ public class LocationUpdate extends Model {
     
     public Long getMinutesSinceLastGoodNetwork()
     {
-    	LocationUpdate lastUpdate = LocationUpdate.find("imei = ? and id < ? and failednetwork = false order by id desc", this.imei, this.id).first();
+    	if(goodNetworkGap != null)
+    		return goodNetworkGap;
     	
-    	if(lastUpdate != null && this.received != null && lastUpdate.received != null)
+    	if(this.received == null)
+    		return new Long(0);
+    	
+    	// ids aren't in arrival order across nodes, see IdAllocator
+    	LocationUpdate lastUpdate = LocationUpdate.find("imei = ? and failednetwork = false and (received < ? or (received = ? and id < ?)) order by received desc, id desc", this.imei, this.received, this.received, this.id).first();
+    	
+    	if(lastUpdate != null && lastUpdate.received != null)
     	{
     		return (this.received.getTime() - lastUpdate.received.getTime()) / 1000 / 60;  
     	}
@@ -112,18 +144,22 @@ public class LocationUpdate extends Model {
     		return new Long(0);
     }
     
-    static public void pbLocationUpdate(com.conveyal.trafficprobe.TrafficProbeProtos.LocationUpdate locationUpdate)
+    /**
+     * Queues the locations in a protobuf frame for insert. Returns false if the
+     * ingest queue had no room and the frame was dropped.
+     */
+    static public boolean pbLocationUpdate(com.conveyal.trafficprobe.TrafficProbeProtos.LocationUpdate locationUpdate)
     {
     	Date timeReceived = new Date();
     	
     	Long phoneId = locationUpdate.getPhone();
     	
-    	Phone phone = Phone.findById(phoneId);
+    	PhoneRegistry.Entry phone = PhoneRegistry.getById(phoneId);
     	
     	if(phone == null)
     	{
     		Logger.info("Phone " + phoneId + " not found.");
-    		return;
+    		return true;
     	}
     	 
     	Long intitialTimestamp = locationUpdate.getTime();
@@ -135,14 +171,16 @@ public class LocationUpdate extends Model {
     	
     	if(locationUpdate.getLocationList().size() > 100) {
     		Logger.info("Message buffer too large, clipping to 100");
-    		int index = locationUpdate.getLocationList().size() - 1;
-    		locations = locationUpdate.getLocationList().subList(index - 100, index);
+    		int size = locationUpdate.getLocationList().size();
+    		locations = locationUpdate.getLocationList().subList(size - 100, size);
     	}
     	else
     		locations = locationUpdate.getLocationList();
     		
     	
-    	for(Location location : locationUpdate.getLocationList())
+    	List<IngestRecord> records = new ArrayList<IngestRecord>(locations.size());
+    	
+    	for(Location location : locations)
     	{
    
     		try
@@ -158,8 +196,6 @@ public class LocationUpdate extends Model {
 	    		Coordinate locationCoord = new Coordinate(lon, lat);
 	    		Observation observation = new Observation(phone.imei, observationTime, locationCoord, velocity, heading, gpsError);
 	    		
-	    		Api.distanceCache.updateDistance(phone.imei, locationCoord, gpsError);
-	    		
 	    		/*DefaultHttpClient httpclient = new DefaultHttpClient();
 	        	HttpPost httpPost = new HttpPost("http://localhost:9001/application/sendData");
 	        	List <BasicNameValuePair> nvps = new ArrayList <BasicNameValuePair>();
@@ -175,7 +211,7 @@ public class LocationUpdate extends Model {
 	    			e.printStackTrace();
 	    		}*/
 	        	
-	    		LocationUpdate.natveInsert(LocationUpdate.em(), phone.imei, observation, observationTime, observationTime, timeReceived, true);
+	    		records.add(IngestRecord.fromObservation(observation, observationTime, timeReceived, true));
     		}
     		catch(Exception e)
     		{
@@ -184,24 +220,215 @@ public class LocationUpdate extends Model {
     		}
     	}
     	
+    	if(!IngestQueue.offerAll(records))
+    	{
+    		Logger.error("Ingest queue full, dropping " + records.size() + " updates from phone " + phoneId);
+    		return false;
+    	}
+    	
+    	for(IngestRecord record : records)
+    		Api.distanceCache.updateDistance(phone.imei, new Coordinate(record.lon, record.lat), record.gpsError, record.adjustedTimestamp);
+    	
+    	Api.matchFeed.offer(records);
+    	
     	if(lat != null && lon != null)
     	{
-			phone.recentLat = lat;
-			phone.recentLon = lon;
-			phone.lastUpdate = new Date();
-			phone.save();
+			PositionBuffer.record(phoneId, lat, lon, new Date());
     	}
+    	
+    	return true;
+    }
+    
+    /**
+     * Writes queued rows as a single JDBC batch on the given connection. Used by 
+     * the IngestQueue writer threads; the caller owns the transaction. table is
+     * locationupdate or one of its partitions, from LocationPartitions.
+     */
+    static public void batchInsert(Connection conn, String table, List<IngestRecord> records) throws SQLException
+    {
+    	PreparedStatement statement = conn.prepareStatement("INSERT INTO " + table + " (id, imei, timestamp, adjustedtimestamp, sent, received, lat, lon, velocity, heading, gpserror, shape, charging, battery, boot, shutdown, failednetwork, signal, websocket)" +
+    			"  VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ST_SetSRID(ST_MakePoint(?, ?), 4326), ?, ?, ?, ?, ?, ?, ?);");
+    	
+    	long[] ids = new long[records.size()];
+    	IdAllocator.nextIds(ids);
+    	
+    	try
+    	{
+    		int i = 0;
+    		
+	    	for(IngestRecord record : records)
+	    	{
+	    		record.id = ids[i++];
+	    		
+	    		statement.setLong(1, record.id);
+	    		statement.setString(2, record.imei);
+	    		setTimestamp(statement, 3, record.timestamp);
+	    		setTimestamp(statement, 4, record.adjustedTimestamp);
+	    		setTimestamp(statement, 5, record.sent);
+	    		setTimestamp(statement, 6, record.received);
+	    		setDouble(statement, 7, record.lat);
+	    		setDouble(statement, 8, record.lon);
+	    		setDouble(statement, 9, record.velocity);
+	    		setDouble(statement, 10, record.heading);
+	    		setDouble(statement, 11, record.gpsError);
+	    		
+	    		// shape is POINT(lat lon), bound as doubles rather than WKT; no location makes it null
+	    		setDouble(statement, 12, record.lat);
+	    		setDouble(statement, 13, record.lon);
+	    		
+	    		setBoolean(statement, 14, record.charging);
+	    		setDouble(statement, 15, record.battery);
+	    		setBoolean(statement, 16, record.boot);
+	    		setBoolean(statement, 17, record.shutdown);
+	    		setBoolean(statement, 18, record.failedNetwork);
+	    		
+	    		if(record.signal != null)
+	    			statement.setInt(19, record.signal);
+	    		else
+	    			statement.setNull(19, Types.INTEGER);
+	    		
+	    		setBoolean(statement, 20, record.websocket);
+	    		
+	    		statement.addBatch();
+	    	}
+	    	
+	    	statement.executeBatch();
+    	}
+    	finally
+    	{
+    		statement.close();
+    	}
+    }
+    
+    /**
+     * Loads a large batch with a single INSERT ... SELECT over unnested column 
+     * arrays, building the shape geometry on the server. One statement and one 
+     * round trip per batch regardless of size; used by the IngestQueue writers 
+     * for backlog uploads and imports, with the same table as batchInsert.
+     */
+    static public void bulkInsert(Connection conn, String table, List<IngestRecord> records) throws SQLException
+    {
+    	long[] ids = new long[records.size()];
+    	IdAllocator.nextIds(ids);
+    	
+    	int i = 0;
+    	
+    	for(IngestRecord record : records)
+    		record.id = ids[i++];
+    	
+    	String[] columns = bulkColumns(records);
+    	
+    	// shape keeps the POINT(lat lon) axis order used by the other inserts
+    	PreparedStatement statement = conn.prepareStatement("INSERT INTO " + table + " (id, imei, timestamp, adjustedtimestamp, sent, received, lat, lon, velocity, heading, gpserror, shape, charging, battery, boot, shutdown, failednetwork, signal, websocket)" +
+    			"  SELECT b_id, b_imei, b_timestamp, b_adjusted, b_sent, b_received, b_lat, b_lon, b_velocity, b_heading, b_gpserror, ST_SetSRID(ST_MakePoint(b_lat, b_lon), 4326), b_charging, b_battery, b_boot, b_shutdown, b_failednetwork, b_signal, b_websocket" +
+    			"  FROM (SELECT unnest(?::bigint[]) AS b_id, unnest(?::text[]) AS b_imei, unnest(?::timestamp[]) AS b_timestamp, unnest(?::timestamp[]) AS b_adjusted," +
+    			"  unnest(?::timestamp[]) AS b_sent, unnest(?::timestamp[]) AS b_received, unnest(?::float8[]) AS b_lat, unnest(?::float8[]) AS b_lon," +
+    			"  unnest(?::float8[]) AS b_velocity, unnest(?::float8[]) AS b_heading, unnest(?::float8[]) AS b_gpserror, unnest(?::boolean[]) AS b_charging," +
+    			"  unnest(?::float8[]) AS b_battery, unnest(?::boolean[]) AS b_boot, unnest(?::boolean[]) AS b_shutdown, unnest(?::boolean[]) AS b_failednetwork," +
+    			"  unnest(?::integer[]) AS b_signal, unnest(?::boolean[]) AS b_websocket) AS batch;");
+    	
+    	try
+    	{
+    		for(int c = 0; c < columns.length; c++)
+    			statement.setString(c + 1, columns[c]);
+    		
+    		statement.executeUpdate();
+    	}
+    	finally
+    	{
+    		statement.close();
+    	}
+    }
+    
+    /**
+     * The array literals bulkInsert binds, one per column in insert order, 
+     * from records that already have their ids. Each has one element per 
+     * record, NULL for missing values, so the unnested columns line up.
+     */
+    static public String[] bulkColumns(List<IngestRecord> records)
+    {
+    	int size = records.size();
+    	
+    	SqlArray idCol = new SqlArray(size);
+    	SqlArray imeiCol = new SqlArray(size);
+    	SqlArray timestampCol = new SqlArray(size);
+    	SqlArray adjustedCol = new SqlArray(size);
+    	SqlArray sentCol = new SqlArray(size);
+    	SqlArray receivedCol = new SqlArray(size);
+    	SqlArray latCol = new SqlArray(size);
+    	SqlArray lonCol = new SqlArray(size);
+    	SqlArray velocityCol = new SqlArray(size);
+    	SqlArray headingCol = new SqlArray(size);
+    	SqlArray gpsErrorCol = new SqlArray(size);
+    	SqlArray chargingCol = new SqlArray(size);
+    	SqlArray batteryCol = new SqlArray(size);
+    	SqlArray bootCol = new SqlArray(size);
+    	SqlArray shutdownCol = new SqlArray(size);
+    	SqlArray failedNetworkCol = new SqlArray(size);
+    	SqlArray signalCol = new SqlArray(size);
+    	SqlArray websocketCol = new SqlArray(size);
+    	
+    	for(IngestRecord record : records)
+    	{
+    		idCol.add(record.id);
+    		imeiCol.add(record.imei);
+    		timestampCol.add(record.timestamp);
+    		adjustedCol.add(record.adjustedTimestamp);
+    		sentCol.add(record.sent);
+    		receivedCol.add(record.received);
+    		latCol.add(record.lat);
+    		lonCol.add(record.lon);
+    		velocityCol.add(record.velocity);
+    		headingCol.add(record.heading);
+    		gpsErrorCol.add(record.gpsError);
+    		chargingCol.add(record.charging);
+    		batteryCol.add(record.battery);
+    		bootCol.add(record.boot);
+    		shutdownCol.add(record.shutdown);
+    		failedNetworkCol.add(record.failedNetwork);
+    		signalCol.add(record.signal);
+    		websocketCol.add(record.websocket);
+    	}
+    	
+    	return new String[] { idCol.toString(), imeiCol.toString(), timestampCol.toString(), adjustedCol.toString(), 
+    			sentCol.toString(), receivedCol.toString(), latCol.toString(), lonCol.toString(), 
+    			velocityCol.toString(), headingCol.toString(), gpsErrorCol.toString(), chargingCol.toString(), 
+    			batteryCol.toString(), bootCol.toString(), shutdownCol.toString(), failedNetworkCol.toString(), 
+    			signalCol.toString(), websocketCol.toString() };
+    }
+    
+    static void setTimestamp(PreparedStatement statement, int index, Date value) throws SQLException
+    {
+    	if(value != null)
+    		statement.setTimestamp(index, new Timestamp(value.getTime()));
+    	else
+    		statement.setNull(index, Types.TIMESTAMP);
+    }
+    
+    static void setDouble(PreparedStatement statement, int index, Double value) throws SQLException
+    {
+    	if(value != null)
+    		statement.setDouble(index, value);
+    	else
+    		statement.setNull(index, Types.DOUBLE);
+    }
+    
+    static void setBoolean(PreparedStatement statement, int index, Boolean value) throws SQLException
+    {
+    	if(value != null)
+    		statement.setBoolean(index, value);
+    	else
+    		statement.setNull(index, Types.BOOLEAN);
     }
     
     
     static public void natveInsert(EntityManager em, String imei, Observation obs, Date original, Date sent, Date received, Boolean websocket)
     {
-    	Query idQuery = em().createNativeQuery("SELECT NEXTVAL('hibernate_sequence');");
-    	BigInteger nextId = (BigInteger)idQuery.getSingleResult();
+    	long nextId = IdAllocator.nextId();
     	
 
     	em.createNativeQuery("INSERT INTO locationupdate (id, imei, adjustedtimestamp, lat, lon, velocity, heading, gpserror, shape, websocket, timestamp, received)" +
-    			"  VALUES(?, ?, ?, ?, ?, ?, ?, ?, ST_GeomFromText( ?, 4326), ?, ?, ?);")
+    			"  VALUES(?, ?, ?, ?, ?, ?, ?, ?, ST_SetSRID(ST_MakePoint(?, ?), 4326), ?, ?, ?);")
     			.setParameter(1,  nextId)
     			.setParameter(2,  obs.getVehicleId())
     			.setParameter(3,  obs.getTimestamp())
@@ -210,10 +437,11 @@ public class LocationUpdate extends Model {
     			.setParameter(6,  obs.getVelocity())
     			.setParameter(7,  obs.getHeading())
     			.setParameter(8,  obs.getAccuracy())
-    			.setParameter(9,  "POINT(" + obs.getObsCoordsLatLon().y +  " " + obs.getObsCoordsLatLon().x + ")")
-    			.setParameter(10,  websocket)
-    			.setParameter(11,  original)
-    			.setParameter(12,  received)
+    			.setParameter(9,  obs.getObsCoordsLatLon().y)
+    			.setParameter(10,  obs.getObsCoordsLatLon().x)
+    			.setParameter(11,  websocket)
+    			.setParameter(12,  original)
+    			.setParameter(13,  received)
     			
     			.executeUpdate();
  
@@ -221,11 +449,10 @@ public class LocationUpdate extends Model {
     
     static public void natveInsert(EntityManager em, String imei, Observation obs, Boolean charging, Double battery, Date original, Date sent, Date received, Boolean boot, Boolean shutdown, Boolean failedNetwork, Integer signal)
     {
-    	Query idQuery = em().createNativeQuery("SELECT NEXTVAL('hibernate_sequence');");
-    	BigInteger nextId = (BigInteger)idQuery.getSingleResult();
+    	long nextId = IdAllocator.nextId();
     	
     	em.createNativeQuery("INSERT INTO locationupdate (id, imei, adjustedtimestamp, lat, lon, velocity, heading, gpserror, shape, charging, battery, sent, received, boot, failednetwork, signal, shutdown, timestamp)" +
-    			"  VALUES(?, ?, ?, ?, ?, ?, ?, ?, ST_GeomFromText( ?, 4326), ?, ?, ?, ?, ?, ?, ?, ?, ?);")
+    			"  VALUES(?, ?, ?, ?, ?, ?, ?, ?, ST_SetSRID(ST_MakePoint(?, ?), 4326), ?, ?, ?, ?, ?, ?, ?, ?, ?);")
     			.setParameter(1,  nextId)
     			.setParameter(2,  obs.getVehicleId())
     			.setParameter(3,  obs.getTimestamp())
@@ -234,16 +461,17 @@ public class LocationUpdate extends Model {
     			.setParameter(6,  obs.getVelocity())
     			.setParameter(7,  obs.getHeading())
     			.setParameter(8,  obs.getAccuracy())
-    			.setParameter(9,  "POINT(" + obs.getObsCoordsLatLon().y +  " " + obs.getObsCoordsLatLon().x + ")")
-    			.setParameter(10, charging)
-    			.setParameter(11, battery)
-    			.setParameter(12, sent)
-    			.setParameter(13, received)
-    			.setParameter(14, boot)
-    			.setParameter(15, failedNetwork)
-    			.setParameter(16, signal)
-    			.setParameter(17, shutdown)
-    			.setParameter(18,  original)
+    			.setParameter(9,  obs.getObsCoordsLatLon().y)
+    			.setParameter(10,  obs.getObsCoordsLatLon().x)
+    			.setParameter(11, charging)
+    			.setParameter(12, battery)
+    			.setParameter(13, sent)
+    			.setParameter(14, received)
+    			.setParameter(15, boot)
+    			.setParameter(16, failedNetwork)
+    			.setParameter(17, signal)
+    			.setParameter(18, shutdown)
+    			.setParameter(19,  original)
     			.executeUpdate();
     	
     	
@@ -251,8 +479,7 @@ public class LocationUpdate extends Model {
     
     static public void natveInsert(EntityManager em, String imei, Boolean charging, Double battery, Date original, Date adjusted, Date sent, Date received, Boolean boot, Boolean shutdown, Boolean failedNetwork, Integer signal)
     {
-    	Query idQuery = em().createNativeQuery("SELECT NEXTVAL('hibernate_sequence');");
-    	BigInteger nextId = (BigInteger)idQuery.getSingleResult();
+    	long nextId = IdAllocator.nextId();
 
 		em.createNativeQuery("INSERT INTO locationupdate (id, imei, charging, battery, sent, received, boot, failednetwork, signal, shutdown, timestamp, adjustedtimestamp)" +
     			"  VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?);")
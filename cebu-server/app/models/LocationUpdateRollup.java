@@ -0,0 +1,39 @@
+package models;
+
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.Entity;
+
+import play.db.jpa.Model;
+
+/**
+ * One phone's location updates over one hour of received time, summarised
+ * from a locationupdate partition before it is detached. Written by
+ * LocationPartitions.
+ */
+@Entity
+public class LocationUpdateRollup extends Model {
+
+	public String imei;
+
+	public Date hourStart;
+
+	public Long updates;
+	public Long locations;
+	public Long failedNetwork;
+	public Long boots;
+	public Long shutdowns;
+
+	public Double meanBattery;
+	public Double meanSignal;
+	public Double meanGpsError;
+
+	public Date firstReceived;
+	public Date lastReceived;
+
+	public static List<LocationUpdateRollup> forPhone(String imei, Date from, Date to)
+	{
+		return LocationUpdateRollup.find("imei = ? and hourStart >= ? and hourStart < ? order by hourStart", imei, from, to).fetch();
+	}
+}
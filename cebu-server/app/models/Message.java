@@ -5,8 +5,12 @@ import java.util.Date;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.ManyToOne;
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
 
 import play.db.jpa.Model;
+import utils.FleetState;
 
 @Entity
 public class Message extends Model {
@@ -30,4 +34,18 @@ public class Message extends Model {
     @Column(columnDefinition="TEXT")
     public String body;
     
+    // unread messages from phones are shown on the dispatcher dashboards
+    
+    @PostPersist
+    @PostUpdate
+    void updateFleetState()
+    {
+    	FleetState.updateMessage(this);
+    }
+    
+    @PostRemove
+    void removeFromFleetState()
+    {
+    	FleetState.removeMessage(this);
+    }
 }
@@ -1,11 +1,28 @@
 package models;
 
 import javax.persistence.Entity;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
 
 import play.db.jpa.Model;
+import utils.PhoneRegistry;
 
 @Entity
 public class Operator extends Model {
  
     public String name;
+
+    // relabel the phones pointing at this one in the registry and fleet state
+    
+    @PostUpdate
+    void updateRegistry()
+    {
+    	PhoneRegistry.update(this, false);
+    }
+    
+    @PostRemove
+    void removeFromRegistry()
+    {
+    	PhoneRegistry.update(this, true);
+    }
 }
@@ -1,6 +1,11 @@
 package models;
 
 import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
@@ -9,11 +14,19 @@ import java.util.List;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.ManyToOne;
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
 import javax.persistence.Transient;
 
 import com.google.android.gcm.server.*;
 
 import play.db.jpa.Model;
+import utils.FleetState;
+import utils.PhoneRegistry;
+import utils.PositionBuffer;
+import utils.RecentUpdates;
+import utils.UpdateGaps;
 
 @Entity
 public class Phone extends Model {
@@ -44,6 +57,90 @@ public class Phone extends Model {
     @Transient
     public List<MessageData> messages = new ArrayList<MessageData>();
     
+    /**
+     * Loads the phone registered to imei by primary key, using the registry
+     * rather than an IMEI scan. Returns null for unknown IMEIs.
+     */
+    public static Phone findByImei(String imei)
+    {
+    	PhoneRegistry.Entry entry = PhoneRegistry.get(imei);
+    	
+    	if(entry == null)
+    		return null;
+    	
+    	return Phone.findById(entry.phoneId);
+    }
+    
+    /**
+     * Returns an unloaded reference to the phone for use as a foreign key, 
+     * without selecting the row.
+     */
+    public static Phone reference(Long id)
+    {
+    	return Phone.em().getReference(Phone.class, id);
+    }
+    
+    /**
+     * Writes buffered positions as a single JDBC batch on the given connection.
+     * Used by PositionBuffer; the caller owns the transaction.
+     */
+    public static void updateRecentPositions(Connection conn, List<PositionBuffer.Position> positions) throws SQLException
+    {
+    	PreparedStatement stmt = conn.prepareStatement("UPDATE phone SET recentlat = ?, recentlon = ?, lastupdate = ? WHERE id = ?");
+    	
+    	try
+    	{
+    		for(PositionBuffer.Position position : positions)
+    		{
+    			if(position.lat != null)
+    				stmt.setDouble(1, position.lat);
+    			else
+    				stmt.setNull(1, Types.DOUBLE);
+    			
+    			if(position.lon != null)
+    				stmt.setDouble(2, position.lon);
+    			else
+    				stmt.setNull(2, Types.DOUBLE);
+    			
+    			stmt.setTimestamp(3, new Timestamp(position.lastUpdate.getTime()));
+    			stmt.setLong(4, position.phoneId);
+    			
+    			stmt.addBatch();
+    		}
+    		
+    		stmt.executeBatch();
+    	}
+    	finally
+    	{
+    		stmt.close();
+    	}
+    }
+    
+    public static void updatePanic(Long id, Boolean panic)
+    {
+    	Phone.em().createNativeQuery("UPDATE phone SET panic = ? WHERE id = ?")
+    		.setParameter(1, panic)
+    		.setParameter(2, id)
+    		.executeUpdate();
+    }
+    
+    // keep the IMEI registry and fleet state in step with every change to a phone 
+    // as it is flushed, whichever controller made it
+    
+    @PostPersist
+    @PostUpdate
+    void updateRegistry()
+    {
+    	FleetState.update(this);
+    }
+    
+    @PostRemove
+    void removeFromRegistry()
+    {
+    	PhoneRegistry.remove(this);
+    	FleetState.remove(this);
+    }
+    
     public void clearMessages()
     {
     	List<Message> m  = Message.find("fromPhone = ?", this).fetch();
@@ -56,28 +153,32 @@ public class Phone extends Model {
     
     public List<LocationUpdate> getRecentUpdates(Integer number)
     {
-    	List<LocationUpdate> updates = LocationUpdate.find("imei = ? order by id desc", this.imei).fetch(number);
+    	List<LocationUpdate> updates = RecentUpdates.recent(this.imei, 0, number);
     	
     	return updates;
     }
     
     public List<LocationUpdate> getRecentNetwork(Integer number)
     {
-    	List<LocationUpdate> updates = LocationUpdate.find("imei = ? and failednetwork = true order by id desc", this.imei).fetch(number);
+    	List<LocationUpdate> updates = RecentUpdates.recent(this.imei, RecentUpdates.FAILED_NETWORK, number);
+    	
+    	UpdateGaps.fill(this.imei, updates);
     	
     	return updates;
     }
     
     public List<LocationUpdate> getRecentBoot(Integer number)
     {
-    	List<LocationUpdate> updates = LocationUpdate.find("imei = ? and boot = true order by id desc", this.imei).fetch(number);
+    	List<LocationUpdate> updates = RecentUpdates.recent(this.imei, RecentUpdates.BOOT, number);
+    	
+    	UpdateGaps.fill(this.imei, updates);
     	
     	return updates;
     }
     
     public List<LocationUpdate> getRecentShutdown(Integer number)
     {
-    	List<LocationUpdate> updates = LocationUpdate.find("imei = ? and shutdown = true order by id desc", this.imei).fetch(number);
+    	List<LocationUpdate> updates = RecentUpdates.recent(this.imei, RecentUpdates.SHUTDOWN, number);
     	
     	return updates;
     }
@@ -1,25 +1,47 @@
 package models;
 
 import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.persistence.Entity;
 import javax.persistence.Query;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
 
-import org.apache.commons.lang.StringUtils;
 import org.hibernate.annotations.Type;
 import org.opentripplanner.routing.edgetype.PlainStreetEdge;
 
+import play.Logger;
+import play.db.DB;
 import play.db.jpa.Model;
+import utils.EdgeSpeedStats;
+import utils.Ewkb;
+import utils.IdAllocator;
+import utils.Jdbc;
 
+import com.conveyal.traffic.graph.TrafficEdge;
+import com.conveyal.traffic.graph.TrafficGraph;
 import com.conveyal.traffic.graph.TripLine;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.Point;
 
 @Entity
+@Table(uniqueConstraints = @UniqueConstraint(columnNames = { "edgeId" }))
 public class StatsEdge extends Model {
+	
+	static final String UNIQUE_INDEX = "statsedge_edgeid";
+	
+	// one retry normally settles it; more means something else is wrong
+	static final int INSERT_RETRIES = 3;
 
     
     @Type(type = "org.hibernatespatial.GeometryUserType")
@@ -29,25 +51,25 @@ public class StatsEdge extends Model {
     
     public Double speed;
     
+    // running totals kept by EdgeSpeedStats; speed is its recent speed
+    public Long observations;
+    
+    public Double meanSpeed;
+    
+    public Double speedVariance;
+    
     public static void nativeInsert(Integer edgeId, Double speed, LineString edge)
     {
-    	List<String> edgePoints = new ArrayList<String>();
-
-    	for(Coordinate coord : edge.getCoordinates()) {
-    		edgePoints.add(new Double(coord.x).toString() + " " + new Double(coord.y).toString());
-    	}
-    	    	
-    	String edgeLinestring = "LINESTRING(" + StringUtils.join(edgePoints, ", ") + ")";
-    	
-	    Query idQuery = GraphEdge.em().createNativeQuery("SELECT NEXTVAL('hibernate_sequence');");
-    	BigInteger nextId = (BigInteger)idQuery.getSingleResult();
+    	long nextId = IdAllocator.nextId();
 
+    	// an edge has one row; the flush may have written it already
     	GraphEdge.em().createNativeQuery("INSERT INTO statsedge (id, edgeid, shape, speed)" +
-        	"  VALUES(?, ?, ST_GeomFromText( ?, 4326), ?);")
+        	"  SELECT ?, ?, ST_GeomFromEWKB(?), ? WHERE NOT EXISTS (SELECT 1 FROM statsedge WHERE edgeid = ?);")
           .setParameter(1,  nextId)
           .setParameter(2,  edgeId)	            
-          .setParameter(3,  edgeLinestring)
+          .setParameter(3,  Ewkb.lineString(edge))
           .setParameter(4,  speed)
+          .setParameter(5,  edgeId)
           .executeUpdate();
     	
     }
@@ -58,4 +80,256 @@ public class StatsEdge extends Model {
     	return q.getResultList();
     }
     
+    /**
+     * Reads every edge speed into an array indexed by edge id, NaN where an 
+     * edge has no speed. Graph edge ids are dense, so the array stays small.
+     */
+    static public double[] getEdgeVelocities(Connection conn) throws SQLException
+    {
+    	double[] velocities = new double[0];
+    	
+    	Statement stmt = conn.createStatement();
+    	
+    	try
+    	{
+    		ResultSet rs = stmt.executeQuery("SELECT edgeid, speed FROM statsedge WHERE edgeid >= 0 AND speed IS NOT NULL");
+    		
+    		while(rs.next())
+    		{
+    			int edgeId = (int)rs.getLong(1);
+    			
+    			if(edgeId >= velocities.length)
+    			{
+    				int oldLength = velocities.length;
+    				
+    				velocities = Arrays.copyOf(velocities, Math.max(edgeId + 1, oldLength * 2));
+    				Arrays.fill(velocities, oldLength, velocities.length, Double.NaN);
+    			}
+    			
+    			velocities[edgeId] = rs.getDouble(2);
+    		}
+    		
+    		rs.close();
+    	}
+    	finally
+    	{
+    		stmt.close();
+    	}
+    	
+    	return velocities;
+    }
+    
+    /**
+     * Count, mean and variance of every edge that has them. Recent speeds 
+     * aren't read back, they only make sense while samples keep coming.
+     */
+    static public List<EdgeSpeedStats.Row> getEdgeStats(Connection conn) throws SQLException
+    {
+    	List<EdgeSpeedStats.Row> rows = new ArrayList<EdgeSpeedStats.Row>();
+    	
+    	Statement stmt = conn.createStatement();
+    	
+    	try
+    	{
+    		ResultSet rs = stmt.executeQuery("SELECT edgeid, observations, meanspeed, speedvariance FROM statsedge WHERE edgeid >= 0 AND observations > 0");
+    		
+    		while(rs.next())
+    			rows.add(new EdgeSpeedStats.Row((int)rs.getLong(1), rs.getLong(2), rs.getDouble(3), rs.getDouble(4), Double.NaN));
+    		
+    		rs.close();
+    	}
+    	finally
+    	{
+    		stmt.close();
+    	}
+    	
+    	return rows;
+    }
+    
+    /**
+     * Writes each row's statistics to its edge, inserting edges that have no 
+     * row yet with their shape from the graph. One batched UPDATE followed by 
+     * one batched INSERT for the misses; the caller owns the transaction.
+     * 
+     * Another node, or a nativeInsert, adding the same edge between the two 
+     * trips the edgeid unique index. The inserts are then rolled back to a 
+     * savepoint and the misses go round again, this time as updates.
+     */
+    public static void upsertEdgeStats(Connection conn, List<EdgeSpeedStats.Row> rows, TrafficGraph graph) throws SQLException
+    {
+    	for(int attempt = 0; ; attempt++)
+    	{
+    		List<EdgeSpeedStats.Row> missing = updateEdgeStats(conn, rows);
+    		
+    		if(missing.isEmpty())
+    			return;
+    		
+    		Savepoint savepoint = conn.setSavepoint();
+    		
+    		try
+    		{
+    			insertEdgeStats(conn, missing, graph);
+    			
+    			conn.releaseSavepoint(savepoint);
+    			
+    			return;
+    		}
+    		catch(SQLException e)
+    		{
+    			if(attempt >= INSERT_RETRIES || !Jdbc.isUniqueViolation(e))
+    				throw e;
+    			
+    			conn.rollback(savepoint);
+    			
+    			rows = missing;
+    		}
+    	}
+    }
+    
+    /**
+     * Returns the rows whose edge had no row to update.
+     */
+    static List<EdgeSpeedStats.Row> updateEdgeStats(Connection conn, List<EdgeSpeedStats.Row> rows) throws SQLException
+    {
+    	List<EdgeSpeedStats.Row> missing = new ArrayList<EdgeSpeedStats.Row>();
+    	
+    	PreparedStatement update = conn.prepareStatement("UPDATE statsedge SET speed = ?, observations = ?, meanspeed = ?, speedvariance = ? WHERE edgeid = ?");
+    	
+    	try
+    	{
+    		for(EdgeSpeedStats.Row row : rows)
+    		{
+    			update.setDouble(1, row.recent);
+    			update.setLong(2, row.count);
+    			update.setDouble(3, row.mean);
+    			update.setDouble(4, row.variance);
+    			update.setLong(5, row.edgeId);
+    			update.addBatch();
+    		}
+    		
+    		int[] counts = update.executeBatch();
+    		
+    		for(int i = 0; i < counts.length; i++)
+    		{
+    			if(counts[i] == 0)
+    				missing.add(rows.get(i));
+    		}
+    	}
+    	finally
+    	{
+    		update.close();
+    	}
+    	
+    	return missing;
+    }
+    
+    static void insertEdgeStats(Connection conn, List<EdgeSpeedStats.Row> missing, TrafficGraph graph) throws SQLException
+    {
+    	PreparedStatement insert = conn.prepareStatement("INSERT INTO statsedge (id, edgeid, shape, speed, observations, meanspeed, speedvariance)" +
+    		" VALUES (?, ?, ST_GeomFromEWKB(?), ?, ?, ?, ?)");
+    	
+    	try
+    	{
+    		long[] ids = new long[missing.size()];
+    		IdAllocator.nextIds(ids);
+    		
+    		for(int i = 0; i < missing.size(); i++)
+    		{
+    			EdgeSpeedStats.Row row = missing.get(i);
+    			
+    			TrafficEdge edge = graph.getTrafficEdge(row.edgeId);
+    			
+    			insert.setLong(1, ids[i]);
+    			insert.setLong(2, row.edgeId);
+    			insert.setBytes(3, edge != null ? Ewkb.lineString(edge.getGeometry()) : null);
+    			insert.setDouble(4, row.recent);
+    			insert.setLong(5, row.count);
+    			insert.setDouble(6, row.mean);
+    			insert.setDouble(7, row.variance);
+    			insert.addBatch();
+    		}
+    		
+    		insert.executeBatch();
+    	}
+    	finally
+    	{
+    		insert.close();
+    	}
+    }
+    
+    /**
+     * Drops duplicate edge rows left by the old update-then-insert race, 
+     * keeping the one with the most observations, and adds the unique index 
+     * the flush relies on, if it isn't there yet. Postgres only; other 
+     * databases get the constraint from the entity mapping.
+     */
+    public static void ensureUniqueIndex()
+    {
+    	Connection conn = null;
+    	
+    	try
+    	{
+    		conn = DB.datasource.getConnection();
+    		
+    		if(!"PostgreSQL".equals(conn.getMetaData().getDatabaseProductName()))
+    			return;
+    		
+    		conn.setAutoCommit(false);
+    		
+    		PreparedStatement exists = conn.prepareStatement("SELECT 1 FROM pg_class WHERE relname = ? AND relkind = 'i'");
+    		
+    		try
+    		{
+    			exists.setString(1, UNIQUE_INDEX);
+    			
+    			ResultSet results = exists.executeQuery();
+    			
+    			boolean found = results.next();
+    			
+    			results.close();
+    			
+    			if(found)
+    			{
+    				conn.commit();
+    				return;
+    			}
+    		}
+    		finally
+    		{
+    			exists.close();
+    		}
+    		
+    		Statement statement = conn.createStatement();
+    		
+    		try
+    		{
+    			// keep flushes out until the index is in place
+    			statement.execute("LOCK TABLE statsedge IN SHARE ROW EXCLUSIVE MODE");
+    			
+    			int deleted = statement.executeUpdate("DELETE FROM statsedge s" +
+    					"  USING (SELECT id, row_number() OVER (PARTITION BY edgeid ORDER BY coalesce(observations, 0) DESC, id DESC) AS rank FROM statsedge) d" +
+    					"  WHERE s.id = d.id AND d.rank > 1");
+    			
+    			statement.execute("CREATE UNIQUE INDEX " + UNIQUE_INDEX + " ON statsedge (edgeid)");
+    			
+    			Logger.info("Indexed statsedge on edge id, dropping " + deleted + " duplicate rows");
+    		}
+    		finally
+    		{
+    			statement.close();
+    		}
+    		
+    		conn.commit();
+    	}
+    	catch(SQLException e)
+    	{
+    		Logger.error("Could not add the statsedge unique index: " + e);
+    		
+    		Jdbc.rollbackQuietly(conn);
+    	}
+    	finally
+    	{
+    		Jdbc.closeQuietly(conn);
+    	}
+    }
 }
@@ -4,11 +4,14 @@ import java.util.Calendar;
 import java.util.Date;
 
 import javax.persistence.Entity;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
 import javax.persistence.Query;
 
 import org.apache.commons.lang.time.DateUtils;
 
 import play.db.jpa.Model;
+import utils.PhoneRegistry;
 
 @Entity
 public class Vehicle extends Model {
@@ -68,4 +71,18 @@ public class Vehicle extends Model {
     	else
     		return 0.0;
     }
+
+    // relabel the phones pointing at this one in the registry and fleet state
+    
+    @PostUpdate
+    void updateRegistry()
+    {
+    	PhoneRegistry.update(this, false);
+    }
+    
+    @PostRemove
+    void removeFromRegistry()
+    {
+    	PhoneRegistry.update(this, true);
+    }
 }
@@ -1,17 +1,39 @@
 package models;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 
 import javax.persistence.Entity;
 import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
 
 import org.apache.commons.lang.time.DateUtils;
 
+import play.Logger;
+import play.db.DB;
 import play.db.jpa.Model;
+import utils.DistanceCache;
+import utils.IdAllocator;
+import utils.Jdbc;
 
 @Entity
+@Table(uniqueConstraints = @UniqueConstraint(columnNames = { "vehicle_id", "date" }))
 public class VehicleDistance extends Model {
+	
+	static final String UNIQUE_INDEX = "vehicledistance_vehicle_date";
+	
+	// one retry normally settles it; more means something else is wrong
+	static final int INSERT_RETRIES = 3;
  
 	@ManyToOne
 	public Vehicle vehicle;
@@ -41,4 +63,187 @@ public class VehicleDistance extends Model {
 			distanceObj.save();
 		}
 	}
+	
+	/**
+	 * Adds each delta to its vehicle's row for that day, creating rows that 
+	 * don't exist yet. Runs as one batched UPDATE followed by one batched 
+	 * INSERT for the misses; the caller owns the transaction.
+	 * 
+	 * Another node flushing the same new row between the two trips the 
+	 * (vehicle_id, date) unique index. The inserts are then rolled back to a 
+	 * savepoint and the misses go round again, this time as updates.
+	 */
+	public static void addDistances(Connection conn, List<DistanceCache.Delta> deltas) throws SQLException
+	{
+		for(int attempt = 0; ; attempt++)
+		{
+			List<DistanceCache.Delta> missing = update(conn, deltas);
+			
+			if(missing.isEmpty())
+				return;
+			
+			Savepoint savepoint = conn.setSavepoint();
+			
+			try
+			{
+				insert(conn, missing);
+				
+				conn.releaseSavepoint(savepoint);
+				
+				return;
+			}
+			catch(SQLException e)
+			{
+				if(attempt >= INSERT_RETRIES || !Jdbc.isUniqueViolation(e))
+					throw e;
+				
+				conn.rollback(savepoint);
+				
+				deltas = missing;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the deltas that had no row to add to.
+	 */
+	static List<DistanceCache.Delta> update(Connection conn, List<DistanceCache.Delta> deltas) throws SQLException
+	{
+		List<DistanceCache.Delta> missing = new ArrayList<DistanceCache.Delta>();
+		
+		PreparedStatement update = conn.prepareStatement("UPDATE vehicledistance SET distance = distance + ? WHERE vehicle_id = ? AND date = ?");
+		
+		try
+		{
+			for(DistanceCache.Delta delta : deltas)
+			{
+				update.setDouble(1, delta.distance);
+				update.setLong(2, delta.vehicleId);
+				update.setTimestamp(3, new Timestamp(delta.date.getTime()));
+				update.addBatch();
+			}
+			
+			int[] counts = update.executeBatch();
+			
+			for(int i = 0; i < counts.length; i++)
+			{
+				if(counts[i] == 0)
+					missing.add(deltas.get(i));
+			}
+		}
+		finally
+		{
+			update.close();
+		}
+		
+		return missing;
+	}
+	
+	static void insert(Connection conn, List<DistanceCache.Delta> missing) throws SQLException
+	{
+		PreparedStatement insert = conn.prepareStatement("INSERT INTO vehicledistance (id, vehicle_id, date, distance) VALUES (?, ?, ?, ?)");
+		
+		try
+		{
+			long[] ids = new long[missing.size()];
+			IdAllocator.nextIds(ids);
+			
+			for(int i = 0; i < missing.size(); i++)
+			{
+				DistanceCache.Delta delta = missing.get(i);
+				
+				insert.setLong(1, ids[i]);
+				insert.setLong(2, delta.vehicleId);
+				insert.setTimestamp(3, new Timestamp(delta.date.getTime()));
+				insert.setDouble(4, delta.distance);
+				insert.addBatch();
+			}
+			
+			insert.executeBatch();
+		}
+		finally
+		{
+			insert.close();
+		}
+	}
+	
+	/**
+	 * Merges duplicate (vehicle, day) rows left by the old update-then-insert 
+	 * race and adds the unique index the flush relies on, if it isn't there 
+	 * yet. Postgres only; other databases get the constraint from the entity 
+	 * mapping.
+	 */
+	public static void ensureUniqueIndex()
+	{
+		Connection conn = null;
+		
+		try
+		{
+			conn = DB.datasource.getConnection();
+			
+			if(!"PostgreSQL".equals(conn.getMetaData().getDatabaseProductName()))
+				return;
+			
+			conn.setAutoCommit(false);
+			
+			PreparedStatement exists = conn.prepareStatement("SELECT 1 FROM pg_class WHERE relname = ? AND relkind = 'i'");
+			
+			try
+			{
+				exists.setString(1, UNIQUE_INDEX);
+				
+				ResultSet results = exists.executeQuery();
+				
+				boolean found = results.next();
+				
+				results.close();
+				
+				if(found)
+				{
+					conn.commit();
+					return;
+				}
+			}
+			finally
+			{
+				exists.close();
+			}
+			
+			Statement statement = conn.createStatement();
+			
+			try
+			{
+				// keep flushes out until the index is in place
+				statement.execute("LOCK TABLE vehicledistance IN SHARE ROW EXCLUSIVE MODE");
+				
+				int merged = statement.executeUpdate("UPDATE vehicledistance v SET distance = d.total" +
+						"  FROM (SELECT min(id) AS keep, sum(distance) AS total FROM vehicledistance GROUP BY vehicle_id, date HAVING count(*) > 1) d" +
+						"  WHERE v.id = d.keep");
+				
+				int deleted = statement.executeUpdate("DELETE FROM vehicledistance v" +
+						"  USING (SELECT vehicle_id, date, min(id) AS keep FROM vehicledistance GROUP BY vehicle_id, date HAVING count(*) > 1) d" +
+						"  WHERE v.vehicle_id = d.vehicle_id AND v.date = d.date AND v.id <> d.keep");
+				
+				statement.execute("CREATE UNIQUE INDEX " + UNIQUE_INDEX + " ON vehicledistance (vehicle_id, date)");
+				
+				Logger.info("Indexed vehicledistance on vehicle and day, merging " + deleted + " duplicate rows into " + merged);
+			}
+			finally
+			{
+				statement.close();
+			}
+			
+			conn.commit();
+		}
+		catch(SQLException e)
+		{
+			Logger.error("Could not add the vehicledistance unique index: " + e);
+			
+			Jdbc.rollbackQuietly(conn);
+		}
+		finally
+		{
+			Jdbc.closeQuietly(conn);
+		}
+	}
 }
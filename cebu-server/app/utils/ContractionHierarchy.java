@@ -0,0 +1,1530 @@
+package utils;
+
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import play.Logger;
+
+import com.conveyal.traffic.graph.TrafficEdge;
+import com.conveyal.traffic.graph.TrafficGraph;
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Customizable contraction hierarchy over the street graph, answering
+ * shortest path queries with the graph's own edge ids.
+ *
+ * Building it takes two steps. Preprocessing only looks at topology: nodes are
+ * ordered by minimum degree and contracted one by one, joining every pair of a
+ * node's remaining neighbours with an arc. Customization then puts weights on
+ * those arcs for a given set of edge costs by relaxing lower triangles from the
+ * bottom of the order up. Customizing is much cheaper than preprocessing, so
+ * a speed refresh only re-runs customize(); the result is an immutable Metric
+ * that is swapped in like the velocity snapshots.
+ *
+ * A query is a bidirectional Dijkstra over upward arcs only, after which
+ * shortcuts are unpacked back into graph edges.
+ *
+ * The graph only exposes edges, so nodes are taken from edge end points:
+ * edges meet where one geometry ends and another starts at the same point (to
+ * 1e-5 degrees, as stored in EdgePolylines), and each edge runs in the
+ * direction of its geometry.
+ */
+public class ContractionHierarchy {
+
+	// used for an edge's cost when the velocity table has nothing usable, m/s
+	static final double DEFAULT_SPEED = 5.0;
+
+	// node -> location in 1e-5 degrees
+	final int[] nodeLat;
+	final int[] nodeLon;
+
+	// edge id -> end nodes, -1 where there is no edge
+	final int[] edgeTail;
+	final int[] edgeHead;
+
+	final double[] edgeLength;
+
+	// outgoing graph edges of node n are outEdges[firstOut[n]] until firstOut[n + 1]
+	final int[] firstOut;
+	final int[] outEdges;
+
+	// node -> position in the contraction order, and the reverse
+	final int[] rank;
+	final int[] order;
+
+	// upward arcs of node n are firstArc[n] until firstArc[n + 1], sorted by rank of arcHead
+	final int[] firstArc;
+	final int[] arcTail;
+	final int[] arcHead;
+
+	public final int nodeCount;
+	public final int edgeCount;
+	public final int arcCount;
+
+	/**
+	 * Arc weights for one set of edge costs. up is the cost of going from an
+	 * arc's tail to its (higher) head, down the cost of the reverse. A via entry
+	 * is the middle node of a shortcut, or -(edge id + 1) where the arc is a
+	 * graph edge. The length arrays hold the meters behind each weight, so
+	 * distances can be had without unpacking.
+	 */
+	public static class Metric {
+
+		final double[] up;
+		final double[] down;
+
+		final int[] upVia;
+		final int[] downVia;
+
+		final double[] upLength;
+		final double[] downLength;
+
+		// the per-edge costs this was customized with
+		final double[] edgeCost;
+
+		public final long version;
+
+		Metric(double[] up, double[] down, int[] upVia, int[] downVia, double[] upLength, double[] downLength, double[] edgeCost, long version)
+		{
+			this.up = up;
+			this.down = down;
+			this.upVia = upVia;
+			this.downVia = downVia;
+			this.upLength = upLength;
+			this.downLength = downLength;
+			this.edgeCost = edgeCost;
+			this.version = version;
+		}
+	}
+
+	volatile Metric metric;
+
+	/**
+	 * Per-thread search state, reset after each query by clearing only the
+	 * nodes it touched.
+	 */
+	class Search {
+
+		final double[] dist = new double[nodeCount];
+		final double[] length = new double[nodeCount];
+		final int[] parent = new int[nodeCount];
+
+		final TIntArrayList touched = new TIntArrayList();
+
+		// lazy binary heap: stale entries are skipped when popped
+		double[] heapKey = new double[64];
+		int[] heapNode = new int[64];
+		int heapSize = 0;
+
+		Search()
+		{
+			Arrays.fill(dist, Double.POSITIVE_INFINITY);
+			Arrays.fill(parent, -1);
+		}
+
+		void reset()
+		{
+			for(int i = 0; i < touched.size(); i++)
+			{
+				int node = touched.get(i);
+
+				dist[node] = Double.POSITIVE_INFINITY;
+				parent[node] = -1;
+			}
+
+			touched.resetQuick();
+			heapSize = 0;
+		}
+
+		void reach(int node, double distance, int arc)
+		{
+			reach(node, distance, 0.0, arc);
+		}
+
+		void reach(int node, double distance, double meters, int arc)
+		{
+			if(dist[node] == Double.POSITIVE_INFINITY)
+				touched.add(node);
+
+			dist[node] = distance;
+			length[node] = meters;
+			parent[node] = arc;
+
+			push(distance, node);
+		}
+
+		void push(double key, int node)
+		{
+			if(heapSize == heapKey.length)
+			{
+				heapKey = Arrays.copyOf(heapKey, heapSize * 2);
+				heapNode = Arrays.copyOf(heapNode, heapSize * 2);
+			}
+
+			int i = heapSize++;
+
+			while(i > 0)
+			{
+				int p = (i - 1) / 2;
+
+				if(heapKey[p] <= key)
+					break;
+
+				heapKey[i] = heapKey[p];
+				heapNode[i] = heapNode[p];
+				i = p;
+			}
+
+			heapKey[i] = key;
+			heapNode[i] = node;
+		}
+
+		boolean isEmpty()
+		{
+			return heapSize == 0;
+		}
+
+		double minKey()
+		{
+			return heapKey[0];
+		}
+
+		/**
+		 * Removes the smallest entry and returns its node, or -1 if the entry
+		 * was stale.
+		 */
+		int pop()
+		{
+			double key = heapKey[0];
+			int node = heapNode[0];
+
+			heapSize--;
+
+			double lastKey = heapKey[heapSize];
+			int lastNode = heapNode[heapSize];
+
+			int i = 0;
+
+			while(true)
+			{
+				int c = i * 2 + 1;
+
+				if(c >= heapSize)
+					break;
+
+				if(c + 1 < heapSize && heapKey[c + 1] < heapKey[c])
+					c++;
+
+				if(heapKey[c] >= lastKey)
+					break;
+
+				heapKey[i] = heapKey[c];
+				heapNode[i] = heapNode[c];
+				i = c;
+			}
+
+			heapKey[i] = lastKey;
+			heapNode[i] = lastNode;
+
+			return key > dist[node] ? -1 : node;
+		}
+	}
+
+	/**
+	 * A forward and a backward search per thread, reused across queries.
+	 */
+	class Searches extends ThreadLocal<Search[]> {
+
+		@Override
+		protected Search[] initialValue()
+		{
+			return new Search[] { new Search(), new Search() };
+		}
+	}
+
+	final Searches searches = new Searches();
+
+	/**
+	 * Builds the hierarchy for a graph given as node locations and, per edge
+	 * id, its end nodes (-1 for unused ids) and length. Edges start without a
+	 * metric; call customize() before querying.
+	 */
+	public ContractionHierarchy(int[] nodeLat, int[] nodeLon, int[] edgeTail, int[] edgeHead, double[] edgeLength)
+	{
+		this.nodeLat = nodeLat;
+		this.nodeLon = nodeLon;
+		this.edgeTail = edgeTail;
+		this.edgeHead = edgeHead;
+		this.edgeLength = edgeLength;
+
+		int n = nodeLat.length;
+
+		this.nodeCount = n;
+
+		int edges = 0;
+
+		firstOut = new int[n + 1];
+
+		for(int e = 0; e < edgeTail.length; e++)
+		{
+			if(edgeTail[e] >= 0)
+			{
+				firstOut[edgeTail[e] + 1]++;
+				edges++;
+			}
+		}
+
+		this.edgeCount = edges;
+
+		for(int i = 0; i < n; i++)
+			firstOut[i + 1] += firstOut[i];
+
+		outEdges = new int[edges];
+
+		int[] fill = Arrays.copyOf(firstOut, n);
+
+		for(int e = 0; e < edgeTail.length; e++)
+		{
+			if(edgeTail[e] >= 0)
+				outEdges[fill[edgeTail[e]]++] = e;
+		}
+
+		// contraction works on the undirected graph; direction only matters for weights
+		TIntHashSet[] neighbours = new TIntHashSet[n];
+
+		for(int i = 0; i < n; i++)
+			neighbours[i] = new TIntHashSet(8);
+
+		for(int e = 0; e < edgeTail.length; e++)
+		{
+			int a = edgeTail[e];
+			int b = edgeHead[e];
+
+			if(a >= 0 && a != b)
+			{
+				neighbours[a].add(b);
+				neighbours[b].add(a);
+			}
+		}
+
+		rank = new int[n];
+		order = new int[n];
+
+		Arrays.fill(rank, -1);
+
+		int[][] upward = new int[n][];
+
+		// degree in the high bits, node in the low; entries go stale as degrees change
+		PriorityQueue<Long> queue = new PriorityQueue<Long>(Math.max(n, 1));
+
+		for(int i = 0; i < n; i++)
+			queue.add(((long)neighbours[i].size() << 32) | i);
+
+		int arcs = 0;
+		int next = 0;
+
+		while(!queue.isEmpty())
+		{
+			long entry = queue.poll();
+
+			int node = (int)entry;
+			int degree = (int)(entry >>> 32);
+
+			if(rank[node] >= 0 || degree != neighbours[node].size())
+				continue;
+
+			int[] remaining = neighbours[node].toArray();
+
+			rank[node] = next;
+			order[next] = node;
+			next++;
+
+			upward[node] = remaining;
+			arcs += remaining.length;
+
+			neighbours[node] = null;
+
+			for(int a : remaining)
+				neighbours[a].remove(node);
+
+			for(int i = 0; i < remaining.length; i++)
+			{
+				for(int j = i + 1; j < remaining.length; j++)
+				{
+					if(neighbours[remaining[i]].add(remaining[j]))
+						neighbours[remaining[j]].add(remaining[i]);
+				}
+			}
+
+			for(int a : remaining)
+				queue.add(((long)neighbours[a].size() << 32) | a);
+		}
+
+		this.arcCount = arcs;
+
+		firstArc = new int[n + 1];
+		arcTail = new int[arcs];
+		arcHead = new int[arcs];
+
+		int arc = 0;
+
+		for(int node = 0; node < n; node++)
+		{
+			firstArc[node] = arc;
+
+			long[] sorted = new long[upward[node].length];
+
+			for(int i = 0; i < sorted.length; i++)
+				sorted[i] = ((long)rank[upward[node][i]] << 32) | upward[node][i];
+
+			Arrays.sort(sorted);
+
+			for(long head : sorted)
+			{
+				arcTail[arc] = node;
+				arcHead[arc] = (int)head;
+				arc++;
+			}
+		}
+
+		firstArc[n] = arc;
+	}
+
+	/**
+	 * Builds the hierarchy for the street graph, with edges taken from the
+	 * polyline store.
+	 */
+	public static ContractionHierarchy build(TrafficGraph graph, EdgePolylines polylines)
+	{
+		int limit = polylines.getIdLimit();
+
+		int[] edgeTail = new int[limit];
+		int[] edgeHead = new int[limit];
+		double[] edgeLength = new double[limit];
+
+		Arrays.fill(edgeTail, -1);
+		Arrays.fill(edgeHead, -1);
+
+		TLongIntHashMap nodes = new TLongIntHashMap(limit, 0.5f, -1, -1);
+		TIntArrayList lats = new TIntArrayList();
+		TIntArrayList lons = new TIntArrayList();
+
+		for(int e = 0; e < limit; e++)
+		{
+			int[] ends = polylines.getEnds(e);
+
+			if(ends == null)
+				continue;
+
+			TrafficEdge edge = graph.getTrafficEdge(e);
+
+			if(edge == null)
+				continue;
+
+			for(int i = 0; i < 2; i++)
+			{
+				long key = ((long)ends[i * 2] << 32) | (ends[i * 2 + 1] & 0xffffffffL);
+
+				int node = nodes.get(key);
+
+				if(node < 0)
+				{
+					node = lats.size();
+					nodes.put(key, node);
+					lats.add(ends[i * 2]);
+					lons.add(ends[i * 2 + 1]);
+				}
+
+				if(i == 0)
+					edgeTail[e] = node;
+				else
+					edgeHead[e] = node;
+			}
+
+			edgeLength[e] = edge.geLength();
+		}
+
+		return new ContractionHierarchy(lats.toArray(), lons.toArray(), edgeTail, edgeHead, edgeLength);
+	}
+
+	/**
+	 * Builds the hierarchy and customizes it for the current velocities.
+	 */
+	public static ContractionHierarchy load(TrafficGraph graph, EdgePolylines polylines, StreetVelocityCache velocities)
+	{
+		long start = System.currentTimeMillis();
+
+		ContractionHierarchy hierarchy = build(graph, polylines);
+
+		long built = System.currentTimeMillis();
+
+		hierarchy.customize(velocities.getSnapshot());
+
+		Logger.info("Contraction hierarchy: " + hierarchy.nodeCount + " nodes, " + hierarchy.edgeCount + " edges, " + hierarchy.arcCount + " arcs; built in " + (built - start) + "ms, customized in " + (System.currentTimeMillis() - built) + "ms");
+
+		return hierarchy;
+	}
+
+	/**
+	 * Upward arc from lower to higher, or -1 if there is none.
+	 */
+	int findArc(int lower, int higher)
+	{
+		int target = rank[higher];
+
+		int lo = firstArc[lower];
+		int hi = firstArc[lower + 1] - 1;
+
+		while(lo <= hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			int r = rank[arcHead[mid]];
+
+			if(r < target)
+				lo = mid + 1;
+			else if(r > target)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Arc weights for the given per-edge costs (indexed by edge id, NaN or
+	 * infinite to leave an edge out). Doesn't change what queries use; see
+	 * setMetric().
+	 */
+	public Metric customize(double[] edgeCost, long version)
+	{
+		double[] up = new double[arcCount];
+		double[] down = new double[arcCount];
+		int[] upVia = new int[arcCount];
+		int[] downVia = new int[arcCount];
+		double[] upLength = new double[arcCount];
+		double[] downLength = new double[arcCount];
+
+		Arrays.fill(up, Double.POSITIVE_INFINITY);
+		Arrays.fill(down, Double.POSITIVE_INFINITY);
+
+		for(int e = 0; e < edgeTail.length; e++)
+		{
+			int a = edgeTail[e];
+			int b = edgeHead[e];
+
+			if(a < 0 || a == b || e >= edgeCost.length || Double.isNaN(edgeCost[e]))
+				continue;
+
+			double cost = edgeCost[e];
+
+			if(rank[a] < rank[b])
+			{
+				int arc = findArc(a, b);
+
+				if(cost < up[arc])
+				{
+					up[arc] = cost;
+					upVia[arc] = -(e + 1);
+					upLength[arc] = edgeLength[e];
+				}
+			}
+			else
+			{
+				int arc = findArc(b, a);
+
+				if(cost < down[arc])
+				{
+					down[arc] = cost;
+					downVia[arc] = -(e + 1);
+					downLength[arc] = edgeLength[e];
+				}
+			}
+		}
+
+		// every lower triangle u-v-w of arc v-w is seen before v's own arcs are used
+		for(int r = 0; r < nodeCount; r++)
+		{
+			int u = order[r];
+
+			for(int i = firstArc[u]; i < firstArc[u + 1]; i++)
+			{
+				int v = arcHead[i];
+
+				for(int j = i + 1; j < firstArc[u + 1]; j++)
+				{
+					int w = arcHead[j];
+
+					int arc = findArc(v, w);
+
+					// v -> u -> w
+					double cost = down[i] + up[j];
+
+					if(cost < up[arc])
+					{
+						up[arc] = cost;
+						upVia[arc] = u;
+						upLength[arc] = downLength[i] + upLength[j];
+					}
+
+					// w -> u -> v
+					cost = down[j] + up[i];
+
+					if(cost < down[arc])
+					{
+						down[arc] = cost;
+						downVia[arc] = u;
+						downLength[arc] = downLength[j] + upLength[i];
+					}
+				}
+			}
+		}
+
+		return new Metric(up, down, upVia, downVia, upLength, downLength, edgeCost, version);
+	}
+
+	/**
+	 * Customizes for travel time at the given velocities and makes that the
+	 * metric used by queries.
+	 */
+	public void customize(StreetVelocityCache.Snapshot velocities)
+	{
+		setMetric(customize(getTravelTimes(velocities), velocities.version));
+	}
+
+	/**
+	 * Seconds to traverse each edge at the given velocities.
+	 */
+	public double[] getTravelTimes(StreetVelocityCache.Snapshot velocities)
+	{
+		double[] cost = new double[edgeLength.length];
+
+		for(int e = 0; e < cost.length; e++)
+		{
+			double speed = velocities.getStreetVelocity(e);
+
+			cost[e] = edgeLength[e] / (speed > 0 ? speed : DEFAULT_SPEED);
+		}
+
+		return cost;
+	}
+
+	/**
+	 * Edge lengths in meters, for a shortest-distance metric.
+	 */
+	public double[] getLengths()
+	{
+		return edgeLength.clone();
+	}
+
+	public void setMetric(Metric metric)
+	{
+		this.metric = metric;
+	}
+
+	public Metric getMetric()
+	{
+		return metric;
+	}
+
+	/**
+	 * Node location as lon/lat.
+	 */
+	public Coordinate getCoordinate(int node)
+	{
+		return new Coordinate(nodeLon[node] / 1e5, nodeLat[node] / 1e5);
+	}
+
+	public int getTail(int edgeId)
+	{
+		return edgeId >= 0 && edgeId < edgeTail.length ? edgeTail[edgeId] : -1;
+	}
+
+	public int getHead(int edgeId)
+	{
+		return edgeId >= 0 && edgeId < edgeHead.length ? edgeHead[edgeId] : -1;
+	}
+
+	public double getLength(int edgeId)
+	{
+		return edgeId >= 0 && edgeId < edgeLength.length ? edgeLength[edgeId] : Double.NaN;
+	}
+
+	/**
+	 * An edge's own cost under a metric, NaN where it has none.
+	 */
+	public double getCost(Metric metric, int edgeId)
+	{
+		return edgeId >= 0 && edgeId < metric.edgeCost.length ? metric.edgeCost[edgeId] : Double.NaN;
+	}
+
+	/**
+	 * Edge ids of the cheapest path from source to target under the current
+	 * metric, or null if there is none.
+	 */
+	public int[] route(int source, int target)
+	{
+		return route(metric, source, target);
+	}
+
+	/**
+	 * Cheapest path starting with one edge and ending with another, both
+	 * included, as TrafficGraph returns them for snapped end points. Null if
+	 * there is none.
+	 */
+	public int[] routeEdges(Metric metric, int fromEdge, int toEdge)
+	{
+		if(getTail(fromEdge) < 0 || getTail(toEdge) < 0)
+			return null;
+
+		if(fromEdge == toEdge)
+			return new int[] { fromEdge };
+
+		int[] between = route(metric, edgeHead[fromEdge], edgeTail[toEdge]);
+
+		if(between == null)
+			return null;
+
+		int[] path = new int[between.length + 2];
+
+		path[0] = fromEdge;
+		System.arraycopy(between, 0, path, 1, between.length);
+		path[path.length - 1] = toEdge;
+
+		return path;
+	}
+
+	public int[] route(Metric metric, int source, int target)
+	{
+		if(source < 0 || target < 0 || source >= nodeCount || target >= nodeCount)
+			return null;
+
+		if(source == target)
+			return new int[0];
+
+		Search[] pair = searches.get();
+
+		Search forward = pair[0];
+		Search backward = pair[1];
+
+		try
+		{
+			forward.reach(source, 0.0, -1);
+			backward.reach(target, 0.0, -1);
+
+			double best = Double.POSITIVE_INFINITY;
+			int meet = -1;
+
+			while(true)
+			{
+				boolean forwardDone = forward.isEmpty() || forward.minKey() >= best;
+				boolean backwardDone = backward.isEmpty() || backward.minKey() >= best;
+
+				if(forwardDone && backwardDone)
+					break;
+
+				boolean up = !forwardDone && (backwardDone || forward.minKey() <= backward.minKey());
+
+				Search search = up ? forward : backward;
+				Search other = up ? backward : forward;
+
+				int node = search.pop();
+
+				if(node < 0)
+					continue;
+
+				double distance = search.dist[node];
+
+				if(distance + other.dist[node] < best)
+				{
+					best = distance + other.dist[node];
+					meet = node;
+				}
+
+				double[] weights = up ? metric.up : metric.down;
+
+				for(int arc = firstArc[node]; arc < firstArc[node + 1]; arc++)
+				{
+					double d = distance + weights[arc];
+					int head = arcHead[arc];
+
+					if(d < search.dist[head])
+						search.reach(head, d, arc);
+				}
+			}
+
+			if(meet < 0)
+				return null;
+
+			TIntArrayList arcs = new TIntArrayList();
+
+			for(int node = meet; forward.parent[node] >= 0; node = arcTail[forward.parent[node]])
+				arcs.add(forward.parent[node]);
+
+			arcs.reverse();
+
+			TIntArrayList edges = new TIntArrayList();
+
+			for(int i = 0; i < arcs.size(); i++)
+				unpack(metric, arcs.get(i), true, edges);
+
+			for(int node = meet; backward.parent[node] >= 0; node = arcTail[backward.parent[node]])
+				unpack(metric, backward.parent[node], false, edges);
+
+			return edges.toArray();
+		}
+		finally
+		{
+			forward.reset();
+			backward.reset();
+		}
+	}
+
+	/**
+	 * For many-to-many queries: the cost and meters from every node in the
+	 * targets' backward search spaces down to those targets. Entries for node
+	 * n are start[slot(n)] until start[slot(n) + 1].
+	 */
+	public class Buckets {
+
+		public final int targetCount;
+
+		final Metric metric;
+
+		final TIntIntHashMap slots;
+		final int[] start;
+
+		final int[] target;
+		final double[] cost;
+		final double[] meters;
+
+		Buckets(Metric metric, int targetCount, TIntIntHashMap slots, int[] start, int[] target, double[] cost, double[] meters)
+		{
+			this.metric = metric;
+			this.targetCount = targetCount;
+			this.slots = slots;
+			this.start = start;
+			this.target = target;
+			this.cost = cost;
+			this.meters = meters;
+		}
+	}
+
+	/**
+	 * What one target's upward search over the down arcs settles: each node
+	 * with its cost and meters to the target. Only depends on the target and
+	 * the metric, so it can be kept and reused.
+	 */
+	static class Space {
+
+		final int[] nodes;
+		final double[] cost;
+		final double[] meters;
+
+		Space(int[] nodes, double[] cost, double[] meters)
+		{
+			this.nodes = nodes;
+			this.cost = cost;
+			this.meters = meters;
+		}
+	}
+
+	/**
+	 * Least recently used target search spaces under one metric, for callers
+	 * that ask for buckets around the same nodes over and over, as the map
+	 * matcher does from one fix to the next. Safe to share between threads.
+	 */
+	public class SpaceCache {
+
+		final Metric metric;
+		final int capacity;
+
+		final LinkedHashMap<Integer, Space> spaces = new LinkedHashMap<Integer, Space>(256, 0.75f, true);
+
+		long hits = 0;
+		long misses = 0;
+
+		public SpaceCache(Metric metric, int capacity)
+		{
+			this.metric = metric;
+			this.capacity = capacity;
+		}
+
+		synchronized Space get(int node)
+		{
+			Space space = spaces.get(node);
+
+			if(space != null)
+				hits++;
+			else
+				misses++;
+
+			return space;
+		}
+
+		synchronized void put(int node, Space space)
+		{
+			spaces.put(node, space);
+
+			if(spaces.size() > capacity)
+				spaces.remove(spaces.keySet().iterator().next());
+		}
+
+		public synchronized Map<String, Object> getStats()
+		{
+			Map<String, Object> stats = new LinkedHashMap<String, Object>();
+
+			stats.put("nodes", spaces.size());
+			stats.put("capacity", capacity);
+			stats.put("hits", hits);
+			stats.put("misses", misses);
+			stats.put("hitRate", hits + misses > 0 ? (double)hits / (hits + misses) : 0.0);
+
+			return stats;
+		}
+	}
+
+	Space space(Metric metric, int target)
+	{
+		TIntArrayList nodes = new TIntArrayList();
+		TDoubleArrayList costs = new TDoubleArrayList();
+		TDoubleArrayList lengths = new TDoubleArrayList();
+
+		Search search = searches.get()[1];
+
+		try
+		{
+			search.reach(target, 0.0, 0.0, -1);
+
+			while(!search.isEmpty())
+			{
+				int node = search.pop();
+
+				if(node < 0)
+					continue;
+
+				nodes.add(node);
+				costs.add(search.dist[node]);
+				lengths.add(search.length[node]);
+
+				for(int arc = firstArc[node]; arc < firstArc[node + 1]; arc++)
+				{
+					double d = search.dist[node] + metric.down[arc];
+					int head = arcHead[arc];
+
+					if(d < search.dist[head])
+						search.reach(head, d, search.length[node] + metric.downLength[arc], arc);
+				}
+			}
+		}
+		finally
+		{
+			search.reset();
+		}
+
+		return new Space(nodes.toArray(), costs.toArray(), lengths.toArray());
+	}
+
+	/**
+	 * Runs a full upward search from every target (-1 entries are skipped)
+	 * and files what it reaches into buckets.
+	 */
+	public Buckets buckets(Metric metric, int[] targets)
+	{
+		return buckets(metric, targets, targets.length, null);
+	}
+
+	/**
+	 * As buckets(metric, targets) for the first count targets, taking their
+	 * searches from cache when given one for the same metric.
+	 */
+	public Buckets buckets(Metric metric, int[] targets, int count, SpaceCache cache)
+	{
+		if(cache != null && cache.metric != metric)
+			cache = null;
+
+		Space[] spaces = new Space[count];
+
+		int total = 0;
+
+		for(int t = 0; t < count; t++)
+		{
+			if(targets[t] < 0 || targets[t] >= nodeCount)
+				continue;
+
+			Space space = cache != null ? cache.get(targets[t]) : null;
+
+			if(space == null)
+			{
+				space = space(metric, targets[t]);
+
+				if(cache != null)
+					cache.put(targets[t], space);
+			}
+
+			spaces[t] = space;
+			total += space.nodes.length;
+		}
+
+		TIntIntHashMap slots = new TIntIntHashMap(Math.max(total, 1), 0.5f, -1, -1);
+		TIntArrayList counts = new TIntArrayList();
+
+		for(Space space : spaces)
+		{
+			if(space == null)
+				continue;
+
+			for(int node : space.nodes)
+			{
+				int slot = slots.get(node);
+
+				if(slot < 0)
+				{
+					slot = counts.size();
+					slots.put(node, slot);
+					counts.add(0);
+				}
+
+				counts.set(slot, counts.get(slot) + 1);
+			}
+		}
+
+		int[] start = new int[counts.size() + 1];
+
+		for(int slot = 0; slot < counts.size(); slot++)
+			start[slot + 1] = start[slot] + counts.get(slot);
+
+		int[] fill = Arrays.copyOf(start, counts.size());
+
+		int[] target = new int[total];
+		double[] cost = new double[total];
+		double[] meters = new double[total];
+
+		for(int t = 0; t < count; t++)
+		{
+			Space space = spaces[t];
+
+			if(space == null)
+				continue;
+
+			for(int i = 0; i < space.nodes.length; i++)
+			{
+				int at = fill[slots.get(space.nodes[i])]++;
+
+				target[at] = t;
+				cost[at] = space.cost[i];
+				meters[at] = space.meters[i];
+			}
+		}
+
+		return new Buckets(metric, count, slots, start, target, cost, meters);
+	}
+
+	/**
+	 * Cheapest cost and its length in meters from source to every target of
+	 * the buckets, infinite where there is no path. Safe to call from several
+	 * threads at once.
+	 */
+	public void oneToMany(Buckets buckets, int source, double[] cost, double[] meters)
+	{
+		Arrays.fill(cost, Double.POSITIVE_INFINITY);
+		Arrays.fill(meters, Double.POSITIVE_INFINITY);
+
+		if(source < 0 || source >= nodeCount)
+			return;
+
+		Metric metric = buckets.metric;
+
+		Search search = searches.get()[0];
+
+		try
+		{
+			search.reach(source, 0.0, 0.0, -1);
+
+			while(!search.isEmpty())
+			{
+				int node = search.pop();
+
+				if(node < 0)
+					continue;
+
+				double distance = search.dist[node];
+
+				int slot = buckets.slots.get(node);
+
+				if(slot >= 0)
+				{
+					for(int i = buckets.start[slot]; i < buckets.start[slot + 1]; i++)
+					{
+						int t = buckets.target[i];
+						double d = distance + buckets.cost[i];
+
+						if(d < cost[t])
+						{
+							cost[t] = d;
+							meters[t] = search.length[node] + buckets.meters[i];
+						}
+					}
+				}
+
+				for(int arc = firstArc[node]; arc < firstArc[node + 1]; arc++)
+				{
+					double d = distance + metric.up[arc];
+					int head = arcHead[arc];
+
+					if(d < search.dist[head])
+						search.reach(head, d, search.length[node] + metric.upLength[arc], arc);
+				}
+			}
+		}
+		finally
+		{
+			search.reset();
+		}
+	}
+
+	/**
+	 * Appends the graph edges behind an arc, going up it or down it.
+	 */
+	void unpack(Metric metric, int arc, boolean up, TIntArrayList edges)
+	{
+		int via = up ? metric.upVia[arc] : metric.downVia[arc];
+
+		if(via < 0)
+		{
+			edges.add(-via - 1);
+			return;
+		}
+
+		int lower = findArc(via, arcTail[arc]);
+		int higher = findArc(via, arcHead[arc]);
+
+		if(up)
+		{
+			unpack(metric, lower, false, edges);
+			unpack(metric, higher, true, edges);
+		}
+		else
+		{
+			unpack(metric, higher, false, edges);
+			unpack(metric, lower, true, edges);
+		}
+	}
+
+	/**
+	 * Plain Dijkstra over the graph edges, as a reference for the hierarchy.
+	 */
+	public int[] dijkstra(double[] edgeCost, int source, int target)
+	{
+		if(source == target)
+			return new int[0];
+
+		Search search = new Search();
+
+		search.reach(source, 0.0, -1);
+
+		while(!search.isEmpty())
+		{
+			int node = search.pop();
+
+			if(node < 0)
+				continue;
+
+			if(node == target)
+				break;
+
+			for(int i = firstOut[node]; i < firstOut[node + 1]; i++)
+			{
+				int e = outEdges[i];
+
+				if(Double.isNaN(edgeCost[e]))
+					continue;
+
+				double d = search.dist[node] + edgeCost[e];
+				int head = edgeHead[e];
+
+				if(d < search.dist[head])
+					search.reach(head, d, e);
+			}
+		}
+
+		if(search.dist[target] == Double.POSITIVE_INFINITY)
+			return null;
+
+		TIntArrayList edges = new TIntArrayList();
+
+		for(int node = target; node != source; node = edgeTail[search.parent[node]])
+			edges.add(search.parent[node]);
+
+		edges.reverse();
+
+		return edges.toArray();
+	}
+
+	public static double cost(int[] edgeIds, double[] edgeCost)
+	{
+		double total = 0.0;
+
+		for(int e : edgeIds)
+			total += edgeCost[e];
+
+		return total;
+	}
+
+	/**
+	 * Where regression() gets the paths it compares against.
+	 */
+	public interface Reference {
+
+		/**
+		 * Edge ids from one point to another, null or empty if there is no
+		 * path.
+		 */
+		List<Integer> path(Coordinate from, Coordinate to);
+	}
+
+	/**
+	 * TrafficGraph's own search, which Api.path used before the hierarchy.
+	 */
+	public static Reference reference(final TrafficGraph graph)
+	{
+		return new Reference() {
+
+			public List<Integer> path(Coordinate from, Coordinate to)
+			{
+				return graph.getEdgesBetweenPoints(from, to);
+			}
+		};
+	}
+
+	/**
+	 * Origin/destination pairs from a text file, one "lat,lon,lat,lon" per
+	 * line; blank lines and lines starting with # are skipped.
+	 */
+	public static List<Coordinate[]> readPairs(File file) throws IOException
+	{
+		return readPairs(file, new TDoubleArrayList());
+	}
+
+	/**
+	 * As readPairs(File), also reading an optional fifth field per line, the
+	 * expected path length in metres, into expected (NaN where missing).
+	 */
+	public static List<Coordinate[]> readPairs(File file, TDoubleArrayList expected) throws IOException
+	{
+		List<Coordinate[]> pairs = new ArrayList<Coordinate[]>();
+
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+
+		try
+		{
+			String line;
+
+			while((line = reader.readLine()) != null)
+			{
+				line = line.trim();
+
+				if(line.isEmpty() || line.startsWith("#"))
+					continue;
+
+				String[] fields = line.split(",");
+
+				if(fields.length != 4 && fields.length != 5)
+					throw new IOException("Expected lat,lon,lat,lon[,metres] in " + file + ": " + line);
+
+				try
+				{
+					pairs.add(new Coordinate[] {
+							new Coordinate(Double.parseDouble(fields[1].trim()), Double.parseDouble(fields[0].trim())),
+							new Coordinate(Double.parseDouble(fields[3].trim()), Double.parseDouble(fields[2].trim())) });
+
+					expected.add(fields.length == 5 ? Double.parseDouble(fields[4].trim()) : Double.NaN);
+				}
+				catch(NumberFormatException e)
+				{
+					throw new IOException("Bad coordinate in " + file + ": " + line);
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		return pairs;
+	}
+
+	/**
+	 * Random node pairs, for a regression run without a corpus.
+	 */
+	public List<Coordinate[]> randomPairs(int pairs, long seed)
+	{
+		Random random = new Random(seed);
+
+		List<Coordinate[]> coordinates = new ArrayList<Coordinate[]>(pairs);
+
+		for(int i = 0; i < pairs; i++)
+			coordinates.add(new Coordinate[] { getCoordinate(random.nextInt(nodeCount)), getCoordinate(random.nextInt(nodeCount)) });
+
+		return coordinates;
+	}
+
+	/**
+	 * Compares the hierarchy with the reference paths for each pair, under
+	 * the metric's own costs (the travel times Api.path routes on, when given
+	 * the current metric). The hierarchy is asked for a path between the
+	 * reference path's first and last edge, as Api.path asks for one between
+	 * the snapped edges, and the two are:
+	 *
+	 * - identical: the same edges;
+	 * - same cost: within 0.1% of each other;
+	 * - cheaper: the hierarchy found a faster path than the reference, which
+	 *   is expected where the reference doesn't route on the same costs;
+	 * - dearer: the reference is faster, which points at a hierarchy bug.
+	 *
+	 * optimal counts hierarchy paths that cost the same as plain Dijkstra
+	 * under the metric.
+	 */
+	public Map<String, Object> regression(Reference reference, List<Coordinate[]> pairs, Metric metric)
+	{
+		double[] edgeCost = metric.edgeCost;
+
+		int compared = 0;
+		int identical = 0;
+		int sameCost = 0;
+		int cheaper = 0;
+		int dearer = 0;
+		int optimal = 0;
+		int noPath = 0;
+		int hierarchyNoPath = 0;
+		int unknownEdges = 0;
+
+		double referenceSeconds = 0;
+		double hierarchySeconds = 0;
+
+		long referenceNs = 0;
+		long hierarchyNs = 0;
+
+		for(Coordinate[] pair : pairs)
+		{
+			long start = System.nanoTime();
+			List<Integer> expected = reference.path(pair[0], pair[1]);
+			referenceNs += System.nanoTime() - start;
+
+			if(expected == null || expected.isEmpty())
+			{
+				noPath++;
+				continue;
+			}
+
+			int[] expectedIds = new int[expected.size()];
+			boolean known = true;
+
+			for(int j = 0; j < expectedIds.length; j++)
+			{
+				expectedIds[j] = expected.get(j);
+				known &= getTail(expectedIds[j]) >= 0 && !Double.isNaN(edgeCost[expectedIds[j]]);
+			}
+
+			if(!known)
+			{
+				unknownEdges++;
+				continue;
+			}
+
+			int first = expectedIds[0];
+			int last = expectedIds[expectedIds.length - 1];
+
+			start = System.nanoTime();
+			int[] found = routeEdges(metric, first, last);
+			hierarchyNs += System.nanoTime() - start;
+
+			compared++;
+
+			if(found == null)
+			{
+				hierarchyNoPath++;
+				continue;
+			}
+
+			double expectedCost = cost(expectedIds, edgeCost);
+			double foundCost = cost(found, edgeCost);
+
+			referenceSeconds += expectedCost;
+			hierarchySeconds += foundCost;
+
+			double tolerance = Math.max(0.01, expectedCost * 0.001);
+
+			if(Arrays.equals(found, expectedIds))
+				identical++;
+
+			if(Math.abs(foundCost - expectedCost) <= tolerance)
+				sameCost++;
+			else if(foundCost < expectedCost)
+				cheaper++;
+			else
+				dearer++;
+
+			int[] between = first == last ? new int[0] : dijkstra(edgeCost, edgeHead[first], edgeTail[last]);
+
+			if(between != null)
+			{
+				double best = first == last ? edgeCost[first] : edgeCost[first] + cost(between, edgeCost) + edgeCost[last];
+
+				if(Math.abs(foundCost - best) <= tolerance)
+					optimal++;
+			}
+		}
+
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+
+		stats.put("pairs", pairs.size());
+		stats.put("metricVersion", metric.version);
+		stats.put("compared", compared);
+		stats.put("identical", identical);
+		stats.put("sameCost", sameCost);
+		stats.put("cheaper", cheaper);
+		stats.put("dearer", dearer);
+		stats.put("optimal", optimal);
+		stats.put("matchRate", compared > 0 ? (double)identical / compared : 0.0);
+		stats.put("sameCostRate", compared > 0 ? (double)sameCost / compared : 0.0);
+		stats.put("noPath", noPath);
+		stats.put("hierarchyNoPath", hierarchyNoPath);
+		stats.put("unknownEdges", unknownEdges);
+		stats.put("referenceSeconds", referenceSeconds);
+		stats.put("hierarchySeconds", hierarchySeconds);
+		stats.put("referenceMs", pairs.size() > 0 ? referenceNs / 1e6 / pairs.size() : 0.0);
+		stats.put("hierarchyMs", compared > 0 ? hierarchyNs / 1e6 / compared : 0.0);
+
+		return stats;
+	}
+
+	/**
+	 * The reference's path length in metres for each pair, NaN where it has
+	 * no path, for checking in as the corpus's expected costs.
+	 */
+	public static TDoubleArrayList expectedLengths(Reference reference, List<Coordinate[]> pairs, TrafficGraph graph)
+	{
+		TDoubleArrayList expected = new TDoubleArrayList(pairs.size());
+
+		for(Coordinate[] pair : pairs)
+		{
+			List<Integer> path = reference.path(pair[0], pair[1]);
+
+			double length = Double.NaN;
+
+			if(path != null && !path.isEmpty())
+			{
+				length = 0.0;
+
+				for(int edgeId : path)
+					length += graph.getTrafficEdge(edgeId).geLength();
+			}
+
+			expected.add(length);
+		}
+
+		return expected;
+	}
+
+	/**
+	 * Checks the hierarchy against the corpus's expected costs, NaN for pairs
+	 * without one. TrafficGraph's search is a shortest distance one, so the
+	 * expected costs are its path lengths and the hierarchy is checked on a
+	 * metric customized with edge lengths, routing between the reference
+	 * path's end edges as regression() does. A pair fails if the hierarchy
+	 * finds no path, or one whose length is off by more than 0.1% (and at
+	 * least a metre); passed is false if any did. referenceChanged counts
+	 * pairs where the reference itself no longer gives the expected length,
+	 * meaning the graph changed and the corpus costs need regenerating.
+	 */
+	public Map<String, Object> verify(Reference reference, List<Coordinate[]> pairs, TDoubleArrayList expected)
+	{
+		Metric lengths = customize(getLengths(), 0);
+
+		int checked = 0;
+		int failed = 0;
+		int referenceChanged = 0;
+		int skipped = 0;
+
+		List<String> failures = new ArrayList<String>();
+
+		for(int i = 0; i < pairs.size(); i++)
+		{
+			double want = i < expected.size() ? expected.get(i) : Double.NaN;
+
+			List<Integer> path = Double.isNaN(want) ? null : reference.path(pairs.get(i)[0], pairs.get(i)[1]);
+
+			if(path == null || path.isEmpty())
+			{
+				skipped++;
+				continue;
+			}
+
+			int[] ids = new int[path.size()];
+
+			for(int j = 0; j < ids.length; j++)
+				ids[j] = path.get(j);
+
+			checked++;
+
+			double tolerance = Math.max(1.0, want * 0.001);
+
+			boolean known = getTail(ids[0]) >= 0 && getTail(ids[ids.length - 1]) >= 0;
+
+			if(known && Math.abs(cost(ids, edgeLength) - want) > tolerance)
+				referenceChanged++;
+
+			int[] found = known ? routeEdges(lengths, ids[0], ids[ids.length - 1]) : null;
+
+			double length = found != null ? cost(found, edgeLength) : Double.NaN;
+
+			if(found == null || Math.abs(length - want) > tolerance)
+			{
+				failed++;
+
+				if(failures.size() < 20)
+					failures.add("pair " + (i + 1) + ": expected " + want + "m, hierarchy " + (found != null ? length + "m" : "no path"));
+			}
+		}
+
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+
+		stats.put("pairs", pairs.size());
+		stats.put("checked", checked);
+		stats.put("skipped", skipped);
+		stats.put("failed", failed);
+		stats.put("referenceChanged", referenceChanged);
+		stats.put("passed", checked > 0 && failed == 0);
+		stats.put("failures", failures);
+
+		return stats;
+	}
+
+	public Map<String, Object> getStats()
+	{
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+
+		stats.put("nodes", nodeCount);
+		stats.put("edges", edgeCount);
+		stats.put("arcs", arcCount);
+		stats.put("metricVersion", metric != null ? metric.version : -1);
+
+		return stats;
+	}
+}
@@ -10,6 +10,7 @@ public class DateUtils {
 	
 	public static final String BASIC_FORMAT = "yyyy-MM-dd hh:mm:ss";
     public static final String LOCATION_UPDATE_FORMAT = "yyyyMMdd HHmmss";
+    public static final String SQL_TIMESTAMP_FORMAT = "yyyy-MM-dd HH:mm:ss.SSS";
 
     public static java.util.Date parseLocationUpdate(String dateString) throws ParseException {
         return getLocationUpdateFormat().parse(dateString);
@@ -22,6 +23,10 @@ public class DateUtils {
     public static java.util.Date parseDisplay(String dateString) throws ParseException {
         return getDisplayFormat().parse(dateString);
     }
+    
+    public static String formatSqlTimestamp(java.util.Date date) {
+        return getSqlTimestampFormat().format(date);
+    }
 
     private static ThreadLocal locationUpdateFormat = new ThreadLocal() {
         protected synchronized Object initialValue() {
@@ -41,6 +46,12 @@ public class DateUtils {
         }
     };
 
+    private static ThreadLocal sqlTimestampFormat = new ThreadLocal() {
+        protected synchronized Object initialValue() {
+            return new java.text.SimpleDateFormat(SQL_TIMESTAMP_FORMAT);
+        }
+    };
+
     private static DateFormat getLocationUpdateFormat(){
         return (DateFormat) locationUpdateFormat.get();
     }
@@ -52,4 +63,8 @@ public class DateUtils {
     private static DateFormat getDisplayFormat(){
         return (DateFormat) displayFormat.get();
     }
+    
+    private static DateFormat getSqlTimestampFormat(){
+        return (DateFormat) sqlTimestampFormat.get();
+    }
 }
\ No newline at end of file
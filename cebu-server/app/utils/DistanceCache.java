@@ -1,100 +1,298 @@
 package utils;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-
-import javax.persistence.Query;
-
-import org.codehaus.groovy.tools.shell.util.Logger;
-import org.geotools.geometry.jts.JTS;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import com.vividsolutions.jts.geom.Coordinate;
 
-import akka.event.Logging;
-
-import models.Phone;
-import models.Vehicle;
 import models.VehicleDistance;
 
+import play.Logger;
+import play.Play;
+import play.db.DB;
 
+/**
+ * Accumulates distance travelled per vehicle from the location feed and
+ * periodically adds it to that day's VehicleDistance row. Each vehicle's
+ * track is locked on its own, so updates for different vehicles never
+ * contend; tracks idle for longer than idleTtlMinutes are dropped once
+ * everything they accumulated has been flushed.
+ */
 public class DistanceCache {
 
-	HashMap<Vehicle,Coordinate> vechiclePositions = new HashMap<Vehicle,Coordinate>();
-	
-	HashMap<Vehicle,Double> vehicleDistance = new HashMap<Vehicle,Double>();
-	
-	HashMap<String,Vehicle> vehicleImeiLinks = new HashMap<String,Vehicle>();
-	
-	public void linkImeiToVehicle(String imei, Vehicle vehicle)
-	{
-		vehicleImeiLinks.put(imei, vehicle);
-	}
-	
-	public Double updateDistance(String imei, Coordinate newCoord, Double error)
-	{
-		Double distance = 0.0;
-		
-		Vehicle vehicle = vehicleImeiLinks.get(imei);
-		
-		if(vehicle == null)
+	static long idleTtlMs = Long.parseLong(Play.configuration.getProperty("application.distance.idleTtlMinutes", "60")) * 60 * 1000;
+
+	static final long DAY_MS = 24 * 60 * 60 * 1000;
+
+	/**
+	 * Distance to add to one vehicle's total for one day.
+	 */
+	public static class Delta {
+
+		public final Long vehicleId;
+
+		// local midnight
+		public final Date date;
+
+		public final double distance;
+
+		public Delta(Long vehicleId, Date date, double distance)
 		{
-			Phone phone = Phone.find("imei = ?", imei).first();
-			
-			if(phone == null)
-				return 0.0;
-			
-			vehicle = phone.vehicle;
-					
-			vehicleImeiLinks.put(imei, vehicle);
-		}	
-		
-		if(vechiclePositions.containsKey(vehicle))
+			this.vehicleId = vehicleId;
+			this.date = date;
+			this.distance = distance;
+		}
+	}
+
+	static class Track {
+
+		boolean hasPosition = false;
+
+		double lat;
+		double lon;
+
+		// local day number of the distance in pending
+		long day;
+
+		double pending;
+
+		long lastSeen;
+
+		boolean evicted = false;
+	}
+
+	/**
+	 * Where flushed totals go: VehicleDistance, in one transaction per
+	 * flush.
+	 */
+	public interface Store {
+
+		void addDistances(List<Delta> deltas) throws SQLException;
+	}
+
+	static class DatabaseStore implements Store {
+
+		public void addDistances(List<Delta> deltas) throws SQLException
 		{
-			Coordinate oldCoord = vechiclePositions.get(vehicle);
+			Connection conn = null;
+
 			try
 			{
-				distance = JTS.orthodromicDistance(newCoord,oldCoord,org.geotools.referencing.crs.DefaultGeographicCRS.WGS84);
+				conn = DB.datasource.getConnection();
+				conn.setAutoCommit(false);
+
+				VehicleDistance.addDistances(conn, deltas);
+
+				conn.commit();
 			}
-			catch(Exception e)
+			catch(SQLException e)
 			{
-			
+				Jdbc.rollbackQuietly(conn);
+
+				throw e;
 			}
-			
-			//play.Logger.info("Distance traveled for IMEI " + imei + ": " + distance + "(" + error + ")");
-			
-			if(distance < (error * 4) || error > 50)
-				distance = 0.0;
-			else
-				vechiclePositions.put(vehicle, newCoord);
-			
-			synchronized(vehicleDistance)
+			finally
 			{
-				if(vehicleDistance.containsKey(vehicle))
-					vehicleDistance.put(vehicle, vehicleDistance.get(vehicle) + distance);
-				else
-					vehicleDistance.put(vehicle, distance);
+				Jdbc.closeQuietly(conn);
+			}
+		}
+	}
+
+	ConcurrentHashMap<Long, Track> tracks = new ConcurrentHashMap<Long, Track>();
+
+	// totals for days that ended before they were flushed
+	ConcurrentLinkedQueue<Delta> closedDays = new ConcurrentLinkedQueue<Delta>();
+
+	/**
+	 * Adds the distance from the vehicle's last position to newCoord (lon/lat)
+	 * observed at time. Phones not logged in to a vehicle are ignored.
+	 */
+	public Double updateDistance(String imei, Coordinate newCoord, Double error, Date time)
+	{
+		PhoneRegistry.Entry phone = PhoneRegistry.get(imei);
+
+		// not logged in to a vehicle, nothing to accumulate
+		if(phone == null || phone.vehicleId == null)
+			return 0.0;
+
+		long day = localDay(time.getTime());
+
+		while(true)
+		{
+			Track track = track(phone.vehicleId);
+
+			synchronized(track)
+			{
+				// lost a race with eviction, start a fresh track
+				if(track.evicted)
+					continue;
+
+				track.lastSeen = System.currentTimeMillis();
+
+				if(!track.hasPosition)
+				{
+					track.hasPosition = true;
+					track.lat = newCoord.y;
+					track.lon = newCoord.x;
+					track.day = day;
+
+					return 0.0;
+				}
+
+				double distance = Geodesy.haversine(track.lat, track.lon, newCoord.y, newCoord.x);
+
+				if(distance < (error * 4) || error > 50)
+					return 0.0;
+
+				track.lat = newCoord.y;
+				track.lon = newCoord.x;
+
+				// midnight rollover: close out the previous day's total
+				if(day != track.day)
+				{
+					if(track.pending > 0)
+						closedDays.add(new Delta(phone.vehicleId, toDate(track.day), track.pending));
+
+					track.day = day;
+					track.pending = 0;
+				}
+
+				track.pending += distance;
+
+				return distance;
 			}
-						
 		}
-		else
-			vechiclePositions.put(vehicle, newCoord);
-	
-		//flushDistances();
-		
-		return distance;
 	}
-	
+
+	Track track(Long vehicleId)
+	{
+		Track track = tracks.get(vehicleId);
+
+		if(track == null)
+		{
+			track = new Track();
+
+			Track previous = tracks.putIfAbsent(vehicleId, track);
+
+			if(previous != null)
+				track = previous;
+		}
+
+		return track;
+	}
+
+	/**
+	 * Adds everything accumulated since the last flush to VehicleDistance,
+	 * one row per vehicle and day, and drops idle tracks. Called by the
+	 * DistanceFlush job and on shutdown. Totals are put back if the write
+	 * fails.
+	 */
 	public void flushDistances()
 	{
-		synchronized(vehicleDistance)
+		flushDistances(new DatabaseStore());
+	}
+
+	public synchronized void flushDistances(Store store)
+	{
+		List<Delta> deltas = new ArrayList<Delta>();
+
+		for(Delta delta; (delta = closedDays.poll()) != null;)
+			deltas.add(delta);
+
+		long idleBefore = System.currentTimeMillis() - idleTtlMs;
+
+		for(Iterator<Map.Entry<Long, Track>> it = tracks.entrySet().iterator(); it.hasNext();)
 		{
-			for(Vehicle vehicle : vehicleDistance.keySet())
+			Map.Entry<Long, Track> entry = it.next();
+			Track track = entry.getValue();
+
+			synchronized(track)
 			{
-				VehicleDistance.updateDistanceTraveled(vehicle, vehicleDistance.get(vehicle));
-				vehicleDistance.remove(vehicle);
+				if(track.pending > 0)
+				{
+					deltas.add(new Delta(entry.getKey(), toDate(track.day), track.pending));
+					track.pending = 0;
+				}
+
+				if(track.lastSeen < idleBefore)
+				{
+					track.evicted = true;
+					it.remove();
+				}
 			}
 		}
+
+		if(deltas.isEmpty())
+			return;
+
+		deltas = merge(deltas);
+
+		try
+		{
+			store.addDistances(deltas);
+		}
+		catch(SQLException e)
+		{
+			Logger.error("Could not flush distance for " + deltas.size() + " vehicles: " + e);
+
+			// retry on the next flush
+			closedDays.addAll(deltas);
+		}
+	}
+
+	public int getTrackedVehicles()
+	{
+		return tracks.size();
+	}
+
+	/**
+	 * Sums deltas for the same vehicle and day so each gets a single row
+	 * update.
+	 */
+	static List<Delta> merge(List<Delta> deltas)
+	{
+		Map<String, Delta> merged = new HashMap<String, Delta>();
+
+		for(Delta delta : deltas)
+		{
+			String key = delta.vehicleId + ":" + delta.date.getTime();
+
+			Delta existing = merged.get(key);
+
+			if(existing != null)
+				delta = new Delta(delta.vehicleId, delta.date, existing.distance + delta.distance);
+
+			merged.put(key, delta);
+		}
+
+		return new ArrayList<Delta>(merged.values());
+	}
+
+	static long localDay(long time)
+	{
+		return (time + TimeZone.getDefault().getOffset(time)) / DAY_MS;
+	}
+
+	static Date toDate(long day)
+	{
+		Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		utc.setTimeInMillis(day * DAY_MS);
+
+		Calendar local = Calendar.getInstance();
+
+		local.clear();
+		local.set(utc.get(Calendar.YEAR), utc.get(Calendar.MONTH), utc.get(Calendar.DAY_OF_MONTH));
+
+		return local.getTime();
 	}
-	
-	
 }
@@ -0,0 +1,456 @@
+package utils;
+
+import java.util.Arrays;
+
+import play.Logger;
+
+/**
+ * Read-only spatial index of street edge geometry for snapping points to
+ * the network.
+ *
+ * Every edge is cut into its straight segments, projected onto a local
+ * equirectangular plane in meters, and filed into a uniform grid under each
+ * cell its bounding box touches. Nearest-edge queries search rings of cells
+ * outwards from the point until nothing further out can be closer. Queries
+ * write into caller-owned objects and arrays and don't allocate, so they can
+ * run per GPS fix.
+ *
+ * Geometry comes from EdgePolylines, so it is good to the encoder's 1e-5
+ * degrees (about a meter) and the index can be built from a persisted store
+ * without touching the graph.
+ */
+public class EdgeIndex {
+
+	static final double METERS_PER_DEGREE = Geodesy.EARTH_RADIUS * Math.PI / 180.0;
+
+	/**
+	 * Where a point snapped to: the edge, the closest point on it, how far
+	 * away that is and how far along the edge.
+	 */
+	public static class Snap {
+
+		public int edgeId = -1;
+
+		public double distance;
+
+		public double lat;
+		public double lon;
+
+		// meters from the start of the edge, and as a fraction of its length
+		public double offset;
+		public double fraction;
+	}
+
+	// projection origin and scale
+	final double originLat;
+	final double originLon;
+	final double lonScale;
+
+	final double cellSize;
+	final int columns;
+	final int rows;
+
+	// segments of cell c are cellSegments[cellStart[c]] until cellStart[c + 1]
+	final int[] cellStart;
+	final int[] cellSegments;
+
+	// segment -> edge, end points in meters from the origin, and meters along the edge to its start
+	final int[] segmentEdge;
+	final float[] x1;
+	final float[] y1;
+	final float[] x2;
+	final float[] y2;
+	final float[] segmentOffset;
+
+	// edge id -> projected length
+	final float[] edgeLength;
+
+	public final int edgeCount;
+	public final int segmentCount;
+
+	// edges already reported by the current within() call, by stamp
+	final ThreadLocal<int[]> seen;
+
+	EdgeIndex(EdgePolylines polylines, double cellSize)
+	{
+		int limit = polylines.getIdLimit();
+
+		this.cellSize = cellSize;
+		this.edgeLength = new float[limit];
+
+		int minLat = Integer.MAX_VALUE, maxLat = Integer.MIN_VALUE;
+		int minLon = Integer.MAX_VALUE, maxLon = Integer.MIN_VALUE;
+
+		int segments = 0;
+		int edges = 0;
+
+		for(int e = 0; e < limit; e++)
+		{
+			int[] points = polylines.getPoints(e);
+
+			if(points == null || points.length < 4)
+				continue;
+
+			edges++;
+			segments += points.length / 2 - 1;
+
+			for(int i = 0; i < points.length; i += 2)
+			{
+				minLat = Math.min(minLat, points[i]);
+				maxLat = Math.max(maxLat, points[i]);
+				minLon = Math.min(minLon, points[i + 1]);
+				maxLon = Math.max(maxLon, points[i + 1]);
+			}
+		}
+
+		this.edgeCount = edges;
+		this.segmentCount = segments;
+
+		if(edges == 0)
+		{
+			minLat = maxLat = minLon = maxLon = 0;
+		}
+
+		originLat = minLat / 1e5;
+		originLon = minLon / 1e5;
+		lonScale = METERS_PER_DEGREE * Math.cos(Math.toRadians((minLat + maxLat) / 2e5));
+
+		columns = (int)((maxLon - minLon) / 1e5 * lonScale / cellSize) + 1;
+		rows = (int)((maxLat - minLat) / 1e5 * METERS_PER_DEGREE / cellSize) + 1;
+
+		segmentEdge = new int[segments];
+		x1 = new float[segments];
+		y1 = new float[segments];
+		x2 = new float[segments];
+		y2 = new float[segments];
+		segmentOffset = new float[segments];
+
+		int s = 0;
+
+		for(int e = 0; e < limit; e++)
+		{
+			int[] points = polylines.getPoints(e);
+
+			if(points == null || points.length < 4)
+				continue;
+
+			double along = 0.0;
+
+			for(int i = 2; i < points.length; i += 2)
+			{
+				segmentEdge[s] = e;
+				y1[s] = (float)((points[i - 2] / 1e5 - originLat) * METERS_PER_DEGREE);
+				x1[s] = (float)((points[i - 1] / 1e5 - originLon) * lonScale);
+				y2[s] = (float)((points[i] / 1e5 - originLat) * METERS_PER_DEGREE);
+				x2[s] = (float)((points[i + 1] / 1e5 - originLon) * lonScale);
+				segmentOffset[s] = (float)along;
+
+				along += Math.hypot(x2[s] - x1[s], y2[s] - y1[s]);
+				s++;
+			}
+
+			edgeLength[e] = (float)along;
+		}
+
+		// count the segments of each cell, then file them
+		cellStart = new int[columns * rows + 1];
+
+		for(s = 0; s < segments; s++)
+		{
+			for(int r = row(Math.min(y1[s], y2[s])); r <= row(Math.max(y1[s], y2[s])); r++)
+			{
+				for(int c = column(Math.min(x1[s], x2[s])); c <= column(Math.max(x1[s], x2[s])); c++)
+					cellStart[r * columns + c + 1]++;
+			}
+		}
+
+		for(int c = 0; c < columns * rows; c++)
+			cellStart[c + 1] += cellStart[c];
+
+		cellSegments = new int[cellStart[columns * rows]];
+
+		int[] fill = Arrays.copyOf(cellStart, columns * rows);
+
+		for(s = 0; s < segments; s++)
+		{
+			for(int r = row(Math.min(y1[s], y2[s])); r <= row(Math.max(y1[s], y2[s])); r++)
+			{
+				for(int c = column(Math.min(x1[s], x2[s])); c <= column(Math.max(x1[s], x2[s])); c++)
+					cellSegments[fill[r * columns + c]++] = s;
+			}
+		}
+
+		final int edgeLimit = limit;
+
+		seen = new ThreadLocal<int[]>() {
+
+			@Override
+			protected int[] initialValue()
+			{
+				// last slot holds the current stamp
+				return new int[edgeLimit + 1];
+			}
+		};
+	}
+
+	/**
+	 * Indexes the edges in the polyline store, with grid cells of cellSize
+	 * meters.
+	 */
+	public static EdgeIndex build(EdgePolylines polylines, double cellSize)
+	{
+		long start = System.currentTimeMillis();
+
+		EdgeIndex index = new EdgeIndex(polylines, cellSize);
+
+		Logger.info("Edge index: " + index.edgeCount + " edges, " + index.segmentCount + " segments in " + index.columns + "x" + index.rows + " cells of " + cellSize + "m, built in " + (System.currentTimeMillis() - start) + "ms");
+
+		return index;
+	}
+
+	int column(double x)
+	{
+		return Math.max(0, Math.min(columns - 1, (int)Math.floor(x / cellSize)));
+	}
+
+	int row(double y)
+	{
+		return Math.max(0, Math.min(rows - 1, (int)Math.floor(y / cellSize)));
+	}
+
+	/**
+	 * Finds the edge closest to a point, if one is within maxDistance meters.
+	 * Returns false, leaving snap alone, if not.
+	 */
+	public boolean nearest(double lat, double lon, double maxDistance, Snap snap)
+	{
+		double px = (lon - originLon) * lonScale;
+		double py = (lat - originLat) * METERS_PER_DEGREE;
+
+		int cx = (int)Math.floor(px / cellSize);
+		int cy = (int)Math.floor(py / cellSize);
+
+		double best = maxDistance * maxDistance;
+		int bestSegment = -1;
+		double bestT = 0.0;
+
+		int maxRing = (int)Math.ceil(maxDistance / cellSize) + 1;
+
+		for(int ring = 0; ring <= maxRing; ring++)
+		{
+			// nothing in this ring or beyond is closer than (ring - 1) cells
+			if(ring > 1 && (ring - 1) * cellSize * (ring - 1) * cellSize >= best)
+				break;
+
+			for(int r = cy - ring; r <= cy + ring; r++)
+			{
+				if(r < 0 || r >= rows)
+					continue;
+
+				// whole rows at the top and bottom of the ring, just the ends in between
+				int step = r == cy - ring || r == cy + ring ? 1 : Math.max(1, ring * 2);
+
+				for(int c = cx - ring; c <= cx + ring; c += step)
+				{
+					if(c < 0 || c >= columns)
+						continue;
+
+					int cell = r * columns + c;
+
+					for(int i = cellStart[cell]; i < cellStart[cell + 1]; i++)
+					{
+						int s = cellSegments[i];
+
+						double t = project(s, px, py);
+						double d = distanceSquared(s, t, px, py);
+
+						if(d < best)
+						{
+							best = d;
+							bestSegment = s;
+							bestT = t;
+						}
+					}
+				}
+			}
+		}
+
+		if(bestSegment < 0)
+			return false;
+
+		fill(snap, bestSegment, bestT, Math.sqrt(best));
+
+		return true;
+	}
+
+	/**
+	 * How far along segment s, from 0 to 1, its closest point to (px, py)
+	 * is.
+	 */
+	double project(int s, double px, double py)
+	{
+		double dx = x2[s] - x1[s];
+		double dy = y2[s] - y1[s];
+
+		double lengthSquared = dx * dx + dy * dy;
+
+		if(lengthSquared <= 0)
+			return 0.0;
+
+		double t = ((px - x1[s]) * dx + (py - y1[s]) * dy) / lengthSquared;
+
+		return t < 0 ? 0.0 : t > 1 ? 1.0 : t;
+	}
+
+	// squared meters from (px, py) to the point t along segment s
+	double distanceSquared(int s, double t, double px, double py)
+	{
+		double ex = x1[s] + t * (x2[s] - x1[s]) - px;
+		double ey = y1[s] + t * (y2[s] - y1[s]) - py;
+
+		return ex * ex + ey * ey;
+	}
+
+	void fill(Snap snap, int s, double t, double distance)
+	{
+		int e = segmentEdge[s];
+
+		double x = x1[s] + t * (x2[s] - x1[s]);
+		double y = y1[s] + t * (y2[s] - y1[s]);
+
+		snap.edgeId = e;
+		snap.distance = distance;
+		snap.lat = originLat + y / METERS_PER_DEGREE;
+		snap.lon = originLon + x / lonScale;
+		snap.offset = segmentOffset[s] + t * Math.hypot(x2[s] - x1[s], y2[s] - y1[s]);
+		snap.fraction = edgeLength[e] > 0 ? Math.min(1.0, snap.offset / edgeLength[e]) : 0.0;
+	}
+
+	/**
+	 * The closest point on each of the nearest edges within radius meters:
+	 * fills up to snaps.length of them, in no particular order, and returns
+	 * how many.
+	 */
+	public int candidates(double lat, double lon, double radius, Snap[] snaps)
+	{
+		double px = (lon - originLon) * lonScale;
+		double py = (lat - originLat) * METERS_PER_DEGREE;
+
+		int c1 = column(px - radius);
+		int c2 = column(px + radius);
+		int r1 = row(py - radius);
+		int r2 = row(py + radius);
+
+		int count = 0;
+
+		for(int r = r1; r <= r2; r++)
+		{
+			for(int c = c1; c <= c2; c++)
+			{
+				int cell = r * columns + c;
+
+				for(int i = cellStart[cell]; i < cellStart[cell + 1]; i++)
+				{
+					int s = cellSegments[i];
+					int e = segmentEdge[s];
+
+					double t = project(s, px, py);
+					double d = Math.sqrt(distanceSquared(s, t, px, py));
+
+					if(d > radius)
+						continue;
+
+					// the same edge again, a new edge while there's room, or else displace the farthest
+					int slot = -1;
+					int farthest = -1;
+
+					for(int k = 0; k < count; k++)
+					{
+						if(snaps[k].edgeId == e)
+						{
+							slot = k;
+							break;
+						}
+
+						if(farthest < 0 || snaps[k].distance > snaps[farthest].distance)
+							farthest = k;
+					}
+
+					if(slot < 0)
+					{
+						if(count < snaps.length)
+							slot = count++;
+						else if(d < snaps[farthest].distance)
+							slot = farthest;
+						else
+							continue;
+					}
+					else if(d >= snaps[slot].distance)
+						continue;
+
+					fill(snaps[slot], s, t, d);
+				}
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Writes the ids of edges passing within radius meters of a point into
+	 * edgeIds, each once, and returns how many there were (at most
+	 * edgeIds.length).
+	 */
+	public int within(double lat, double lon, double radius, int[] edgeIds)
+	{
+		double px = (lon - originLon) * lonScale;
+		double py = (lat - originLat) * METERS_PER_DEGREE;
+
+		double radiusSquared = radius * radius;
+
+		int[] stamps = seen.get();
+
+		int stamp = ++stamps[stamps.length - 1];
+
+		// stamps wrapped around: start over so old marks can't match
+		if(stamp == 0)
+		{
+			Arrays.fill(stamps, 0);
+			stamp = stamps[stamps.length - 1] = 1;
+		}
+
+		int c1 = column(px - radius);
+		int c2 = column(px + radius);
+		int r1 = row(py - radius);
+		int r2 = row(py + radius);
+
+		int count = 0;
+
+		for(int r = r1; r <= r2; r++)
+		{
+			for(int c = c1; c <= c2; c++)
+			{
+				int cell = r * columns + c;
+
+				for(int i = cellStart[cell]; i < cellStart[cell + 1] && count < edgeIds.length; i++)
+				{
+					int s = cellSegments[i];
+					int e = segmentEdge[s];
+
+					if(stamps[e] == stamp)
+						continue;
+
+					double t = project(s, px, py);
+
+					if(distanceSquared(s, t, px, py) <= radiusSquared)
+					{
+						stamps[e] = stamp;
+						edgeIds[count++] = e;
+					}
+				}
+			}
+		}
+
+		return count;
+	}
+}
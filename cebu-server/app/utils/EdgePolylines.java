@@ -0,0 +1,442 @@
+package utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import play.Logger;
+
+import com.conveyal.traffic.graph.TrafficEdge;
+import com.conveyal.traffic.graph.TrafficGraph;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Encoded polyline for every graph edge, built once when the graph loads.
+ *
+ * Polyline characters are plain ASCII, so each edge is kept as a byte[] in an
+ * array indexed by edge id. Alongside it we keep the edge's end points (in the
+ * encoder's 1e-5 degree units) and how many bytes the first point takes, which
+ * is enough to splice consecutive edges into one polyline without decoding.
+ *
+ * The store can be written to a file in the graph directory and read back on
+ * the next start; the file records the graph files' modification time and is
+ * rebuilt when the graph changes.
+ */
+public class EdgePolylines {
+
+	public static final String FILE_NAME = "edgePolylines.bin";
+
+	static final int FILE_VERSION = 1;
+
+	// TrafficGraph can't list its edges, so ids are probed until this many in a row are missing
+	static final int MAX_ID_GAP = 1000;
+
+	static final Charset ASCII = Charset.forName("US-ASCII");
+
+	// edge id -> polyline, null where there is no edge
+	final byte[][] encoded;
+
+	// edge id -> bytes taken by the first point
+	final int[] headLength;
+
+	// edge id * 4 -> first lat, first lon, last lat, last lon in 1e-5 degrees
+	final int[] ends;
+
+	public final int edgeCount;
+
+	public final long bytes;
+
+	EdgePolylines(byte[][] encoded, int[] headLength, int[] ends)
+	{
+		this.encoded = encoded;
+		this.headLength = headLength;
+		this.ends = ends;
+
+		int count = 0;
+		long size = 0;
+
+		for(byte[] polyline : encoded)
+		{
+			if(polyline != null)
+			{
+				count++;
+				size += polyline.length;
+			}
+		}
+
+		this.edgeCount = count;
+		this.bytes = size;
+	}
+
+	public boolean hasEdge(int edgeId)
+	{
+		return edgeId >= 0 && edgeId < encoded.length && encoded[edgeId] != null;
+	}
+
+	/**
+	 * One more than the highest edge id in the store.
+	 */
+	public int getIdLimit()
+	{
+		return encoded.length;
+	}
+
+	/**
+	 * First and last point of an edge as lat, lon, lat, lon in 1e-5 degrees, or
+	 * null if the edge is unknown.
+	 */
+	public int[] getEnds(int edgeId)
+	{
+		if(!hasEdge(edgeId))
+			return null;
+
+		return Arrays.copyOfRange(ends, edgeId * 4, edgeId * 4 + 4);
+	}
+
+	/**
+	 * Encoded polyline for a single edge, or null if the edge is unknown.
+	 */
+	public String getPolyline(int edgeId)
+	{
+		if(!hasEdge(edgeId))
+			return null;
+
+		return new String(encoded[edgeId], ASCII);
+	}
+
+	/**
+	 * Points of an edge as lat, lon pairs in 1e-5 degrees, or null if the edge
+	 * is unknown.
+	 */
+	public int[] getPoints(int edgeId)
+	{
+		if(!hasEdge(edgeId))
+			return null;
+
+		byte[] polyline = encoded[edgeId];
+
+		int[] points = new int[polyline.length];
+		int count = 0;
+
+		int value = 0;
+		int shift = 0;
+
+		for(byte b : polyline)
+		{
+			int chunk = b - 63;
+
+			value |= (chunk & 0x1f) << shift;
+			shift += 5;
+
+			if(chunk < 0x20)
+			{
+				int delta = (value & 1) != 0 ? ~(value >> 1) : value >> 1;
+
+				// deltas alternate lat, lon
+				points[count] = (count >= 2 ? points[count - 2] : 0) + delta;
+				count++;
+
+				value = 0;
+				shift = 0;
+			}
+		}
+
+		return Arrays.copyOf(points, count);
+	}
+
+	/**
+	 * One polyline running through the given edges in order. Where an edge
+	 * starts at the point the previous one ended, the shared point is written
+	 * once; otherwise the path jumps straight to the next edge's start.
+	 */
+	public String getMerged(int[] edgeIds)
+	{
+		StringBuilder merged = new StringBuilder();
+
+		boolean started = false;
+		int lat = 0;
+		int lon = 0;
+
+		for(int edgeId : edgeIds)
+		{
+			if(!hasEdge(edgeId))
+				continue;
+
+			byte[] polyline = encoded[edgeId];
+
+			int firstLat = ends[edgeId * 4];
+			int firstLon = ends[edgeId * 4 + 1];
+
+			// the first point is encoded relative to 0,0 so it has to be redone against where we are
+			if(!started || firstLat != lat || firstLon != lon)
+				merged.append(PolylineEncoder.encodeSignedNumber(firstLat - lat)).append(PolylineEncoder.encodeSignedNumber(firstLon - lon));
+
+			for(int i = headLength[edgeId]; i < polyline.length; i++)
+				merged.append((char)polyline[i]);
+
+			lat = ends[edgeId * 4 + 2];
+			lon = ends[edgeId * 4 + 3];
+			started = true;
+		}
+
+		return merged.toString();
+	}
+
+	static int toE5(double coordinate)
+	{
+		// same rounding as PolylineEncoder
+		return (int)Math.floor(coordinate * 1e5);
+	}
+
+	/**
+	 * Encodes edges one at a time; ids don't need to be added in order.
+	 */
+	public static class Builder {
+
+		byte[][] encoded = new byte[1024][];
+		int[] headLength = new int[1024];
+		int[] ends = new int[1024 * 4];
+
+		int maxId = -1;
+
+		public void add(int edgeId, Geometry geom)
+		{
+			if(edgeId < 0 || geom == null || geom.isEmpty())
+				return;
+
+			if(edgeId >= encoded.length)
+			{
+				int length = Math.max(edgeId + 1, encoded.length * 2);
+
+				encoded = Arrays.copyOf(encoded, length);
+				headLength = Arrays.copyOf(headLength, length);
+				ends = Arrays.copyOf(ends, length * 4);
+			}
+
+			Coordinate[] coords = geom.getCoordinates();
+
+			Coordinate first = coords[0];
+			Coordinate last = coords[coords.length - 1];
+
+			encoded[edgeId] = PolylineEncoder.createEncodings(geom).getPoints().getBytes(ASCII);
+
+			headLength[edgeId] = PolylineEncoder.encodeSignedNumber(toE5(first.y)).length() + PolylineEncoder.encodeSignedNumber(toE5(first.x)).length();
+
+			ends[edgeId * 4] = toE5(first.y);
+			ends[edgeId * 4 + 1] = toE5(first.x);
+			ends[edgeId * 4 + 2] = toE5(last.y);
+			ends[edgeId * 4 + 3] = toE5(last.x);
+
+			maxId = Math.max(maxId, edgeId);
+		}
+
+		public EdgePolylines build()
+		{
+			return new EdgePolylines(Arrays.copyOf(encoded, maxId + 1), Arrays.copyOf(headLength, maxId + 1), Arrays.copyOf(ends, (maxId + 1) * 4));
+		}
+	}
+
+	/**
+	 * Encodes every edge in the graph.
+	 */
+	public static EdgePolylines build(TrafficGraph graph)
+	{
+		Builder builder = new Builder();
+
+		int gap = 0;
+
+		for(int edgeId = 0; gap < MAX_ID_GAP; edgeId++)
+		{
+			TrafficEdge edge = null;
+
+			try
+			{
+				edge = graph.getTrafficEdge(edgeId);
+			}
+			catch(RuntimeException e)
+			{
+				// treated as a missing id
+			}
+
+			Geometry geom = edge != null ? edge.getGeometry() : null;
+
+			if(geom == null || geom.isEmpty())
+			{
+				gap++;
+				continue;
+			}
+
+			gap = 0;
+
+			builder.add(edgeId, geom);
+		}
+
+		return builder.build();
+	}
+
+	/**
+	 * Reads the store from graphPath if it's there and current, otherwise
+	 * builds it from the graph and, if persist is set, writes it out.
+	 */
+	public static EdgePolylines load(TrafficGraph graph, String graphPath, boolean persist)
+	{
+		long start = System.currentTimeMillis();
+
+		File dir = graphPath != null ? new File(graphPath) : null;
+		File file = dir != null && dir.isDirectory() ? new File(dir, FILE_NAME) : null;
+
+		long stamp = file != null ? graphStamp(dir) : 0;
+
+		if(persist && file != null && file.exists())
+		{
+			try
+			{
+				EdgePolylines polylines = read(file, stamp);
+
+				if(polylines != null)
+				{
+					Logger.info("Edge polylines read from " + file + ": " + polylines.edgeCount + " edges in " + (System.currentTimeMillis() - start) + "ms");
+					return polylines;
+				}
+
+				Logger.info("Edge polylines in " + file + " are out of date, rebuilding");
+			}
+			catch(IOException e)
+			{
+				Logger.warn("Could not read edge polylines from " + file + ": " + e);
+			}
+		}
+
+		EdgePolylines polylines = build(graph);
+
+		Logger.info("Edge polylines built: " + polylines.edgeCount + " edges, " + polylines.bytes + " bytes in " + (System.currentTimeMillis() - start) + "ms");
+
+		if(persist && file != null)
+		{
+			try
+			{
+				polylines.write(file, stamp);
+			}
+			catch(IOException e)
+			{
+				Logger.warn("Could not write edge polylines to " + file + ": " + e);
+			}
+		}
+
+		return polylines;
+	}
+
+	/**
+	 * Latest modification time of the graph files, not counting our own.
+	 */
+	static long graphStamp(File dir)
+	{
+		long stamp = 0;
+
+		File[] files = dir.listFiles();
+
+		if(files != null)
+		{
+			for(File f : files)
+			{
+				if(!f.getName().startsWith(FILE_NAME))
+					stamp = Math.max(stamp, f.lastModified());
+			}
+		}
+
+		return stamp;
+	}
+
+	void write(File file, long stamp) throws IOException
+	{
+		// write next to it and rename, so a crash never leaves a half written store
+		File tmp = new File(file.getPath() + ".tmp");
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+
+		try
+		{
+			out.writeInt(FILE_VERSION);
+			out.writeLong(stamp);
+			out.writeInt(encoded.length);
+			out.writeInt(edgeCount);
+
+			for(int edgeId = 0; edgeId < encoded.length; edgeId++)
+			{
+				if(encoded[edgeId] == null)
+					continue;
+
+				out.writeInt(edgeId);
+				out.writeInt(headLength[edgeId]);
+
+				for(int i = 0; i < 4; i++)
+					out.writeInt(ends[edgeId * 4 + i]);
+
+				out.writeInt(encoded[edgeId].length);
+				out.write(encoded[edgeId]);
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+
+		if(file.exists() && !file.delete())
+			throw new IOException("could not replace " + file);
+
+		if(!tmp.renameTo(file))
+			throw new IOException("could not rename " + tmp + " to " + file);
+	}
+
+	/**
+	 * The stored polylines, or null if they were written for a different
+	 * version of the graph or of the file format.
+	 */
+	static EdgePolylines read(File file, long stamp) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+		try
+		{
+			if(in.readInt() != FILE_VERSION || in.readLong() != stamp)
+				return null;
+
+			int length = in.readInt();
+			int count = in.readInt();
+
+			byte[][] encoded = new byte[length][];
+			int[] headLength = new int[length];
+			int[] ends = new int[length * 4];
+
+			for(int n = 0; n < count; n++)
+			{
+				int edgeId = in.readInt();
+
+				if(edgeId < 0 || edgeId >= length)
+					throw new IOException("edge id " + edgeId + " out of range");
+
+				headLength[edgeId] = in.readInt();
+
+				for(int i = 0; i < 4; i++)
+					ends[edgeId * 4 + i] = in.readInt();
+
+				encoded[edgeId] = new byte[in.readInt()];
+				in.readFully(encoded[edgeId]);
+			}
+
+			return new EdgePolylines(encoded, headLength, ends);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,335 @@
+package utils;
+
+import gnu.trove.list.array.TIntArrayList;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import models.StatsEdge;
+
+import play.Logger;
+import play.Play;
+import play.db.DB;
+
+import com.conveyal.traffic.graph.TrafficGraph;
+
+/**
+ * Running speed statistics per street edge, fed by edge traversals as they
+ * are matched. Each edge keeps its sample count, mean and variance (Welford)
+ * and a recent speed that forgets old samples exponentially, over
+ * recentMinutes. flush() writes the edges that changed since the last flush
+ * to statsedge in one batch and publishes their recent speeds to the
+ * velocity cache.
+ */
+public class EdgeSpeedStats implements MapMatcher.Listener {
+
+	static double recentMs = Double.parseDouble(Play.configuration.getProperty("application.edgeSpeeds.recentMinutes", "15")) * 60 * 1000;
+
+	// meters/second; anything outside this is a matching or timing error
+	static final double MIN_SPEED = 0.1;
+	static final double MAX_SPEED = 40.0;
+
+	/**
+	 * One edge's statistics as of a flush.
+	 */
+	public static class Row {
+
+		public final int edgeId;
+		public final long count;
+		public final double mean;
+		public final double variance;
+		public final double recent;
+
+		public Row(int edgeId, long count, double mean, double variance, double recent)
+		{
+			this.edgeId = edgeId;
+			this.count = count;
+			this.mean = mean;
+			this.variance = variance;
+			this.recent = recent;
+		}
+	}
+
+	// indexed by edge id, grown as needed; guarded by this
+	long[] count = new long[0];
+	double[] mean = new double[0];
+	double[] m2 = new double[0];
+
+	// recent speed, the weight behind it and the time of its latest sample
+	double[] recent = new double[0];
+	double[] recentWeight = new double[0];
+	long[] recentTime = new long[0];
+
+	boolean[] dirty = new boolean[0];
+	TIntArrayList changed = new TIntArrayList();
+
+	long samples = 0;
+	long rejected = 0;
+	long flushes = 0;
+	long failures = 0;
+	long lastFlushMs = 0;
+	int lastFlushEdges = 0;
+
+	public void traversed(MapMatcher.Traversal traversal)
+	{
+		record(traversal.edgeId, traversal.getSpeed(), traversal.exited);
+	}
+
+	/**
+	 * Adds one speed sample (meters/second) for an edge, observed at time
+	 * (ms). Samples may arrive somewhat out of order.
+	 */
+	public synchronized void record(int edgeId, double speed, long time)
+	{
+		if(edgeId < 0 || !(speed >= MIN_SPEED && speed <= MAX_SPEED))
+		{
+			rejected++;
+			return;
+		}
+
+		ensure(edgeId);
+
+		samples++;
+
+		long n = ++count[edgeId];
+		double delta = speed - mean[edgeId];
+
+		mean[edgeId] += delta / n;
+		m2[edgeId] += delta * (speed - mean[edgeId]);
+
+		if(recentWeight[edgeId] == 0)
+		{
+			recent[edgeId] = speed;
+			recentWeight[edgeId] = 1;
+			recentTime[edgeId] = time;
+		}
+		else if(time >= recentTime[edgeId])
+		{
+			// age what's there, then add the new sample at full weight
+			double weight = recentWeight[edgeId] * Math.exp(-(time - recentTime[edgeId]) / recentMs);
+
+			recent[edgeId] = (recent[edgeId] * weight + speed) / (weight + 1);
+			recentWeight[edgeId] = weight + 1;
+			recentTime[edgeId] = time;
+		}
+		else
+		{
+			// a late sample counts for what it would have been worth by now
+			double weight = Math.exp(-(recentTime[edgeId] - time) / recentMs);
+
+			recent[edgeId] = (recent[edgeId] * recentWeight[edgeId] + speed * weight) / (recentWeight[edgeId] + weight);
+			recentWeight[edgeId] += weight;
+		}
+
+		if(!dirty[edgeId])
+		{
+			dirty[edgeId] = true;
+			changed.add(edgeId);
+		}
+	}
+
+	void ensure(int edgeId)
+	{
+		if(edgeId < count.length)
+			return;
+
+		int length = Math.max(edgeId + 1, count.length * 2);
+
+		count = Arrays.copyOf(count, length);
+		mean = Arrays.copyOf(mean, length);
+		m2 = Arrays.copyOf(m2, length);
+		recent = Arrays.copyOf(recent, length);
+		recentWeight = Arrays.copyOf(recentWeight, length);
+		recentTime = Arrays.copyOf(recentTime, length);
+		dirty = Arrays.copyOf(dirty, length);
+	}
+
+	public synchronized Row getRow(int edgeId)
+	{
+		if(edgeId < 0 || edgeId >= count.length || count[edgeId] == 0)
+			return null;
+
+		return row(edgeId);
+	}
+
+	Row row(int edgeId)
+	{
+		long n = count[edgeId];
+
+		return new Row(edgeId, n, mean[edgeId], n > 1 ? m2[edgeId] / (n - 1) : 0.0, recentWeight[edgeId] > 0 ? recent[edgeId] : mean[edgeId]);
+	}
+
+	/**
+	 * Rows for every edge that has changed since the last call, and clears
+	 * the changes.
+	 */
+	public synchronized List<Row> takeChanged()
+	{
+		List<Row> rows = new ArrayList<Row>(changed.size());
+
+		for(int i = 0; i < changed.size(); i++)
+		{
+			int edgeId = changed.get(i);
+
+			dirty[edgeId] = false;
+			rows.add(row(edgeId));
+		}
+
+		changed.resetQuick();
+
+		return rows;
+	}
+
+	// puts rows back as changed after a failed write, unless newer samples already have
+	synchronized void restore(List<Row> rows)
+	{
+		for(Row row : rows)
+		{
+			if(!dirty[row.edgeId])
+			{
+				dirty[row.edgeId] = true;
+				changed.add(row.edgeId);
+			}
+		}
+	}
+
+	/**
+	 * Seeds count, mean and variance from what statsedge already holds, so
+	 * totals carry over restarts. Recent speeds start over.
+	 */
+	public void load()
+	{
+		Connection conn = null;
+
+		try
+		{
+			conn = DB.datasource.getConnection();
+
+			List<Row> rows = StatsEdge.getEdgeStats(conn);
+
+			synchronized(this)
+			{
+				for(Row row : rows)
+				{
+					if(row.edgeId < 0 || row.count <= 0)
+						continue;
+
+					ensure(row.edgeId);
+
+					// don't clobber samples that came in while loading
+					if(count[row.edgeId] > 0)
+						continue;
+
+					count[row.edgeId] = row.count;
+					mean[row.edgeId] = row.mean;
+					m2[row.edgeId] = row.variance * (row.count - 1);
+				}
+			}
+
+			Logger.info("Edge speed statistics loaded for " + rows.size() + " edges");
+		}
+		catch(SQLException e)
+		{
+			Logger.error("Could not load edge speed statistics: " + e);
+		}
+		finally
+		{
+			Jdbc.closeQuietly(conn);
+		}
+	}
+
+	/**
+	 * Upserts the changed edges into statsedge in one transaction and
+	 * publishes their recent speeds to velocities. Returns whether anything
+	 * changed. Called by the EdgeSpeedFlush job and on shutdown; rows are
+	 * kept for the next flush if the write fails.
+	 */
+	public boolean flush(TrafficGraph graph, StreetVelocityCache velocities)
+	{
+		List<Row> rows = takeChanged();
+
+		if(rows.isEmpty())
+			return false;
+
+		long start = System.currentTimeMillis();
+
+		Connection conn = null;
+
+		try
+		{
+			conn = DB.datasource.getConnection();
+			conn.setAutoCommit(false);
+
+			StatsEdge.upsertEdgeStats(conn, rows, graph);
+
+			conn.commit();
+		}
+		catch(SQLException e)
+		{
+			Logger.error("Could not flush speed statistics for " + rows.size() + " edges: " + e);
+
+			Jdbc.rollbackQuietly(conn);
+
+			restore(rows);
+
+			synchronized(this)
+			{
+				failures++;
+			}
+		}
+		finally
+		{
+			Jdbc.closeQuietly(conn);
+		}
+
+		// routing gets the new speeds whether or not they made it to the database
+		int[] edgeIds = new int[rows.size()];
+		double[] speeds = new double[rows.size()];
+
+		for(int i = 0; i < rows.size(); i++)
+		{
+			edgeIds[i] = rows.get(i).edgeId;
+			speeds[i] = rows.get(i).recent;
+		}
+
+		velocities.update(edgeIds, speeds);
+
+		synchronized(this)
+		{
+			flushes++;
+			lastFlushEdges = rows.size();
+			lastFlushMs = System.currentTimeMillis() - start;
+		}
+
+		return true;
+	}
+
+	public synchronized Map<String, Object> getStats()
+	{
+		int edges = 0;
+
+		for(long n : count)
+		{
+			if(n > 0)
+				edges++;
+		}
+
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+
+		stats.put("edges", edges);
+		stats.put("samples", samples);
+		stats.put("rejected", rejected);
+		stats.put("pending", changed.size());
+		stats.put("flushes", flushes);
+		stats.put("failures", failures);
+		stats.put("lastFlushEdges", lastFlushEdges);
+		stats.put("lastFlushMs", lastFlushMs);
+
+		return stats;
+	}
+}
@@ -0,0 +1,246 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import models.Message;
+import models.MessageData;
+import models.Phone;
+
+import play.Logger;
+
+/**
+ * Live state of every phone as the dispatcher dashboards see it: labels,
+ * last position, panic flag and unread messages. Kept current by the ingest
+ * path (PositionBuffer), the panic API and the Phone/Message lifecycle
+ * callbacks, so Taxi.activeTaxis and Taxi.taxis are served from memory.
+ */
+public class FleetState {
+
+	public static class PhoneState {
+
+		public final Long phoneId;
+
+		public volatile PhoneRegistry.Entry phone;
+
+		public volatile PositionBuffer.Position position;
+
+		public volatile Boolean panic;
+
+		// replaced, never modified, so readers can iterate without locking
+		public volatile List<MessageData> unread = Collections.emptyList();
+
+		PhoneState(Long phoneId)
+		{
+			this.phoneId = phoneId;
+		}
+
+		public boolean hasPosition()
+		{
+			PositionBuffer.Position current = position;
+
+			return current != null && current.lat != null && current.lon != null;
+		}
+
+		public boolean isActive(Date since)
+		{
+			PositionBuffer.Position current = position;
+
+			return current != null && current.lastUpdate != null && !current.lastUpdate.before(since);
+		}
+	}
+
+	static ConcurrentHashMap<Long, PhoneState> phones = new ConcurrentHashMap<Long, PhoneState>();
+
+	static PhoneState state(Long phoneId)
+	{
+		PhoneState state = phones.get(phoneId);
+
+		if(state == null)
+		{
+			state = new PhoneState(phoneId);
+			state.phone = PhoneRegistry.byId.get(phoneId);
+
+			PhoneState previous = phones.putIfAbsent(phoneId, state);
+
+			if(previous != null)
+				state = previous;
+		}
+
+		return state;
+	}
+
+	public static PhoneState get(Long phoneId)
+	{
+		return phones.get(phoneId);
+	}
+
+	/**
+	 * Takes labels and panic from a saved phone. Its position is only used if
+	 * it is newer than the one already held, since the row lags PositionBuffer.
+	 */
+	public static void update(Phone phone)
+	{
+		if(phone.id == null)
+			return;
+
+		PhoneState state = state(phone.id);
+
+		state.phone = PhoneRegistry.update(phone);
+		state.panic = phone.panic;
+
+		synchronized(state)
+		{
+			PositionBuffer.Position current = state.position;
+
+			if(phone.lastUpdate != null && (current == null || current.lastUpdate.before(phone.lastUpdate)))
+				state.position = new PositionBuffer.Position(phone.id, phone.recentLat, phone.recentLon, phone.lastUpdate);
+		}
+	}
+
+	/**
+	 * Takes a registry entry relabelled after an operator, driver or vehicle
+	 * edit.
+	 */
+	static void relabel(Long phoneId)
+	{
+		PhoneState state = phones.get(phoneId);
+
+		// whatever the registry holds now, in case the phone was saved meanwhile
+		if(state != null)
+			state.phone = PhoneRegistry.byId.get(phoneId);
+	}
+
+	public static void remove(Phone phone)
+	{
+		if(phone.id != null)
+			phones.remove(phone.id);
+	}
+
+	public static void updatePosition(PositionBuffer.Position position)
+	{
+		PhoneState state = state(position.phoneId);
+
+		synchronized(state)
+		{
+			state.position = position;
+		}
+	}
+
+	public static void setPanic(Long phoneId, Boolean panic)
+	{
+		state(phoneId).panic = panic;
+	}
+
+	/**
+	 * Adds, replaces or drops message in its sender's unread list depending on
+	 * whether it has been read.
+	 */
+	public static void updateMessage(Message message)
+	{
+		if(message.fromPhone == null || message.id == null)
+			return;
+
+		PhoneState state = state(message.fromPhone.id);
+
+		synchronized(state)
+		{
+			List<MessageData> unread = withoutMessage(state.unread, message.id);
+
+			if(message.read == null || !message.read)
+				unread.add(new MessageData(message));
+
+			state.unread = unread;
+		}
+	}
+
+	public static void removeMessage(Message message)
+	{
+		if(message.fromPhone == null || message.id == null)
+			return;
+
+		PhoneState state = phones.get(message.fromPhone.id);
+
+		if(state == null)
+			return;
+
+		synchronized(state)
+		{
+			state.unread = withoutMessage(state.unread, message.id);
+		}
+	}
+
+	static List<MessageData> withoutMessage(List<MessageData> messages, Long messageId)
+	{
+		List<MessageData> copy = new ArrayList<MessageData>(messages.size() + 1);
+
+		for(MessageData data : messages)
+		{
+			if(!messageId.equals(data.id))
+				copy.add(data);
+		}
+
+		return copy;
+	}
+
+	/**
+	 * Phones with a known position, in id order. operatorId limits the view to
+	 * one operator's phones, activeSince to phones seen since then, and
+	 * withMessages to phones with unread messages; null/false means no limit.
+	 */
+	public static List<PhoneState> list(Long operatorId, Date activeSince, boolean withMessages)
+	{
+		List<PhoneState> results = new ArrayList<PhoneState>();
+
+		for(PhoneState state : phones.values())
+		{
+			PhoneRegistry.Entry phone = state.phone;
+
+			if(phone == null || !state.hasPosition())
+				continue;
+
+			if(operatorId != null && !operatorId.equals(phone.operatorId))
+				continue;
+
+			if(activeSince != null && !state.isActive(activeSince))
+				continue;
+
+			if(withMessages && state.unread.isEmpty())
+				continue;
+
+			results.add(state);
+		}
+
+		Collections.sort(results, new Comparator<PhoneState>() {
+			public int compare(PhoneState a, PhoneState b)
+			{
+				return a.phoneId.compareTo(b.phoneId);
+			}
+		});
+
+		return results;
+	}
+
+	/**
+	 * Loads every phone, filling PhoneRegistry on the way, and all unread
+	 * messages. Called at startup from Bootstrap.
+	 */
+	public static void warm()
+	{
+		List<Phone> phoneList = Phone.findAll();
+
+		for(Phone phone : phoneList)
+			update(phone);
+
+		List<Message> messages = Message.find("read = false and fromPhone is not null order by timestamp").fetch();
+
+		for(Message message : messages)
+			updateMessage(message);
+
+		Logger.info("Fleet state warmed with " + phoneList.size() + " phones, " + messages.size() + " unread messages");
+	}
+}
@@ -36,6 +36,9 @@ import org.opengis.referencing.operation.NoninvertibleTransformException;
 import org.opengis.referencing.operation.TransformException;
 
  import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import play.Play;
 
 import com.conveyal.traffic.graph.utils.ProjectedCoordinate;
  import com.google.common.base.Preconditions;
@@ -51,7 +54,10 @@ import com.vividsolutions.jts.geom.LineString;
    public static double RADIANS = 2 * Math.PI;
    
    
-   public static MathTransform recentMathTransform = null;
+   // UTM transforms by EPSG code; [0] is lat/lon to UTM, [1] its inverse.
+   // Building one through the EPSG factory is expensive, so each is made once.
+   static ConcurrentHashMap<Integer, MathTransform[]> utmTransforms = new ConcurrentHashMap<Integer, MathTransform[]>();
+   
    public static GeometryFactory geometryFactory = new GeometryFactory(new PrecisionModel(),4326);
    public static GeometryFactory projectedGeometryFactory = new GeometryFactory(new PrecisionModel());
 	 
@@ -99,7 +105,7 @@ import com.vividsolutions.jts.geom.LineString;
      final Coordinate to = new Coordinate();
      final Coordinate yx = new Coordinate(xy.y, xy.x);
      try {
-     JTS.transform(yx, to, transform.inverse());
+     JTS.transform(yx, to, getInverseTransform(transform));
      } catch (final TransformException e) {
          e.printStackTrace();
        }
@@ -188,6 +194,65 @@ import com.vividsolutions.jts.geom.LineString;
 
    public static MathTransform getTransform(
      Coordinate refLatLon) {
+     return getTransform(getEPSGCodefromUTS(refLatLon));
+   }
+   
+   /**
+    * Returns the cached transform from WGS84 to the given UTM EPSG code, 
+    * creating it on first use.
+    */
+   public static MathTransform getTransform(int epsgCode) {
+     final MathTransform[] transforms = getUtmTransforms(epsgCode);
+     
+     return transforms != null ? transforms[0] : null;
+   }
+   
+   /**
+    * Returns the inverse of a transform, without recomputing it for the 
+    * cached UTM transforms.
+    */
+   public static MathTransform getInverseTransform(MathTransform transform) 
+       throws NoninvertibleTransformException {
+     for (final MathTransform[] transforms : utmTransforms.values()) {
+       if (transforms[0] == transform)
+         return transforms[1];
+     }
+     
+     return transform.inverse();
+   }
+   
+   static MathTransform[] getUtmTransforms(int epsgCode) {
+     MathTransform[] transforms = utmTransforms.get(epsgCode);
+     
+     if (transforms == null) {
+       transforms = createUtmTransforms(epsgCode);
+       
+       if (transforms == null)
+         return null;
+       
+       final MathTransform[] previous = utmTransforms.putIfAbsent(epsgCode, transforms);
+       
+       if (previous != null)
+         transforms = previous;
+     }
+     
+     return transforms;
+   }
+   
+   /**
+    * Builds the transforms for the configured UTM zones up front, so the 
+    * first requests don't pay for the EPSG lookups. Called from Bootstrap.
+    */
+   public static void warmTransforms() {
+     final String zones = Play.configuration.getProperty("application.utmEpsgCodes", "32651");
+     
+     for (final String zone : zones.split(",")) {
+       if (!zone.trim().isEmpty())
+         getUtmTransforms(Integer.parseInt(zone.trim()));
+     }
+   }
+
+   static MathTransform[] createUtmTransforms(int epsgCode) {
      //    MathTransformFactory mtFactory = ReferencingFactoryFinder.getMathTransformFactory(null);
      //    ReferencingFactoryContainer factories = new ReferencingFactoryContainer(null);
 
@@ -203,7 +268,7 @@ import com.vividsolutions.jts.geom.LineString;
        final CoordinateReferenceSystem dataCRS = 
            crsAuthorityFactory
                .createCoordinateReferenceSystem("EPSG:" 
-                   + getEPSGCodefromUTS(refLatLon)); //EPSG:32618
+                   + epsgCode); //EPSG:32618
 
        //      parameters = mtFactory.getDefaultParameters("Transverse_Mercator");
        //
@@ -221,9 +286,9 @@ import com.vividsolutions.jts.geom.LineString;
        final MathTransform transform =
            CRS.findMathTransform(geoCRS, dataCRS);
        
-       GeoUtils.recentMathTransform = transform;
-       
-       return transform;
+       return new MathTransform[] { transform, transform.inverse() };
+     } catch (final NoninvertibleTransformException e) {
+       e.printStackTrace();
      } catch (final NoSuchIdentifierException e) {
        // TODO Auto-generated catch block
        e.printStackTrace();
@@ -275,15 +340,20 @@ import com.vividsolutions.jts.geom.LineString;
    public static Geometry invertGeom(Geometry orig,
      final MathTransform projection) {
      // TODO FIXME XXX: what about when the geoms cross zones?
+     final MathTransform inverse;
+     try {
+       inverse = getInverseTransform(projection);
+     } catch (NoninvertibleTransformException e) {
+       e.printStackTrace();
+       return (Geometry) orig.clone();
+     }
      final Geometry geom = (Geometry) orig.clone();
      geom.apply(new CoordinateFilter() {
        @Override
        public void filter(Coordinate coord) {
          final Coordinate to = new Coordinate();
          try {
-           JTS.transform(coord, to, projection.inverse());
-         } catch (NoninvertibleTransformException e) {
-           e.printStackTrace();
+           JTS.transform(coord, to, inverse);
          } catch (TransformException e) {
            e.printStackTrace();
          }
@@ -339,18 +409,17 @@ import com.vividsolutions.jts.geom.LineString;
 
    public static double endPointDistance(Geometry g)
 	{
-		ProjectedCoordinate p1 = GeoUtils.convertLatLonToEuclidean(g.getCoordinates()[0]);
-		ProjectedCoordinate p2 = GeoUtils.convertLatLonToEuclidean(g.getCoordinates()[g.getCoordinates().length -1]);
+		Coordinate[] coords = g.getCoordinates();
 		
-		return p1.distance(p2);
+		return endPointDistance(coords[0], coords[coords.length -1]);
 	}
    
+   	/**
+   	 * Great-circle distance in meters between two lat/lon (x = lat) coordinates.
+   	 */
    	public static double endPointDistance(Coordinate p1, Coordinate p2)
 	{
-		ProjectedCoordinate pc1 = GeoUtils.convertLatLonToEuclidean(p1);
-		ProjectedCoordinate pc2 = GeoUtils.convertLatLonToEuclidean(p2);
-		
-		return pc1.distance(pc2);
+		return Geodesy.haversine(p1.x, p1.y, p2.x, p2.y);
 	}
 	
 	public static ProjectedCoordinate calcPointAlongLine(ProjectedCoordinate p1, ProjectedCoordinate p2, double offset)
@@ -0,0 +1,75 @@
+package utils;
+
+/**
+ * Primitive great-circle distance and bearing on a spherical earth, for hot
+ * paths where GeoTools' ellipsoidal JTS.orthodromicDistance is too slow.
+ *
+ * All arguments are in decimal degrees and distances are in meters. Using the
+ * IUGG mean radius, the spherical model is within 0.6% of the WGS84 ellipsoid
+ * everywhere. The worst case is north-south travel near the equator, which
+ * includes Cebu at ~10N, where distances read up to ~0.55% long: about 5.5m
+ * per km, well below the GPS error of the phones feeding it.
+ */
+public class Geodesy {
+
+	/**
+	 * IUGG mean earth radius in meters.
+	 */
+	public static final double EARTH_RADIUS = 6371008.8;
+
+	static final double TO_RADIANS = Math.PI / 180.0;
+
+	/**
+	 * Haversine distance between two points. Numerically stable at all
+	 * distances, including a few meters.
+	 */
+	public static double haversine(double lat1, double lon1, double lat2, double lon2)
+	{
+		double phi1 = lat1 * TO_RADIANS;
+		double phi2 = lat2 * TO_RADIANS;
+
+		double sinHalfDLat = Math.sin((phi2 - phi1) / 2);
+		double sinHalfDLon = Math.sin((lon2 - lon1) * TO_RADIANS / 2);
+
+		double a = sinHalfDLat * sinHalfDLat + Math.cos(phi1) * Math.cos(phi2) * sinHalfDLon * sinHalfDLon;
+
+		// guard against a > 1 from rounding on antipodal points
+		if(a > 1.0)
+			a = 1.0;
+
+		return 2 * EARTH_RADIUS * Math.asin(Math.sqrt(a));
+	}
+
+	/**
+	 * Equirectangular approximation: a flat projection around the mean
+	 * latitude, using one cosine and no inverse trig. Relative to haversine, the
+	 * extra error grows with the square of the distance. It is under 0.01% up
+	 * to 50km at low latitudes, so it is fine for city-scale hops and
+	 * consecutive GPS fixes but not for long distances.
+	 */
+	public static double equirectangular(double lat1, double lon1, double lat2, double lon2)
+	{
+		double x = (lon2 - lon1) * TO_RADIANS * Math.cos((lat1 + lat2) / 2 * TO_RADIANS);
+		double y = (lat2 - lat1) * TO_RADIANS;
+
+		return EARTH_RADIUS * Math.sqrt(x * x + y * y);
+	}
+
+	/**
+	 * Initial great-circle bearing from point 1 to point 2, in degrees clockwise
+	 * from north, [0, 360).
+	 */
+	public static double bearing(double lat1, double lon1, double lat2, double lon2)
+	{
+		double phi1 = lat1 * TO_RADIANS;
+		double phi2 = lat2 * TO_RADIANS;
+		double dLon = (lon2 - lon1) * TO_RADIANS;
+
+		double y = Math.sin(dLon) * Math.cos(phi2);
+		double x = Math.cos(phi1) * Math.sin(phi2) - Math.sin(phi1) * Math.cos(phi2) * Math.cos(dLon);
+
+		double degrees = Math.atan2(y, x) / TO_RADIANS;
+
+		return degrees < 0 ? degrees + 360.0 : degrees;
+	}
+}
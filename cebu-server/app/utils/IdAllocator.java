@@ -0,0 +1,142 @@
+package utils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import play.Logger;
+import play.Play;
+import play.db.DB;
+
+/**
+ * Hands out ids for native inserts from blocks reserved in hibernate_sequence,
+ * so the hot insert paths don't need a NEXTVAL round trip per row.
+ *
+ * hibernate_sequence is shared with Hibernate's own generator and other server
+ * nodes, and stays at INCREMENT BY 1, so a block can't be reserved by bumping
+ * the sequence. Instead each refill pulls blockSize values in one query with
+ * generate_series; every value still comes from nextval, so ids are unique
+ * across nodes even though a block may not be contiguous.
+ *
+ * Unique is all they are. Each node works through a block of its own while
+ * the others work through theirs, so ids don't follow arrival order across
+ * nodes, and rows don't commit in id order even on one. Anything that needs
+ * a phone's updates in order sorts on received, with id only to break ties.
+ */
+public class IdAllocator {
+
+	static int blockSize = Integer.parseInt(Play.configuration.getProperty("application.idBlockSize", "1000"));
+
+	static IdAllocator hibernateSequence = new IdAllocator("hibernate_sequence", blockSize);
+
+	final String sequence;
+	final int size;
+
+	long[] block = new long[0];
+	int next = 0;
+
+	long refills = 0;
+
+	public IdAllocator(String sequence, int size)
+	{
+		this.sequence = sequence;
+		this.size = size;
+	}
+
+	/**
+	 * Next id from the shared hibernate_sequence allocator, for the JPA
+	 * paths; throws IllegalStateException if no ids could be reserved.
+	 */
+	public static long nextId()
+	{
+		return hibernateSequence.next();
+	}
+
+	/**
+	 * Fills ids with values from the shared hibernate_sequence allocator.
+	 */
+	public static void nextIds(long[] ids) throws SQLException
+	{
+		hibernateSequence.next(ids);
+	}
+
+	public synchronized long next()
+	{
+		if(next >= block.length)
+		{
+			try
+			{
+				refill();
+			}
+			catch(SQLException e)
+			{
+				throw new IllegalStateException("Could not reserve ids from " + sequence, e);
+			}
+		}
+
+		return block[next++];
+	}
+
+	/**
+	 * Fills ids, reserving more blocks as needed. On failure the ids already
+	 * filled are simply not used again.
+	 */
+	public synchronized void next(long[] ids) throws SQLException
+	{
+		for(int i = 0; i < ids.length; i++)
+		{
+			if(next >= block.length)
+				refill();
+
+			ids[i] = block[next++];
+		}
+	}
+
+	public synchronized long getRefills()
+	{
+		return refills;
+	}
+
+	void refill() throws SQLException
+	{
+		long[] reserved = new long[size];
+
+		Connection conn = null;
+
+		try
+		{
+			conn = DB.datasource.getConnection();
+
+			PreparedStatement statement = conn.prepareStatement("SELECT NEXTVAL('" + sequence + "') FROM generate_series(1, ?);");
+			statement.setInt(1, size);
+
+			ResultSet results = statement.executeQuery();
+
+			int count = 0;
+
+			while(results.next() && count < size)
+				reserved[count++] = results.getLong(1);
+
+			results.close();
+			statement.close();
+
+			if(count < size)
+				throw new SQLException("Reserved " + count + " of " + size + " ids from " + sequence);
+		}
+		catch(SQLException e)
+		{
+			Logger.error("Could not reserve ids from " + sequence + ": " + e);
+
+			throw e;
+		}
+		finally
+		{
+			Jdbc.closeQuietly(conn);
+		}
+
+		block = reserved;
+		next = 0;
+		refills++;
+	}
+}
@@ -0,0 +1,400 @@
+package utils;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import models.LocationUpdate;
+
+import play.Logger;
+import play.Play;
+import play.db.DB;
+
+/**
+ * Bounded in-process queue between the location APIs and the locationupdate
+ * table. Request threads enqueue parsed rows and return immediately; writer
+ * threads drain the queue into JDBC batches of up to batchSize rows, waiting
+ * at most lingerMs for a batch to fill.
+ */
+public class IngestQueue {
+
+	static int queueCapacity = Integer.parseInt(Play.configuration.getProperty("application.ingest.queueCapacity", "50000"));
+	static int batchSize = Integer.parseInt(Play.configuration.getProperty("application.ingest.batchSize", "500"));
+	static long lingerMs = Long.parseLong(Play.configuration.getProperty("application.ingest.lingerMs", "250"));
+	static int writerCount = Integer.parseInt(Play.configuration.getProperty("application.ingest.writers", "2"));
+	static int bulkThreshold = Integer.parseInt(Play.configuration.getProperty("application.ingest.bulkThreshold", "100"));
+	static int retries = Integer.parseInt(Play.configuration.getProperty("application.ingest.retries", "4"));
+	static long retryMs = Long.parseLong(Play.configuration.getProperty("application.ingest.retryMs", "500"));
+	static int deadLetterCapacity = Integer.parseInt(Play.configuration.getProperty("application.ingest.deadLetterCapacity", "10000"));
+	static int deadLetterAttempts = Integer.parseInt(Play.configuration.getProperty("application.ingest.deadLetterAttempts", "5"));
+
+	static final long STOP_TIMEOUT_MS = 30000;
+
+	static BlockingQueue<IngestRecord> queue = new ArrayBlockingQueue<IngestRecord>(queueCapacity);
+
+	// rows that failed on their own after their batch ran out of retries
+	static BlockingQueue<IngestRecord> deadLetters = new ArrayBlockingQueue<IngestRecord>(deadLetterCapacity);
+
+	// held while checking for room and queuing, so a request's rows go in together or not at all
+	static final Object offerLock = new Object();
+
+	static List<Thread> writers = new ArrayList<Thread>();
+
+	static volatile boolean running = false;
+
+	static AtomicLong enqueued = new AtomicLong();
+	static AtomicLong rejected = new AtomicLong();
+	static AtomicLong written = new AtomicLong();
+	static AtomicLong failed = new AtomicLong();
+	static AtomicLong retried = new AtomicLong();
+	static AtomicLong deadLettered = new AtomicLong();
+	static AtomicLong dropped = new AtomicLong();
+	static AtomicLong batches = new AtomicLong();
+	static AtomicLong bulkBatches = new AtomicLong();
+	static AtomicLong totalBatchMs = new AtomicLong();
+
+	static volatile long lastBatchMs = 0;
+	static volatile long maxBatchMs = 0;
+
+	public static synchronized void start()
+	{
+		if(running)
+			return;
+
+		running = true;
+
+		for(int i = 0; i < writerCount; i++)
+		{
+			Thread writer = new Thread(new Writer(), "ingest-writer-" + i);
+			writer.setDaemon(true);
+			writer.start();
+
+			writers.add(writer);
+		}
+
+		Logger.info("Ingest queue started: " + writerCount + " writers, batch size " + batchSize + ", linger " + lingerMs + "ms");
+	}
+
+	/**
+	 * Stops accepting new work and blocks until the writers have flushed
+	 * everything already queued.
+	 */
+	public static synchronized void stop()
+	{
+		if(!running)
+			return;
+
+		running = false;
+
+		for(Thread writer : writers)
+		{
+			try
+			{
+				writer.join(STOP_TIMEOUT_MS);
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		writers.clear();
+
+		retryDeadLetters();
+
+		if(!deadLetters.isEmpty())
+			Logger.error("Ingest queue stopped with " + deadLetters.size() + " dead-lettered updates");
+
+		if(!queue.isEmpty())
+			Logger.error("Ingest queue stopped with " + queue.size() + " unwritten updates");
+		else
+			Logger.info("Ingest queue flushed and stopped");
+	}
+
+	public static boolean offer(IngestRecord record)
+	{
+		synchronized(offerLock)
+		{
+			if(queue.offer(record))
+			{
+				enqueued.incrementAndGet();
+				return true;
+			}
+		}
+
+		rejected.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Enqueues a whole request worth of rows. Returns false without queuing
+	 * anything if there isn't room for all of them, so callers can ask the
+	 * phone to resend instead of losing part of a batch.
+	 */
+	public static boolean offerAll(Collection<IngestRecord> records)
+	{
+		synchronized(offerLock)
+		{
+			// only the writers take from the queue meanwhile, which only makes more room
+			if(queue.remainingCapacity() >= records.size())
+			{
+				for(IngestRecord record : records)
+					queue.add(record);
+
+				enqueued.addAndGet(records.size());
+				return true;
+			}
+		}
+
+		rejected.addAndGet(records.size());
+		return false;
+	}
+
+	public static int getQueueDepth()
+	{
+		return queue.size();
+	}
+
+	public static Map<String, Object> getStats()
+	{
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+
+		long batchCount = batches.get();
+
+		stats.put("running", running);
+		stats.put("queueDepth", queue.size());
+		stats.put("queueCapacity", queueCapacity);
+		stats.put("enqueued", enqueued.get());
+		stats.put("rejected", rejected.get());
+		stats.put("written", written.get());
+		stats.put("failed", failed.get());
+		stats.put("retried", retried.get());
+		stats.put("deadLettered", deadLettered.get());
+		stats.put("deadLetterDepth", deadLetters.size());
+		stats.put("dropped", dropped.get());
+		stats.put("batches", batchCount);
+		stats.put("bulkBatches", bulkBatches.get());
+		stats.put("lastBatchMs", lastBatchMs);
+		stats.put("maxBatchMs", maxBatchMs);
+		stats.put("meanBatchMs", batchCount > 0 ? totalBatchMs.get() / batchCount : 0);
+
+		return stats;
+	}
+
+	/**
+	 * Writes a batch, retrying with backoff. If it still fails the rows are
+	 * written one at a time, so one bad row doesn't sink the others, and the
+	 * rows that fail alone go to the dead-letter queue for retryDeadLetters().
+	 * The phones were told the rows were accepted, so nothing is dropped
+	 * until it has failed deadLetterAttempts times on its own.
+	 */
+	static void writeBatch(List<IngestRecord> batch) throws InterruptedException
+	{
+		long start = System.currentTimeMillis();
+
+		long delay = retryMs;
+
+		for(int attempt = 0; ; attempt++)
+		{
+			if(insert(batch))
+				break;
+
+			if(attempt >= retries)
+			{
+				Logger.error("Ingest batch of " + batch.size() + " updates failed " + (attempt + 1) + " times, writing rows singly");
+
+				for(IngestRecord record : batch)
+				{
+					if(!insert(Collections.singletonList(record)))
+						deadLetter(record);
+				}
+
+				break;
+			}
+
+			retried.incrementAndGet();
+
+			Thread.sleep(delay);
+			delay *= 2;
+		}
+
+		long elapsed = System.currentTimeMillis() - start;
+
+		batches.incrementAndGet();
+		totalBatchMs.addAndGet(elapsed);
+		lastBatchMs = elapsed;
+
+		if(elapsed > maxBatchMs)
+			maxBatchMs = elapsed;
+	}
+
+	static void deadLetter(IngestRecord record)
+	{
+		record.attempts++;
+
+		if(record.attempts < deadLetterAttempts && deadLetters.offer(record))
+		{
+			deadLettered.incrementAndGet();
+			return;
+		}
+
+		dropped.incrementAndGet();
+
+		Logger.error("Dropped ingest row for " + record.imei + " received " + record.received + " after " + record.attempts + " failed writes");
+	}
+
+	/**
+	 * Retries each dead-lettered row once on its own. Run periodically by
+	 * IngestRetry and at stop().
+	 */
+	public static void retryDeadLetters()
+	{
+		List<IngestRecord> rows = new ArrayList<IngestRecord>();
+
+		deadLetters.drainTo(rows);
+
+		int recovered = 0;
+
+		for(IngestRecord record : rows)
+		{
+			if(insert(Collections.singletonList(record)))
+				recovered++;
+			else
+				deadLetter(record);
+		}
+
+		if(!rows.isEmpty())
+			Logger.info("Retried " + rows.size() + " dead-lettered ingest rows, " + recovered + " written");
+	}
+
+	/**
+	 * One attempt at writing rows in a single transaction. Returns false,
+	 * having rolled back, if it failed.
+	 */
+	static boolean insert(List<IngestRecord> rows)
+	{
+		Connection conn = null;
+
+		try
+		{
+			conn = DB.datasource.getConnection();
+			conn.setAutoCommit(false);
+
+			// rows go straight into their partition; a batch normally falls in
+			// one, backlog uploads can span several
+			for(Map.Entry<String, List<IngestRecord>> group : LocationPartitions.split(rows).entrySet())
+			{
+				// large batches (backlog uploads after an outage) go through the
+				// single-statement bulk load instead of a row-per-statement batch
+				if(group.getValue().size() >= bulkThreshold)
+				{
+					LocationUpdate.bulkInsert(conn, group.getKey(), group.getValue());
+					bulkBatches.incrementAndGet();
+				}
+				else
+					LocationUpdate.batchInsert(conn, group.getKey(), group.getValue());
+			}
+
+			conn.commit();
+
+			written.addAndGet(rows.size());
+
+			// only once committed, so the status pages never show a row that was rolled back
+			RecentUpdates.add(rows);
+
+			return true;
+		}
+		catch(Exception e)
+		{
+			// not just SQLException: anything escaping here would lose a batch
+			// the phones were already told was accepted
+			failed.addAndGet(rows.size());
+
+			Logger.error("Could not write ingest batch of " + rows.size() + " updates: " + e);
+
+			if(e instanceof SQLException && ((SQLException)e).getNextException() != null)
+				Logger.error("Caused by: " + ((SQLException)e).getNextException());
+
+			Jdbc.rollbackQuietly(conn);
+
+			return false;
+		}
+		finally
+		{
+			Jdbc.closeQuietly(conn);
+		}
+	}
+
+	static class Writer implements Runnable {
+
+		public void run()
+		{
+			List<IngestRecord> batch = new ArrayList<IngestRecord>(batchSize);
+
+			// keep draining after stop() until the queue is empty
+			while(running || !queue.isEmpty())
+			{
+				try
+				{
+					IngestRecord first = queue.poll(lingerMs, TimeUnit.MILLISECONDS);
+
+					if(first == null)
+						continue;
+
+					batch.add(first);
+
+					long deadline = System.currentTimeMillis() + lingerMs;
+
+					while(batch.size() < batchSize)
+					{
+						queue.drainTo(batch, batchSize - batch.size());
+
+						long wait = deadline - System.currentTimeMillis();
+
+						if(batch.size() >= batchSize || wait <= 0)
+							break;
+
+						IngestRecord next = queue.poll(wait, TimeUnit.MILLISECONDS);
+
+						if(next == null)
+							break;
+
+						batch.add(next);
+					}
+
+					writeBatch(batch);
+				}
+				catch(InterruptedException e)
+				{
+					// one last try without backoff, anything left is dead-lettered for the next start
+					if(!batch.isEmpty() && !insert(batch))
+					{
+						for(IngestRecord record : batch)
+							deadLetter(record);
+					}
+
+					return;
+				}
+				catch(Exception e)
+				{
+					Logger.error("Ingest writer error: " + e);
+					e.printStackTrace();
+				}
+				finally
+				{
+					batch.clear();
+				}
+			}
+		}
+	}
+}
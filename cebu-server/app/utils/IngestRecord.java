@@ -0,0 +1,116 @@
+package utils;
+
+import java.util.Date;
+
+/**
+ * A single parsed locationupdate row waiting in the ingest queue. Fields map
+ * one-to-one onto locationupdate columns; null fields are written as NULL.
+ */
+public class IngestRecord {
+
+	// assigned by the insert
+	public long id;
+
+	// failed single-row writes, for the dead-letter queue
+	public int attempts;
+
+	public String imei;
+
+	public Date timestamp;
+	public Date adjustedTimestamp;
+
+	public Date sent;
+	public Date received;
+
+	public Double lat;
+	public Double lon;
+
+	public Double velocity;
+	public Double heading;
+	public Double gpsError;
+
+	public Boolean charging;
+	public Double battery;
+	public Boolean boot;
+	public Boolean shutdown;
+	public Boolean failedNetwork;
+	public Integer signal;
+
+	public Boolean websocket;
+
+	public boolean hasLocation()
+	{
+		return lat != null && lon != null;
+	}
+
+	/**
+	 * Location row as written by the protobuf/websocket path.
+	 */
+	public static IngestRecord fromObservation(Observation obs, Date original, Date received, Boolean websocket)
+	{
+		IngestRecord record = new IngestRecord();
+
+		record.imei = obs.getVehicleId();
+		record.timestamp = original;
+		record.adjustedTimestamp = obs.getTimestamp();
+		record.received = received;
+
+		record.lat = obs.getObsCoordsLatLon().y;
+		record.lon = obs.getObsCoordsLatLon().x;
+		record.velocity = obs.getVelocity();
+		record.heading = obs.getHeading();
+		record.gpsError = obs.getAccuracy();
+
+		record.websocket = websocket;
+
+		return record;
+	}
+
+	/**
+	 * Location row from the text protocol parser's primitive fields.
+	 */
+	public static IngestRecord fromParser(String imei, LocationLineParser parser)
+	{
+		IngestRecord record = new IngestRecord();
+
+		record.imei = imei;
+		record.timestamp = new Date(parser.time);
+
+		record.lat = parser.lat;
+		record.lon = parser.lon;
+		record.velocity = parser.velocity;
+		record.heading = parser.heading;
+		record.gpsError = parser.gpsError;
+
+		return record;
+	}
+
+	/**
+	 * Status-only row (no GPS fix) as written by the text location API.
+	 */
+	public static IngestRecord status(String imei, Boolean charging, Double battery, Date original, Date adjusted, Date sent, Date received, Boolean boot, Boolean shutdown, Boolean failedNetwork, Integer signal)
+	{
+		IngestRecord record = new IngestRecord();
+
+		record.imei = imei;
+		record.timestamp = original;
+		record.adjustedTimestamp = adjusted;
+
+		record.setStatus(charging, battery, sent, received, boot, shutdown, failedNetwork, signal);
+
+		return record;
+	}
+
+	public void setStatus(Boolean charging, Double battery, Date sent, Date received, Boolean boot, Boolean shutdown, Boolean failedNetwork, Integer signal)
+	{
+		this.sent = sent;
+		this.received = received;
+
+		this.charging = charging;
+		this.battery = battery;
+		this.boot = boot;
+		this.shutdown = shutdown;
+		this.failedNetwork = failedNetwork;
+		this.signal = signal;
+	}
+}
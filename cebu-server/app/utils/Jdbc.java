@@ -0,0 +1,68 @@
+package utils;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import play.Logger;
+
+/**
+ * Small helpers shared by the raw JDBC paths.
+ */
+public class Jdbc {
+
+	static final String UNIQUE_VIOLATION = "23505";
+
+	/**
+	 * True if e, or one of the exceptions chained to it, is a unique index
+	 * violation. Batch failures carry the statement's own error as the next
+	 * exception.
+	 */
+	public static boolean isUniqueViolation(SQLException e)
+	{
+		for(SQLException cause = e; cause != null; cause = cause.getNextException())
+		{
+			if(UNIQUE_VIOLATION.equals(cause.getSQLState()))
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Rolls back conn, if there is one, after a failure. Errors are ignored:
+	 * a connection that can't roll back is already broken and has nothing
+	 * left to undo.
+	 */
+	public static void rollbackQuietly(Connection conn)
+	{
+		if(conn == null)
+			return;
+
+		try
+		{
+			conn.rollback();
+		}
+		catch(SQLException e)
+		{
+		}
+	}
+
+	/**
+	 * Closes conn, if there is one, logging rather than throwing on failure
+	 * so it can't mask the error that got us to the finally block.
+	 */
+	public static void closeQuietly(Connection conn)
+	{
+		if(conn == null)
+			return;
+
+		try
+		{
+			conn.close();
+		}
+		catch(SQLException e)
+		{
+			Logger.warn("Could not close connection: " + e);
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package utils;
+
+/**
+ * Streaming parser for the text location protocol, one update per line:
+ *
+ *   20120430T133023,lat,lon,velocity,heading,gpsError
+ *
+ * Works directly over the request body bytes and exposes each line as
+ * primitive fields, so the hot path allocates no Strings, Dates or boxed
+ * numbers. Blank lines are skipped; anything else malformed raises a
+ * LocationParseException carrying the line and column.
+ */
+public class LocationLineParser {
+
+	static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	// mantissas up to 15 digits are exact in a double, so mantissa / 10^scale is correctly rounded
+	static final int MAX_FAST_DIGITS = 15;
+
+	final byte[] data;
+	final int end;
+
+	int pos;
+	int lineOffset;
+	int lineEnd;
+	int cursor;
+
+	public int line = 0;
+
+	public long time;
+	public double lat;
+	public double lon;
+	public double velocity;
+	public double heading;
+	public double gpsError;
+
+	public LocationLineParser(byte[] data)
+	{
+		this(data, 0, data.length);
+	}
+
+	public LocationLineParser(byte[] data, int offset, int length)
+	{
+		this.data = data;
+		this.pos = offset;
+		this.end = offset + length;
+	}
+
+	/**
+	 * Advances to the next non-blank line and parses it into the public
+	 * fields. Returns false once the input is exhausted.
+	 */
+	public boolean next() throws LocationParseException
+	{
+		while(pos < end)
+		{
+			line++;
+
+			lineOffset = pos;
+
+			int newline = pos;
+
+			while(newline < end && data[newline] != '\n')
+				newline++;
+
+			pos = newline + 1;
+
+			lineEnd = newline;
+
+			while(lineEnd > lineOffset && isSpace(data[lineEnd - 1]))
+				lineEnd--;
+
+			cursor = lineOffset;
+			skipSpaces();
+
+			if(cursor == lineEnd)
+				continue;
+
+			parseLine();
+
+			return true;
+		}
+
+		return false;
+	}
+
+	void parseLine() throws LocationParseException
+	{
+		if(lineEnd - cursor < LocationTimestamp.LENGTH)
+			throw error("expected timestamp yyyyMMddTHHmmss");
+
+		time = LocationTimestamp.decode(data, cursor);
+
+		if(time == Long.MIN_VALUE)
+			throw error("invalid timestamp, expected yyyyMMddTHHmmss");
+
+		cursor += LocationTimestamp.LENGTH;
+
+		lat = nextNumber();
+		lon = nextNumber();
+		velocity = nextNumber();
+		heading = nextNumber();
+		gpsError = nextNumber();
+
+		skipSpaces();
+
+		if(cursor != lineEnd)
+			throw error("expected 6 comma-separated fields");
+	}
+
+	double nextNumber() throws LocationParseException
+	{
+		skipSpaces();
+
+		if(cursor >= lineEnd || data[cursor] != ',')
+			throw error("expected 6 comma-separated fields");
+
+		cursor++;
+
+		skipSpaces();
+
+		return number();
+	}
+
+	double number() throws LocationParseException
+	{
+		int start = cursor;
+
+		boolean negative = false;
+
+		if(cursor < lineEnd && (data[cursor] == '-' || data[cursor] == '+'))
+		{
+			negative = data[cursor] == '-';
+			cursor++;
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int scale = 0;
+		boolean fraction = false;
+		boolean slow = false;
+
+		while(cursor < lineEnd)
+		{
+			byte c = data[cursor];
+
+			if(c >= '0' && c <= '9')
+			{
+				if(digits < MAX_FAST_DIGITS)
+					mantissa = mantissa * 10 + (c - '0');
+				else
+					slow = true;
+
+				digits++;
+
+				if(fraction)
+					scale++;
+			}
+			else if(c == '.' && !fraction)
+				fraction = true;
+			else if(c == 'e' || c == 'E' || c == '-' || c == '+')
+				slow = true;
+			else
+				break;
+
+			cursor++;
+		}
+
+		if(digits == 0)
+		{
+			cursor = start;
+			throw error("expected a number");
+		}
+
+		if(slow)
+			return slowNumber(start);
+
+		double value = mantissa / POWERS_OF_TEN[scale];
+
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Rare inputs (exponents, more than 15 significant digits) fall back to
+	 * Double.parseDouble.
+	 */
+	double slowNumber(int start) throws LocationParseException
+	{
+		try
+		{
+			return Double.parseDouble(new String(data, start, cursor - start, "ISO-8859-1"));
+		}
+		catch(Exception e)
+		{
+			cursor = start;
+			throw error("expected a number");
+		}
+	}
+
+	void skipSpaces()
+	{
+		while(cursor < lineEnd && isSpace(data[cursor]))
+			cursor++;
+	}
+
+	LocationParseException error(String message)
+	{
+		return new LocationParseException(line, cursor - lineOffset + 1, message);
+	}
+
+	static boolean isSpace(byte c)
+	{
+		return c == ' ' || c == '\t' || c == '\r';
+	}
+}
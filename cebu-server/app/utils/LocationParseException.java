@@ -0,0 +1,15 @@
+package utils;
+
+public class LocationParseException extends Exception {
+
+	public final int line;
+	public final int column;
+
+	public LocationParseException(int line, int column, String message)
+	{
+		super("line " + line + ", column " + column + ": " + message);
+		
+		this.line = line;
+		this.column = column;
+	}
+}
@@ -0,0 +1,679 @@
+package utils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import play.Logger;
+import play.Play;
+import play.db.DB;
+
+/**
+ * Splits locationupdate into daily or weekly child tables by received time.
+ *
+ * The children inherit from locationupdate with a CHECK constraint on their
+ * range, which works on every Postgres we run, and queries against the parent
+ * with a received bound only scan the children that can match (constraint
+ * exclusion). Partitions are created ahead of time and the ingest writers
+ * insert straight into them; rows for a range with no partition (and the
+ * legacy JPA inserts) land in the parent.
+ *
+ * Once a partition is older than retainDays it is summarised per phone and
+ * hour into locationupdaterollup and detached from the parent, in one
+ * transaction. Detached tables are kept as an archive for archiveDays, then
+ * dropped; 0 keeps them.
+ *
+ * Rows in the parent itself (history from before partitioning, and whatever
+ * landed there since) are worked off a few chunks per run, oldest first, into
+ * their partition, created if need be. Each chunk moves its rows with a
+ * single DELETE ... RETURNING, so a row inserted meanwhile is never lost.
+ * Rows older than retainDays go the same way, so once their period is
+ * emptied out of the parent the partition is rolled up and detached into the
+ * archive like any other; an expired partition is never detached while the
+ * parent still holds rows for it. Rows without a received time stay in the
+ * parent, which keeps its own received index so the hot queries don't scan
+ * it. The index and the migration only run from the background job, never
+ * from prepare() at startup.
+ */
+public class LocationPartitions {
+
+	static boolean enabled = Boolean.parseBoolean(Play.configuration.getProperty("application.partitions.enabled", "true"));
+	static boolean weekly = "week".equals(Play.configuration.getProperty("application.partitions.period", "day"));
+	static int aheadPeriods = Integer.parseInt(Play.configuration.getProperty("application.partitions.ahead", "3"));
+	static int retainDays = Integer.parseInt(Play.configuration.getProperty("application.partitions.retainDays", "60"));
+	static int archiveDays = Integer.parseInt(Play.configuration.getProperty("application.partitions.archiveDays", "365"));
+	static int hotDays = Integer.parseInt(Play.configuration.getProperty("application.partitions.hotDays", "7"));
+	static int parentChunks = Integer.parseInt(Play.configuration.getProperty("application.partitions.parentChunks", "20"));
+	static int parentChunkSize = Integer.parseInt(Play.configuration.getProperty("application.partitions.parentChunkSize", "5000"));
+
+	public static final String PARENT = "locationupdate";
+	static final String PREFIX = "locationupdate_";
+
+	static final long DAY_MS = 24 * 60 * 60 * 1000L;
+
+	/**
+	 * Attached partitions, sorted by start. Replaced whole after maintenance
+	 * so the writers can read it without locking.
+	 */
+	static class Ranges {
+
+		final String[] names;
+		final long[] starts;
+		final long[] ends;
+
+		Ranges(List<String> sorted)
+		{
+			names = sorted.toArray(new String[sorted.size()]);
+			starts = new long[names.length];
+			ends = new long[names.length];
+
+			for(int i = 0; i < names.length; i++)
+			{
+				starts[i] = start(names[i]).getTime();
+				ends[i] = next(new Date(starts[i])).getTime();
+			}
+		}
+
+		String table(long time)
+		{
+			int i = Arrays.binarySearch(starts, time);
+
+			if(i < 0)
+				i = -i - 2;
+
+			return i >= 0 && time < ends[i] ? names[i] : PARENT;
+		}
+	}
+
+	static volatile Ranges ranges = new Ranges(new ArrayList<String>());
+
+	static long runs = 0;
+	static long created = 0;
+	static long rolledUp = 0;
+	static long rollupRows = 0;
+	static long dropped = 0;
+	static long parentMoved = 0;
+	static long failures = 0;
+
+	static volatile long lastRunMs = 0;
+	static volatile Date lastRun = null;
+
+	/**
+	 * The table a row received at this time goes into.
+	 */
+	public static String table(Date received)
+	{
+		if(received == null)
+			return PARENT;
+
+		return ranges.table(received.getTime());
+	}
+
+	/**
+	 * Groups records by target table, keeping their order within each group.
+	 */
+	public static Map<String, List<IngestRecord>> split(List<IngestRecord> records)
+	{
+		Map<String, List<IngestRecord>> tables = new LinkedHashMap<String, List<IngestRecord>>();
+
+		Ranges current = ranges;
+
+		for(IngestRecord record : records)
+		{
+			String table = record.received != null ? current.table(record.received.getTime()) : PARENT;
+
+			List<IngestRecord> group = tables.get(table);
+
+			if(group == null)
+			{
+				group = new ArrayList<IngestRecord>();
+				tables.put(table, group);
+			}
+
+			group.add(record);
+		}
+
+		return tables;
+	}
+
+	/**
+	 * Lower received bound for the recent-update queries. Aligned to the
+	 * start of a partition so the planner can prune everything before it;
+	 * with partitioning off there's no bound.
+	 */
+	public static Date hotSince()
+	{
+		if(!enabled)
+			return new Date(0);
+
+		return periodStart(new Date(System.currentTimeMillis() - hotDays * DAY_MS));
+	}
+
+	public static Date periodStart(Date time)
+	{
+		Calendar cal = Calendar.getInstance();
+		cal.setTime(time);
+
+		cal.set(Calendar.HOUR_OF_DAY, 0);
+		cal.set(Calendar.MINUTE, 0);
+		cal.set(Calendar.SECOND, 0);
+		cal.set(Calendar.MILLISECOND, 0);
+
+		if(weekly)
+		{
+			// weeks start on Monday
+			int back = (cal.get(Calendar.DAY_OF_WEEK) + 5) % 7;
+			cal.add(Calendar.DATE, -back);
+		}
+
+		return cal.getTime();
+	}
+
+	public static Date next(Date start)
+	{
+		Calendar cal = Calendar.getInstance();
+		cal.setTime(start);
+		cal.add(Calendar.DATE, weekly ? 7 : 1);
+
+		return cal.getTime();
+	}
+
+	public static String name(Date start)
+	{
+		return PREFIX + new SimpleDateFormat("yyyyMMdd").format(start);
+	}
+
+	/**
+	 * The start of a partition from its table name, or null if the name
+	 * isn't one of ours.
+	 */
+	public static Date start(String name)
+	{
+		if(!name.startsWith(PREFIX) || name.length() != PREFIX.length() + 8)
+			return null;
+
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+		format.setLenient(false);
+
+		try
+		{
+			return format.parse(name.substring(PREFIX.length()));
+		}
+		catch(ParseException e)
+		{
+			return null;
+		}
+	}
+
+	static String literal(Date time)
+	{
+		return "'" + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(time) + "'";
+	}
+
+	/**
+	 * Creates upcoming partitions, rolls up and detaches expired ones, drops
+	 * old archives, works off some of the parent's own rows and refreshes the
+	 * routing table. Each step commits on its own, so a failure part way
+	 * leaves everything before it done.
+	 */
+	public static void maintain()
+	{
+		maintain(true);
+	}
+
+	/**
+	 * Only creates the upcoming partitions and refreshes the routing table,
+	 * for startup: everything that can take a while on a big table is left
+	 * to maintain().
+	 */
+	public static void prepare()
+	{
+		maintain(false);
+	}
+
+	static synchronized void maintain(boolean full)
+	{
+		if(!enabled)
+			return;
+
+		long begin = System.currentTimeMillis();
+
+		Connection conn = null;
+
+		try
+		{
+			conn = DB.datasource.getConnection();
+			conn.setAutoCommit(false);
+
+			List<String> attached = new ArrayList<String>();
+			List<String> detached = new ArrayList<String>();
+
+			listPartitions(conn, attached, detached);
+			conn.commit();
+
+			if(full)
+				indexParent(conn);
+
+			// upcoming partitions, including the current one
+			Date start = periodStart(new Date());
+
+			for(int i = 0; i <= aheadPeriods; i++)
+			{
+				String name = name(start);
+
+				if(!attached.contains(name) && !detached.contains(name))
+				{
+					createPartition(conn, start);
+					conn.commit();
+
+					attached.add(name);
+					created++;
+
+					Logger.info("Created partition " + name);
+				}
+
+				start = next(start);
+			}
+
+			if(!full)
+			{
+				Collections.sort(attached);
+				ranges = new Ranges(attached);
+
+				return;
+			}
+
+			long now = System.currentTimeMillis();
+
+			// expired partitions: roll up then detach
+			for(String name : new ArrayList<String>(attached))
+			{
+				Date end = next(start(name));
+
+				if(end.getTime() > now - retainDays * DAY_MS)
+					continue;
+
+				// the parent's rows for it are still on their way in
+				boolean waiting = parentHolds(conn, start(name), end);
+				conn.commit();
+
+				if(waiting)
+					continue;
+
+				detach(conn, name, attached, detached);
+			}
+
+			if(archiveDays > 0)
+			{
+				for(String name : new ArrayList<String>(detached))
+				{
+					Date end = next(start(name));
+
+					if(end.getTime() > now - archiveDays * DAY_MS)
+						continue;
+
+					execute(conn, "DROP TABLE " + name);
+					conn.commit();
+
+					detached.remove(name);
+					dropped++;
+
+					Logger.info("Dropped archived partition " + name);
+				}
+			}
+
+			migrateParent(conn, attached, detached, now);
+
+			Collections.sort(attached);
+			ranges = new Ranges(attached);
+		}
+		catch(SQLException e)
+		{
+			failures++;
+
+			Logger.error("Partition maintenance failed: " + e);
+
+			Jdbc.rollbackQuietly(conn);
+		}
+		finally
+		{
+			Jdbc.closeQuietly(conn);
+		}
+
+		runs++;
+		lastRun = new Date();
+		lastRunMs = System.currentTimeMillis() - begin;
+	}
+
+	static void listPartitions(Connection conn, List<String> attached, List<String> detached) throws SQLException
+	{
+		PreparedStatement statement = conn.prepareStatement("SELECT c.relname, EXISTS (SELECT 1 FROM pg_inherits i JOIN pg_class p ON p.oid = i.inhparent" +
+				"  WHERE i.inhrelid = c.oid AND p.relname = ?)" +
+				"  FROM pg_class c WHERE c.relkind = 'r' AND c.relname LIKE 'locationupdate\\_%' AND pg_table_is_visible(c.oid)");
+
+		try
+		{
+			statement.setString(1, PARENT);
+
+			ResultSet results = statement.executeQuery();
+
+			while(results.next())
+			{
+				String name = results.getString(1);
+
+				// other tables sharing the prefix
+				if(start(name) == null)
+					continue;
+
+				if(results.getBoolean(2))
+					attached.add(name);
+				else
+					detached.add(name);
+			}
+
+			results.close();
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+
+	/**
+	 * Rolls up an expired partition and detaches it into the archive, in
+	 * one transaction.
+	 */
+	static void detach(Connection conn, String name, List<String> attached, List<String> detached) throws SQLException
+	{
+		int rows = rollUp(conn, name);
+
+		execute(conn, "ALTER TABLE " + name + " NO INHERIT " + PARENT);
+		conn.commit();
+
+		attached.remove(name);
+		detached.add(name);
+
+		rolledUp++;
+		rollupRows += rows;
+
+		Logger.info("Rolled up partition " + name + " into " + rows + " hourly rows and detached it");
+	}
+
+	/**
+	 * The parent's received index, built without blocking ingest the first
+	 * time round. A build that failed part way leaves an invalid index
+	 * behind, which is dropped and built again.
+	 */
+	static void indexParent(Connection conn) throws SQLException
+	{
+		String index = PARENT + "_received";
+
+		PreparedStatement statement = conn.prepareStatement("SELECT x.indisvalid FROM pg_class c JOIN pg_index x ON x.indexrelid = c.oid" +
+				"  WHERE c.relname = ? AND pg_table_is_visible(c.oid)");
+
+		Boolean valid;
+
+		try
+		{
+			statement.setString(1, index);
+
+			ResultSet results = statement.executeQuery();
+
+			valid = results.next() ? results.getBoolean(1) : null;
+
+			results.close();
+		}
+		finally
+		{
+			statement.close();
+		}
+
+		conn.commit();
+
+		if(Boolean.TRUE.equals(valid))
+			return;
+
+		// CONCURRENTLY can't run inside a transaction
+		conn.setAutoCommit(true);
+
+		try
+		{
+			if(valid != null)
+			{
+				Logger.warn("Dropping invalid index " + index + " left by an earlier build");
+
+				execute(conn, "DROP INDEX " + index);
+			}
+
+			Logger.info("Indexing " + PARENT + " on received");
+
+			execute(conn, "CREATE INDEX CONCURRENTLY " + index + " ON " + PARENT + " (received)");
+		}
+		finally
+		{
+			conn.setAutoCommit(false);
+		}
+	}
+
+	/**
+	 * Up to parentChunks chunks of the parent's own rows, oldest first, moved
+	 * into their partition. A partition past retainDays is rolled up and
+	 * detached as soon as the parent has no more rows for it.
+	 */
+	static void migrateParent(Connection conn, List<String> attached, List<String> detached, long now) throws SQLException
+	{
+		for(int chunk = 0; chunk < parentChunks; chunk++)
+		{
+			Date oldest = oldestParentRow(conn);
+			conn.commit();
+
+			if(oldest == null)
+				return;
+
+			Date start = periodStart(oldest);
+			Date end = next(start);
+
+			String name = name(start);
+
+			if(detached.contains(name))
+			{
+				// late rows for an archived period, or retainDays was raised
+				// since; moving them in would leave them out of its rollup
+				Logger.warn("Parent rows from " + oldest + " belong to detached partition " + name + ", leaving them");
+				return;
+			}
+
+			if(!attached.contains(name))
+			{
+				createPartition(conn, start);
+				conn.commit();
+
+				attached.add(name);
+				created++;
+
+				Logger.info("Created partition " + name + " for rows from the parent");
+			}
+
+			parentMoved += moveParent(conn, name, start, end);
+			conn.commit();
+
+			if(end.getTime() <= now - retainDays * DAY_MS)
+			{
+				boolean waiting = parentHolds(conn, start, end);
+				conn.commit();
+
+				if(!waiting)
+					detach(conn, name, attached, detached);
+			}
+		}
+	}
+
+	/**
+	 * True if the parent itself still has rows received in [start, end).
+	 */
+	static boolean parentHolds(Connection conn, Date start, Date end) throws SQLException
+	{
+		PreparedStatement statement = conn.prepareStatement("SELECT 1 FROM ONLY " + PARENT + " WHERE received >= ? AND received < ? LIMIT 1");
+
+		try
+		{
+			statement.setTimestamp(1, new Timestamp(start.getTime()));
+			statement.setTimestamp(2, new Timestamp(end.getTime()));
+
+			ResultSet results = statement.executeQuery();
+
+			boolean holds = results.next();
+
+			results.close();
+
+			return holds;
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+
+	static Date oldestParentRow(Connection conn) throws SQLException
+	{
+		PreparedStatement statement = conn.prepareStatement("SELECT min(received) FROM ONLY " + PARENT);
+
+		try
+		{
+			ResultSet results = statement.executeQuery();
+
+			results.next();
+
+			Timestamp oldest = results.getTimestamp(1);
+
+			results.close();
+
+			return oldest != null ? new Date(oldest.getTime()) : null;
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+
+	/**
+	 * Moves up to parentChunkSize of the parent's rows in [start, end) into
+	 * the partition. Returns the number moved.
+	 */
+	static int moveParent(Connection conn, String name, Date start, Date end) throws SQLException
+	{
+		PreparedStatement statement = conn.prepareStatement("WITH moved AS (DELETE FROM ONLY " + PARENT + " WHERE id IN" +
+				"  (SELECT id FROM ONLY " + PARENT + " WHERE received >= ? AND received < ? LIMIT ?) RETURNING *)" +
+				"  INSERT INTO " + name + " SELECT * FROM moved");
+
+		try
+		{
+			statement.setTimestamp(1, new Timestamp(start.getTime()));
+			statement.setTimestamp(2, new Timestamp(end.getTime()));
+			statement.setInt(3, parentChunkSize);
+
+			return statement.executeUpdate();
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+
+	static void createPartition(Connection conn, Date start) throws SQLException
+	{
+		String name = name(start);
+
+		execute(conn, "CREATE TABLE " + name + " (CHECK (received >= " + literal(start) + " AND received < " + literal(next(start)) + ")) INHERITS (" + PARENT + ")");
+
+		// children don't inherit keys or indexes
+		execute(conn, "ALTER TABLE " + name + " ADD PRIMARY KEY (id)");
+		// a phone's updates are read in received order, ids don't follow it
+		execute(conn, "CREATE INDEX " + name + "_imei_received ON " + name + " (imei, received, id)");
+		execute(conn, "CREATE INDEX " + name + "_received ON " + name + " (received)");
+		execute(conn, "CREATE INDEX " + name + "_timestamp ON " + name + " (timestamp)");
+	}
+
+	/**
+	 * Summarises a partition per phone and hour of received time. Returns the
+	 * number of rollup rows written.
+	 */
+	static int rollUp(Connection conn, String name) throws SQLException
+	{
+		Statement statement = conn.createStatement();
+
+		try
+		{
+			return statement.executeUpdate(rollUpSql("ONLY " + name));
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+
+	static String rollUpSql(String source)
+	{
+		return "INSERT INTO locationupdaterollup (id, imei, hourstart, updates, locations, failednetwork, boots, shutdowns, meanbattery, meansignal, meangpserror, firstreceived, lastreceived)" +
+				"  SELECT nextval('hibernate_sequence'), imei, hourstart, updates, locations, failednetwork, boots, shutdowns, meanbattery, meansignal, meangpserror, firstreceived, lastreceived" +
+				"  FROM (SELECT imei, date_trunc('hour', received) AS hourstart, count(*) AS updates, count(shape) AS locations," +
+				"  sum(CASE WHEN failednetwork THEN 1 ELSE 0 END) AS failednetwork, sum(CASE WHEN boot THEN 1 ELSE 0 END) AS boots," +
+				"  sum(CASE WHEN shutdown THEN 1 ELSE 0 END) AS shutdowns, avg(battery) AS meanbattery, avg(signal) AS meansignal," +
+				"  avg(gpserror) AS meangpserror, min(received) AS firstreceived, max(received) AS lastreceived" +
+				"  FROM " + source + " GROUP BY imei, date_trunc('hour', received)) AS hours";
+	}
+
+	static void execute(Connection conn, String sql) throws SQLException
+	{
+		Statement statement = conn.createStatement();
+
+		try
+		{
+			statement.execute(sql);
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+
+	public static Map<String, Object> getStats()
+	{
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+
+		Ranges current = ranges;
+
+		stats.put("enabled", enabled);
+		stats.put("period", weekly ? "week" : "day");
+		stats.put("aheadPeriods", aheadPeriods);
+		stats.put("retainDays", retainDays);
+		stats.put("archiveDays", archiveDays);
+		stats.put("hotDays", hotDays);
+		stats.put("hotSince", hotSince());
+		stats.put("attached", Arrays.asList(current.names));
+		stats.put("runs", runs);
+		stats.put("created", created);
+		stats.put("rolledUp", rolledUp);
+		stats.put("rollupRows", rollupRows);
+		stats.put("dropped", dropped);
+		stats.put("parentMoved", parentMoved);
+		stats.put("failures", failures);
+		stats.put("lastRun", lastRun);
+		stats.put("lastRunMs", lastRunMs);
+
+		return stats;
+	}
+}
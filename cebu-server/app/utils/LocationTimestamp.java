@@ -0,0 +1,98 @@
+package utils;
+
+import java.util.TimeZone;
+
+/**
+ * Decodes the fixed-format location update timestamp (20120430T133023) straight
+ * from bytes to epoch millis, interpreting it in the server's default time zone
+ * the same way DateUtils.parseLocationUpdate does, without a SimpleDateFormat
+ * or Calendar per call.
+ */
+public class LocationTimestamp {
+
+	public static final int LENGTH = 15;
+
+	static final int[] DAYS_BEFORE_MONTH = { 0, 31, 59, 90, 120, 151, 181, 212, 243, 273, 304, 334 };
+
+	/**
+	 * Returns epoch millis for the 15 bytes at offset, or Long.MIN_VALUE if they
+	 * are not a valid yyyyMMddTHHmmss timestamp. A space is accepted in place of
+	 * the 'T'.
+	 */
+	public static long decode(byte[] data, int offset)
+	{
+		byte separator = data[offset + 8];
+
+		if(separator != 'T' && separator != ' ')
+			return Long.MIN_VALUE;
+
+		int year = digits(data, offset, 4);
+		int month = digits(data, offset + 4, 2);
+		int day = digits(data, offset + 6, 2);
+		int hour = digits(data, offset + 9, 2);
+		int minute = digits(data, offset + 11, 2);
+		int second = digits(data, offset + 13, 2);
+
+		if(year < 1970 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59)
+			return Long.MIN_VALUE;
+
+		long local = toEpochDay(year, month, day) * 86400000L + hour * 3600000L + minute * 60000L + second * 1000L;
+
+		return toUtc(local, TimeZone.getDefault());
+	}
+
+	/**
+	 * Days since 1970-01-01 for a Gregorian date on or after 1970.
+	 */
+	public static long toEpochDay(int year, int month, int day)
+	{
+		long y = year - 1970;
+
+		// leap days between 1970 and the start of year
+		long leaps = leapsBefore(year) - leapsBefore(1970);
+
+		int dayOfYear = DAYS_BEFORE_MONTH[month - 1] + day - 1;
+
+		if(month > 2 && isLeap(year))
+			dayOfYear++;
+
+		return y * 365 + leaps + dayOfYear;
+	}
+
+	static long toUtc(long local, TimeZone zone)
+	{
+		// offset at the guessed instant is right except within a DST transition hour
+		long guess = local - zone.getRawOffset();
+
+		return local - zone.getOffset(guess);
+	}
+
+	static long leapsBefore(int year)
+	{
+		int y = year - 1;
+
+		return y / 4 - y / 100 + y / 400;
+	}
+
+	static boolean isLeap(int year)
+	{
+		return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+	}
+
+	static int digits(byte[] data, int offset, int count)
+	{
+		int value = 0;
+
+		for(int i = offset; i < offset + count; i++)
+		{
+			int digit = data[i] - '0';
+
+			if(digit < 0 || digit > 9)
+				return -1;
+
+			value = value * 10 + digit;
+		}
+
+		return value;
+	}
+}
@@ -0,0 +1,664 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import play.Logger;
+import play.Play;
+
+/**
+ * Online map matching of each vehicle's stream of location updates.
+ *
+ * A hidden Markov model per vehicle, after Newson and Krumm: the hidden states
+ * are the closest points on the few edges nearest each fix, emissions are
+ * Gaussian in the snap distance, and transitions penalize the difference
+ * between the network distance and the straight line distance between fixes.
+ * Viterbi runs incrementally as fixes arrive. A step is decided as soon as
+ * every surviving path agrees on it, or when it falls out of a bounded window,
+ * so both the lag and the memory per vehicle are fixed. Decided steps are
+ * turned into edge traversals with entry and exit times and handed to the
+ * listeners.
+ */
+public class MapMatcher {
+
+	static int maxCandidates = Math.min(31, Integer.parseInt(Play.configuration.getProperty("application.mapMatch.candidates", "8")));
+
+	// meters of disagreement between network and straight line distance per unit of log probability
+	static double beta = Double.parseDouble(Play.configuration.getProperty("application.mapMatch.beta", "10"));
+
+	// undecided steps kept per vehicle
+	static int lag = Math.max(2, Integer.parseInt(Play.configuration.getProperty("application.mapMatch.lag", "12")));
+
+	// a longer silence than this starts a new match
+	static long maxGapMs = Long.parseLong(Play.configuration.getProperty("application.mapMatch.maxGap", "60")) * 1000;
+
+	static long idleMs = Long.parseLong(Play.configuration.getProperty("application.mapMatch.idleMinutes", "10")) * 60 * 1000;
+
+	// candidate edge tails whose upward searches are kept between fixes
+	static int searchCache = Integer.parseInt(Play.configuration.getProperty("application.mapMatch.searchCache", "50000"));
+
+	static final double MIN_SIGMA = 5.0;
+	static final double MAX_SIGMA = 50.0;
+	static final double DEFAULT_SIGMA = 10.0;
+
+	static final double MIN_RADIUS = 30.0;
+	static final double MAX_RADIUS = 100.0;
+
+	// fixes closer than this to the previous one are dropped, parked taxis otherwise wander along the curb
+	static final double MIN_MOVE = 5.0;
+
+	// meters/second
+	static final double MAX_SPEED = 40.0;
+
+	// how far a fix may fall behind the previous one on the same edge and still count as not having moved
+	static final double BACKTRACK = 10.0;
+
+	/**
+	 * A vehicle entering an edge at its start and leaving at its end. Times
+	 * are in ms, interpolated along the matched path between fixes.
+	 * TripLineDetector reports the stretch between an edge's trip lines the
+	 * same way, with length the distance between them.
+	 */
+	public static class Traversal {
+
+		public final String imei;
+		public final int edgeId;
+		public final long entered;
+		public final long exited;
+		public final double length;
+
+		public Traversal(String imei, int edgeId, long entered, long exited, double length)
+		{
+			this.imei = imei;
+			this.edgeId = edgeId;
+			this.entered = entered;
+			this.exited = exited;
+			this.length = length;
+		}
+
+		// meters/second
+		public double getSpeed()
+		{
+			return length / ((exited - entered) / 1000.0);
+		}
+	}
+
+	public interface Listener {
+
+		void traversed(Traversal traversal);
+	}
+
+	/**
+	 * Viterbi state for one vehicle. The undecided steps live in a ring of lag
+	 * slots, oldest at first, and each slot has room for maxCandidates
+	 * candidates at slot * maxCandidates.
+	 */
+	static class Track {
+
+		final long[] time = new long[lag];
+		final double[] lat = new double[lag];
+		final double[] lon = new double[lag];
+		final int[] count = new int[lag];
+
+		final int[] edge = new int[lag * maxCandidates];
+		final double[] offset = new double[lag * maxCandidates];
+		final double[] score = new double[lag * maxCandidates];
+		final int[] back = new int[lag * maxCandidates];
+
+		int first = 0;
+		int size = 0;
+
+		// the last decided point
+		int lastEdge = -1;
+		double lastOffset;
+		long lastTime;
+
+		// the last fix heard, kept or dropped as too close to the one before
+		long lastFix;
+
+		// the edge being driven and when it was entered, -1 if that isn't known
+		int openEdge = -1;
+		long openEntry = -1;
+
+		volatile long lastSeen;
+
+		int slot(int step)
+		{
+			return (first + step) % lag;
+		}
+	}
+
+	static class Scratch {
+
+		final EdgeIndex.Snap[] snaps = new EdgeIndex.Snap[maxCandidates];
+
+		final double[] cost = new double[maxCandidates];
+		final double[] meters = new double[maxCandidates];
+
+		final double[] score = new double[maxCandidates];
+		final int[] back = new int[maxCandidates];
+
+		final int[] targets = new int[maxCandidates];
+
+		final int[] chosen = new int[lag];
+
+		// filled under a vehicle's lock, delivered and cleared after it
+		final List<Traversal> traversed = new ArrayList<Traversal>();
+
+		Scratch()
+		{
+			for(int k = 0; k < snaps.length; k++)
+				snaps[k] = new EdgeIndex.Snap();
+		}
+	}
+
+	final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+
+		protected Scratch initialValue()
+		{
+			return new Scratch();
+		}
+	};
+
+	final ContractionHierarchy router;
+	final EdgeIndex index;
+
+	// transitions are measured in meters, whatever the router's current metric
+	final ContractionHierarchy.Metric distances;
+
+	// a vehicle's candidates change little from one fix to the next, nor do their searches
+	final ContractionHierarchy.SpaceCache searchSpaces;
+
+	final ConcurrentHashMap<String, Track> tracks = new ConcurrentHashMap<String, Track>();
+
+	final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	AtomicLong observations = new AtomicLong();
+	AtomicLong dropped = new AtomicLong();
+	AtomicLong offRoad = new AtomicLong();
+	AtomicLong steps = new AtomicLong();
+	AtomicLong breaks = new AtomicLong();
+	AtomicLong forced = new AtomicLong();
+	AtomicLong traversals = new AtomicLong();
+	AtomicLong expired = new AtomicLong();
+	AtomicLong matchNanos = new AtomicLong();
+
+	public MapMatcher(ContractionHierarchy router, EdgeIndex index)
+	{
+		this.router = router;
+		this.index = index;
+
+		this.distances = router.customize(router.getLengths(), 0);
+		this.searchSpaces = router.new SpaceCache(distances, searchCache);
+	}
+
+	public void addListener(Listener listener)
+	{
+		listeners.add(listener);
+	}
+
+	/**
+	 * Feeds one fix for a vehicle. Fixes should arrive in time order, ones no
+	 * newer than the last kept fix are dropped. Time is in ms; gpsError is
+	 * the reported accuracy in meters, if any.
+	 */
+	public void observe(String imei, double lat, double lon, long time, Double gpsError)
+	{
+		long start = System.nanoTime();
+
+		observations.incrementAndGet();
+
+		Track track = tracks.get(imei);
+
+		if(track == null)
+		{
+			Track created = new Track();
+
+			track = tracks.putIfAbsent(imei, created);
+
+			if(track == null)
+				track = created;
+		}
+
+		// collected under the vehicle's lock and handed out after it
+		List<Traversal> traversed = scratch.get().traversed;
+
+		try
+		{
+			synchronized(track)
+			{
+				track.lastSeen = System.currentTimeMillis();
+
+				step(track, imei, lat, lon, time, gpsError, traversed);
+			}
+
+			deliver(traversed);
+		}
+		finally
+		{
+			traversed.clear();
+		}
+
+		matchNanos.addAndGet(System.nanoTime() - start);
+	}
+
+	/**
+	 * Decides and forgets vehicles that haven't reported for maxIdleMs. Zero
+	 * finishes every vehicle, as at shutdown.
+	 */
+	public void expire(long maxIdleMs)
+	{
+		long cutoff = System.currentTimeMillis() - maxIdleMs;
+
+		List<Traversal> traversed = new ArrayList<Traversal>();
+
+		Iterator<Map.Entry<String, Track>> iterator = tracks.entrySet().iterator();
+
+		while(iterator.hasNext())
+		{
+			Map.Entry<String, Track> entry = iterator.next();
+
+			Track track = entry.getValue();
+
+			if(maxIdleMs > 0 && track.lastSeen > cutoff)
+				continue;
+
+			synchronized(track)
+			{
+				breakRun(track, entry.getKey(), traversed);
+			}
+
+			iterator.remove();
+			expired.incrementAndGet();
+		}
+
+		deliver(traversed);
+	}
+
+	public void expireIdle()
+	{
+		expire(idleMs);
+	}
+
+	void deliver(List<Traversal> traversed)
+	{
+		for(Traversal traversal : traversed)
+		{
+			traversals.incrementAndGet();
+
+			for(Listener listener : listeners)
+			{
+				try
+				{
+					listener.traversed(traversal);
+				}
+				catch(Exception e)
+				{
+					Logger.error("Map match listener failed: " + e);
+				}
+			}
+		}
+	}
+
+	void step(Track track, String imei, double lat, double lon, long time, Double gpsError, List<Traversal> traversed)
+	{
+		if(track.size > 0)
+		{
+			int newest = track.slot(track.size - 1);
+
+			if(time <= track.lastFix)
+			{
+				dropped.incrementAndGet();
+				return;
+			}
+
+			// a vehicle stopped in traffic keeps reporting from the same spot, so
+			// the gap runs from the last fix heard rather than the last one kept
+			if(time - track.lastFix > maxGapMs)
+			{
+				breaks.incrementAndGet();
+				breakRun(track, imei, traversed);
+			}
+			else if(Geodesy.equirectangular(track.lat[newest], track.lon[newest], lat, lon) < MIN_MOVE)
+			{
+				track.lastFix = time;
+
+				dropped.incrementAndGet();
+				return;
+			}
+		}
+
+		track.lastFix = time;
+
+		double sigma = gpsError != null && gpsError > 0 ? Math.max(MIN_SIGMA, Math.min(MAX_SIGMA, gpsError)) : DEFAULT_SIGMA;
+
+		Scratch buffers = scratch.get();
+
+		int n = index.candidates(lat, lon, Math.max(MIN_RADIUS, Math.min(MAX_RADIUS, 3 * sigma)), buffers.snaps);
+
+		if(n == 0)
+		{
+			// off the street network: whatever was being matched has ended
+			offRoad.incrementAndGet();
+			breakRun(track, imei, traversed);
+			return;
+		}
+
+		if(track.size == lag)
+		{
+			forced.incrementAndGet();
+			decide(track, imei, track.size - 1, best(track), 1, traversed);
+		}
+
+		int s = track.slot(track.size);
+		int base = s * maxCandidates;
+
+		track.time[s] = time;
+		track.lat[s] = lat;
+		track.lon[s] = lon;
+		track.count[s] = n;
+
+		for(int k = 0; k < n; k++)
+		{
+			EdgeIndex.Snap snap = buffers.snaps[k];
+
+			double z = snap.distance / sigma;
+
+			track.edge[base + k] = snap.edgeId;
+			track.offset[base + k] = snap.fraction * router.getLength(snap.edgeId);
+			track.score[base + k] = -0.5 * z * z;
+			track.back[base + k] = -1;
+		}
+
+		if(track.size > 0 && !transition(track, track.slot(track.size - 1), s, buffers))
+		{
+			// nothing connects the previous fix to this one: decide what came before and start again from here
+			breaks.incrementAndGet();
+			breakRun(track, imei, traversed);
+			track.first = s;
+		}
+
+		track.size++;
+		steps.incrementAndGet();
+
+		converge(track, imei, traversed);
+	}
+
+	/**
+	 * Extends the best path to each candidate at slot s from those at slot p.
+	 * Leaves the step untouched and returns false when none can be reached.
+	 */
+	boolean transition(Track track, int p, int s, Scratch buffers)
+	{
+		int previous = p * maxCandidates;
+		int current = s * maxCandidates;
+
+		int m = track.count[p];
+		int n = track.count[s];
+
+		double seconds = (track.time[s] - track.time[p]) / 1000.0;
+		double straight = Geodesy.equirectangular(track.lat[p], track.lon[p], track.lat[s], track.lon[s]);
+
+		double limit = Math.max(2 * straight, MAX_SPEED * seconds);
+
+		int[] targets = buffers.targets;
+
+		for(int j = 0; j < n; j++)
+		{
+			targets[j] = router.getTail(track.edge[current + j]);
+
+			buffers.score[j] = Double.NEGATIVE_INFINITY;
+			buffers.back[j] = -1;
+		}
+
+		ContractionHierarchy.Buckets buckets = router.buckets(distances, targets, n, searchSpaces);
+
+		for(int i = 0; i < m; i++)
+		{
+			double score = track.score[previous + i];
+
+			if(score == Double.NEGATIVE_INFINITY)
+				continue;
+
+			int a = track.edge[previous + i];
+			double oa = track.offset[previous + i];
+
+			router.oneToMany(buckets, router.getHead(a), buffers.cost, buffers.meters);
+
+			for(int j = 0; j < n; j++)
+			{
+				int b = track.edge[current + j];
+				double ob = track.offset[current + j];
+
+				double distance;
+
+				if(a == b && ob >= oa - BACKTRACK)
+					distance = Math.max(0.0, ob - oa);
+				else
+					distance = router.getLength(a) - oa + buffers.cost[j] + ob;
+
+				if(!(distance <= limit))
+					continue;
+
+				double value = score - Math.abs(distance - straight) / beta;
+
+				if(value > buffers.score[j])
+				{
+					buffers.score[j] = value;
+					buffers.back[j] = i;
+				}
+			}
+		}
+
+		double max = Double.NEGATIVE_INFINITY;
+
+		for(int j = 0; j < n; j++)
+			max = Math.max(max, buffers.score[j]);
+
+		if(max == Double.NEGATIVE_INFINITY)
+			return false;
+
+		// keep scores near zero however long the run
+		for(int j = 0; j < n; j++)
+		{
+			track.score[current + j] = buffers.score[j] == Double.NEGATIVE_INFINITY ? Double.NEGATIVE_INFINITY : track.score[current + j] + buffers.score[j] - max;
+			track.back[current + j] = buffers.back[j];
+		}
+
+		return true;
+	}
+
+	// candidate with the best score at the newest step
+	int best(Track track)
+	{
+		int base = track.slot(track.size - 1) * maxCandidates;
+
+		int best = 0;
+
+		for(int k = 1; k < track.count[track.slot(track.size - 1)]; k++)
+		{
+			if(track.score[base + k] > track.score[base + best])
+				best = k;
+		}
+
+		return best;
+	}
+
+	/**
+	 * Decides every step up to the newest one that all live paths pass
+	 * through. The newest step itself is kept to transition from.
+	 */
+	void converge(Track track, String imei, List<Traversal> traversed)
+	{
+		int newest = track.slot(track.size - 1);
+
+		int alive = 0;
+
+		for(int k = 0; k < track.count[newest]; k++)
+		{
+			if(track.score[newest * maxCandidates + k] != Double.NEGATIVE_INFINITY)
+				alive |= 1 << k;
+		}
+
+		for(int step = track.size - 1; step > 0; step--)
+		{
+			int base = track.slot(step) * maxCandidates;
+
+			int parents = 0;
+
+			for(int k = 0; k < track.count[track.slot(step)]; k++)
+			{
+				if((alive & (1 << k)) != 0)
+					parents |= 1 << track.back[base + k];
+			}
+
+			alive = parents;
+
+			if(Integer.bitCount(alive) == 1)
+			{
+				decide(track, imei, step - 1, Integer.numberOfTrailingZeros(alive), step, traversed);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Follows the path ending at candidate of step from back to the oldest
+	 * step, and decides the oldest count steps along it.
+	 */
+	void decide(Track track, String imei, int step, int candidate, int count, List<Traversal> traversed)
+	{
+		int[] chosen = scratch.get().chosen;
+
+		for(int i = step; i >= 0; i--)
+		{
+			chosen[i] = candidate;
+			candidate = track.back[track.slot(i) * maxCandidates + candidate];
+		}
+
+		for(int i = 0; i < count; i++)
+		{
+			int s = track.slot(i);
+			int k = s * maxCandidates + chosen[i];
+
+			reach(track, imei, track.edge[k], track.offset[k], track.time[s], traversed);
+		}
+
+		track.first = track.slot(count);
+		track.size -= count;
+	}
+
+	// decides everything in the window and forgets where the vehicle was
+	void breakRun(Track track, String imei, List<Traversal> traversed)
+	{
+		if(track.size > 0)
+			decide(track, imei, track.size - 1, best(track), track.size, traversed);
+
+		track.lastEdge = -1;
+		track.openEdge = -1;
+		track.openEntry = -1;
+	}
+
+	/**
+	 * Moves the vehicle from the last decided point to a newly decided one,
+	 * emitting every edge it entered and left on the way. Times along the way
+	 * are spread in proportion to distance.
+	 */
+	void reach(Track track, String imei, int b, double ob, long tb, List<Traversal> traversed)
+	{
+		int a = track.lastEdge;
+		double oa = track.lastOffset;
+		long ta = track.lastTime;
+
+		track.lastEdge = b;
+		track.lastOffset = ob;
+		track.lastTime = tb;
+
+		if(a < 0)
+		{
+			track.openEdge = b;
+			track.openEntry = -1;
+			return;
+		}
+
+		if(a == b && ob >= oa - BACKTRACK)
+		{
+			track.lastOffset = Math.max(oa, ob);
+			return;
+		}
+
+		int[] between = router.route(distances, router.getHead(a), router.getTail(b));
+
+		if(between == null)
+		{
+			track.openEdge = b;
+			track.openEntry = -1;
+			return;
+		}
+
+		double lengthA = router.getLength(a);
+
+		double total = lengthA - oa + ob;
+
+		for(int e : between)
+			total += router.getLength(e);
+
+		double elapsed = tb - ta;
+
+		double along = lengthA - oa;
+
+		long entry = ta + (total > 0 ? Math.round(elapsed * along / total) : 0);
+
+		if(track.openEdge == a && track.openEntry >= 0)
+			emit(imei, a, track.openEntry, entry, lengthA, traversed);
+
+		for(int e : between)
+		{
+			along += router.getLength(e);
+
+			long exit = ta + (total > 0 ? Math.round(elapsed * along / total) : 0);
+
+			emit(imei, e, entry, exit, router.getLength(e), traversed);
+
+			entry = exit;
+		}
+
+		track.openEdge = b;
+		track.openEntry = entry;
+	}
+
+	static void emit(String imei, int edgeId, long entered, long exited, double length, List<Traversal> traversed)
+	{
+		if(exited > entered && length > 0)
+			traversed.add(new Traversal(imei, edgeId, entered, exited, length));
+	}
+
+	public Map<String, Object> getStats()
+	{
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+
+		long observed = observations.get();
+
+		stats.put("vehicles", tracks.size());
+		stats.put("observations", observed);
+		stats.put("dropped", dropped.get());
+		stats.put("offRoad", offRoad.get());
+		stats.put("steps", steps.get());
+		stats.put("breaks", breaks.get());
+		stats.put("forced", forced.get());
+		stats.put("traversals", traversals.get());
+		stats.put("expired", expired.get());
+		stats.put("meanMicros", observed > 0 ? matchNanos.get() / observed / 1000.0 : 0.0);
+		stats.put("candidates", maxCandidates);
+		stats.put("lag", lag);
+		stats.put("searchCache", searchSpaces.getStats());
+
+		return stats;
+	}
+}
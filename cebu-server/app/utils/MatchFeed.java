@@ -0,0 +1,192 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import play.Logger;
+
+/**
+ * Hands located fixes from the request threads to the map matcher and trip
+ * line detector on a thread of their own, so matching never holds up a
+ * phone's request. One thread keeps each phone's fixes in the order they were
+ * queued, which both consumers need. When the queue is full fixes are
+ * dropped and counted; the matcher copes with a gap as it does with a phone
+ * that went quiet.
+ */
+public class MatchFeed {
+
+	static final long POLL_MS = 1000;
+	static final long STOP_TIMEOUT_MS = 30000;
+
+	final MapMatcher matcher;
+	final TripLineDetector tripLines;
+
+	final BlockingQueue<IngestRecord> queue;
+	final int capacity;
+
+	Thread thread;
+
+	volatile boolean running = false;
+
+	final AtomicLong enqueued = new AtomicLong();
+	final AtomicLong dropped = new AtomicLong();
+	final AtomicLong fed = new AtomicLong();
+	final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * Either consumer may be null when disabled.
+	 */
+	public MatchFeed(MapMatcher matcher, TripLineDetector tripLines, int capacity)
+	{
+		this.matcher = matcher;
+		this.tripLines = tripLines;
+		this.capacity = capacity;
+
+		queue = new ArrayBlockingQueue<IngestRecord>(capacity);
+	}
+
+	public boolean isEnabled()
+	{
+		return matcher != null || tripLines != null;
+	}
+
+	public synchronized void start()
+	{
+		if(running || !isEnabled())
+			return;
+
+		running = true;
+
+		thread = new Thread(new Runnable() {
+			public void run()
+			{
+				drain();
+			}
+		}, "match-feed");
+
+		thread.setDaemon(true);
+		thread.start();
+
+		Logger.info("Match feed started, capacity " + capacity);
+	}
+
+	/**
+	 * Stops taking fixes and blocks until the ones already queued are fed.
+	 */
+	public synchronized void stop()
+	{
+		if(!running)
+			return;
+
+		running = false;
+
+		try
+		{
+			thread.join(STOP_TIMEOUT_MS);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		thread = null;
+
+		if(!queue.isEmpty())
+			Logger.error("Match feed stopped with " + queue.size() + " unmatched fixes");
+	}
+
+	/**
+	 * Queues the located records, in order, without blocking.
+	 */
+	public void offer(Collection<IngestRecord> records)
+	{
+		if(!running)
+			return;
+
+		for(IngestRecord record : records)
+		{
+			if(!record.hasLocation() || record.adjustedTimestamp == null)
+				continue;
+
+			if(queue.offer(record))
+				enqueued.incrementAndGet();
+			else
+				dropped.incrementAndGet();
+		}
+	}
+
+	void drain()
+	{
+		List<IngestRecord> batch = new ArrayList<IngestRecord>();
+
+		// keep going after stop() until the queue is empty
+		while(running || !queue.isEmpty())
+		{
+			try
+			{
+				IngestRecord first = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+
+				if(first == null)
+					continue;
+
+				batch.add(first);
+				queue.drainTo(batch);
+
+				for(IngestRecord record : batch)
+					feed(record);
+			}
+			catch(InterruptedException e)
+			{
+				break;
+			}
+			finally
+			{
+				batch.clear();
+			}
+		}
+	}
+
+	void feed(IngestRecord record)
+	{
+		long time = record.adjustedTimestamp.getTime();
+
+		try
+		{
+			if(matcher != null)
+				matcher.observe(record.imei, record.lat, record.lon, time, record.gpsError);
+
+			if(tripLines != null)
+				tripLines.observe(record.imei, record.lat, record.lon, time);
+
+			fed.incrementAndGet();
+		}
+		catch(Exception e)
+		{
+			failed.incrementAndGet();
+
+			Logger.error("Could not match fix for " + record.imei + ": " + e);
+		}
+	}
+
+	public Map<String, Object> getStats()
+	{
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+
+		stats.put("running", running);
+		stats.put("queueDepth", queue.size());
+		stats.put("queueCapacity", capacity);
+		stats.put("enqueued", enqueued.get());
+		stats.put("dropped", dropped.get());
+		stats.put("fed", fed.get());
+		stats.put("failed", failed.get());
+
+		return stats;
+	}
+}
@@ -0,0 +1,344 @@
+package utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import models.Driver;
+import models.Operator;
+import models.Phone;
+import models.Vehicle;
+
+import play.Play;
+
+/**
+ * Read-mostly, in-memory map of IMEI to the phone's id, operator, driver and
+ * vehicle, so the phone APIs don't run Phone.find("imei = ?") on every call.
+ * Filled at startup by FleetState.warm().
+ *
+ * Phone's JPA lifecycle callbacks keep it current: every persisted change to a
+ * phone (register, login, logout, admin edits) replaces that phone's entry,
+ * and Operator, Driver and Vehicle callbacks relabel the entries that point
+ * at them. Unknown IMEIs are cached as misses too, replaced as soon as the
+ * phone is created; they expire after missSeconds in case it was created
+ * somewhere the callbacks don't see, and are swept once there are more than
+ * maxMissing of them.
+ */
+public class PhoneRegistry {
+
+	static long missMs = Long.parseLong(Play.configuration.getProperty("application.registry.missSeconds", "300")) * 1000;
+	static int maxMissing = Integer.parseInt(Play.configuration.getProperty("application.registry.maxMissing", "10000"));
+
+	public static class Entry {
+
+		public final Long phoneId;
+		public final String imei;
+		public final String phoneNumber;
+
+		public final Long operatorId;
+		public final String operatorName;
+
+		public final Long driverId;
+		public final String driverCode;
+		public final String driverName;
+
+		public final Long vehicleId;
+		public final String bodyNumber;
+
+		// when a miss was cached
+		final long cachedAt;
+
+		Entry(Phone phone)
+		{
+			phoneId = phone.id;
+			imei = phone.imei;
+			phoneNumber = phone.phoneNumber;
+
+			operatorId = phone.operator != null ? phone.operator.id : null;
+			operatorName = phone.operator != null ? phone.operator.name : null;
+
+			driverId = phone.driver != null ? phone.driver.id : null;
+			driverCode = phone.driver != null ? phone.driver.driverId : null;
+			driverName = phone.driver != null ? phone.driver.name : null;
+
+			vehicleId = phone.vehicle != null ? phone.vehicle.id : null;
+			bodyNumber = phone.vehicle != null ? phone.vehicle.bodyNumber : null;
+
+			cachedAt = 0;
+		}
+
+		// entry with new operator, driver and vehicle labels
+		Entry(Entry entry, Long operatorId, String operatorName, Long driverId, String driverCode, String driverName, Long vehicleId, String bodyNumber)
+		{
+			phoneId = entry.phoneId;
+			imei = entry.imei;
+			phoneNumber = entry.phoneNumber;
+
+			this.operatorId = operatorId;
+			this.operatorName = operatorName;
+
+			this.driverId = driverId;
+			this.driverCode = driverCode;
+			this.driverName = driverName;
+
+			this.vehicleId = vehicleId;
+			this.bodyNumber = bodyNumber;
+
+			cachedAt = 0;
+		}
+
+		Entry(String imei)
+		{
+			phoneId = null;
+			this.imei = imei;
+			phoneNumber = null;
+
+			operatorId = null;
+			operatorName = null;
+
+			driverId = null;
+			driverCode = null;
+			driverName = null;
+
+			vehicleId = null;
+			bodyNumber = null;
+
+			cachedAt = System.currentTimeMillis();
+		}
+
+		boolean isMissing()
+		{
+			return phoneId == null;
+		}
+	}
+
+	static ConcurrentHashMap<String, Entry> byImei = new ConcurrentHashMap<String, Entry>();
+
+	static ConcurrentHashMap<Long, Entry> byId = new ConcurrentHashMap<Long, Entry>();
+
+	static AtomicLong hits = new AtomicLong();
+	static AtomicLong misses = new AtomicLong();
+	static AtomicLong expiredMisses = new AtomicLong();
+	static AtomicLong relabels = new AtomicLong();
+
+	// cached misses in byImei, roughly; only used to decide when to sweep
+	static AtomicInteger missing = new AtomicInteger();
+
+	/**
+	 * Returns the phone registered to imei, or null if there is none. Falls
+	 * back to the database on first sight of an IMEI, so must be called with
+	 * a JPA context.
+	 */
+	public static Entry get(String imei)
+	{
+		if(imei == null)
+			return null;
+
+		Entry entry = byImei.get(imei);
+
+		if(entry != null && entry.isMissing() && System.currentTimeMillis() - entry.cachedAt > missMs)
+		{
+			if(byImei.remove(imei, entry))
+			{
+				missing.decrementAndGet();
+				expiredMisses.incrementAndGet();
+			}
+
+			entry = null;
+		}
+
+		if(entry != null)
+		{
+			hits.incrementAndGet();
+		}
+		else
+		{
+			misses.incrementAndGet();
+
+			Phone phone = Phone.find("imei = ?", imei).first();
+
+			if(phone != null)
+				entry = update(phone);
+			else
+				entry = cacheMiss(imei);
+		}
+
+		return entry.isMissing() ? null : entry;
+	}
+
+	static Entry cacheMiss(String imei)
+	{
+		if(missing.get() >= maxMissing)
+			sweepMisses();
+
+		Entry entry = new Entry(imei);
+
+		Entry previous = byImei.putIfAbsent(imei, entry);
+
+		if(previous != null)
+			return previous;
+
+		missing.incrementAndGet();
+
+		return entry;
+	}
+
+	/**
+	 * Drops every cached miss, so a stream of unknown IMEIs can't grow the
+	 * map without bound.
+	 */
+	static void sweepMisses()
+	{
+		int swept = 0;
+
+		for(Map.Entry<String, Entry> cached : byImei.entrySet())
+		{
+			if(cached.getValue().isMissing() && byImei.remove(cached.getKey(), cached.getValue()))
+				swept++;
+		}
+
+		missing.addAndGet(-swept);
+		expiredMisses.addAndGet(swept);
+	}
+
+	public static Entry getById(Long phoneId)
+	{
+		if(phoneId == null)
+			return null;
+
+		Entry entry = byId.get(phoneId);
+
+		if(entry != null)
+		{
+			hits.incrementAndGet();
+			return entry;
+		}
+
+		misses.incrementAndGet();
+
+		Phone phone = Phone.findById(phoneId);
+
+		if(phone == null)
+			return null;
+
+		return update(phone);
+	}
+
+	/**
+	 * Replaces the entry for phone with its current in-memory state.
+	 */
+	public static Entry update(Phone phone)
+	{
+		if(phone.id == null || phone.imei == null)
+			return null;
+
+		Entry entry = new Entry(phone);
+
+		Entry previous = byId.put(phone.id, entry);
+
+		// the phone's IMEI changed, drop the old key
+		if(previous != null && !phone.imei.equals(previous.imei))
+			byImei.remove(previous.imei, previous);
+
+		Entry replaced = byImei.put(phone.imei, entry);
+
+		if(replaced != null && replaced.isMissing())
+			missing.decrementAndGet();
+
+		return entry;
+	}
+
+	/**
+	 * Relabels the phones of an operator that was saved, or drops it from
+	 * them if it was deleted.
+	 */
+	public static void update(Operator operator, boolean removed)
+	{
+		if(operator.id == null)
+			return;
+
+		for(Entry entry : byId.values())
+		{
+			if(operator.id.equals(entry.operatorId))
+				relabel(entry, new Entry(entry, removed ? null : operator.id, removed ? null : operator.name,
+						entry.driverId, entry.driverCode, entry.driverName, entry.vehicleId, entry.bodyNumber));
+		}
+	}
+
+	public static void update(Driver driver, boolean removed)
+	{
+		if(driver.id == null)
+			return;
+
+		for(Entry entry : byId.values())
+		{
+			if(driver.id.equals(entry.driverId))
+				relabel(entry, new Entry(entry, entry.operatorId, entry.operatorName,
+						removed ? null : driver.id, removed ? null : driver.driverId, removed ? null : driver.name, entry.vehicleId, entry.bodyNumber));
+		}
+	}
+
+	public static void update(Vehicle vehicle, boolean removed)
+	{
+		if(vehicle.id == null)
+			return;
+
+		for(Entry entry : byId.values())
+		{
+			if(vehicle.id.equals(entry.vehicleId))
+				relabel(entry, new Entry(entry, entry.operatorId, entry.operatorName,
+						entry.driverId, entry.driverCode, entry.driverName, removed ? null : vehicle.id, removed ? null : vehicle.bodyNumber));
+		}
+	}
+
+	// only if the phone's entry hasn't been replaced meanwhile, since that one is newer
+	static void relabel(Entry entry, Entry relabelled)
+	{
+		if(!byId.replace(entry.phoneId, entry, relabelled))
+			return;
+
+		byImei.replace(entry.imei, entry, relabelled);
+
+		FleetState.relabel(entry.phoneId);
+
+		relabels.incrementAndGet();
+	}
+
+	public static void remove(Phone phone)
+	{
+		if(phone.id != null)
+			byId.remove(phone.id);
+
+		if(phone.imei != null)
+			byImei.remove(phone.imei);
+	}
+
+	public static void clear()
+	{
+		byImei.clear();
+		byId.clear();
+
+		missing.set(0);
+	}
+
+	public static Map<String, Object> getStats()
+	{
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+
+		long hitCount = hits.get();
+		long missCount = misses.get();
+
+		stats.put("phones", byId.size());
+		stats.put("imeis", byImei.size());
+		stats.put("missing", missing.get());
+		stats.put("expiredMisses", expiredMisses.get());
+		stats.put("relabels", relabels.get());
+		stats.put("hits", hitCount);
+		stats.put("misses", missCount);
+		stats.put("hitRate", hitCount + missCount > 0 ? (double)hitCount / (hitCount + missCount) : 0.0);
+
+		return stats;
+	}
+}
@@ -0,0 +1,156 @@
+package utils;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import models.Phone;
+
+import play.Logger;
+import play.db.DB;
+
+/**
+ * Write-behind buffer for each phone's last known position and last-seen
+ * time. The location APIs record into it instead of updating the phone row
+ * per request; repeated updates for a phone overwrite each other, and
+ * PositionFlush writes whatever is pending as one batched UPDATE every few
+ * seconds. Readers that need the live value go through FleetState.
+ */
+public class PositionBuffer {
+
+	public static class Position {
+
+		public final Long phoneId;
+
+		public final Double lat;
+		public final Double lon;
+
+		public final Date lastUpdate;
+
+		public Position(Long phoneId, Double lat, Double lon, Date lastUpdate)
+		{
+			this.phoneId = phoneId;
+			this.lat = lat;
+			this.lon = lon;
+			this.lastUpdate = lastUpdate;
+		}
+	}
+
+	static ConcurrentHashMap<Long, Position> pending = new ConcurrentHashMap<Long, Position>();
+
+	static AtomicLong recorded = new AtomicLong();
+	static AtomicLong flushed = new AtomicLong();
+
+	public static void record(Long phoneId, Double lat, Double lon, Date lastUpdate)
+	{
+		Position position = new Position(phoneId, lat, lon, lastUpdate);
+
+		pending.put(phoneId, position);
+
+		FleetState.updatePosition(position);
+
+		recorded.incrementAndGet();
+	}
+
+	/**
+	 * Returns the buffered position for phoneId, or null if the phone row is
+	 * already current.
+	 */
+	public static Position get(Long phoneId)
+	{
+		return pending.get(phoneId);
+	}
+
+	/**
+	 * Where flushed positions go: the phone table, in one transaction per
+	 * batch.
+	 */
+	public interface Store {
+
+		void write(List<Position> batch) throws SQLException;
+	}
+
+	static class DatabaseStore implements Store {
+
+		public void write(List<Position> batch) throws SQLException
+		{
+			Connection conn = null;
+
+			try
+			{
+				conn = DB.datasource.getConnection();
+				conn.setAutoCommit(false);
+
+				Phone.updateRecentPositions(conn, batch);
+
+				conn.commit();
+			}
+			catch(SQLException e)
+			{
+				Jdbc.rollbackQuietly(conn);
+
+				throw e;
+			}
+			finally
+			{
+				Jdbc.closeQuietly(conn);
+			}
+		}
+	}
+
+	public static void flush()
+	{
+		flush(new DatabaseStore());
+	}
+
+	/**
+	 * Writes all pending positions in one batch. Entries overwritten while the
+	 * batch was being written stay pending for the next flush; on failure
+	 * everything stays pending.
+	 */
+	public static synchronized void flush(Store store)
+	{
+		if(pending.isEmpty())
+			return;
+
+		List<Position> batch = new ArrayList<Position>(pending.values());
+
+		try
+		{
+			store.write(batch);
+
+			for(Position position : batch)
+				pending.remove(position.phoneId, position);
+
+			flushed.addAndGet(batch.size());
+		}
+		catch(SQLException e)
+		{
+			Logger.error("Could not flush " + batch.size() + " phone positions: " + e);
+		}
+	}
+
+	public static int getPendingCount()
+	{
+		return pending.size();
+	}
+
+	/**
+	 * Position updates received vs. rows written; the difference is the number
+	 * of UPDATEs saved by coalescing.
+	 */
+	public static long getRecordedCount()
+	{
+		return recorded.get();
+	}
+
+	public static long getFlushedCount()
+	{
+		return flushed.get();
+	}
+}
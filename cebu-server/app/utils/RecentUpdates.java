@@ -0,0 +1,555 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.set.hash.TLongHashSet;
+
+import models.LocationUpdate;
+
+import play.Play;
+
+/**
+ * The last few hundred location updates of each phone, kept in memory for
+ * the vehicle status pages so they don't query locationupdate per phone.
+ *
+ * The ingest writers append each batch once it has committed. A phone's ring
+ * is topped up from the database the first time it is read, and again once
+ * the load is refreshSeconds old, since writes through other nodes only
+ * reach the ring that way. Reads that need more than the ring holds go to
+ * the database for the whole request: ids aren't in arrival order, so there
+ * is no id in the ring to carry on from.
+ */
+public class RecentUpdates {
+
+	static int capacity = Integer.parseInt(Play.configuration.getProperty("application.recentUpdates.capacity", "250"));
+	static long refreshMs = Long.parseLong(Play.configuration.getProperty("application.recentUpdates.refreshSeconds", "60")) * 1000;
+
+	public static final int LOCATION = 1;
+	public static final int BOOT = 2;
+	public static final int SHUTDOWN = 4;
+	public static final int FAILED_NETWORK = 8;
+	public static final int CHARGING = 16;
+
+	// failedNetwork explicitly false, rather than missing as on location-only rows
+	public static final int GOOD_NETWORK = 32;
+
+	static final long NONE = Long.MIN_VALUE;
+
+	// how long after a load appends are checked for rows the load already brought in
+	static final long LOAD_OVERLAP_MS = 60 * 1000;
+
+	/**
+	 * Fixed-capacity ring of one phone's updates in parallel primitive
+	 * arrays, oldest overwritten first. Missing timestamps are NONE, missing
+	 * coordinates and battery NaN and missing signal -1.
+	 */
+	public static class Ring {
+
+		final String imei;
+
+		final long[] ids;
+		final long[] timestamps;
+		final long[] adjusted;
+		final long[] received;
+		final double[] lats;
+		final double[] lons;
+		final float[] battery;
+		final short[] signal;
+		final byte[] flags;
+
+		// next slot to write
+		int head = 0;
+		int size = 0;
+
+		boolean loaded = false;
+		long loadedAt = 0;
+
+		// bumped by reset(), so a load read before it isn't applied after it
+		long generation = 0;
+
+		// true while the ring holds every update the phone has in the hot
+		// window; older updates may still exist before it
+		boolean complete = false;
+
+		public Ring(String imei, int capacity)
+		{
+			this.imei = imei;
+
+			ids = new long[capacity];
+			timestamps = new long[capacity];
+			adjusted = new long[capacity];
+			received = new long[capacity];
+			lats = new double[capacity];
+			lons = new double[capacity];
+			battery = new float[capacity];
+			signal = new short[capacity];
+			flags = new byte[capacity];
+		}
+
+		public synchronized int size()
+		{
+			return size;
+		}
+
+		public synchronized void add(IngestRecord record)
+		{
+			// a load racing the writer may have brought this row in already
+			if(System.currentTimeMillis() - loadedAt < LOAD_OVERLAP_MS && contains(record.id))
+				return;
+
+			int flag = (record.hasLocation() ? LOCATION : 0)
+					| (Boolean.TRUE.equals(record.boot) ? BOOT : 0)
+					| (Boolean.TRUE.equals(record.shutdown) ? SHUTDOWN : 0)
+					| (Boolean.TRUE.equals(record.failedNetwork) ? FAILED_NETWORK : 0)
+					| (Boolean.TRUE.equals(record.charging) ? CHARGING : 0)
+					| (Boolean.FALSE.equals(record.failedNetwork) ? GOOD_NETWORK : 0);
+
+			put(head, record.id, time(record.timestamp), time(record.adjustedTimestamp), time(record.received),
+					record.lat, record.lon, record.battery, record.signal, flag);
+
+			head = (head + 1) % ids.length;
+
+			if(size < ids.length)
+				size++;
+			else
+				complete = false;
+		}
+
+		/**
+		 * Adds updates older than everything in the ring, newest first, as
+		 * loaded from the database. Rows already in the ring are skipped.
+		 * complete says there are no more for the phone beyond these.
+		 */
+		public synchronized void load(List<LocationUpdate> older, boolean complete)
+		{
+			load(older, complete, generation);
+		}
+
+		/**
+		 * As load(), unless the ring was reset since generation was read.
+		 */
+		public synchronized void load(List<LocationUpdate> older, boolean complete, long expected)
+		{
+			if(expected != generation)
+				return;
+
+			TLongHashSet present = new TLongHashSet(size * 2);
+
+			for(int age = 0; age < size; age++)
+				present.add(ids[slot(age)]);
+
+			boolean full = false;
+
+			for(LocationUpdate update : older)
+			{
+				if(update.id == null || present.contains(update.id))
+					continue;
+
+				if(size == ids.length)
+				{
+					full = true;
+					break;
+				}
+
+				int flag = (update.lat != null && update.lon != null ? LOCATION : 0)
+						| (Boolean.TRUE.equals(update.boot) ? BOOT : 0)
+						| (Boolean.TRUE.equals(update.shutdown) ? SHUTDOWN : 0)
+						| (Boolean.TRUE.equals(update.failedNetwork) ? FAILED_NETWORK : 0)
+						| (Boolean.TRUE.equals(update.charging) ? CHARGING : 0)
+						| (Boolean.FALSE.equals(update.failedNetwork) ? GOOD_NETWORK : 0);
+
+				// the slot before the oldest
+				int at = (head - size - 1 + 2 * ids.length) % ids.length;
+
+				put(at, update.id, time(update.timestamp), time(update.adjustedTimestamp), time(update.received),
+						update.lat, update.lon, update.battery, update.signal, flag);
+
+				size++;
+			}
+
+			this.complete = complete && !full;
+
+			loaded = true;
+			loadedAt = System.currentTimeMillis();
+		}
+
+		/**
+		 * Up to number updates received at or after since with all of the
+		 * given flag bits set, newest first by received time and then id.
+		 */
+		public synchronized List<LocationUpdate> select(int flag, int number, long since)
+		{
+			List<LocationUpdate> updates = new ArrayList<LocationUpdate>();
+
+			Integer[] slots = byReceived();
+
+			for(int i = slots.length - 1; i >= 0 && updates.size() < number; i--)
+			{
+				int at = slots[i];
+
+				if((flags[at] & flag) != flag)
+					continue;
+
+				// anything without a received time predates the hot window too
+				if(received[at] == NONE || received[at] < since)
+					continue;
+
+				updates.add(toUpdate(at));
+			}
+
+			return updates;
+		}
+
+		/**
+		 * Appends the ids, received times and flags of the ring's updates
+		 * that have a received time, oldest first by received time and then
+		 * id. Returns true if that is all of the phone's history in the hot
+		 * window it was loaded from.
+		 */
+		public synchronized boolean history(TLongArrayList historyIds, TLongArrayList historyReceived, TIntArrayList historyFlags)
+		{
+			for(int at : byReceived())
+			{
+				if(received[at] == NONE)
+					continue;
+
+				historyIds.add(ids[at]);
+				historyReceived.add(received[at]);
+				historyFlags.add(flags[at]);
+			}
+
+			return complete;
+		}
+
+		/**
+		 * The occupied slots, oldest first by received time and then id. The
+		 * ring itself is in the order rows committed, which isn't quite
+		 * arrival order: ids come from per-node blocks and batches commit
+		 * out of order.
+		 */
+		Integer[] byReceived()
+		{
+			Integer[] slots = new Integer[size];
+
+			for(int age = 0; age < size; age++)
+				slots[age] = slot(size - 1 - age);
+
+			Arrays.sort(slots, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b)
+				{
+					if(received[a] != received[b])
+						return received[a] < received[b] ? -1 : 1;
+
+					return ids[a] < ids[b] ? -1 : (ids[a] == ids[b] ? 0 : 1);
+				}
+			});
+
+			return slots;
+		}
+
+		/**
+		 * True if the ring holds an update with an id in (after, through].
+		 */
+		public synchronized boolean holds(long after, long through)
+		{
+			for(int age = 0; age < size; age++)
+			{
+				long id = ids[slot(age)];
+
+				if(id > after && id <= through)
+					return true;
+			}
+
+			return false;
+		}
+
+		/**
+		 * Empties the ring, so the next read loads it from the database
+		 * again.
+		 */
+		public synchronized void reset()
+		{
+			head = 0;
+			size = 0;
+
+			loaded = false;
+			loadedAt = 0;
+			complete = false;
+
+			generation++;
+		}
+
+		// ring slot of the update age places back from the newest
+		int slot(int age)
+		{
+			return (head - 1 - age + 2 * ids.length) % ids.length;
+		}
+
+		boolean contains(long id)
+		{
+			for(int age = 0; age < size; age++)
+			{
+				if(ids[slot(age)] == id)
+					return true;
+			}
+
+			return false;
+		}
+
+		void put(int at, long id, long timestamp, long adjustedTimestamp, long receivedTime, Double lat, Double lon, Double batteryLevel, Integer signalStrength, int flag)
+		{
+			ids[at] = id;
+			timestamps[at] = timestamp;
+			adjusted[at] = adjustedTimestamp;
+			received[at] = receivedTime;
+			lats[at] = lat != null ? lat : Double.NaN;
+			lons[at] = lon != null ? lon : Double.NaN;
+			battery[at] = batteryLevel != null ? batteryLevel.floatValue() : Float.NaN;
+			signal[at] = signalStrength != null ? signalStrength.shortValue() : -1;
+			flags[at] = (byte)flag;
+		}
+
+		LocationUpdate toUpdate(int at)
+		{
+			LocationUpdate update = new LocationUpdate();
+
+			update.id = ids[at];
+			update.imei = imei;
+			update.timestamp = date(timestamps[at]);
+			update.adjustedTimestamp = date(adjusted[at]);
+			update.received = date(received[at]);
+
+			if(!Double.isNaN(lats[at]))
+			{
+				update.lat = lats[at];
+				update.lon = lons[at];
+			}
+
+			// back to the double the phone sent, rather than the nearest one to the float
+			if(!Float.isNaN(battery[at]))
+				update.battery = Double.valueOf(Float.toString(battery[at]));
+
+			if(signal[at] >= 0)
+				update.signal = (int)signal[at];
+
+			update.boot = (flags[at] & BOOT) != 0;
+			update.shutdown = (flags[at] & SHUTDOWN) != 0;
+			update.charging = (flags[at] & CHARGING) != 0;
+
+			if((flags[at] & (FAILED_NETWORK | GOOD_NETWORK)) != 0)
+				update.failedNetwork = (flags[at] & FAILED_NETWORK) != 0;
+
+			return update;
+		}
+	}
+
+	static ConcurrentHashMap<String, Ring> rings = new ConcurrentHashMap<String, Ring>();
+
+	static AtomicLong appended = new AtomicLong();
+	static AtomicLong reads = new AtomicLong();
+	static AtomicLong loads = new AtomicLong();
+	static AtomicLong refreshes = new AtomicLong();
+	static AtomicLong databaseReads = new AtomicLong();
+	static AtomicLong invalidations = new AtomicLong();
+
+	static Ring ring(String imei)
+	{
+		Ring ring = rings.get(imei);
+
+		if(ring == null)
+		{
+			ring = new Ring(imei, capacity);
+
+			Ring previous = rings.putIfAbsent(imei, ring);
+
+			if(previous != null)
+				ring = previous;
+		}
+
+		return ring;
+	}
+
+	/**
+	 * Appends a committed batch, in the order it was written.
+	 */
+	public static void add(List<IngestRecord> records)
+	{
+		for(IngestRecord record : records)
+		{
+			if(record.imei == null)
+				continue;
+
+			ring(record.imei).add(record);
+		}
+
+		appended.addAndGet(records.size());
+	}
+
+	/**
+	 * The phone's latest number updates with all of the flag bits set (0 for
+	 * any update) in the hot window, newest first. Must be called with a JPA
+	 * context, for the first read of a phone and for history beyond the ring.
+	 */
+	public static List<LocationUpdate> recent(String imei, int flag, int number)
+	{
+		if(imei == null)
+			return new ArrayList<LocationUpdate>();
+
+		reads.incrementAndGet();
+
+		Ring ring = ring(imei);
+
+		Date since = LocationPartitions.hotSince();
+
+		boolean loaded;
+		long generation;
+
+		synchronized(ring)
+		{
+			// stale: start over so other nodes' writes come in with the reload
+			if(ring.loaded && System.currentTimeMillis() - ring.loadedAt >= refreshMs)
+			{
+				ring.reset();
+				refreshes.incrementAndGet();
+			}
+
+			loaded = ring.loaded;
+			generation = ring.generation;
+		}
+
+		if(!loaded)
+		{
+			// read outside the lock so the writers aren't held up; load() drops the overlap
+			List<LocationUpdate> latest = LocationUpdate.find("imei = ? and received >= ? order by received desc, id desc", imei, since).fetch(capacity);
+
+			ring.load(latest, latest.size() < capacity, generation);
+
+			loads.incrementAndGet();
+		}
+
+		List<LocationUpdate> updates = ring.select(flag, number, since.getTime());
+
+		boolean complete;
+
+		synchronized(ring)
+		{
+			complete = ring.complete;
+		}
+
+		if(updates.size() < number && !complete)
+		{
+			databaseReads.incrementAndGet();
+
+			updates = LocationUpdate.find("imei = ? and received >= ?" + condition(flag) + " order by received desc, id desc", imei, since).fetch(number);
+		}
+
+		return updates;
+	}
+
+	/**
+	 * The phone's ring as in Ring.history, without touching the database.
+	 * Phones with no ring have no history here and return false.
+	 */
+	public static boolean history(String imei, TLongArrayList ids, TLongArrayList received, TIntArrayList flags)
+	{
+		Ring ring = imei != null ? rings.get(imei) : null;
+
+		if(ring == null)
+			return false;
+
+		return ring.history(ids, received, flags);
+	}
+
+	/**
+	 * Empties the rings holding any update with an id in (after, through],
+	 * for when those rows were changed in the database behind the ring's
+	 * back. They reload on their next read. Returns how many were emptied.
+	 */
+	public static int invalidate(long after, long through)
+	{
+		int emptied = 0;
+
+		for(Ring ring : rings.values())
+		{
+			if(ring.holds(after, through))
+			{
+				ring.reset();
+				emptied++;
+			}
+		}
+
+		invalidations.addAndGet(emptied);
+
+		return emptied;
+	}
+
+	static String condition(int flag)
+	{
+		StringBuilder condition = new StringBuilder();
+
+		if((flag & LOCATION) != 0)
+			condition.append(" and lat is not null and lon is not null");
+
+		if((flag & BOOT) != 0)
+			condition.append(" and boot = true");
+
+		if((flag & SHUTDOWN) != 0)
+			condition.append(" and shutdown = true");
+
+		if((flag & FAILED_NETWORK) != 0)
+			condition.append(" and failednetwork = true");
+
+		if((flag & CHARGING) != 0)
+			condition.append(" and charging = true");
+
+		if((flag & GOOD_NETWORK) != 0)
+			condition.append(" and failednetwork = false");
+
+		return condition.toString();
+	}
+
+	static long time(Date date)
+	{
+		return date != null ? date.getTime() : NONE;
+	}
+
+	static Date date(long time)
+	{
+		return time != NONE ? new Date(time) : null;
+	}
+
+	public static Map<String, Object> getStats()
+	{
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+
+		long entries = 0;
+
+		for(Ring ring : rings.values())
+			entries += ring.size();
+
+		long readCount = reads.get();
+
+		stats.put("capacity", capacity);
+		stats.put("phones", rings.size());
+		stats.put("entries", entries);
+		stats.put("appended", appended.get());
+		stats.put("reads", readCount);
+		stats.put("loads", loads.get());
+		stats.put("refreshes", refreshes.get());
+		stats.put("invalidations", invalidations.get());
+		stats.put("databaseReads", databaseReads.get());
+		stats.put("memoryHitRate", readCount > 0 ? 1.0 - (double)databaseReads.get() / readCount : 0.0);
+
+		return stats;
+	}
+}
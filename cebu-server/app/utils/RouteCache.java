@@ -0,0 +1,145 @@
+package utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import play.Play;
+
+/**
+ * LRU cache of Api.path results, bounded by an estimate of their size in
+ * bytes. Routes are keyed on the edges the origin and destination snap to,
+ * under the version of the routing weights they were computed with: the
+ * router's metric, which only changes when it is re-customized on a velocity
+ * reload. A newer version empties the cache; the per-minute speed updates
+ * don't, as speeds are applied per request.
+ */
+public class RouteCache {
+
+	final long maxBytes;
+
+	/**
+	 * Everything about a route that doesn't depend on departure time or
+	 * current speeds. Geometry isn't kept here, it comes from EdgePolylines.
+	 */
+	public static class Route {
+
+		public final int[] edgeIds;
+		public final double[] lengths;
+
+		public final double distance;
+
+		final long computeMs;
+		final long bytes;
+
+		public Route(int[] edgeIds, double[] lengths, double distance, long computeMs)
+		{
+			this.edgeIds = edgeIds;
+			this.lengths = lengths;
+			this.distance = distance;
+			this.computeMs = computeMs;
+
+			this.bytes = 96 + edgeIds.length * 12L;
+		}
+	}
+
+	LinkedHashMap<Long, Route> routes = new LinkedHashMap<Long, Route>(256, 0.75f, true);
+
+	long bytes = 0;
+
+	long version = -1;
+
+	AtomicLong hits = new AtomicLong();
+	AtomicLong misses = new AtomicLong();
+	AtomicLong savedMs = new AtomicLong();
+	AtomicLong evictions = new AtomicLong();
+
+	public RouteCache()
+	{
+		this(Long.parseLong(Play.configuration.getProperty("application.routeCache.maxBytes", "16777216")));
+	}
+
+	public RouteCache(long maxBytes)
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	static long key(int originEdge, int destinationEdge)
+	{
+		return ((long)originEdge << 32) | (destinationEdge & 0xffffffffL);
+	}
+
+	public synchronized Route get(int originEdge, int destinationEdge, long weightVersion)
+	{
+		checkVersion(weightVersion);
+
+		// a caller still holding the previous weights can't use newer routes
+		Route route = weightVersion == version ? routes.get(key(originEdge, destinationEdge)) : null;
+
+		if(route != null)
+		{
+			hits.incrementAndGet();
+			savedMs.addAndGet(route.computeMs);
+		}
+		else
+			misses.incrementAndGet();
+
+		return route;
+	}
+
+	public synchronized void put(int originEdge, int destinationEdge, long weightVersion, Route route)
+	{
+		checkVersion(weightVersion);
+
+		// computed against weights that have since been replaced
+		if(weightVersion != version || route.bytes > maxBytes)
+			return;
+
+		Route previous = routes.put(key(originEdge, destinationEdge), route);
+
+		if(previous != null)
+			bytes -= previous.bytes;
+
+		bytes += route.bytes;
+
+		while(bytes > maxBytes && !routes.isEmpty())
+		{
+			Map.Entry<Long, Route> eldest = routes.entrySet().iterator().next();
+
+			bytes -= eldest.getValue().bytes;
+			routes.remove(eldest.getKey());
+
+			evictions.incrementAndGet();
+		}
+	}
+
+	void checkVersion(long weightVersion)
+	{
+		if(weightVersion > version)
+		{
+			routes.clear();
+			bytes = 0;
+			version = weightVersion;
+		}
+	}
+
+	public synchronized Map<String, Object> getStats()
+	{
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+
+		long hitCount = hits.get();
+		long missCount = misses.get();
+
+		stats.put("routes", routes.size());
+		stats.put("bytes", bytes);
+		stats.put("maxBytes", maxBytes);
+		stats.put("weightVersion", version);
+		stats.put("hits", hitCount);
+		stats.put("misses", missCount);
+		stats.put("hitRate", hitCount + missCount > 0 ? (double)hitCount / (hitCount + missCount) : 0.0);
+		stats.put("savedMs", savedMs.get());
+		stats.put("evictions", evictions.get());
+
+		return stats;
+	}
+}
@@ -0,0 +1,203 @@
+package utils;
+
+import java.util.Arrays;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.map.hash.TLongDoubleHashMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+
+/**
+ * Edge traversal speeds collected between profile updates, keyed by edge and
+ * SpeedProfiles bucket. merge() folds them into the current profiles: a
+ * bucket with no profile yet takes the mean of its samples, and one with a
+ * profile moves towards it by count / (count + priorSamples), so a handful of
+ * samples only nudges a bucket that already has weeks behind it. Edges that
+ * are stored but didn't fit in memory are merged into their stored profile,
+ * never started afresh over it.
+ */
+public class SpeedProfileSamples implements MapMatcher.Listener {
+
+	// meters/second, as EdgeSpeedStats accepts
+	static final double MIN_SPEED = 0.1;
+	static final double MAX_SPEED = 40.0;
+
+	final double priorSamples;
+
+	// edgeId * BUCKETS + bucket; guarded by this
+	TLongDoubleHashMap sums = new TLongDoubleHashMap();
+	TLongIntHashMap counts = new TLongIntHashMap();
+
+	long samples = 0;
+	long rejected = 0;
+
+	// samples dropped by merge() for edges that had no room for a profile
+	long overLimit = 0;
+
+	public SpeedProfileSamples(double priorSamples)
+	{
+		this.priorSamples = priorSamples;
+	}
+
+	public void traversed(MapMatcher.Traversal traversal)
+	{
+		// bucketed by the middle of the traversal
+		record(traversal.edgeId, traversal.getSpeed(), (traversal.entered + traversal.exited) / 2);
+	}
+
+	public synchronized void record(int edgeId, double speed, long time)
+	{
+		if(edgeId < 0 || !(speed >= MIN_SPEED && speed <= MAX_SPEED))
+		{
+			rejected++;
+			return;
+		}
+
+		long key = (long)edgeId * SpeedProfiles.BUCKETS + SpeedProfiles.bucket(time);
+
+		sums.adjustOrPutValue(key, speed, speed);
+		counts.adjustOrPutValue(key, 1, 1);
+
+		samples++;
+	}
+
+	public synchronized int pendingBuckets()
+	{
+		return counts.size();
+	}
+
+	/**
+	 * The edges with pending samples, sorted.
+	 */
+	public synchronized int[] pendingEdges()
+	{
+		TIntHashSet edges = new TIntHashSet();
+
+		for(long key : counts.keys())
+			edges.add((int)(key / SpeedProfiles.BUCKETS));
+
+		int[] edgeIds = edges.toArray();
+		Arrays.sort(edgeIds);
+
+		return edgeIds;
+	}
+
+	/**
+	 * As merge(current, stored, room) with nothing stored beyond current and
+	 * no limit on new profiles.
+	 */
+	public SpeedProfiles.Update merge(SpeedProfiles.Snapshot current)
+	{
+		return merge(current, new SpeedProfiles.Builder().build(), Integer.MAX_VALUE);
+	}
+
+	/**
+	 * New profiles for the edges with pending samples, in m/s per bucket
+	 * (NaN for no data), built on current or, for edges current has no
+	 * profile for, on stored. At most room edges that have neither get a new
+	 * profile; the samples of the rest are dropped and counted. Clears the
+	 * pending samples.
+	 */
+	public SpeedProfiles.Update merge(SpeedProfiles.Snapshot current, SpeedProfiles.Snapshot stored, int room)
+	{
+		TLongDoubleHashMap takenSums;
+		TLongIntHashMap takenCounts;
+
+		synchronized(this)
+		{
+			takenSums = sums;
+			takenCounts = counts;
+
+			sums = new TLongDoubleHashMap();
+			counts = new TLongIntHashMap();
+		}
+
+		TIntObjectHashMap<double[]> profiles = new TIntObjectHashMap<double[]>();
+		TIntHashSet refused = new TIntHashSet();
+
+		long dropped = 0;
+
+		// by key, so which new edges get the room doesn't depend on hash order
+		long[] keys = takenCounts.keys();
+		Arrays.sort(keys);
+
+		for(long key : keys)
+		{
+			int edgeId = (int)(key / SpeedProfiles.BUCKETS);
+			int bucket = (int)(key % SpeedProfiles.BUCKETS);
+
+			double[] profile = profiles.get(edgeId);
+
+			if(profile == null)
+			{
+				if(refused.contains(edgeId))
+				{
+					dropped += takenCounts.get(key);
+					continue;
+				}
+
+				SpeedProfiles.Snapshot base = current.hasProfile(edgeId) ? current : stored;
+
+				if(!base.hasProfile(edgeId))
+				{
+					if(room <= 0)
+					{
+						refused.add(edgeId);
+						dropped += takenCounts.get(key);
+						continue;
+					}
+
+					room--;
+				}
+
+				profile = new double[SpeedProfiles.BUCKETS];
+
+				for(int b = 0; b < SpeedProfiles.BUCKETS; b++)
+					profile[b] = base.getSpeed(edgeId, b);
+
+				profiles.put(edgeId, profile);
+			}
+
+			int count = takenCounts.get(key);
+			double mean = takenSums.get(key) / count;
+
+			if(Double.isNaN(profile[bucket]))
+				profile[bucket] = mean;
+			else
+				profile[bucket] += (mean - profile[bucket]) * count / (count + priorSamples);
+		}
+
+		int[] edgeIds = profiles.keys();
+		Arrays.sort(edgeIds);
+
+		double[][] merged = new double[edgeIds.length][];
+
+		for(int i = 0; i < edgeIds.length; i++)
+			merged[i] = profiles.get(edgeIds[i]);
+
+		if(dropped > 0)
+		{
+			synchronized(this)
+			{
+				overLimit += dropped;
+			}
+		}
+
+		return new SpeedProfiles.Update(edgeIds, merged, refused.size());
+	}
+
+	public synchronized long getSamples()
+	{
+		return samples;
+	}
+
+	public synchronized long getRejected()
+	{
+		return rejected;
+	}
+
+	public synchronized long getOverLimit()
+	{
+		return overLimit;
+	}
+}
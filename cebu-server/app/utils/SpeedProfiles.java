@@ -0,0 +1,365 @@
+package utils;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.TimeZone;
+
+import models.EdgeSpeedProfile;
+
+import play.Logger;
+import play.Play;
+import play.db.DB;
+
+/**
+ * Typical speed per street edge by day of week and time of day, in 7 x 96
+ * fifteen-minute buckets (Monday 00:00 is bucket 0, local time).
+ *
+ * Profiles live in one flat short[] (speeds in cm/s, 0 where a bucket has
+ * no data), with an int[] mapping edge id to its slot. Only edges that have a
+ * profile take a slot, and there are at most application.speedProfiles.maxEdges
+ * of them, so memory is bounded by 1344 bytes per slot. Like
+ * StreetVelocityCache, reload() builds a new snapshot and swaps it in.
+ */
+public class SpeedProfiles {
+
+	public static final int DAYS = 7;
+	public static final int BUCKET_MINUTES = 15;
+	public static final int BUCKETS_PER_DAY = 24 * 60 / BUCKET_MINUTES;
+	public static final int BUCKETS = DAYS * BUCKETS_PER_DAY;
+
+	static final long DAY_MS = 24 * 60 * 60 * 1000;
+	static final long BUCKET_MS = BUCKET_MINUTES * 60 * 1000;
+
+	// speeds are stored as cm/s in a short: up to ~327 m/s
+	static final double SCALE = 100.0;
+
+	static int maxEdges = Integer.parseInt(Play.configuration.getProperty("application.speedProfiles.maxEdges", "25000"));
+	static double priorSamples = Double.parseDouble(Play.configuration.getProperty("application.speedProfiles.priorSamples", "20"));
+
+	public static class Snapshot {
+
+		// edge id -> slot, -1 where the edge has no profile
+		final int[] slots;
+
+		// slot * BUCKETS + bucket
+		final short[] speeds;
+
+		public final int edgeCount;
+
+		Snapshot(int[] slots, short[] speeds, int edgeCount)
+		{
+			this.slots = slots;
+			this.speeds = speeds;
+			this.edgeCount = edgeCount;
+		}
+
+		public boolean hasProfile(int edgeId)
+		{
+			return edgeId >= 0 && edgeId < slots.length && slots[edgeId] >= 0;
+		}
+
+		/**
+		 * Speed in m/s for edgeId in the given bucket, or NaN if there is no
+		 * data for it.
+		 */
+		public double getSpeed(int edgeId, int bucket)
+		{
+			if(!hasProfile(edgeId))
+				return Double.NaN;
+
+			return fromStored(speeds[slots[edgeId] * BUCKETS + bucket]);
+		}
+	}
+
+	/**
+	 * Builds a snapshot one edge at a time; used when loading from the
+	 * database.
+	 */
+	public static class Builder {
+
+		final int limit;
+
+		int[] slots = new int[0];
+		short[] speeds = new short[0];
+
+		int edgeCount = 0;
+		int dropped = 0;
+
+		public Builder()
+		{
+			this(maxEdges);
+		}
+
+		public Builder(int limit)
+		{
+			this.limit = limit;
+		}
+
+		public void add(int edgeId, short[] profile)
+		{
+			if(edgeId < 0 || profile.length != BUCKETS)
+				return;
+
+			if(edgeId >= slots.length)
+			{
+				int oldLength = slots.length;
+
+				slots = Arrays.copyOf(slots, Math.max(edgeId + 1, oldLength * 2));
+				Arrays.fill(slots, oldLength, slots.length, -1);
+			}
+
+			int slot = slots[edgeId];
+
+			if(slot < 0)
+			{
+				if(edgeCount >= limit)
+				{
+					dropped++;
+					return;
+				}
+
+				slot = edgeCount++;
+				slots[edgeId] = slot;
+
+				if((slot + 1) * BUCKETS > speeds.length)
+					speeds = Arrays.copyOf(speeds, Math.min(Math.max(BUCKETS, speeds.length * 2), limit * BUCKETS));
+			}
+
+			System.arraycopy(profile, 0, speeds, slot * BUCKETS, BUCKETS);
+		}
+
+		public Snapshot build()
+		{
+			return new Snapshot(slots, Arrays.copyOf(speeds, edgeCount * BUCKETS), edgeCount);
+		}
+	}
+
+	/**
+	 * Profiles to store for a set of edges, m/s per bucket with NaN for no
+	 * data.
+	 */
+	public static class Update {
+
+		public final int[] edgeIds;
+		public final double[][] profiles;
+
+		// edges left without a profile for want of room
+		public final int refused;
+
+		public Update(int[] edgeIds, double[][] profiles, int refused)
+		{
+			this.edgeIds = edgeIds;
+			this.profiles = profiles;
+			this.refused = refused;
+		}
+	}
+
+	volatile Snapshot snapshot = new Snapshot(new int[0], new short[0], 0);
+
+	// traversals from map matching and trip lines, folded in by flush()
+	public final SpeedProfileSamples samples = new SpeedProfileSamples(priorSamples);
+
+	long flushes = 0;
+	int lastFlushEdges = 0;
+
+	// rows in edgespeedprofile at the last reload, loaded or not
+	int storedEdges = 0;
+
+	public SpeedProfiles()
+	{
+		reload();
+	}
+
+	public Snapshot getSnapshot()
+	{
+		return snapshot;
+	}
+
+	/**
+	 * Bucket index for an instant, in the server's time zone.
+	 */
+	public static int bucket(long time)
+	{
+		long local = time + TimeZone.getDefault().getOffset(time);
+
+		long day = local / DAY_MS;
+
+		// 1970-01-01 was a Thursday, day 3 counting from Monday
+		int dayOfWeek = (int)((day + 3) % DAYS);
+
+		int bucketOfDay = (int)((local - day * DAY_MS) / BUCKET_MS);
+
+		return dayOfWeek * BUCKETS_PER_DAY + bucketOfDay;
+	}
+
+	public static short toStored(double speed)
+	{
+		if(Double.isNaN(speed) || speed <= 0)
+			return 0;
+
+		return (short)Math.max(1, Math.min(Short.MAX_VALUE, Math.round(speed * SCALE)));
+	}
+
+	public static double fromStored(short speed)
+	{
+		return speed > 0 ? speed / SCALE : Double.NaN;
+	}
+
+	/**
+	 * Rebuilds the profiles from the edgespeedprofile table and publishes them.
+	 * On failure the previous profiles stay in place.
+	 */
+	public synchronized void reload()
+	{
+		Connection conn = null;
+
+		try
+		{
+			conn = DB.datasource.getConnection();
+
+			Builder builder = new Builder();
+
+			EdgeSpeedProfile.loadProfiles(conn, builder);
+
+			snapshot = builder.build();
+			storedEdges = builder.edgeCount + builder.dropped;
+
+			if(builder.dropped > 0)
+				Logger.warn("Speed profiles: " + builder.dropped + " edges over the limit of " + maxEdges + " were not loaded");
+
+			Logger.info("Speed profiles loaded for " + snapshot.edgeCount + " edges");
+		}
+		catch(SQLException e)
+		{
+			Logger.error("Could not load speed profiles: " + e);
+		}
+		finally
+		{
+			Jdbc.closeQuietly(conn);
+		}
+	}
+
+	/**
+	 * Folds the samples collected since the last flush into the profiles,
+	 * stores the edges they touched and reloads. Edges that have a stored
+	 * profile but weren't loaded (over maxEdges) are read back first so their
+	 * history is merged into rather than replaced, and new edges only get a
+	 * profile while the table is under maxEdges. If the save fails those
+	 * samples are lost; profiles are averages over weeks, so an hour's worth
+	 * missing doesn't show. If reading the stored profiles fails the samples
+	 * wait for the next flush.
+	 */
+	public synchronized void flush()
+	{
+		if(samples.pendingBuckets() > 0)
+		{
+			Snapshot current = snapshot;
+
+			Snapshot stored = null;
+
+			try
+			{
+				stored = loadUnloaded(current, samples.pendingEdges());
+			}
+			catch(SQLException e)
+			{
+				Logger.error("Could not read stored speed profiles, keeping samples for the next flush: " + e);
+			}
+
+			if(stored != null)
+			{
+				Update update = samples.merge(current, stored, maxEdges - storedEdges);
+
+				if(update.refused > 0)
+					Logger.warn("Speed profiles: " + update.refused + " edges got no profile, the table is at its limit of " + maxEdges);
+
+				try
+				{
+					save(update.edgeIds, update.profiles);
+
+					flushes++;
+					lastFlushEdges = update.edgeIds.length;
+				}
+				catch(SQLException e)
+				{
+					Logger.error("Could not save speed profiles for " + update.edgeIds.length + " edges: " + e);
+				}
+			}
+		}
+
+		reload();
+	}
+
+	/**
+	 * The stored profiles of those edges current has none for.
+	 */
+	Snapshot loadUnloaded(Snapshot current, int[] edgeIds) throws SQLException
+	{
+		int[] missing = new int[edgeIds.length];
+		int count = 0;
+
+		for(int edgeId : edgeIds)
+		{
+			if(!current.hasProfile(edgeId))
+				missing[count++] = edgeId;
+		}
+
+		Builder builder = new Builder(Math.max(count, 1));
+
+		// nothing stored that wasn't loaded, so nothing to read
+		if(count == 0 || storedEdges <= current.edgeCount)
+			return builder.build();
+
+		Connection conn = DB.datasource.getConnection();
+
+		try
+		{
+			EdgeSpeedProfile.loadProfiles(conn, Arrays.copyOf(missing, count), builder);
+		}
+		finally
+		{
+			Jdbc.closeQuietly(conn);
+		}
+
+		return builder.build();
+	}
+
+	/**
+	 * Stores profiles (m/s per bucket, NaN for no data) for the given edges,
+	 * replacing what was there. Takes effect in memory on the next reload().
+	 */
+	public void save(int[] edgeIds, double[][] profiles) throws SQLException
+	{
+		short[][] stored = new short[profiles.length][];
+
+		for(int i = 0; i < profiles.length; i++)
+		{
+			stored[i] = new short[BUCKETS];
+
+			for(int b = 0; b < BUCKETS; b++)
+				stored[i][b] = toStored(profiles[i][b]);
+		}
+
+		Connection conn = DB.datasource.getConnection();
+
+		try
+		{
+			conn.setAutoCommit(false);
+
+			EdgeSpeedProfile.saveProfiles(conn, edgeIds, stored);
+
+			conn.commit();
+		}
+		catch(SQLException e)
+		{
+			Jdbc.rollbackQuietly(conn);
+
+			throw e;
+		}
+		finally
+		{
+			Jdbc.closeQuietly(conn);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package utils;
+
+import java.util.Date;
+
+/**
+ * Builds a PostgreSQL array literal ("{1.0,NULL,2.5}") for binding a whole
+ * column of a batch as one string parameter, e.g. unnest(?::float8[]).
+ */
+public class SqlArray {
+
+	StringBuilder builder;
+
+	boolean empty = true;
+
+	public SqlArray(int capacity)
+	{
+		builder = new StringBuilder(capacity * 8 + 2);
+		builder.append('{');
+	}
+
+	public SqlArray add(Double value)
+	{
+		if(value == null || value.isNaN() || value.isInfinite())
+			return addNull();
+
+		separator().append(value.doubleValue());
+		return this;
+	}
+
+	public SqlArray add(Integer value)
+	{
+		if(value == null)
+			return addNull();
+
+		separator().append(value.intValue());
+		return this;
+	}
+
+	public SqlArray add(long value)
+	{
+		separator().append(value);
+		return this;
+	}
+
+	public SqlArray add(Boolean value)
+	{
+		if(value == null)
+			return addNull();
+
+		separator().append(value ? 't' : 'f');
+		return this;
+	}
+
+	public SqlArray add(Date value)
+	{
+		if(value == null)
+			return addNull();
+
+		separator().append('"').append(DateUtils.formatSqlTimestamp(value)).append('"');
+		return this;
+	}
+
+	public SqlArray add(String value)
+	{
+		if(value == null)
+			return addNull();
+
+		separator().append('"');
+
+		for(int i = 0; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+
+			if(c == '"' || c == '\\')
+				builder.append('\\');
+
+			builder.append(c);
+		}
+
+		builder.append('"');
+		return this;
+	}
+
+	public SqlArray addNull()
+	{
+		separator().append("NULL");
+		return this;
+	}
+
+	StringBuilder separator()
+	{
+		if(!empty)
+			builder.append(',');
+
+		empty = false;
+
+		return builder;
+	}
+
+	@Override
+	public String toString()
+	{
+		return builder.toString() + "}";
+	}
+}
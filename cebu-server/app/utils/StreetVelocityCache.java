@@ -1,46 +1,181 @@
 package utils;
 
-import java.math.BigInteger;
-import java.util.HashMap;
-import java.util.List;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
 
-import javax.persistence.Query;
+import models.StatsEdge;
 
-import org.codehaus.groovy.tools.shell.util.Logger;
+import play.Logger;
+import play.db.DB;
 
-import akka.event.Logging;
+/**
+ * Current speed per street edge, indexed by the graph's int edge id. The
+ * table is an immutable snapshot: reload() builds a new one from statsedge
+ * in the background and swaps it in with a single volatile write, so readers
+ * never block and never see a partly loaded table.
+ */
+public class StreetVelocityCache {
 
-import models.StatsEdge;
+	public static class Snapshot {
 
+		// NaN where an edge has no observed speed
+		final double[] velocities;
 
-public class StreetVelocityCache {
+		public final double meanVelocity;
+
+		public final int edgeCount;
+
+		// increases with every reload and update, so derived results can tell they're stale
+		public final long version;
+
+		// increases only with full reloads from statsedge
+		public final long reloads;
+
+		Snapshot(double[] velocities, long version, long reloads)
+		{
+			this.velocities = velocities;
+			this.version = version;
+			this.reloads = reloads;
+
+			double total = 0.0;
+			int count = 0;
+
+			for(double velocity : velocities)
+			{
+				if(!Double.isNaN(velocity))
+				{
+					total += velocity;
+					count++;
+				}
+			}
+
+			this.edgeCount = count;
+			this.meanVelocity = count > 0 ? total / count : 0.0;
+		}
+
+		public double getStreetVelocity(int edgeId)
+		{
+			if(edgeId >= 0 && edgeId < velocities.length)
+			{
+				double velocity = velocities[edgeId];
+
+				if(!Double.isNaN(velocity))
+					return velocity;
+			}
+
+			return meanVelocity;
+		}
+	}
+
+	/**
+	 * Where reloads read the speeds from: statsedge.
+	 */
+	public interface Store {
+
+		double[] getEdgeVelocities() throws SQLException;
+	}
+
+	static class DatabaseStore implements Store {
+
+		public double[] getEdgeVelocities() throws SQLException
+		{
+			Connection conn = null;
+
+			try
+			{
+				conn = DB.datasource.getConnection();
+
+				return StatsEdge.getEdgeVelocities(conn);
+			}
+			finally
+			{
+				Jdbc.closeQuietly(conn);
+			}
+		}
+	}
+
+	final Store store;
+
+	volatile Snapshot snapshot = new Snapshot(new double[0], 0, 0);
 
-	HashMap<BigInteger,Double> streetVelocities = new HashMap<BigInteger,Double>();
-	
-	Double meanVelocity;
 	public StreetVelocityCache()
-	{	
-		List edges = StatsEdge.getEdgeVelocityList();
-		
-		Double total = 0.0;
-		
-		for(Object o : edges)
+	{
+		this(new DatabaseStore());
+	}
+
+	public StreetVelocityCache(Store store)
+	{
+		this.store = store;
+
+		reload();
+	}
+
+	/**
+	 * Speed for edgeId, or the network mean if the edge has none.
+	 */
+	public double getStreetVelocity(int edgeId)
+	{
+		return snapshot.getStreetVelocity(edgeId);
+	}
+
+	/**
+	 * The current table; use this to do several lookups against one version.
+	 */
+	public Snapshot getSnapshot()
+	{
+		return snapshot;
+	}
+
+	public long getVersion()
+	{
+		return snapshot.version;
+	}
+
+	/**
+	 * Publishes new speeds for some edges on top of the current table, for
+	 * speeds measured since the last reload.
+	 */
+	public synchronized void update(int[] edgeIds, double[] speeds)
+	{
+		double[] current = snapshot.velocities;
+
+		int length = current.length;
+
+		for(int edgeId : edgeIds)
+			length = Math.max(length, edgeId + 1);
+
+		double[] velocities = Arrays.copyOf(current, length);
+		Arrays.fill(velocities, current.length, length, Double.NaN);
+
+		for(int i = 0; i < edgeIds.length; i++)
 		{
-			Object[] r = (Object[])o;	
-			total += (Double)r[1];
-			
-			streetVelocities.put((BigInteger)r[0], (Double)r[1]);
+			if(edgeIds[i] >= 0)
+				velocities[edgeIds[i]] = speeds[i];
 		}
-		
-		meanVelocity = total / edges.size();
+
+		snapshot = new Snapshot(velocities, snapshot.version + 1, snapshot.reloads);
 	}
 
-	public Double getStreetVelocity(BigInteger edgeId)
+	/**
+	 * Rebuilds the table from statsedge and publishes it. On failure the
+	 * previous table stays in place.
+	 */
+	public synchronized void reload()
 	{
-		if(streetVelocities.containsKey(edgeId))
-			return streetVelocities.get(edgeId);
-		else
-			return meanVelocity;
+		long start = System.currentTimeMillis();
+
+		try
+		{
+			double[] velocities = store.getEdgeVelocities();
+
+			snapshot = new Snapshot(velocities, snapshot.version + 1, snapshot.reloads + 1);
+
+			Logger.info("Street velocities reloaded: " + snapshot.edgeCount + " edges in " + (System.currentTimeMillis() - start) + "ms");
+		}
+		catch(SQLException e)
+		{
+			Logger.error("Could not reload street velocities: " + e);
+		}
 	}
-	
 }
@@ -0,0 +1,383 @@
+package utils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import models.JobCheckpoint;
+
+import play.Logger;
+import play.Play;
+import play.db.DB;
+
+/**
+ * Recomputes adjustedtimestamp for every locationupdate with sent and
+ * received times: the phone's timestamp (or sent time) shifted by the
+ * received - sent clock skew, as LocationUpdate.calcAdjustedTime does for one
+ * row.
+ *
+ * Works through the table in id order, one UPDATE per chunkSize ids, each
+ * committed together with the job's checkpoint. A run covers the ids that
+ * existed when it started; later rows are adjusted as they're ingested. A
+ * stopped or failed run resumes from its checkpoint. After each chunk the
+ * RecentUpdates rings holding its rows are emptied, so they reload with the
+ * new times.
+ */
+public class TimeAdjustment {
+
+	static int chunkSize = Integer.parseInt(Play.configuration.getProperty("application.adjustTimes.chunkSize", "5000"));
+	static long pauseMs = Long.parseLong(Play.configuration.getProperty("application.adjustTimes.pauseMs", "100"));
+
+	public static final String NAME = "adjustTimes";
+
+	static volatile boolean running = false;
+	static volatile boolean cancelled = false;
+
+	static volatile long firstId = 0;
+	static volatile long lastId = 0;
+	static volatile long endId = 0;
+	static volatile long processed = 0;
+	static volatile long chunks = 0;
+	static volatile long lastChunkMs = 0;
+
+	static volatile Date started = null;
+	static volatile Date finished = null;
+	static volatile String error = null;
+
+	static synchronized boolean claim()
+	{
+		if(running)
+			return false;
+
+		running = true;
+		cancelled = false;
+
+		return true;
+	}
+
+	public static boolean isRunning()
+	{
+		return running;
+	}
+
+	/**
+	 * Asks a running job to stop after its current chunk.
+	 */
+	public static void cancel()
+	{
+		cancelled = true;
+	}
+
+	/**
+	 * True if a run was started and hasn't finished. Must be called with a
+	 * JPA context.
+	 */
+	public static boolean isUnfinished()
+	{
+		return JobCheckpoint.count("name = ? and finished = false", NAME) > 0;
+	}
+
+	/**
+	 * Where a run reads and writes: the locationupdate table and the job's
+	 * checkpoint, on one connection.
+	 */
+	public interface Store {
+
+		/**
+		 * The saved checkpoint, or null if the job has never run.
+		 */
+		JobCheckpoint load() throws SQLException;
+
+		long maxId() throws SQLException;
+
+		/**
+		 * The id a chunk starting after after ends at, capped at end; end if
+		 * there is nothing left in between.
+		 */
+		long chunkEnd(long after, long end) throws SQLException;
+
+		/**
+		 * Adjusts the rows in (after, through], returning how many changed.
+		 */
+		int adjust(long after, long through) throws SQLException;
+
+		/**
+		 * Saves the checkpoint and commits it together with everything
+		 * adjusted since the last commit.
+		 */
+		void commit(JobCheckpoint checkpoint) throws SQLException;
+
+		void rollback();
+
+		void close();
+	}
+
+	/**
+	 * Runs to the end, to cancel() or to the first error, on the calling
+	 * thread. restart starts over from the first id; otherwise an unfinished
+	 * run carries on from its checkpoint. Returns at once if already running.
+	 */
+	public static void run(boolean restart)
+	{
+		if(!claim())
+			return;
+
+		Connection conn;
+
+		try
+		{
+			conn = DB.datasource.getConnection();
+			conn.setAutoCommit(false);
+		}
+		catch(SQLException e)
+		{
+			error = e.toString();
+			running = false;
+
+			Logger.error("Time adjustment could not start: " + e);
+
+			return;
+		}
+
+		work(new DatabaseStore(conn), restart);
+	}
+
+	/**
+	 * As run(), against the given store, which it closes.
+	 */
+	public static void run(Store store, boolean restart)
+	{
+		if(!claim())
+		{
+			store.close();
+			return;
+		}
+
+		work(store, restart);
+	}
+
+	static void work(Store store, boolean restart)
+	{
+		try
+		{
+			JobCheckpoint checkpoint = store.load();
+
+			if(restart || checkpoint == null || checkpoint.finished)
+			{
+				if(checkpoint == null)
+				{
+					checkpoint = new JobCheckpoint();
+					checkpoint.name = NAME;
+				}
+
+				checkpoint.lastId = 0L;
+				checkpoint.endId = store.maxId();
+				checkpoint.processed = 0L;
+				checkpoint.started = new Date();
+				checkpoint.finished = false;
+
+				store.commit(checkpoint);
+			}
+
+			firstId = checkpoint.lastId;
+			lastId = checkpoint.lastId;
+			endId = checkpoint.endId;
+			processed = checkpoint.processed;
+			started = checkpoint.started;
+			finished = null;
+			error = null;
+			chunks = 0;
+
+			Logger.info("Adjusting times from id " + lastId + " to " + endId);
+
+			while(!cancelled && lastId < endId)
+			{
+				long begin = System.currentTimeMillis();
+
+				long after = lastId;
+				long chunkEnd = store.chunkEnd(after, endId);
+
+				int rows = store.adjust(after, chunkEnd);
+
+				checkpoint.lastId = chunkEnd;
+				checkpoint.processed += rows;
+
+				if(chunkEnd >= endId)
+					checkpoint.finished = true;
+
+				store.commit(checkpoint);
+
+				// the status pages would otherwise keep showing the old times
+				RecentUpdates.invalidate(after, chunkEnd);
+
+				lastId = chunkEnd;
+				processed = checkpoint.processed;
+				chunks++;
+				lastChunkMs = System.currentTimeMillis() - begin;
+
+				// leave the database some room for ingest between chunks
+				if(pauseMs > 0 && lastId < endId)
+					Thread.sleep(pauseMs);
+			}
+
+			if(lastId >= endId)
+			{
+				finished = new Date();
+
+				Logger.info("Adjusted times for " + processed + " location updates");
+			}
+			else
+				Logger.info("Time adjustment stopped at id " + lastId + " of " + endId);
+		}
+		catch(SQLException e)
+		{
+			error = e.toString();
+
+			Logger.error("Time adjustment failed at id " + lastId + ": " + e);
+
+			store.rollback();
+		}
+		catch(InterruptedException e)
+		{
+			// the last chunk is committed, so the checkpoint is already good
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			store.close();
+
+			running = false;
+		}
+	}
+
+	static class DatabaseStore implements Store {
+
+		final Connection conn;
+
+		DatabaseStore(Connection conn)
+		{
+			this.conn = conn;
+		}
+
+		public JobCheckpoint load() throws SQLException
+		{
+			return JobCheckpoint.load(conn, NAME);
+		}
+
+		public long maxId() throws SQLException
+		{
+			PreparedStatement statement = conn.prepareStatement("SELECT coalesce(max(id), 0) FROM locationupdate");
+
+			try
+			{
+				ResultSet results = statement.executeQuery();
+
+				results.next();
+
+				long id = results.getLong(1);
+
+				results.close();
+
+				return id;
+			}
+			finally
+			{
+				statement.close();
+			}
+		}
+
+		/**
+		 * The id chunkSize rows on from after, read off the id index rather
+		 * than assuming ids are dense.
+		 */
+		public long chunkEnd(long after, long end) throws SQLException
+		{
+			PreparedStatement statement = conn.prepareStatement("SELECT max(id) FROM (SELECT id FROM locationupdate WHERE id > ? AND id <= ? ORDER BY id LIMIT ?) AS chunk");
+
+			try
+			{
+				statement.setLong(1, after);
+				statement.setLong(2, end);
+				statement.setInt(3, chunkSize);
+
+				ResultSet results = statement.executeQuery();
+
+				results.next();
+
+				long id = results.getLong(1);
+
+				// nothing left in range
+				if(results.wasNull())
+					id = end;
+
+				results.close();
+
+				return id;
+			}
+			finally
+			{
+				statement.close();
+			}
+		}
+
+		public int adjust(long after, long through) throws SQLException
+		{
+			PreparedStatement statement = conn.prepareStatement("UPDATE locationupdate SET adjustedtimestamp = coalesce(timestamp, sent) + (received - sent)" +
+					"  WHERE id > ? AND id <= ? AND sent IS NOT NULL AND received IS NOT NULL");
+
+			try
+			{
+				statement.setLong(1, after);
+				statement.setLong(2, through);
+
+				return statement.executeUpdate();
+			}
+			finally
+			{
+				statement.close();
+			}
+		}
+
+		public void commit(JobCheckpoint checkpoint) throws SQLException
+		{
+			checkpoint.store(conn);
+			conn.commit();
+		}
+
+		public void rollback()
+		{
+			Jdbc.rollbackQuietly(conn);
+		}
+
+		public void close()
+		{
+			Jdbc.closeQuietly(conn);
+		}
+	}
+
+	public static Map<String, Object> getStats()
+	{
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+
+		long range = endId - firstId;
+
+		stats.put("running", running);
+		stats.put("cancelled", cancelled);
+		stats.put("chunkSize", chunkSize);
+		stats.put("lastId", lastId);
+		stats.put("endId", endId);
+		stats.put("percent", range > 0 ? 100.0 * (lastId - firstId) / range : (finished != null ? 100.0 : 0.0));
+		stats.put("processed", processed);
+		stats.put("chunks", chunks);
+		stats.put("lastChunkMs", lastChunkMs);
+		stats.put("started", started);
+		stats.put("finished", finished);
+		stats.put("error", error);
+
+		return stats;
+	}
+}
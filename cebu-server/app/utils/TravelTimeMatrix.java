@@ -0,0 +1,217 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import play.Play;
+
+import com.conveyal.traffic.graph.TrafficEdge;
+import com.conveyal.traffic.graph.TrafficGraph;
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Travel times and distances from N origins to M destinations.
+ *
+ * With a contraction hierarchy, points are snapped to edges and costed like
+ * Api.path: the snapped edges count in full at both ends. The destinations'
+ * backward searches are run once into buckets and each origin is then a
+ * single upward search that scans them. Without one, every pair is a
+ * TrafficGraph search. Either way the origins are spread over a fixed pool of
+ * worker threads, and rows are handed to the caller in order as soon as each
+ * is done, so large matrices can be streamed out instead of built up in
+ * memory.
+ */
+public class TravelTimeMatrix {
+
+	public static final int UNREACHABLE = -1;
+
+	static int threads = Integer.parseInt(Play.configuration.getProperty("application.matrix.threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+
+	static int maxCells = Integer.parseInt(Play.configuration.getProperty("application.matrix.maxCells", "250000"));
+
+	static final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+
+		final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "matrix-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Receives rows in origin order. Times are whole seconds and distances
+	 * whole meters, UNREACHABLE where there is no path.
+	 */
+	public interface RowWriter {
+
+		void write(int origin, int[] seconds, int[] meters) throws Exception;
+	}
+
+	/**
+	 * True if an origins x destinations matrix is within the configured cell
+	 * limit.
+	 */
+	public static boolean fits(int origins, int destinations)
+	{
+		return (long)origins * destinations <= maxCells;
+	}
+
+	/**
+	 * Computes the matrix with the router's current metric, or with the graph
+	 * and velocities when router is null. Points further than maxSnapDistance
+	 * from any edge are unreachable.
+	 */
+	public static void compute(final ContractionHierarchy router, EdgeIndex index, double maxSnapDistance, final TrafficGraph graph, final StreetVelocityCache.Snapshot velocities, Coordinate[] origins, Coordinate[] destinations, RowWriter writer) throws Exception
+	{
+		final int columns = destinations.length;
+
+		List<Future<int[][]>> rows = new ArrayList<Future<int[][]>>(origins.length);
+
+		if(router != null && router.getMetric() != null)
+		{
+			final ContractionHierarchy.Metric metric = router.getMetric();
+
+			EdgeIndex.Snap snap = new EdgeIndex.Snap();
+
+			// searches run from the end of the origin edge to the start of each destination edge
+			final int[] targetEdges = new int[columns];
+			int[] targets = new int[columns];
+
+			for(int j = 0; j < columns; j++)
+			{
+				targetEdges[j] = index.nearest(destinations[j].y, destinations[j].x, maxSnapDistance, snap) ? snap.edgeId : -1;
+				targets[j] = router.getTail(targetEdges[j]);
+			}
+
+			final ContractionHierarchy.Buckets buckets = router.buckets(metric, targets);
+
+			for(Coordinate origin : origins)
+			{
+				final int sourceEdge = index.nearest(origin.y, origin.x, maxSnapDistance, snap) ? snap.edgeId : -1;
+
+				rows.add(executor.submit(new Callable<int[][]>() {
+
+					public int[][] call()
+					{
+						double[] cost = new double[columns];
+						double[] meters = new double[columns];
+
+						router.oneToMany(buckets, router.getHead(sourceEdge), cost, meters);
+
+						for(int j = 0; j < columns; j++)
+						{
+							if(targetEdges[j] < 0 || router.getTail(sourceEdge) < 0)
+							{
+								cost[j] = Double.POSITIVE_INFINITY;
+							}
+							else if(targetEdges[j] == sourceEdge)
+							{
+								cost[j] = router.getCost(metric, sourceEdge);
+								meters[j] = router.getLength(sourceEdge);
+							}
+							else
+							{
+								cost[j] += router.getCost(metric, sourceEdge) + router.getCost(metric, targetEdges[j]);
+								meters[j] += router.getLength(sourceEdge) + router.getLength(targetEdges[j]);
+							}
+						}
+
+						return toRow(cost, meters);
+					}
+				}));
+			}
+		}
+		else
+		{
+			final Coordinate[] to = destinations;
+
+			for(final Coordinate origin : origins)
+			{
+				rows.add(executor.submit(new Callable<int[][]>() {
+
+					public int[][] call()
+					{
+						double[] cost = new double[columns];
+						double[] meters = new double[columns];
+
+						for(int j = 0; j < columns; j++)
+						{
+							List<Integer> edgeIds = graph.getEdgesBetweenPoints(origin, to[j]);
+
+							// an empty path is no route either, not a free one
+							if(edgeIds == null || edgeIds.isEmpty())
+							{
+								cost[j] = Double.POSITIVE_INFINITY;
+								continue;
+							}
+
+							for(Integer edgeId : edgeIds)
+							{
+								TrafficEdge edge = graph.getTrafficEdge(edgeId);
+
+								double speed = velocities.getStreetVelocity(edgeId);
+
+								cost[j] += edge.geLength() / (speed > 0 ? speed : ContractionHierarchy.DEFAULT_SPEED);
+								meters[j] += edge.geLength();
+							}
+						}
+
+						return toRow(cost, meters);
+					}
+				}));
+			}
+		}
+
+		try
+		{
+			for(int i = 0; i < rows.size(); i++)
+			{
+				int[][] row = rows.get(i).get();
+
+				writer.write(i, row[0], row[1]);
+			}
+		}
+		catch(ExecutionException e)
+		{
+			throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+		}
+		finally
+		{
+			// don't leave work queued behind a failed or abandoned response
+			for(Future<int[][]> row : rows)
+				row.cancel(false);
+		}
+	}
+
+	static int[][] toRow(double[] cost, double[] meters)
+	{
+		int[] seconds = new int[cost.length];
+		int[] distance = new int[cost.length];
+
+		for(int j = 0; j < cost.length; j++)
+		{
+			if(cost[j] == Double.POSITIVE_INFINITY)
+			{
+				seconds[j] = UNREACHABLE;
+				distance[j] = UNREACHABLE;
+			}
+			else
+			{
+				seconds[j] = (int)Math.round(cost[j]);
+				distance[j] = (int)Math.round(meters[j]);
+			}
+		}
+
+		return new int[][] { seconds, distance };
+	}
+}
@@ -0,0 +1,267 @@
+package utils;
+
+import gnu.trove.iterator.TIntLongIterator;
+import gnu.trove.map.hash.TIntLongHashMap;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import models.GraphEdge;
+
+import play.Logger;
+import play.Play;
+import play.db.DB;
+
+/**
+ * Edge travel times from trip line crossings, a cheap alternative to map
+ * matching. Each pair of consecutive fixes from a vehicle is tested against
+ * the trip line index; crossing an edge's first line leaves it pending, and
+ * crossing its second line within maxTravelSeconds makes a sample of the
+ * time between them over the distance between the lines. Samples go to the
+ * same listeners as MapMatcher's traversals.
+ */
+public class TripLineDetector {
+
+	static long maxTravelMs = Long.parseLong(Play.configuration.getProperty("application.tripLines.maxTravelSeconds", "300")) * 1000;
+
+	// fixes further apart than this in time aren't joined up
+	static long maxGapMs = Long.parseLong(Play.configuration.getProperty("application.tripLines.maxGap", "60")) * 1000;
+
+	static long idleMs = Long.parseLong(Play.configuration.getProperty("application.tripLines.idleMinutes", "10")) * 60 * 1000;
+
+	static final int MAX_CROSSINGS = 64;
+
+	static class Vehicle {
+
+		boolean hasPosition = false;
+
+		double lat;
+		double lon;
+		long time;
+
+		// edge id -> when its first line was crossed
+		final TIntLongHashMap pending = new TIntLongHashMap();
+
+		volatile long lastSeen;
+	}
+
+	final TripLineIndex index;
+
+	final ConcurrentHashMap<String, Vehicle> vehicles = new ConcurrentHashMap<String, Vehicle>();
+
+	final List<MapMatcher.Listener> listeners = new CopyOnWriteArrayList<MapMatcher.Listener>();
+
+	final ThreadLocal<int[]> lineBuffer = new ThreadLocal<int[]>() {
+
+		@Override
+		protected int[] initialValue()
+		{
+			return new int[MAX_CROSSINGS];
+		}
+	};
+
+	final ThreadLocal<long[]> timeBuffer = new ThreadLocal<long[]>() {
+
+		@Override
+		protected long[] initialValue()
+		{
+			return new long[MAX_CROSSINGS];
+		}
+	};
+
+	AtomicLong observations = new AtomicLong();
+	AtomicLong crossings = new AtomicLong();
+	AtomicLong samples = new AtomicLong();
+	AtomicLong unpaired = new AtomicLong();
+	AtomicLong detectNanos = new AtomicLong();
+
+	public TripLineDetector(TripLineIndex index)
+	{
+		this.index = index;
+	}
+
+	/**
+	 * Loads every edge's trip lines from graphedge and indexes them in cells
+	 * of cellSize meters. Null if there are none or they can't be read.
+	 */
+	public static TripLineDetector load(double cellSize)
+	{
+		Connection conn = null;
+
+		try
+		{
+			conn = DB.datasource.getConnection();
+
+			TripLineIndex.Builder builder = new TripLineIndex.Builder();
+
+			GraphEdge.getTripLines(conn, builder);
+
+			if(builder.size() == 0)
+			{
+				Logger.warn("No trip lines in graphedge, trip line detection is off");
+				return null;
+			}
+
+			return new TripLineDetector(builder.build(cellSize));
+		}
+		catch(SQLException e)
+		{
+			Logger.error("Could not load trip lines: " + e);
+			return null;
+		}
+		finally
+		{
+			Jdbc.closeQuietly(conn);
+		}
+	}
+
+	public void addListener(MapMatcher.Listener listener)
+	{
+		listeners.add(listener);
+	}
+
+	/**
+	 * Feeds one fix for a vehicle; time is in ms. Fixes no newer than the
+	 * last one are ignored.
+	 */
+	public void observe(String imei, double lat, double lon, long time)
+	{
+		long start = System.nanoTime();
+
+		observations.incrementAndGet();
+
+		Vehicle vehicle = vehicles.get(imei);
+
+		if(vehicle == null)
+		{
+			Vehicle created = new Vehicle();
+
+			vehicle = vehicles.putIfAbsent(imei, created);
+
+			if(vehicle == null)
+				vehicle = created;
+		}
+
+		synchronized(vehicle)
+		{
+			vehicle.lastSeen = System.currentTimeMillis();
+
+			if(vehicle.hasPosition && time <= vehicle.time)
+				return;
+
+			if(vehicle.hasPosition && time - vehicle.time <= maxGapMs)
+			{
+				int[] lines = lineBuffer.get();
+				long[] times = timeBuffer.get();
+
+				int count = index.crossings(vehicle.lat, vehicle.lon, vehicle.time, lat, lon, time, lines, times);
+
+				crossings.addAndGet(count);
+
+				for(int i = 0; i < count; i++)
+					crossed(imei, vehicle, lines[i], times[i]);
+			}
+			else
+				vehicle.pending.clear();
+
+			vehicle.hasPosition = true;
+			vehicle.lat = lat;
+			vehicle.lon = lon;
+			vehicle.time = time;
+		}
+
+		detectNanos.addAndGet(System.nanoTime() - start);
+	}
+
+	void crossed(String imei, Vehicle vehicle, int line, long time)
+	{
+		int edgeId = index.getEdgeId(line);
+
+		if(index.isFirst(line))
+		{
+			if(vehicle.pending.containsKey(edgeId))
+				unpaired.incrementAndGet();
+
+			vehicle.pending.put(edgeId, time);
+
+			// drop first lines that were never followed by a second
+			for(TIntLongIterator it = vehicle.pending.iterator(); it.hasNext();)
+			{
+				it.advance();
+
+				if(time - it.value() > maxTravelMs)
+				{
+					it.remove();
+					unpaired.incrementAndGet();
+				}
+			}
+
+			return;
+		}
+
+		if(!vehicle.pending.containsKey(edgeId))
+			return;
+
+		long entered = vehicle.pending.remove(edgeId);
+
+		if(time <= entered || time - entered > maxTravelMs)
+		{
+			unpaired.incrementAndGet();
+			return;
+		}
+
+		samples.incrementAndGet();
+
+		MapMatcher.Traversal traversal = new MapMatcher.Traversal(imei, edgeId, entered, time, index.getDistance(line));
+
+		for(MapMatcher.Listener listener : listeners)
+		{
+			try
+			{
+				listener.traversed(traversal);
+			}
+			catch(Exception e)
+			{
+				Logger.error("Trip line listener failed: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Forgets vehicles that haven't reported for idleMinutes.
+	 */
+	public void expireIdle()
+	{
+		long cutoff = System.currentTimeMillis() - idleMs;
+
+		for(Iterator<Vehicle> it = vehicles.values().iterator(); it.hasNext();)
+		{
+			if(it.next().lastSeen < cutoff)
+				it.remove();
+		}
+	}
+
+	public Map<String, Object> getStats()
+	{
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+
+		long observed = observations.get();
+
+		stats.put("edges", index.edgeCount);
+		stats.put("vehicles", vehicles.size());
+		stats.put("observations", observed);
+		stats.put("crossings", crossings.get());
+		stats.put("samples", samples.get());
+		stats.put("unpaired", unpaired.get());
+		stats.put("meanMicros", observed > 0 ? detectNanos.get() / observed / 1000.0 : 0.0);
+
+		return stats;
+	}
+}
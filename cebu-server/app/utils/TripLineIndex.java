@@ -0,0 +1,315 @@
+package utils;
+
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.Arrays;
+
+import play.Logger;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Read-only spatial index of the trip lines drawn across each street edge,
+ * for finding which of them a vehicle crossed between two fixes.
+ *
+ * Every edge has two trip lines, tripLine1 near its start and tripLine2
+ * near its end. Lines are projected onto a local equirectangular plane in
+ * meters and filed into a uniform grid like EdgeIndex's. Line i belongs to
+ * edge pair i / 2 and is that edge's first line when i is even. A crossing
+ * only counts when it's made in the edge's direction of travel, so the two
+ * edges of a two-way street don't pick up each other's lines.
+ */
+public class TripLineIndex {
+
+	static final double METERS_PER_DEGREE = Geodesy.EARTH_RADIUS * Math.PI / 180.0;
+
+	public static class Builder {
+
+		TIntArrayList edgeIds = new TIntArrayList();
+
+		// lat, lon of both ends of both lines, eight per edge
+		TDoubleArrayList coords = new TDoubleArrayList();
+
+		/**
+		 * Adds an edge's trip lines by their end points (lon/lat).
+		 */
+		public void add(int edgeId, Coordinate start1, Coordinate end1, Coordinate start2, Coordinate end2)
+		{
+			edgeIds.add(edgeId);
+
+			for(Coordinate c : new Coordinate[] { start1, end1, start2, end2 })
+			{
+				coords.add(c.y);
+				coords.add(c.x);
+			}
+		}
+
+		public int size()
+		{
+			return edgeIds.size();
+		}
+
+		public TripLineIndex build(double cellSize)
+		{
+			long start = System.currentTimeMillis();
+
+			TripLineIndex index = new TripLineIndex(edgeIds.toArray(), coords.toArray(), cellSize);
+
+			Logger.info("Trip line index: " + index.edgeCount + " edges in " + index.columns + "x" + index.rows + " cells of " + cellSize + "m, built in " + (System.currentTimeMillis() - start) + "ms");
+
+			return index;
+		}
+	}
+
+	final double originLat;
+	final double originLon;
+	final double lonScale;
+
+	final double cellSize;
+	final int columns;
+	final int rows;
+
+	// lines of cell c are cellLines[cellStart[c]] until cellStart[c + 1]
+	final int[] cellStart;
+	final int[] cellLines;
+
+	// per line, end points in meters from the origin
+	final float[] x1;
+	final float[] y1;
+	final float[] x2;
+	final float[] y2;
+
+	// per edge pair: the edge, the direction from its first line to its second, and the meters between them
+	final int[] edgeIds;
+	final float[] directionX;
+	final float[] directionY;
+	final float[] distance;
+
+	public final int edgeCount;
+
+	// lines already tested by the current crossings() call, by stamp
+	final ThreadLocal<int[]> seen;
+
+	TripLineIndex(int[] edgeIds, double[] coords, double cellSize)
+	{
+		this.edgeIds = edgeIds;
+		this.edgeCount = edgeIds.length;
+		this.cellSize = cellSize;
+
+		int lines = edgeCount * 2;
+
+		double minLat = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+		double minLon = Double.MAX_VALUE, maxLon = -Double.MAX_VALUE;
+
+		for(int i = 0; i < coords.length; i += 2)
+		{
+			minLat = Math.min(minLat, coords[i]);
+			maxLat = Math.max(maxLat, coords[i]);
+			minLon = Math.min(minLon, coords[i + 1]);
+			maxLon = Math.max(maxLon, coords[i + 1]);
+		}
+
+		if(edgeCount == 0)
+			minLat = maxLat = minLon = maxLon = 0;
+
+		originLat = minLat;
+		originLon = minLon;
+		lonScale = METERS_PER_DEGREE * Math.cos(Math.toRadians((minLat + maxLat) / 2));
+
+		columns = (int)((maxLon - minLon) * lonScale / cellSize) + 1;
+		rows = (int)((maxLat - minLat) * METERS_PER_DEGREE / cellSize) + 1;
+
+		x1 = new float[lines];
+		y1 = new float[lines];
+		x2 = new float[lines];
+		y2 = new float[lines];
+
+		for(int l = 0; l < lines; l++)
+		{
+			y1[l] = (float)((coords[l * 4] - originLat) * METERS_PER_DEGREE);
+			x1[l] = (float)((coords[l * 4 + 1] - originLon) * lonScale);
+			y2[l] = (float)((coords[l * 4 + 2] - originLat) * METERS_PER_DEGREE);
+			x2[l] = (float)((coords[l * 4 + 3] - originLon) * lonScale);
+		}
+
+		directionX = new float[edgeCount];
+		directionY = new float[edgeCount];
+		distance = new float[edgeCount];
+
+		for(int p = 0; p < edgeCount; p++)
+		{
+			int first = p * 2;
+			int second = first + 1;
+
+			directionX[p] = (x1[second] + x2[second] - x1[first] - x2[first]) / 2;
+			directionY[p] = (y1[second] + y2[second] - y1[first] - y2[first]) / 2;
+			distance[p] = (float)Math.hypot(directionX[p], directionY[p]);
+		}
+
+		// count the lines of each cell, then file them
+		cellStart = new int[columns * rows + 1];
+
+		for(int l = 0; l < lines; l++)
+		{
+			for(int r = row(Math.min(y1[l], y2[l])); r <= row(Math.max(y1[l], y2[l])); r++)
+			{
+				for(int c = column(Math.min(x1[l], x2[l])); c <= column(Math.max(x1[l], x2[l])); c++)
+					cellStart[r * columns + c + 1]++;
+			}
+		}
+
+		for(int c = 0; c < columns * rows; c++)
+			cellStart[c + 1] += cellStart[c];
+
+		cellLines = new int[cellStart[columns * rows]];
+
+		int[] fill = Arrays.copyOf(cellStart, columns * rows);
+
+		for(int l = 0; l < lines; l++)
+		{
+			for(int r = row(Math.min(y1[l], y2[l])); r <= row(Math.max(y1[l], y2[l])); r++)
+			{
+				for(int c = column(Math.min(x1[l], x2[l])); c <= column(Math.max(x1[l], x2[l])); c++)
+					cellLines[fill[r * columns + c]++] = l;
+			}
+		}
+
+		final int lineCount = lines;
+
+		seen = new ThreadLocal<int[]>() {
+
+			@Override
+			protected int[] initialValue()
+			{
+				// last slot holds the current stamp
+				return new int[lineCount + 1];
+			}
+		};
+	}
+
+	int column(double x)
+	{
+		return Math.max(0, Math.min(columns - 1, (int)Math.floor(x / cellSize)));
+	}
+
+	int row(double y)
+	{
+		return Math.max(0, Math.min(rows - 1, (int)Math.floor(y / cellSize)));
+	}
+
+	public int getEdgeId(int line)
+	{
+		return edgeIds[line / 2];
+	}
+
+	public boolean isFirst(int line)
+	{
+		return line % 2 == 0;
+	}
+
+	// meters between an edge pair's two lines
+	public double getDistance(int line)
+	{
+		return distance[line / 2];
+	}
+
+	/**
+	 * Finds the trip lines crossed moving in a straight line from the first
+	 * fix to the second, in the direction of their edges. Writes each line
+	 * and the time it was crossed, interpolated between the fixes' times,
+	 * into lines and times in crossing order, and returns how many there
+	 * were (at most lines.length).
+	 */
+	public int crossings(double lat1, double lon1, long time1, double lat2, double lon2, long time2, int[] lines, long[] times)
+	{
+		double px = (lon1 - originLon) * lonScale;
+		double py = (lat1 - originLat) * METERS_PER_DEGREE;
+		double qx = (lon2 - originLon) * lonScale;
+		double qy = (lat2 - originLat) * METERS_PER_DEGREE;
+
+		double mx = qx - px;
+		double my = qy - py;
+
+		int[] stamps = seen.get();
+
+		int stamp = ++stamps[stamps.length - 1];
+
+		// stamps wrapped around: start over so old marks can't match
+		if(stamp == 0)
+		{
+			Arrays.fill(stamps, 0);
+			stamp = stamps[stamps.length - 1] = 1;
+		}
+
+		int c1 = column(Math.min(px, qx));
+		int c2 = column(Math.max(px, qx));
+		int r1 = row(Math.min(py, qy));
+		int r2 = row(Math.max(py, qy));
+
+		// crossing positions along the move, kept beside lines while sorting
+		double[] along = new double[lines.length];
+
+		int count = 0;
+
+		for(int r = r1; r <= r2; r++)
+		{
+			for(int c = c1; c <= c2; c++)
+			{
+				int cell = r * columns + c;
+
+				for(int i = cellStart[cell]; i < cellStart[cell + 1] && count < lines.length; i++)
+				{
+					int l = cellLines[i];
+
+					if(stamps[l] == stamp)
+						continue;
+
+					stamps[l] = stamp;
+
+					int p = l / 2;
+
+					// wrong way along this edge
+					if(mx * directionX[p] + my * directionY[p] <= 0)
+						continue;
+
+					double lx = x2[l] - x1[l];
+					double ly = y2[l] - y1[l];
+
+					double denominator = mx * ly - my * lx;
+
+					if(denominator == 0)
+						continue;
+
+					double ax = x1[l] - px;
+					double ay = y1[l] - py;
+
+					// u along the move, v along the line
+					double u = (ax * ly - ay * lx) / denominator;
+					double v = (ax * my - ay * mx) / denominator;
+
+					if(u < 0 || u > 1 || v < 0 || v > 1)
+						continue;
+
+					// insert in order of u
+					int k = count++;
+
+					while(k > 0 && along[k - 1] > u)
+					{
+						along[k] = along[k - 1];
+						lines[k] = lines[k - 1];
+						k--;
+					}
+
+					along[k] = u;
+					lines[k] = l;
+				}
+			}
+		}
+
+		for(int k = 0; k < count; k++)
+			times[k] = time1 + Math.round((time2 - time1) * along[k]);
+
+		return count;
+	}
+}
@@ -0,0 +1,473 @@
+package utils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import gnu.trove.iterator.TLongLongIterator;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.set.hash.TLongHashSet;
+
+import models.LocationUpdate;
+
+import play.Logger;
+import play.Play;
+import play.db.DB;
+
+/**
+ * Time since the previous update and since the previous good-network update
+ * for a whole list of a phone's updates at once, in place of a query per
+ * row. Walks the phone's history in received order, ties by id, a single
+ * time: from the RecentUpdates ring when it reaches back far enough and
+ * otherwise from one query over the hot window. Updates at the start of the walk, whose
+ * predecessors are older than it, get them from one more query reaching at
+ * most lookbackDays past the hot window; if that finds nothing they are left
+ * to their own per-row queries. Also reports a phone's connectivity gaps: long
+ * silences between updates, and runs of failed network between good ones.
+ */
+public class UpdateGaps {
+
+	static int minGapMinutes = Integer.parseInt(Play.configuration.getProperty("application.gaps.minMinutes", "10"));
+	static int lookbackDays = Integer.parseInt(Play.configuration.getProperty("application.gaps.lookbackDays", "30"));
+
+	static final long NONE = Long.MIN_VALUE;
+
+	static final long MINUTE_MS = 60 * 1000;
+	static final long DAY_MS = 24 * 60 * MINUTE_MS;
+
+	public static class Gap {
+
+		// silence: no updates at all; network: only failed network updates
+		public final String type;
+
+		public final Date start;
+		public final Date end;
+		public final long minutes;
+
+		Gap(String type, long start, long end)
+		{
+			this.type = type;
+			this.start = new Date(start);
+			this.end = new Date(end);
+			this.minutes = (end - start) / MINUTE_MS;
+		}
+	}
+
+	/**
+	 * One walk over a phone's updates in received order, ties by id. Records
+	 * both gaps for the wanted ids (none if null) and collects gaps of at
+	 * least minGapMs.
+	 */
+	public static class Pass {
+
+		final TLongHashSet wanted;
+		final long minGapMs;
+
+		final TLongLongHashMap sinceLast = new TLongLongHashMap();
+		final TLongLongHashMap sinceLastGood = new TLongLongHashMap();
+		final TLongHashSet seen = new TLongHashSet();
+
+		// wanted ids met before the walk's first row or first good row, with
+		// their received times, waiting on before()
+		final TLongLongHashMap needLast = new TLongLongHashMap();
+		final TLongLongHashMap needLastGood = new TLongLongHashMap();
+
+		public final List<Gap> gaps = new ArrayList<Gap>();
+
+		public long updates = 0;
+
+		// the walk's first row, where lookback() picks up
+		long firstId = NONE;
+		long firstReceived = NONE;
+
+		long previous = NONE;
+		long previousGood = NONE;
+
+		// the last good-network update with a received time, for the gap report
+		long lastGood = NONE;
+
+		boolean sawGood = false;
+		boolean failing = false;
+
+		public Pass(TLongHashSet wanted, long minGapMs)
+		{
+			this.wanted = wanted;
+			this.minGapMs = minGapMs;
+		}
+
+		/**
+		 * received is NONE for rows without one. good and failed are
+		 * failednetwork false and true; location-only rows have neither.
+		 */
+		public void next(long id, long received, boolean good, boolean failed)
+		{
+			if(wanted != null && wanted.contains(id))
+			{
+				seen.add(id);
+
+				if(updates == 0)
+					needLast.put(id, received);
+				else
+					sinceLast.put(id, gap(received, previous));
+
+				if(!sawGood)
+					needLastGood.put(id, received);
+				else
+					sinceLastGood.put(id, gap(received, previousGood));
+			}
+
+			if(updates == 0)
+			{
+				firstId = id;
+				firstReceived = received;
+			}
+
+			updates++;
+
+			if(minGapMs > 0 && received != NONE)
+			{
+				if(previous != NONE && received - previous >= minGapMs)
+					gaps.add(new Gap("silence", previous, received));
+
+				if(good && failing && lastGood != NONE && received - lastGood >= minGapMs)
+					gaps.add(new Gap("network", lastGood, received));
+			}
+
+			if(good)
+				failing = false;
+			else if(failed)
+				failing = true;
+
+			// like the per-row queries, the previous row counts even if it has no received time
+			previous = received;
+
+			if(good)
+			{
+				previousGood = received;
+				sawGood = true;
+			}
+
+			if(good && received != NONE)
+				lastGood = received;
+		}
+
+		/**
+		 * Supplies the received times of the phone's last update and last
+		 * good-network update before the walk started, NONE for either that
+		 * wasn't found, for the wanted ids the walk had no predecessor for.
+		 */
+		public void before(long last, long lastGoodBefore)
+		{
+			if(last != NONE)
+			{
+				for(TLongLongIterator it = needLast.iterator(); it.hasNext(); )
+				{
+					it.advance();
+					sinceLast.put(it.key(), gap(it.value(), last));
+				}
+
+				needLast.clear();
+			}
+
+			if(lastGoodBefore != NONE)
+			{
+				for(TLongLongIterator it = needLastGood.iterator(); it.hasNext(); )
+				{
+					it.advance();
+					sinceLastGood.put(it.key(), gap(it.value(), lastGoodBefore));
+				}
+
+				needLastGood.clear();
+			}
+		}
+
+		/**
+		 * True if every wanted id was seen.
+		 */
+		public boolean sawAll()
+		{
+			return wanted == null || seen.size() == wanted.size();
+		}
+
+		/**
+		 * True if every wanted id was seen and has both gaps.
+		 */
+		public boolean resolved()
+		{
+			return sawAll() && needLast.isEmpty() && needLastGood.isEmpty();
+		}
+
+		/**
+		 * Minutes since the previous update, 0 if it has no received time,
+		 * null if it wasn't found.
+		 */
+		public Long minutesSinceLast(long id)
+		{
+			return sinceLast.containsKey(id) ? sinceLast.get(id) / MINUTE_MS : null;
+		}
+
+		/**
+		 * Minutes since the previous good-network update, 0 if it has no
+		 * received time, null if it wasn't found.
+		 */
+		public Long minutesSinceLastGood(long id)
+		{
+			return sinceLastGood.containsKey(id) ? sinceLastGood.get(id) / MINUTE_MS : null;
+		}
+
+		static long gap(long received, long previous)
+		{
+			return received != NONE && previous != NONE ? received - previous : 0;
+		}
+	}
+
+	static AtomicLong fills = new AtomicLong();
+	static AtomicLong memoryFills = new AtomicLong();
+	static AtomicLong databaseFills = new AtomicLong();
+	static AtomicLong lookbacks = new AtomicLong();
+	static AtomicLong failures = new AtomicLong();
+
+	/**
+	 * Sets updateGap and goodNetworkGap on each of the phone's updates. Any
+	 * whose predecessor wasn't found, and all of them on a database error,
+	 * are left null and fall back to their own per-row queries.
+	 */
+	public static void fill(String imei, List<LocationUpdate> updates)
+	{
+		if(imei == null || updates.isEmpty())
+			return;
+
+		fills.incrementAndGet();
+
+		TLongHashSet wanted = new TLongHashSet();
+
+		for(LocationUpdate update : updates)
+		{
+			if(update.id != null)
+				wanted.add(update.id);
+		}
+
+		TLongArrayList ids = new TLongArrayList();
+		TLongArrayList received = new TLongArrayList();
+		TIntArrayList flags = new TIntArrayList();
+
+		// the ring at most covers the hot window, never necessarily the phone's first update
+		RecentUpdates.history(imei, ids, received, flags);
+
+		Pass pass = new Pass(wanted, 0);
+
+		for(int i = 0; i < ids.size(); i++)
+			pass.next(ids.get(i), received.get(i), (flags.get(i) & RecentUpdates.GOOD_NETWORK) != 0, (flags.get(i) & RecentUpdates.FAILED_NETWORK) != 0);
+
+		try
+		{
+			if(pass.sawAll())
+				memoryFills.incrementAndGet();
+			else
+			{
+				pass = scan(imei, LocationPartitions.hotSince(), wanted, 0);
+
+				databaseFills.incrementAndGet();
+			}
+
+			if(!pass.resolved() && pass.firstId != NONE && pass.firstReceived != NONE)
+			{
+				lookback(imei, pass, new Date(LocationPartitions.hotSince().getTime() - lookbackDays * DAY_MS));
+
+				lookbacks.incrementAndGet();
+			}
+		}
+		catch(SQLException e)
+		{
+			failures.incrementAndGet();
+
+			Logger.error("Could not read update gaps for " + imei + ": " + e);
+
+			return;
+		}
+
+		for(LocationUpdate update : updates)
+		{
+			if(update.id == null)
+				continue;
+
+			update.updateGap = pass.minutesSinceLast(update.id);
+			update.goodNetworkGap = pass.minutesSinceLastGood(update.id);
+		}
+	}
+
+	/**
+	 * The phone's silences and failed-network runs of at least minMinutes
+	 * since the given time.
+	 */
+	public static Map<String, Object> report(String imei, Date since, int minMinutes) throws SQLException
+	{
+		Pass pass = scan(imei, since, null, Math.max(minMinutes, 1) * MINUTE_MS);
+
+		long silence = 0;
+		long network = 0;
+		long longest = 0;
+
+		for(Gap gap : pass.gaps)
+		{
+			if(gap.type.equals("silence"))
+				silence += gap.minutes;
+			else
+				network += gap.minutes;
+
+			longest = Math.max(longest, gap.minutes);
+		}
+
+		Map<String, Object> report = new LinkedHashMap<String, Object>();
+
+		report.put("imei", imei);
+		report.put("since", since);
+		report.put("minMinutes", minMinutes);
+		report.put("updates", pass.updates);
+		report.put("silenceMinutes", silence);
+		report.put("failedNetworkMinutes", network);
+		report.put("longestMinutes", longest);
+		report.put("gaps", pass.gaps);
+
+		return report;
+	}
+
+	public static Map<String, Object> report(String imei, Date since) throws SQLException
+	{
+		return report(imei, since, minGapMinutes);
+	}
+
+	/**
+	 * Walks the phone's updates received since the given time, streamed in
+	 * received order from one query. Ids don't follow arrival order across
+	 * nodes (see IdAllocator), so they only break ties.
+	 */
+	static Pass scan(String imei, Date since, TLongHashSet wanted, long minGapMs) throws SQLException
+	{
+		Pass pass = new Pass(wanted, minGapMs);
+
+		Connection conn = null;
+
+		try
+		{
+			conn = DB.datasource.getConnection();
+
+			// the driver only streams with a fetch size inside a transaction
+			conn.setAutoCommit(false);
+
+			PreparedStatement statement = conn.prepareStatement("SELECT id, received, failednetwork FROM locationupdate WHERE imei = ? AND received >= ? ORDER BY received, id");
+
+			try
+			{
+				statement.setFetchSize(1000);
+				statement.setString(1, imei);
+				statement.setTimestamp(2, new Timestamp(since.getTime()));
+
+				ResultSet results = statement.executeQuery();
+
+				while(results.next())
+				{
+					long id = results.getLong(1);
+
+					Timestamp received = results.getTimestamp(2);
+
+					boolean failed = results.getBoolean(3);
+					boolean good = !failed && !results.wasNull();
+
+					pass.next(id, received != null ? received.getTime() : NONE, good, failed);
+				}
+
+				results.close();
+			}
+			finally
+			{
+				statement.close();
+			}
+
+			conn.commit();
+		}
+		finally
+		{
+			Jdbc.closeQuietly(conn);
+		}
+
+		return pass;
+	}
+
+	/**
+	 * Finds the phone's last update and last good-network update before the
+	 * pass's first row in received order, received no earlier than since, in
+	 * one query.
+	 */
+	static void lookback(String imei, Pass pass, Date since) throws SQLException
+	{
+		Connection conn = null;
+
+		try
+		{
+			conn = DB.datasource.getConnection();
+
+			PreparedStatement statement = conn.prepareStatement("SELECT" +
+					"  (SELECT received FROM locationupdate WHERE imei = ? AND (received < ? OR (received = ? AND id < ?)) AND received >= ? ORDER BY received DESC, id DESC LIMIT 1)," +
+					"  (SELECT received FROM locationupdate WHERE imei = ? AND (received < ? OR (received = ? AND id < ?)) AND received >= ? AND failednetwork = false ORDER BY received DESC, id DESC LIMIT 1)");
+
+			try
+			{
+				Timestamp first = new Timestamp(pass.firstReceived);
+
+				for(int i = 0; i < 2; i++)
+				{
+					statement.setString(5 * i + 1, imei);
+					statement.setTimestamp(5 * i + 2, first);
+					statement.setTimestamp(5 * i + 3, first);
+					statement.setLong(5 * i + 4, pass.firstId);
+					statement.setTimestamp(5 * i + 5, new Timestamp(since.getTime()));
+				}
+
+				ResultSet results = statement.executeQuery();
+
+				results.next();
+
+				Timestamp last = results.getTimestamp(1);
+				Timestamp lastGood = results.getTimestamp(2);
+
+				results.close();
+
+				pass.before(last != null ? last.getTime() : NONE, lastGood != null ? lastGood.getTime() : NONE);
+			}
+			finally
+			{
+				statement.close();
+			}
+		}
+		finally
+		{
+			Jdbc.closeQuietly(conn);
+		}
+	}
+
+	public static Map<String, Object> getStats()
+	{
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+
+		stats.put("minGapMinutes", minGapMinutes);
+		stats.put("lookbackDays", lookbackDays);
+		stats.put("fills", fills.get());
+		stats.put("memoryFills", memoryFills.get());
+		stats.put("databaseFills", databaseFills.get());
+		stats.put("lookbacks", lookbacks.get());
+		stats.put("failures", failures.get());
+
+		return stats;
+	}
+}
@@ -73,12 +73,12 @@ Taxi.vehicles = Em.ArrayController.create({
       
       this._markerCache[id].addTo(map);
       
-      $('#taxi_list').append('<li id="' + vehicle.id + '">' + vehicle.driver.driverId + ' -- ' + vehicle.vehicle.bodyNumber + '</li>');
+      $('#taxi_list').append('<li id="' + vehicle.id + '">' + vehicle.driver + ' -- ' + vehicle.vehicle + '</li>');
     }
     else if (typeof this._markerCache[id] != "undefined")
     {
     	
-    	$('#' + vehicle.id).html(vehicle.driver.driverId + ' -- ' + vehicle.vehicle.bodyNumber);
+    	$('#' + vehicle.id).html(vehicle.driver + ' -- ' + vehicle.vehicle);
     		
     	this._markerCache[id].setLatLng([vehicle.recentLon, vehicle.recentLat]);
     	
@@ -119,9 +119,9 @@ Taxi.vehicles = Em.ArrayController.create({
     if(messageText != "")
     	messageText += '<br/><a href="#" onclick="clearMessages(' + vehicle.id + ');">clear messages</a>';
     	
-    messageText += '<br/><a href="#" onclick="showSendForm( '+ vehicle.id + ', \'' + vehicle.driver.driverId + ' -- ' + vehicle.vehicle.bodyNumber + '\');">send message</a>';
+    messageText += '<br/><a href="#" onclick="showSendForm( '+ vehicle.id + ', \'' + vehicle.driver + ' -- ' + vehicle.vehicle + '\');">send message</a>';
     
-    var vehicleName = vehicle.driver.driverId + ' -- ' + vehicle.vehicle.bodyNumber;
+    var vehicleName = vehicle.driver + ' -- ' + vehicle.vehicle;
     	
     var headerStyle = "";
     
@@ -130,7 +130,7 @@ Taxi.vehicles = Em.ArrayController.create({
     	
     
     $('#' + vehicle.id).html(' <li class="divider"></li><li><strong><a href="#"  ' + headerStyle + ' onclick="map.setView([' + vehicle.recentLon + ', ' + vehicle.recentLat + '], 15);">' + vehicleName + '</strong></a>' + messageText + '</li>');    
-    this._markerCache[id].bindPopup(vehicle.driver.driverId + " -- " + vehicle.vehicle.bodyNumber + messageText);
+    this._markerCache[id].bindPopup(vehicle.driver + " -- " + vehicle.vehicle + messageText);
     
   },
  
@@ -292,11 +292,11 @@ function updateTaxis()
 	for(var taxi in taxiData)
 	{
 		taxiMarkers[taxiData[taxi].id] = new L.Marker(new L.LatLng(taxiData[taxi].recentLat.toFixed(5), taxiData[taxi].recentLon.toFixed(5)), {icon: taxiIcon});
-		taxiMarkers[taxiData[taxi].id].bindPopup('<strong>' + taxiData[taxi].operator.name + '</strong>: ' + taxiData[taxi].driver.driverId);
+		taxiMarkers[taxiData[taxi].id].bindPopup('<strong>' + taxiData[taxi].operator + '</strong>: ' + taxiData[taxi].driver);
 
 		taxiLayer.addLayer(taxiMarkers[taxiData[taxi].id]);
 		
-		$('#taxi_list').append('<li><a class="taxi_item" href="#" data-id="' + taxiData[taxi].id + '">' + taxiData[taxi].operator.name + ': ' + taxiData[taxi].driver.driverId + '</a></li>');
+		$('#taxi_list').append('<li><a class="taxi_item" href="#" data-id="' + taxiData[taxi].id + '">' + taxiData[taxi].operator + ': ' + taxiData[taxi].driver + '</a></li>');
 
 		$('.taxi_item').click(function(event) {
 			
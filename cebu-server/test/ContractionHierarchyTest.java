@@ -0,0 +1,368 @@
+import org.junit.*;
+import java.util.*;
+import play.test.*;
+import utils.*;
+import play.Play;
+import gnu.trove.list.array.TDoubleArrayList;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+public class ContractionHierarchyTest extends UnitTest {
+
+    static final int SIZE = 15;
+
+    static int[] edgeTail;
+    static int[] edgeHead;
+    static double[] edgeLength;
+
+    static int[] edge(int... ends) {
+        return ends;
+    }
+
+    // grid of streets with some one-way and missing blocks, plus a few parallel edges and unused ids
+    static ContractionHierarchy grid(Random random) {
+        List<int[]> edges = new ArrayList<int[]>();
+
+        for(int r = 0; r < SIZE; r++)
+        {
+            for(int c = 0; c < SIZE; c++)
+            {
+                int node = r * SIZE + c;
+
+                if(c + 1 < SIZE)
+                    addStreet(edges, random, node, node + 1);
+
+                if(r + 1 < SIZE)
+                    addStreet(edges, random, node, node + SIZE);
+            }
+        }
+
+        int ids = edges.size() * 2;
+
+        edgeTail = new int[ids];
+        edgeHead = new int[ids];
+        edgeLength = new double[ids];
+
+        Arrays.fill(edgeTail, -1);
+        Arrays.fill(edgeHead, -1);
+
+        // spread edges over ids with gaps, like the graph's
+        int id = 0;
+
+        for(int[] e : edges)
+        {
+            if(random.nextInt(50) == 0)
+                id++;
+
+            edgeTail[id] = e[0];
+            edgeHead[id] = e[1];
+            edgeLength[id] = 50 + random.nextInt(200);
+            id++;
+        }
+
+        int[] lat = new int[SIZE * SIZE];
+        int[] lon = new int[SIZE * SIZE];
+
+        for(int node = 0; node < lat.length; node++)
+        {
+            lat[node] = 1031000 + (node / SIZE) * 100;
+            lon[node] = 12388000 + (node % SIZE) * 100;
+        }
+
+        return new ContractionHierarchy(lat, lon, edgeTail, edgeHead, edgeLength);
+    }
+
+    static void addStreet(List<int[]> edges, Random random, int a, int b) {
+        int kind = random.nextInt(10);
+
+        if(kind == 0)
+            return;
+
+        if(kind != 1)
+            edges.add(edge(a, b));
+
+        if(kind != 2)
+            edges.add(edge(b, a));
+
+        if(kind == 3)
+            edges.add(edge(a, b));
+    }
+
+    static void assertConnected(ContractionHierarchy ch, int[] path, int source, int target) {
+        int node = source;
+
+        for(int e : path)
+        {
+            assertEquals(node, ch.getTail(e));
+            node = ch.getHead(e);
+        }
+
+        assertEquals(target, node);
+    }
+
+    @Test
+    public void matchesDijkstra() {
+        Random random = new Random(1);
+
+        ContractionHierarchy ch = grid(random);
+
+        double[] cost = new double[edgeLength.length];
+
+        for(int e = 0; e < cost.length; e++)
+            cost[e] = edgeLength[e] / (2 + random.nextInt(12));
+
+        ch.setMetric(ch.customize(cost, 1));
+
+        for(int i = 0; i < 2000; i++)
+        {
+            int source = random.nextInt(ch.nodeCount);
+            int target = random.nextInt(ch.nodeCount);
+
+            int[] expected = ch.dijkstra(cost, source, target);
+            int[] found = ch.route(source, target);
+
+            if(expected == null)
+            {
+                assertNull(found);
+                continue;
+            }
+
+            assertNotNull(found);
+            assertConnected(ch, found, source, target);
+            assertEquals(ContractionHierarchy.cost(expected, cost), ContractionHierarchy.cost(found, cost), 1e-6);
+        }
+    }
+
+    @Test
+    public void recustomizingChangesRoutes() {
+        ContractionHierarchy ch = grid(new Random(2));
+
+        ContractionHierarchy.Metric lengths = ch.customize(ch.getLengths(), 1);
+
+        // make the edges leaving a node near the origin expensive
+        double[] cost = ch.getLengths();
+
+        for(int e = 0; e < cost.length; e++)
+        {
+            if(ch.getTail(e) == SIZE + 1)
+                cost[e] *= 100;
+        }
+
+        ContractionHierarchy.Metric detour = ch.customize(cost, 2);
+
+        for(int target = 0; target < ch.nodeCount; target++)
+        {
+            int[] before = ch.route(lengths, 0, target);
+            int[] after = ch.route(detour, 0, target);
+
+            int[] expectedBefore = ch.dijkstra(ch.getLengths(), 0, target);
+            int[] expectedAfter = ch.dijkstra(cost, 0, target);
+
+            if(expectedBefore == null)
+                continue;
+
+            assertEquals(ContractionHierarchy.cost(expectedBefore, ch.getLengths()), ContractionHierarchy.cost(before, ch.getLengths()), 1e-6);
+            assertEquals(ContractionHierarchy.cost(expectedAfter, cost), ContractionHierarchy.cost(after, cost), 1e-6);
+        }
+    }
+
+    @Test
+    public void manyToManyMatchesPointQueries() {
+        Random random = new Random(4);
+
+        ContractionHierarchy ch = grid(random);
+
+        double[] lengths = ch.getLengths();
+        double[] cost = new double[lengths.length];
+
+        for(int e = 0; e < cost.length; e++)
+            cost[e] = lengths[e] / (2 + random.nextInt(12));
+
+        ContractionHierarchy.Metric metric = ch.customize(cost, 1);
+
+        int[] targets = new int[30];
+
+        for(int j = 0; j < targets.length; j++)
+            targets[j] = random.nextInt(ch.nodeCount);
+
+        ContractionHierarchy.Buckets buckets = ch.buckets(metric, targets);
+
+        double[] found = new double[targets.length];
+        double[] meters = new double[targets.length];
+
+        for(int i = 0; i < 30; i++)
+        {
+            int source = random.nextInt(ch.nodeCount);
+
+            ch.oneToMany(buckets, source, found, meters);
+
+            for(int j = 0; j < targets.length; j++)
+            {
+                int[] path = ch.route(metric, source, targets[j]);
+
+                if(path == null)
+                {
+                    assertEquals(Double.POSITIVE_INFINITY, found[j], 0.0);
+                    continue;
+                }
+
+                assertEquals(ContractionHierarchy.cost(path, cost), found[j], 1e-6);
+                assertEquals(ContractionHierarchy.cost(path, lengths), meters[j], 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void edgeToEdgeIncludesEndEdges() {
+        Random random = new Random(3);
+
+        ContractionHierarchy ch = grid(random);
+
+        double[] lengths = ch.getLengths();
+
+        ContractionHierarchy.Metric metric = ch.customize(lengths, 1);
+
+        List<Integer> edges = new ArrayList<Integer>();
+
+        for(int e = 0; e < edgeTail.length; e++)
+        {
+            if(edgeTail[e] >= 0)
+                edges.add(e);
+        }
+
+        for(int i = 0; i < 500; i++)
+        {
+            int from = edges.get(random.nextInt(edges.size()));
+            int to = edges.get(random.nextInt(edges.size()));
+
+            int[] path = ch.routeEdges(metric, from, to);
+            int[] between = ch.dijkstra(lengths, ch.getHead(from), ch.getTail(to));
+
+            if(from == to)
+            {
+                assertTrue(Arrays.equals(new int[] { from }, path));
+                continue;
+            }
+
+            if(between == null)
+            {
+                assertNull(path);
+                continue;
+            }
+
+            assertEquals(from, path[0]);
+            assertEquals(to, path[path.length - 1]);
+            assertConnected(ch, path, ch.getTail(from), ch.getHead(to));
+            assertEquals(lengths[from] + ContractionHierarchy.cost(between, lengths) + lengths[to], ContractionHierarchy.cost(path, lengths), 1e-6);
+        }
+    }
+
+    // Dijkstra between the nodes at two coordinates, standing in for TrafficGraph
+    static ContractionHierarchy.Reference dijkstraReference(final ContractionHierarchy ch, final double[] cost) {
+        return new ContractionHierarchy.Reference() {
+            public List<Integer> path(Coordinate from, Coordinate to) {
+                int a = -1;
+                int b = -1;
+
+                for(int node = 0; node < ch.nodeCount; node++)
+                {
+                    if(ch.getCoordinate(node).equals2D(from))
+                        a = node;
+                    if(ch.getCoordinate(node).equals2D(to))
+                        b = node;
+                }
+
+                int[] path = ch.dijkstra(cost, a, b);
+
+                List<Integer> edges = new ArrayList<Integer>();
+
+                if(path != null)
+                {
+                    for(int e : path)
+                        edges.add(e);
+                }
+
+                return edges;
+            }
+        };
+    }
+
+    @Test
+    public void regressionComparesUnderTravelTimes() {
+        Random random = new Random(5);
+
+        ContractionHierarchy ch = grid(random);
+
+        double[] lengths = ch.getLengths();
+        double[] times = new double[lengths.length];
+
+        for(int e = 0; e < times.length; e++)
+            times[e] = lengths[e] / (2 + random.nextInt(12));
+
+        ContractionHierarchy.Metric metric = ch.customize(times, 1);
+
+        List<Coordinate[]> pairs = ch.randomPairs(300, 6);
+
+        // a reference on the same travel times agrees on every path's cost
+        Map<String, Object> same = ch.regression(dijkstraReference(ch, times), pairs, metric);
+
+        int compared = (Integer)same.get("compared");
+
+        assertTrue(compared > 200);
+        assertEquals(compared, same.get("sameCost"));
+        assertEquals(compared, same.get("optimal"));
+        assertEquals(0, same.get("dearer"));
+
+        // one on shortest distance, like TrafficGraph, is never faster and often slower
+        Map<String, Object> shortest = ch.regression(dijkstraReference(ch, lengths), pairs, metric);
+
+        assertEquals(0, shortest.get("dearer"));
+        assertTrue((Integer)shortest.get("cheaper") > 0);
+        assertEquals(shortest.get("compared"), (Integer)shortest.get("sameCost") + (Integer)shortest.get("cheaper"));
+        assertTrue((Double)shortest.get("matchRate") < 1.0);
+    }
+
+    @Test
+    public void matchesCheckedInLengths() throws Exception {
+        ContractionHierarchy ch = grid(new Random(5));
+
+        TDoubleArrayList expected = new TDoubleArrayList();
+        List<Coordinate[]> pairs = ContractionHierarchy.readPairs(Play.getFile("test/router-regression-grid.csv"), expected);
+
+        int lengths = 0;
+
+        for(int i = 0; i < expected.size(); i++)
+        {
+            if(!Double.isNaN(expected.get(i)))
+                lengths++;
+        }
+
+        assertEquals(100, pairs.size());
+        assertTrue(lengths > 90);
+
+        ContractionHierarchy.Reference reference = dijkstraReference(ch, ch.getLengths());
+
+        Map<String, Object> check = ch.verify(reference, pairs, expected);
+
+        assertEquals(lengths, check.get("checked"));
+        assertEquals(0, check.get("failed"));
+        assertEquals(0, check.get("referenceChanged"));
+        assertEquals(true, check.get("passed"));
+
+        // a corpus the hierarchy no longer agrees with fails the check
+        for(int i = 0; i < expected.size(); i++)
+        {
+            if(!Double.isNaN(expected.get(i)))
+            {
+                expected.set(i, expected.get(i) * 0.9);
+                break;
+            }
+        }
+
+        check = ch.verify(reference, pairs, expected);
+
+        assertEquals(1, check.get("failed"));
+        assertEquals(1, check.get("referenceChanged"));
+        assertEquals(false, check.get("passed"));
+    }
+}
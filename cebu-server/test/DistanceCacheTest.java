@@ -0,0 +1,144 @@
+import org.junit.*;
+import java.sql.SQLException;
+import java.util.*;
+import play.test.*;
+import models.*;
+import utils.*;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+public class DistanceCacheTest extends UnitTest {
+
+    static class MemoryStore implements DistanceCache.Store {
+
+        List<DistanceCache.Delta> added = new ArrayList<DistanceCache.Delta>();
+
+        boolean fail = false;
+
+        public void addDistances(List<DistanceCache.Delta> deltas) throws SQLException {
+            if(fail)
+                throw new SQLException("connection refused");
+
+            added.addAll(deltas);
+        }
+
+        double total(long vehicleId, Date date) {
+            double total = 0;
+
+            for(DistanceCache.Delta delta : added)
+            {
+                if(delta.vehicleId == vehicleId && delta.date.equals(date))
+                    total += delta.distance;
+            }
+
+            return total;
+        }
+    }
+
+    static Phone loggedIn(long phoneId, long vehicleId) {
+        Vehicle vehicle = new Vehicle();
+        vehicle.id = vehicleId;
+
+        Phone phone = new Phone();
+        phone.id = phoneId;
+        phone.imei = "distance" + phoneId;
+        phone.vehicle = vehicle;
+
+        PhoneRegistry.update(phone);
+
+        return phone;
+    }
+
+    static Date local(int year, int month, int day, int hour, int minute) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month, day, hour, minute);
+
+        return calendar.getTime();
+    }
+
+    // about 111m north of the last point
+    static Coordinate north(int steps) {
+        return new Coordinate(123.9, 10.3 + steps * 0.001);
+    }
+
+    @Test
+    public void closesDayAtMidnight() {
+        Phone phone = loggedIn(9201L, 9301L);
+
+        DistanceCache cache = new DistanceCache();
+
+        assertEquals(0.0, cache.updateDistance(phone.imei, north(0), 5.0, local(2012, 9, 15, 23, 50)), 0);
+
+        double before = cache.updateDistance(phone.imei, north(1), 5.0, local(2012, 9, 15, 23, 55))
+                + cache.updateDistance(phone.imei, north(2), 5.0, local(2012, 9, 15, 23, 59));
+
+        double after = cache.updateDistance(phone.imei, north(3), 5.0, local(2012, 9, 16, 0, 5));
+
+        // a fix inside four times its error doesn't count
+        assertEquals(0.0, cache.updateDistance(phone.imei, new Coordinate(123.9, 10.3031), 5.0, local(2012, 9, 16, 0, 6)), 0);
+
+        assertEquals(222.4, before, 1);
+        assertEquals(111.2, after, 1);
+
+        MemoryStore store = new MemoryStore();
+
+        cache.flushDistances(store);
+
+        assertEquals(2, store.added.size());
+        assertEquals(before, store.total(9301L, local(2012, 9, 15, 0, 0)), 1e-9);
+        assertEquals(after, store.total(9301L, local(2012, 9, 16, 0, 0)), 1e-9);
+
+        // everything went, so a second flush has nothing
+        cache.flushDistances(store);
+
+        assertEquals(2, store.added.size());
+
+        PhoneRegistry.remove(phone);
+    }
+
+    @Test
+    public void requeuesFailedFlush() {
+        Phone phone = loggedIn(9202L, 9302L);
+
+        DistanceCache cache = new DistanceCache();
+
+        cache.updateDistance(phone.imei, north(0), 5.0, local(2012, 9, 15, 10, 0));
+        double first = cache.updateDistance(phone.imei, north(1), 5.0, local(2012, 9, 15, 10, 1));
+
+        MemoryStore store = new MemoryStore();
+        store.fail = true;
+
+        cache.flushDistances(store);
+
+        assertTrue(store.added.isEmpty());
+
+        double second = cache.updateDistance(phone.imei, north(2), 5.0, local(2012, 9, 15, 10, 2));
+
+        store.fail = false;
+
+        cache.flushDistances(store);
+
+        // the retried total and the new one go as a single row for the day
+        assertEquals(1, store.added.size());
+        assertEquals(first + second, store.total(9302L, local(2012, 9, 15, 0, 0)), 1e-9);
+
+        PhoneRegistry.remove(phone);
+    }
+
+    @Test
+    public void ignoresPhonesWithoutVehicle() {
+        Phone phone = loggedIn(9203L, 9303L);
+        phone.vehicle = null;
+        PhoneRegistry.update(phone);
+
+        DistanceCache cache = new DistanceCache();
+
+        cache.updateDistance(phone.imei, north(0), 5.0, local(2012, 9, 15, 10, 0));
+
+        assertEquals(0.0, cache.updateDistance(phone.imei, north(1), 5.0, local(2012, 9, 15, 10, 1)), 0);
+        assertEquals(0, cache.getTrackedVehicles());
+
+        PhoneRegistry.remove(phone);
+    }
+}
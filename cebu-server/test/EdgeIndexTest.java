@@ -0,0 +1,155 @@
+import org.junit.*;
+import java.util.*;
+import play.Logger;
+import play.test.*;
+import utils.*;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+public class EdgeIndexTest extends UnitTest {
+
+    static GeometryFactory factory = new GeometryFactory();
+
+    // random wiggly streets over a few km around central Cebu
+    static EdgePolylines streets(Random random, int count) {
+        EdgePolylines.Builder builder = new EdgePolylines.Builder();
+
+        for(int e = 0; e < count; e++)
+        {
+            Coordinate[] coords = new Coordinate[2 + random.nextInt(4)];
+
+            double lat = 10.28 + random.nextDouble() * 0.06;
+            double lon = 123.86 + random.nextDouble() * 0.06;
+
+            for(int i = 0; i < coords.length; i++)
+            {
+                coords[i] = new Coordinate(lon, lat);
+
+                lat += (random.nextDouble() - 0.5) * 0.002;
+                lon += (random.nextDouble() - 0.5) * 0.002;
+            }
+
+            // leave some ids unused
+            builder.add(e * 2, factory.createLineString(coords));
+        }
+
+        return builder.build();
+    }
+
+    @Test
+    public void nearestMatchesFullScan() {
+        Random random = new Random(1);
+
+        EdgePolylines polylines = streets(random, 2000);
+
+        EdgeIndex index = EdgeIndex.build(polylines, 100);
+
+        // one cell holding everything: every query is a full scan
+        EdgeIndex scan = EdgeIndex.build(polylines, 1e6);
+
+        EdgeIndex.Snap snap = new EdgeIndex.Snap();
+        EdgeIndex.Snap expected = new EdgeIndex.Snap();
+
+        for(int i = 0; i < 2000; i++)
+        {
+            double lat = 10.27 + random.nextDouble() * 0.08;
+            double lon = 123.85 + random.nextDouble() * 0.08;
+
+            boolean found = index.nearest(lat, lon, 300, snap);
+            boolean foundByScan = scan.nearest(lat, lon, 300, expected);
+
+            assertEquals(foundByScan, found);
+
+            if(found)
+            {
+                assertEquals(expected.distance, snap.distance, 1e-6);
+                assertTrue(snap.distance <= 300);
+                assertTrue(snap.fraction >= 0 && snap.fraction <= 1);
+
+                // the snapped point is where the reported distance says it is
+                assertEquals(snap.distance, Geodesy.equirectangular(lat, lon, snap.lat, snap.lon), 0.5);
+            }
+        }
+    }
+
+    @Test
+    public void withinMatchesFullScan() {
+        Random random = new Random(2);
+
+        EdgePolylines polylines = streets(random, 2000);
+
+        EdgeIndex index = EdgeIndex.build(polylines, 100);
+        EdgeIndex scan = EdgeIndex.build(polylines, 1e6);
+
+        int[] edges = new int[1000];
+        int[] expected = new int[1000];
+
+        for(int i = 0; i < 200; i++)
+        {
+            double lat = 10.28 + random.nextDouble() * 0.06;
+            double lon = 123.86 + random.nextDouble() * 0.06;
+
+            int count = index.within(lat, lon, 150, edges);
+            int expectedCount = scan.within(lat, lon, 150, expected);
+
+            assertEquals(expectedCount, count);
+
+            int[] sorted = Arrays.copyOf(edges, count);
+            int[] sortedExpected = Arrays.copyOf(expected, expectedCount);
+
+            Arrays.sort(sorted);
+            Arrays.sort(sortedExpected);
+
+            assertTrue(Arrays.equals(sortedExpected, sorted));
+        }
+    }
+
+    @Test
+    public void gridBeatsFullScan() {
+        Random random = new Random(3);
+
+        EdgePolylines polylines = streets(random, 20000);
+
+        EdgeIndex index = EdgeIndex.build(polylines, 100);
+        EdgeIndex scan = EdgeIndex.build(polylines, 1e6);
+
+        EdgeIndex.Snap snap = new EdgeIndex.Snap();
+
+        double[] lats = new double[1000];
+        double[] lons = new double[1000];
+
+        for(int i = 0; i < lats.length; i++)
+        {
+            lats[i] = 10.28 + random.nextDouble() * 0.06;
+            lons[i] = 123.86 + random.nextDouble() * 0.06;
+        }
+
+        // warm up both before timing
+        int snapped = snaps(index, lats, lons, 50000, snap) + snaps(scan, lats, lons, 500, snap);
+
+        long start = System.nanoTime();
+        snapped += snaps(index, lats, lons, 200000, snap);
+        long indexNs = (System.nanoTime() - start) / 200000;
+
+        start = System.nanoTime();
+        snapped += snaps(scan, lats, lons, 2000, snap);
+        long scanNs = (System.nanoTime() - start) / 2000;
+
+        Logger.info("Edge index benchmark: " + (long)(1e9 / indexNs) + " snaps/s, " + indexNs + "ns/snap against " + scanNs + "ns/snap for a full scan (" + snapped + " snapped)");
+
+        assertTrue(snapped > 0);
+
+        // 20000 edges against the handful in a few cells; the real gap is far wider
+        assertTrue("grid " + indexNs + "ns vs scan " + scanNs + "ns", indexNs * 10 < scanNs);
+    }
+
+    static int snaps(EdgeIndex index, double[] lats, double[] lons, int iterations, EdgeIndex.Snap snap) {
+        int snapped = 0;
+
+        for(int i = 0; i < iterations; i++)
+            snapped += index.nearest(lats[i % lats.length], lons[i % lons.length], 200, snap) ? 1 : 0;
+
+        return snapped;
+    }
+}
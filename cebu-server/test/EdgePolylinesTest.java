@@ -0,0 +1,79 @@
+import org.junit.*;
+import java.util.*;
+import play.test.*;
+import utils.*;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+
+public class EdgePolylinesTest extends UnitTest {
+
+    static GeometryFactory factory = new GeometryFactory();
+
+    // lon/lat, like graph edge geometries
+    static LineString line(double... lonLat) {
+        Coordinate[] coords = new Coordinate[lonLat.length / 2];
+
+        for(int i = 0; i < coords.length; i++)
+            coords[i] = new Coordinate(lonLat[i * 2], lonLat[i * 2 + 1]);
+
+        return factory.createLineString(coords);
+    }
+
+    static EdgePolylines store() {
+        EdgePolylines.Builder builder = new EdgePolylines.Builder();
+
+        builder.add(3, line(123.88541, 10.31571, 123.88602, 10.31633));
+        builder.add(7, line(123.88602, 10.31633, 123.88700, 10.31650, 123.88812, 10.31702));
+        builder.add(12, line(123.90001, 10.29000, 123.90100, 10.28950));
+
+        return builder.build();
+    }
+
+    static List<Coordinate> decode(String points) {
+        return PolylineEncoder.decode(new EncodedPolylineBean(points, null, 0));
+    }
+
+    static void assertPoints(double[] latLon, List<Coordinate> points) {
+        assertEquals(latLon.length / 2, points.size());
+
+        // decode gives x=lat, y=lon
+        for(int i = 0; i < points.size(); i++)
+        {
+            assertEquals(latLon[i * 2], points.get(i).x, 1.1e-5);
+            assertEquals(latLon[i * 2 + 1], points.get(i).y, 1.1e-5);
+        }
+    }
+
+    @Test
+    public void singleEdgesMatchEncoder() {
+        EdgePolylines store = store();
+
+        assertEquals(3, store.edgeCount);
+        assertEquals(PolylineEncoder.createEncodings(line(123.88602, 10.31633, 123.88700, 10.31650, 123.88812, 10.31702)).getPoints(), store.getPolyline(7));
+        assertNull(store.getPolyline(5));
+        assertNull(store.getPolyline(100));
+    }
+
+    @Test
+    public void mergedSharesJoiningPoints() {
+        assertPoints(new double[] {
+            10.31571, 123.88541,
+            10.31633, 123.88602,
+            10.31650, 123.88700,
+            10.31702, 123.88812
+        }, decode(store().getMerged(new int[] { 3, 7 })));
+    }
+
+    @Test
+    public void mergedJumpsGaps() {
+        assertPoints(new double[] {
+            10.31633, 123.88602,
+            10.31650, 123.88700,
+            10.31702, 123.88812,
+            10.29000, 123.90001,
+            10.28950, 123.90100
+        }, decode(store().getMerged(new int[] { 7, 5, 12 })));
+    }
+}
@@ -0,0 +1,95 @@
+import org.junit.*;
+import java.util.*;
+import play.test.*;
+import utils.*;
+
+public class EdgeSpeedStatsTest extends UnitTest {
+
+    static final long MINUTE = 60 * 1000;
+
+    @Test
+    public void meanAndVarianceMatchDirect() {
+        Random random = new Random(1);
+
+        EdgeSpeedStats stats = new EdgeSpeedStats();
+
+        double[] speeds = new double[500];
+        long time = 1350000000000L;
+
+        for(int i = 0; i < speeds.length; i++)
+        {
+            speeds[i] = 5 + random.nextDouble() * 10;
+            stats.record(42, speeds[i], time + i * 1000);
+        }
+
+        double mean = 0;
+
+        for(double speed : speeds)
+            mean += speed / speeds.length;
+
+        double variance = 0;
+
+        for(double speed : speeds)
+            variance += (speed - mean) * (speed - mean) / (speeds.length - 1);
+
+        EdgeSpeedStats.Row row = stats.getRow(42);
+
+        assertEquals(500, row.count);
+        assertEquals(mean, row.mean, 1e-9);
+        assertEquals(variance, row.variance, 1e-9);
+    }
+
+    @Test
+    public void recentSpeedFollowsChange() {
+        EdgeSpeedStats stats = new EdgeSpeedStats();
+
+        long time = 1350000000000L;
+
+        // an hour of free flow, then half an hour of congestion
+        for(int i = 0; i < 60; i++)
+            stats.record(7, 12.0, time + i * MINUTE);
+
+        for(int i = 60; i < 90; i++)
+            stats.record(7, 3.0, time + i * MINUTE);
+
+        EdgeSpeedStats.Row row = stats.getRow(7);
+
+        assertTrue(row.recent < 6.0);
+        assertEquals(9.0, row.mean, 1e-9);
+
+        // a late sample from the free flow hour barely moves it
+        stats.record(7, 12.0, time + 5 * MINUTE);
+
+        assertEquals(row.recent, stats.getRow(7).recent, 0.1);
+    }
+
+    @Test
+    public void onlyChangedEdgesAreTaken() {
+        EdgeSpeedStats stats = new EdgeSpeedStats();
+
+        long time = 1350000000000L;
+
+        stats.record(1, 10.0, time);
+        stats.record(2, 10.0, time);
+        stats.record(2, 11.0, time + 1000);
+
+        // impossible speeds and unmatched edges are dropped
+        stats.record(3, 400.0, time);
+        stats.record(-1, 10.0, time);
+
+        List<EdgeSpeedStats.Row> rows = stats.takeChanged();
+
+        assertEquals(2, rows.size());
+        assertNull(stats.getRow(3));
+
+        assertTrue(stats.takeChanged().isEmpty());
+
+        stats.record(2, 12.0, time + 2000);
+
+        rows = stats.takeChanged();
+
+        assertEquals(1, rows.size());
+        assertEquals(2, rows.get(0).edgeId);
+        assertEquals(3, rows.get(0).count);
+    }
+}
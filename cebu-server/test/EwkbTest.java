@@ -0,0 +1,104 @@
+import org.junit.*;
+import java.util.*;
+import play.Logger;
+import play.test.*;
+import utils.*;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.PrecisionModel;
+import com.vividsolutions.jts.io.ByteOrderValues;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+
+public class EwkbTest extends UnitTest {
+
+    static GeometryFactory factory = new GeometryFactory(new PrecisionModel(), Ewkb.SRID);
+
+    static Coordinate[] randomLine(Random random, int points) {
+        Coordinate[] coords = new Coordinate[points];
+
+        for(int i = 0; i < points; i++)
+            coords[i] = new Coordinate(123.85 + random.nextDouble() * 0.1, 10.25 + random.nextDouble() * 0.1);
+
+        return coords;
+    }
+
+    @Test
+    public void matchesJtsWriter() throws Exception {
+        Random random = new Random(1);
+
+        WKBWriter writer = new WKBWriter(2, ByteOrderValues.LITTLE_ENDIAN, true);
+        WKBReader reader = new WKBReader();
+
+        for(int i = 0; i < 100; i++)
+        {
+            Coordinate[] coords = randomLine(random, 2 + random.nextInt(20));
+
+            Geometry line = factory.createLineString(coords);
+            Geometry point = factory.createPoint(coords[0]);
+
+            assertTrue(Arrays.equals(writer.write(line), Ewkb.lineString(coords)));
+            assertTrue(Arrays.equals(writer.write(point), Ewkb.point(coords[0].x, coords[0].y)));
+
+            Geometry read = reader.read(Ewkb.lineString(line));
+
+            assertEquals(Ewkb.SRID, read.getSRID());
+            assertTrue(line.equalsExact(read));
+        }
+
+        assertNull(Ewkb.lineString((Geometry)null));
+    }
+
+    @Test
+    public void encodingBenchmark() {
+        Random random = new Random(2);
+
+        Coordinate[][] lines = new Coordinate[1000][];
+
+        for(int i = 0; i < lines.length; i++)
+            lines[i] = randomLine(random, 2 + random.nextInt(9));
+
+        int iterations = 200;
+
+        long wktBytes = 0;
+        long ewkbBytes = 0;
+
+        // warm up both before timing
+        for(int n = 0; n < iterations; n++)
+        {
+            for(Coordinate[] line : lines)
+            {
+                wktBytes += Ewkb.toWkt(line).length();
+                ewkbBytes += Ewkb.lineString(line).length;
+            }
+        }
+
+        long start = System.nanoTime();
+
+        for(int n = 0; n < iterations; n++)
+        {
+            for(Coordinate[] line : lines)
+                wktBytes += Ewkb.toWkt(line).length();
+        }
+
+        long wktNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+
+        for(int n = 0; n < iterations; n++)
+        {
+            for(Coordinate[] line : lines)
+                ewkbBytes += Ewkb.lineString(line).length;
+        }
+
+        long ewkbNs = System.nanoTime() - start;
+
+        int count = iterations * lines.length;
+
+        Logger.info("Geometry encoding benchmark: WKT " + (wktNs / count) + "ns/line, " + (wktBytes / count / 2) + " chars; EWKB " + (ewkbNs / count) + "ns/line, " + (ewkbBytes / count / 2) + " bytes");
+
+        assertTrue(ewkbBytes > 0 && wktBytes > 0);
+    }
+}
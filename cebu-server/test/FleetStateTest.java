@@ -0,0 +1,92 @@
+import org.junit.*;
+import java.util.*;
+import play.test.*;
+import models.*;
+import utils.*;
+
+public class FleetStateTest extends UnitTest {
+
+    static final long START = 1350000000000L;
+
+    static Phone phone(long id, Double lat, Double lon, Date lastUpdate) {
+        Phone phone = new Phone();
+        phone.id = id;
+        phone.imei = "fleet" + id;
+        phone.recentLat = lat;
+        phone.recentLon = lon;
+        phone.lastUpdate = lastUpdate;
+        phone.panic = false;
+
+        return phone;
+    }
+
+    @Test
+    public void newerRowReplacesBufferedPosition() {
+        FleetState.updatePosition(new PositionBuffer.Position(9101L, 10.30, 123.90, new Date(START)));
+
+        FleetState.update(phone(9101L, 10.31, 123.91, new Date(START + 1000)));
+
+        PositionBuffer.Position position = FleetState.get(9101L).position;
+
+        assertEquals(10.31, position.lat, 0);
+        assertEquals(123.91, position.lon, 0);
+        assertEquals(new Date(START + 1000), position.lastUpdate);
+
+        Phone removed = phone(9101L, null, null, null);
+        PhoneRegistry.remove(removed);
+        FleetState.remove(removed);
+    }
+
+    @Test
+    public void staleRowKeepsBufferedPosition() {
+        // the row lags PositionBuffer until the next flush
+        FleetState.updatePosition(new PositionBuffer.Position(9102L, 10.30, 123.90, new Date(START + 5000)));
+
+        Phone saved = phone(9102L, 10.20, 123.80, new Date(START));
+        saved.panic = true;
+
+        FleetState.update(saved);
+
+        FleetState.PhoneState state = FleetState.get(9102L);
+
+        assertEquals(10.30, state.position.lat, 0);
+        assertEquals(new Date(START + 5000), state.position.lastUpdate);
+
+        // labels and panic come from the row regardless
+        assertTrue(state.panic);
+        assertEquals("fleet9102", state.phone.imei);
+
+        // the same time: the buffered position stands
+        FleetState.update(phone(9102L, 10.40, 124.00, new Date(START + 5000)));
+
+        assertEquals(10.30, FleetState.get(9102L).position.lat, 0);
+
+        // a row that was never positioned leaves it alone too
+        FleetState.update(phone(9102L, null, null, null));
+
+        assertEquals(10.30, FleetState.get(9102L).position.lat, 0);
+
+        PhoneRegistry.remove(saved);
+        FleetState.remove(saved);
+    }
+
+    @Test
+    public void rowPositionsAPhoneWithoutOne() {
+        FleetState.update(phone(9103L, 10.30, 123.90, new Date(START)));
+
+        FleetState.PhoneState state = FleetState.get(9103L);
+
+        assertTrue(state.hasPosition());
+        assertTrue(state.isActive(new Date(START)));
+        assertFalse(state.isActive(new Date(START + 1)));
+
+        // then live updates take over from it
+        FleetState.updatePosition(new PositionBuffer.Position(9103L, 10.35, 123.95, new Date(START + 10000)));
+
+        assertEquals(10.35, FleetState.get(9103L).position.lat, 0);
+
+        Phone removed = phone(9103L, null, null, null);
+        PhoneRegistry.remove(removed);
+        FleetState.remove(removed);
+    }
+}
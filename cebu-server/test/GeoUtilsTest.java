@@ -0,0 +1,75 @@
+import org.junit.*;
+import java.util.*;
+import java.util.concurrent.*;
+import play.test.*;
+import utils.*;
+
+import org.opengis.referencing.operation.MathTransform;
+
+import com.conveyal.traffic.graph.utils.ProjectedCoordinate;
+import com.vividsolutions.jts.geom.Coordinate;
+
+public class GeoUtilsTest extends UnitTest {
+
+    @Test
+    public void transformsBuiltOncePerZone() throws Exception {
+        // central Cebu and Davao share zone 51N; Manila is 51N too, Jakarta is 48S
+        MathTransform cebu = GeoUtils.getTransform(new Coordinate(123.8854, 10.3157));
+        MathTransform davao = GeoUtils.getTransform(new Coordinate(125.6128, 7.0731));
+        MathTransform jakarta = GeoUtils.getTransform(new Coordinate(106.8456, -6.2088));
+
+        assertNotNull(cebu);
+        assertSame(cebu, davao);
+        assertSame(cebu, GeoUtils.getTransform(32651));
+        assertTrue(cebu != jakarta);
+        assertSame(jakarta, GeoUtils.getTransform(32748));
+
+        // the inverse is the cached one, not a fresh inversion each call
+        assertSame(GeoUtils.getInverseTransform(cebu), GeoUtils.getInverseTransform(cebu));
+    }
+
+    @Test
+    public void concurrentFirstUseSharesOneTransform() throws Exception {
+        // a zone no other test touches, so the threads race to build it
+        final int epsgCode = 32660;
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        List<Future<MathTransform>> results = new ArrayList<Future<MathTransform>>();
+
+        for(int i = 0; i < 16; i++)
+        {
+            results.add(executor.submit(new Callable<MathTransform>() {
+                public MathTransform call() {
+                    return GeoUtils.getTransform(epsgCode);
+                }
+            }));
+        }
+
+        MathTransform first = results.get(0).get();
+
+        assertNotNull(first);
+
+        for(Future<MathTransform> result : results)
+            assertSame(first, result.get());
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void roundTripsThroughCachedTransforms() {
+        Coordinate lonlat = new Coordinate(123.8854, 10.3157);
+
+        ProjectedCoordinate projected = GeoUtils.convertLonLatToEuclidean(lonlat);
+
+        Coordinate back = GeoUtils.convertToLonLat(projected);
+
+        assertEquals(lonlat.x, back.x, 1e-7);
+        assertEquals(lonlat.y, back.y, 1e-7);
+
+        // ten metres on the grid is ten metres on the ground, near enough
+        Coordinate moved = GeoUtils.convertToLatLon(projected.getTransform(), new Coordinate(projected.getX() + 10, projected.getY()));
+
+        assertEquals(10.0, Geodesy.haversine(lonlat.y, lonlat.x, moved.x, moved.y), 0.05);
+    }
+}
@@ -0,0 +1,109 @@
+import org.junit.*;
+import java.util.*;
+import play.Logger;
+import play.test.*;
+import utils.*;
+
+import org.geotools.geometry.jts.JTS;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+public class GeodesyTest extends UnitTest {
+
+    // points around metro Cebu, lat/lon
+    static final double[][] POINTS = {
+        { 10.3157, 123.8854 },
+        { 10.3181, 123.9050 },
+        { 10.2926, 123.9022 },
+        { 10.3450, 123.9120 },
+        { 10.2500, 123.8500 },
+        { 10.3158, 123.8855 },
+        { 10.7000, 124.0000 }
+    };
+
+    static double orthodromic(double lat1, double lon1, double lat2, double lon2) throws Exception {
+        return JTS.orthodromicDistance(new Coordinate(lon1, lat1), new Coordinate(lon2, lat2), DefaultGeographicCRS.WGS84);
+    }
+
+    @Test
+    public void haversineWithinBoundOfEllipsoid() throws Exception {
+        for(double[] a : POINTS)
+        {
+            for(double[] b : POINTS)
+            {
+                double expected = orthodromic(a[0], a[1], b[0], b[1]);
+                double actual = Geodesy.haversine(a[0], a[1], b[0], b[1]);
+
+                assertEquals(expected, actual, expected * 0.006 + 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void equirectangularCloseToHaversineAtCityScale() {
+        for(double[] a : POINTS)
+        {
+            for(double[] b : POINTS)
+            {
+                double haversine = Geodesy.haversine(a[0], a[1], b[0], b[1]);
+                double equirectangular = Geodesy.equirectangular(a[0], a[1], b[0], b[1]);
+
+                assertEquals(haversine, equirectangular, haversine * 0.0001 + 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void bearings() {
+        assertEquals(0.0, Geodesy.bearing(10.0, 124.0, 10.1, 124.0), 1e-9);
+        assertEquals(180.0, Geodesy.bearing(10.1, 124.0, 10.0, 124.0), 1e-9);
+        assertEquals(90.0, Geodesy.bearing(0.0, 124.0, 0.0, 124.1), 1e-9);
+        assertEquals(270.0, Geodesy.bearing(0.0, 124.1, 0.0, 124.0), 1e-9);
+    }
+
+    @Test
+    public void fasterThanOrthodromicDistance() throws Exception {
+        int iterations = 20000;
+
+        // warm up both paths before timing
+        double sink = time(iterations, false) + time(iterations, true);
+
+        // best of a few rounds each, so a stray pause doesn't decide it
+        long geotoolsNs = Long.MAX_VALUE;
+        long haversineNs = Long.MAX_VALUE;
+
+        for(int round = 0; round < 3; round++)
+        {
+            long start = System.nanoTime();
+            sink += time(iterations, true);
+            geotoolsNs = Math.min(geotoolsNs, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            sink += time(iterations, false);
+            haversineNs = Math.min(haversineNs, System.nanoTime() - start);
+        }
+
+        Logger.info("Distance benchmark: orthodromicDistance " + (geotoolsNs / iterations) + "ns/call, haversine " + (haversineNs / iterations) + "ns/call (" + sink + ")");
+
+        // same inputs on the same machine; the closed form wins by far more than this
+        assertTrue("haversine " + haversineNs + "ns vs orthodromic " + geotoolsNs + "ns", haversineNs * 3 < geotoolsNs);
+    }
+
+    static double time(int iterations, boolean geotools) throws Exception {
+        double total = 0;
+
+        for(int i = 0; i < iterations; i++)
+        {
+            double[] a = POINTS[i % POINTS.length];
+            double[] b = POINTS[(i + 1) % POINTS.length];
+
+            if(geotools)
+                total += orthodromic(a[0], a[1], b[0], b[1]);
+            else
+                total += Geodesy.haversine(a[0], a[1], b[0], b[1]);
+        }
+
+        return total;
+    }
+}
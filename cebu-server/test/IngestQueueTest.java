@@ -0,0 +1,53 @@
+import org.junit.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import play.test.*;
+import utils.*;
+
+public class IngestQueueTest extends UnitTest {
+
+    @Test
+    public void concurrentRequestsQueueWholeOrNothing() throws Exception {
+        // the writers aren't started, so the queue only fills
+        final int requestSize = 7;
+
+        final AtomicLong accepted = new AtomicLong();
+
+        Thread[] threads = new Thread[8];
+
+        for(int t = 0; t < threads.length; t++)
+        {
+            threads[t] = new Thread() {
+                public void run() {
+                    List<IngestRecord> request = new ArrayList<IngestRecord>();
+
+                    for(int i = 0; i < requestSize; i++)
+                        request.add(new IngestRecord());
+
+                    // interleave single-row offers with whole requests
+                    while(true)
+                    {
+                        if(IngestQueue.offerAll(request))
+                            accepted.addAndGet(requestSize);
+                        else if(!IngestQueue.offer(new IngestRecord()))
+                            break;
+                        else
+                            accepted.incrementAndGet();
+                    }
+                }
+            };
+
+            threads[t].start();
+        }
+
+        for(Thread thread : threads)
+            thread.join();
+
+        Map<String, Object> stats = IngestQueue.getStats();
+
+        // every row queued was counted as accepted, and the queue filled up
+        assertEquals(accepted.get(), (long)IngestQueue.getQueueDepth());
+        assertEquals(accepted.get(), ((Long)stats.get("enqueued")).longValue());
+        assertEquals(stats.get("queueCapacity"), IngestQueue.getQueueDepth());
+    }
+}
@@ -0,0 +1,72 @@
+import org.junit.*;
+import java.util.*;
+import play.test.*;
+import utils.*;
+
+public class LocationLineParserTest extends UnitTest {
+
+    @Test
+    public void parsesMultipleLines() throws Exception {
+        byte[] body = "20120430T133023,124.02342,34.43622,8.33,124,200\r\n\n20120430T133028,-1.5,2e1,0,90,15\n".getBytes("ISO-8859-1");
+        
+        LocationLineParser parser = new LocationLineParser(body);
+        
+        assertTrue(parser.next());
+        assertEquals(1, parser.line);
+        assertEquals(DateUtils.parseLocationUpdate("20120430 133023").getTime(), parser.time);
+        assertEquals(124.02342, parser.lat, 0.0);
+        assertEquals(34.43622, parser.lon, 0.0);
+        assertEquals(8.33, parser.velocity, 0.0);
+        assertEquals(124.0, parser.heading, 0.0);
+        assertEquals(200.0, parser.gpsError, 0.0);
+        
+        assertTrue(parser.next());
+        assertEquals(3, parser.line);
+        assertEquals(5000, parser.time - DateUtils.parseLocationUpdate("20120430 133023").getTime());
+        assertEquals(-1.5, parser.lat, 0.0);
+        assertEquals(20.0, parser.lon, 0.0);
+        
+        assertFalse(parser.next());
+    }
+    
+    @Test
+    public void reportsLineAndColumn() throws Exception {
+        byte[] body = "20120430T133023,1,2,3,4,5\n20120430T133023,1,x,3,4,5".getBytes("ISO-8859-1");
+        
+        LocationLineParser parser = new LocationLineParser(body);
+        
+        assertTrue(parser.next());
+        
+        try {
+            parser.next();
+            fail();
+        }
+        catch(LocationParseException e) {
+            assertEquals(2, e.line);
+            assertEquals(19, e.column);
+        }
+    }
+    
+    @Test
+    public void rejectsMissingFields() throws Exception {
+        try {
+            new LocationLineParser("20120430T133023,1,2,3,4".getBytes("ISO-8859-1")).next();
+            fail();
+        }
+        catch(LocationParseException e) {
+            assertEquals(1, e.line);
+        }
+    }
+    
+    @Test
+    public void decodesTimestampsLikeDateUtils() throws Exception {
+        String[] samples = { "19700101T000000", "20120229T235959", "20121231T120000", "20130301T000001" };
+        
+        for(String sample : samples) {
+            long expected = DateUtils.parseLocationUpdate(sample.replace("T", " ")).getTime();
+            assertEquals(expected, LocationTimestamp.decode(sample.getBytes("ISO-8859-1"), 0));
+        }
+        
+        assertEquals(Long.MIN_VALUE, LocationTimestamp.decode("20121301T000000".getBytes("ISO-8859-1"), 0));
+    }
+}
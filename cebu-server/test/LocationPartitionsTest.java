@@ -0,0 +1,60 @@
+import org.junit.*;
+import java.util.*;
+import play.test.*;
+import utils.*;
+
+public class LocationPartitionsTest extends UnitTest {
+
+    @Test
+    public void namesRoundTrip() {
+        Calendar cal = Calendar.getInstance();
+        cal.clear();
+        cal.set(2012, Calendar.OCTOBER, 17, 13, 45, 10);
+
+        Date start = LocationPartitions.periodStart(cal.getTime());
+
+        assertEquals("locationupdate_20121017", LocationPartitions.name(start));
+        assertEquals(start, LocationPartitions.start(LocationPartitions.name(start)));
+
+        // not ours
+        assertNull(LocationPartitions.start("locationupdaterollup"));
+        assertNull(LocationPartitions.start("locationupdate_2012101"));
+        assertNull(LocationPartitions.start("locationupdate_20121340"));
+    }
+
+    @Test
+    public void periodsAreContiguousLocalDays() {
+        Calendar cal = Calendar.getInstance();
+        cal.clear();
+        cal.set(2012, Calendar.DECEMBER, 30, 23, 59, 59);
+
+        Date start = LocationPartitions.periodStart(cal.getTime());
+
+        // a year of days, each starting at local midnight where the last one ended
+        for(int i = 0; i < 366; i++)
+        {
+            Date next = LocationPartitions.next(start);
+
+            assertEquals(start, LocationPartitions.periodStart(new Date(next.getTime() - 1)));
+            assertEquals(next, LocationPartitions.periodStart(next));
+
+            start = next;
+        }
+
+        assertEquals("locationupdate_20131231", LocationPartitions.name(start));
+    }
+
+    @Test
+    public void unpartitionedRowsGoToParent() {
+        IngestRecord received = new IngestRecord();
+        received.received = new Date();
+
+        IngestRecord unknown = new IngestRecord();
+
+        Map<String, List<IngestRecord>> tables = LocationPartitions.split(Arrays.asList(received, unknown));
+
+        assertEquals(1, tables.size());
+        assertEquals(2, tables.get(LocationPartitions.PARENT).size());
+        assertEquals(LocationPartitions.PARENT, LocationPartitions.table(null));
+    }
+}
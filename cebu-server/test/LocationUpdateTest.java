@@ -0,0 +1,110 @@
+import org.junit.*;
+import java.util.*;
+import play.test.*;
+import models.LocationUpdate;
+import utils.*;
+
+public class LocationUpdateTest extends UnitTest {
+
+    static final long START = 1350000000000L;
+
+    // splits an array literal back into its elements, quotes and escapes removed
+    static List<String> elements(String literal) {
+        assertTrue(literal, literal.startsWith("{") && literal.endsWith("}"));
+
+        List<String> elements = new ArrayList<String>();
+
+        StringBuilder element = new StringBuilder();
+
+        boolean quoted = false;
+
+        for(int i = 1; i < literal.length() - 1; i++)
+        {
+            char c = literal.charAt(i);
+
+            if(c == '\\')
+                element.append(literal.charAt(++i));
+            else if(c == '"')
+                quoted = !quoted;
+            else if(c == ',' && !quoted)
+            {
+                elements.add(element.toString());
+                element.setLength(0);
+            }
+            else
+                element.append(c);
+        }
+
+        if(literal.length() > 2)
+            elements.add(element.toString());
+
+        return elements;
+    }
+
+    @Test
+    public void bulkColumnsLineUpPerRecord() {
+        List<IngestRecord> records = new ArrayList<IngestRecord>();
+
+        IngestRecord full = new IngestRecord();
+        full.id = 41;
+        full.imei = "35\"9,{x}\\";
+        full.timestamp = new Date(START);
+        full.adjustedTimestamp = new Date(START + 50);
+        full.sent = new Date(START + 100);
+        full.received = new Date(START + 200);
+        full.lat = 10.3157;
+        full.lon = 123.8854;
+        full.velocity = 8.5;
+        full.heading = 270.0;
+        full.gpsError = 4.0;
+        full.charging = true;
+        full.battery = 0.45;
+        full.boot = false;
+        full.shutdown = false;
+        full.failedNetwork = true;
+        full.signal = 17;
+        full.websocket = false;
+        records.add(full);
+
+        // a status row with nothing but its id and phone
+        IngestRecord empty = new IngestRecord();
+        empty.id = 42;
+        empty.imei = "359";
+        records.add(empty);
+
+        // NaN from a bad fix goes in as NULL rather than failing the batch
+        IngestRecord bad = new IngestRecord();
+        bad.id = 43;
+        bad.imei = "360";
+        bad.lat = Double.NaN;
+        bad.lon = Double.POSITIVE_INFINITY;
+        records.add(bad);
+
+        String[] columns = LocationUpdate.bulkColumns(records);
+
+        assertEquals(18, columns.length);
+
+        // unnest pads short arrays with nulls, so a short column would shift rows silently
+        for(String column : columns)
+            assertEquals(column, records.size(), elements(column).size());
+
+        assertEquals(Arrays.asList("41", "42", "43"), elements(columns[0]));
+        assertEquals(Arrays.asList("35\"9,{x}\\", "359", "360"), elements(columns[1]));
+        assertEquals(Arrays.asList(DateUtils.formatSqlTimestamp(new Date(START)), "NULL", "NULL"), elements(columns[2]));
+        assertEquals(DateUtils.formatSqlTimestamp(new Date(START + 200)), elements(columns[5]).get(0));
+        assertEquals(Arrays.asList("10.3157", "NULL", "NULL"), elements(columns[6]));
+        assertEquals(Arrays.asList("123.8854", "NULL", "NULL"), elements(columns[7]));
+        assertEquals(Arrays.asList("t", "NULL", "NULL"), elements(columns[11]));
+        assertEquals(Arrays.asList("0.45", "NULL", "NULL"), elements(columns[12]));
+        assertEquals(Arrays.asList("f", "NULL", "NULL"), elements(columns[13]));
+        assertEquals(Arrays.asList("t", "NULL", "NULL"), elements(columns[15]));
+        assertEquals(Arrays.asList("17", "NULL", "NULL"), elements(columns[16]));
+        assertEquals(Arrays.asList("f", "NULL", "NULL"), elements(columns[17]));
+    }
+
+    @Test
+    public void bulkColumnsOfNothing() {
+        for(String column : LocationUpdate.bulkColumns(new ArrayList<IngestRecord>()))
+            assertEquals("{}", column);
+    }
+}
@@ -0,0 +1,372 @@
+import org.junit.*;
+import java.util.*;
+import play.test.*;
+import utils.*;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+public class MapMatcherTest extends UnitTest {
+
+    static final int SIZE = 10;
+
+    static GeometryFactory factory = new GeometryFactory();
+
+    // two-way grid of roughly 100m blocks; street id (node, direction) -> edge id
+    static int[][] streets = new int[SIZE * SIZE][4];
+
+    static int[] nodeLat = new int[SIZE * SIZE];
+    static int[] nodeLon = new int[SIZE * SIZE];
+
+    static ContractionHierarchy router;
+    static EdgeIndex index;
+
+    static synchronized void grid() {
+        if(router != null)
+            return;
+
+        for(int node = 0; node < nodeLat.length; node++)
+        {
+            nodeLat[node] = 1030000 + (node / SIZE) * 90;
+            nodeLon[node] = 12388000 + (node % SIZE) * 91;
+        }
+
+        List<int[]> edges = new ArrayList<int[]>();
+
+        for(int node = 0; node < nodeLat.length; node++)
+        {
+            Arrays.fill(streets[node], -1);
+
+            int r = node / SIZE;
+            int c = node % SIZE;
+
+            int[] neighbours = { c + 1 < SIZE ? node + 1 : -1, r + 1 < SIZE ? node + SIZE : -1, c > 0 ? node - 1 : -1, r > 0 ? node - SIZE : -1 };
+
+            for(int d = 0; d < 4; d++)
+            {
+                if(neighbours[d] < 0)
+                    continue;
+
+                streets[node][d] = edges.size();
+                edges.add(new int[] { node, neighbours[d] });
+            }
+        }
+
+        int[] tail = new int[edges.size()];
+        int[] head = new int[edges.size()];
+        double[] length = new double[edges.size()];
+
+        EdgePolylines.Builder builder = new EdgePolylines.Builder();
+
+        for(int e = 0; e < edges.size(); e++)
+        {
+            tail[e] = edges.get(e)[0];
+            head[e] = edges.get(e)[1];
+            length[e] = Geodesy.equirectangular(nodeLat[tail[e]] / 1e5, nodeLon[tail[e]] / 1e5, nodeLat[head[e]] / 1e5, nodeLon[head[e]] / 1e5);
+
+            builder.add(e, factory.createLineString(new Coordinate[] { coordinate(tail[e]), coordinate(head[e]) }));
+        }
+
+        router = new ContractionHierarchy(nodeLat, nodeLon, tail, head, length);
+        index = EdgeIndex.build(builder.build(), 100);
+    }
+
+    static Coordinate coordinate(int node) {
+        return new Coordinate(nodeLon[node] / 1e5, nodeLat[node] / 1e5);
+    }
+
+    static int edgeBetween(int a, int b) {
+        for(int e : streets[a])
+        {
+            if(e >= 0 && router.getHead(e) == b)
+                return e;
+        }
+
+        return -1;
+    }
+
+    // drives the nodes at speed m/s with a fix every interval seconds, noisy by sigma meters, starting and stopping part way along the first and last edges
+    static List<MapMatcher.Traversal> drive(MapMatcher matcher, int[] nodes, double speed, int interval, double sigma, Random random) {
+        final List<MapMatcher.Traversal> traversed = new ArrayList<MapMatcher.Traversal>();
+
+        matcher.addListener(new MapMatcher.Listener() {
+            public void traversed(MapMatcher.Traversal traversal) {
+                traversed.add(traversal);
+            }
+        });
+
+        long start = 1350000000000L;
+
+        int leg = 0;
+        double along = 45;
+
+        for(int step = 0; leg < nodes.length - 1; step++)
+        {
+            double lat = nodeLat[nodes[leg]] / 1e5;
+            double lon = nodeLon[nodes[leg]] / 1e5;
+
+            double legLength = Geodesy.equirectangular(lat, lon, nodeLat[nodes[leg + 1]] / 1e5, nodeLon[nodes[leg + 1]] / 1e5);
+            double f = along / legLength;
+
+            // stop well short of the last node
+            if(leg == nodes.length - 2 && along > legLength - 20)
+                break;
+
+            lat += f * (nodeLat[nodes[leg + 1]] / 1e5 - lat) + random.nextGaussian() * sigma / 111195.0;
+            lon += f * (nodeLon[nodes[leg + 1]] / 1e5 - lon) + random.nextGaussian() * sigma / 109400.0;
+
+            matcher.observe("test", lat, lon, start + step * interval * 1000L, sigma);
+
+            along += speed * interval;
+
+            while(leg < nodes.length - 1 && along >= legLength)
+            {
+                along -= legLength;
+                leg++;
+
+                if(leg < nodes.length - 1)
+                    legLength = Geodesy.equirectangular(nodeLat[nodes[leg]] / 1e5, nodeLon[nodes[leg]] / 1e5, nodeLat[nodes[leg + 1]] / 1e5, nodeLon[nodes[leg + 1]] / 1e5);
+            }
+        }
+
+        matcher.expire(0);
+
+        return traversed;
+    }
+
+    @Test
+    public void followsNoisyDrive() {
+        grid();
+
+        // east along a row, north up a column, then west again
+        List<Integer> route = new ArrayList<Integer>();
+
+        for(int c = 1; c <= 7; c++)
+            route.add(2 * SIZE + c);
+        for(int r = 3; r <= 6; r++)
+            route.add(r * SIZE + 7);
+        for(int c = 6; c >= 3; c--)
+            route.add(6 * SIZE + c);
+
+        int[] nodes = new int[route.size()];
+        int[] path = new int[route.size() - 1];
+
+        for(int i = 0; i < nodes.length; i++)
+            nodes[i] = route.get(i);
+
+        for(int i = 0; i < path.length; i++)
+            path[i] = edgeBetween(nodes[i], nodes[i + 1]);
+
+        MapMatcher matcher = new MapMatcher(router, index);
+
+        List<MapMatcher.Traversal> traversed = drive(matcher, nodes, 10, 5, 8, new Random(1));
+
+        // the edges driven from end to end, without the one started and the one finished on
+        int[] expected = Arrays.copyOfRange(path, 1, path.length - 1);
+        int[] found = new int[traversed.size()];
+
+        for(int i = 0; i < found.length; i++)
+            found[i] = traversed.get(i).edgeId;
+
+        assertTrue(Arrays.toString(found), Arrays.equals(expected, found));
+
+        long last = 0;
+
+        for(MapMatcher.Traversal traversal : traversed)
+        {
+            assertTrue(traversal.entered >= last);
+            assertTrue(traversal.exited > traversal.entered);
+            assertEquals(10.0, traversal.getSpeed(), 3.0);
+
+            last = traversal.exited;
+        }
+    }
+
+    @Test
+    public void gapStartsNewMatch() {
+        grid();
+
+        MapMatcher matcher = new MapMatcher(router, index);
+
+        final List<MapMatcher.Traversal> traversed = new ArrayList<MapMatcher.Traversal>();
+
+        matcher.addListener(new MapMatcher.Listener() {
+            public void traversed(MapMatcher.Traversal traversal) {
+                traversed.add(traversal);
+            }
+        });
+
+        // a fix near one end of the grid, then one ten minutes later across it
+        long start = 1350000000000L;
+
+        matcher.observe("gap", nodeLat[SIZE + 1] / 1e5, nodeLon[SIZE + 1] / 1e5 + 0.0003, start, 5.0);
+        matcher.observe("gap", nodeLat[8 * SIZE + 8] / 1e5, nodeLon[8 * SIZE + 8] / 1e5 + 0.0003, start + 600000, 5.0);
+
+        matcher.expire(0);
+
+        assertTrue(traversed.isEmpty());
+        assertEquals(1L, matcher.getStats().get("breaks"));
+    }
+
+    @Test
+    public void stopLongerThanGapKeepsRun() {
+        grid();
+
+        MapMatcher matcher = new MapMatcher(router, index);
+
+        final List<MapMatcher.Traversal> traversed = new ArrayList<MapMatcher.Traversal>();
+
+        matcher.addListener(new MapMatcher.Listener() {
+            public void traversed(MapMatcher.Traversal traversal) {
+                traversed.add(traversal);
+            }
+        });
+
+        // east along a row at half a block per fix, standing for two and a half minutes half way along the third block
+        int row = 2 * SIZE;
+
+        List<Double> blocks = new ArrayList<Double>();
+
+        for(double b = 0.5; b <= 2.5; b += 0.5)
+            blocks.add(b);
+        for(int i = 0; i < 30; i++)
+            blocks.add(2.5);
+        for(double b = 3.0; b <= 5.5; b += 0.5)
+            blocks.add(b);
+
+        long start = 1350000000000L;
+
+        for(int i = 0; i < blocks.size(); i++)
+        {
+            double b = blocks.get(i);
+
+            // a meter or so of jitter while standing, under the matcher's minimum move
+            double jitter = (i % 2 == 0 ? 1.0 : -1.0) / 111195.0;
+
+            matcher.observe("stop", nodeLat[row] / 1e5 + jitter, (nodeLon[row] + b * 91) / 1e5, start + i * 5000L, 5.0);
+        }
+
+        matcher.expire(0);
+
+        assertEquals(0L, matcher.getStats().get("breaks"));
+
+        int[] expected = { edgeBetween(row + 1, row + 2), edgeBetween(row + 2, row + 3), edgeBetween(row + 3, row + 4), edgeBetween(row + 4, row + 5) };
+        int[] found = new int[traversed.size()];
+
+        for(int i = 0; i < found.length; i++)
+            found[i] = traversed.get(i).edgeId;
+
+        assertTrue(Arrays.toString(found), Arrays.equals(expected, found));
+
+        // the block with the stop took its two and a half minutes longer
+        assertTrue(traversed.get(1).exited - traversed.get(1).entered > 150000);
+        assertTrue(traversed.get(1).getSpeed() < 1.0);
+    }
+
+    // fixes per vehicle in the fleet trace, every FLEET_INTERVAL seconds
+    static final int FLEET_FIXES = 20;
+    static final int FLEET_INTERVAL = 10;
+
+    @Test
+    public void keepsUpWithFleet() {
+        grid();
+
+        // taxis reporting through one node, as the match feed's single thread sees them
+        int fleet = 3000;
+
+        Random random = new Random(3);
+
+        String[] imeis = new String[fleet];
+        double[][] lats = new double[fleet][FLEET_FIXES];
+        double[][] lons = new double[fleet][FLEET_FIXES];
+
+        for(int v = 0; v < fleet; v++)
+        {
+            imeis[v] = "fleet" + v;
+
+            // a random walk over the grid without u-turns, at 6 to 12 m/s
+            int from = random.nextInt(SIZE * SIZE);
+            int to = next(from, -1, random);
+
+            double speed = 6 + random.nextDouble() * 6;
+            double along = random.nextDouble() * 80;
+
+            for(int i = 0; i < FLEET_FIXES; i++)
+            {
+                double length = Geodesy.equirectangular(nodeLat[from] / 1e5, nodeLon[from] / 1e5, nodeLat[to] / 1e5, nodeLon[to] / 1e5);
+
+                while(along >= length)
+                {
+                    along -= length;
+
+                    int after = next(to, from, random);
+
+                    from = to;
+                    to = after;
+
+                    length = Geodesy.equirectangular(nodeLat[from] / 1e5, nodeLon[from] / 1e5, nodeLat[to] / 1e5, nodeLon[to] / 1e5);
+                }
+
+                double f = along / length;
+
+                lats[v][i] = (nodeLat[from] + f * (nodeLat[to] - nodeLat[from])) / 1e5 + random.nextGaussian() * 5 / 111195.0;
+                lons[v][i] = (nodeLon[from] + f * (nodeLon[to] - nodeLon[from])) / 1e5 + random.nextGaussian() * 5 / 109400.0;
+
+                along += speed * FLEET_INTERVAL;
+            }
+        }
+
+        MapMatcher matcher = new MapMatcher(router, index);
+
+        final long[] traversals = new long[1];
+
+        matcher.addListener(new MapMatcher.Listener() {
+            public void traversed(MapMatcher.Traversal traversal) {
+                traversals[0]++;
+            }
+        });
+
+        long start = 1350000000000L;
+
+        long began = System.nanoTime();
+
+        // interleaved as they arrive: every vehicle's first fix, then every second one, ...
+        for(int i = 0; i < FLEET_FIXES; i++)
+        {
+            for(int v = 0; v < fleet; v++)
+                matcher.observe(imeis[v], lats[v][i], lons[v][i], start + i * FLEET_INTERVAL * 1000L + v, 5.0);
+        }
+
+        matcher.expire(0);
+
+        double seconds = (System.nanoTime() - began) / 1e9;
+
+        double rate = fleet * FLEET_FIXES / seconds;
+        double needed = (double)fleet / FLEET_INTERVAL;
+
+        System.out.println(String.format("Matched %d fixes from %d vehicles at %.0f fixes/s, %.0f needed; %s", fleet * FLEET_FIXES, fleet, rate, needed, matcher.getStats().get("searchCache")));
+
+        assertTrue(traversals[0] > fleet);
+
+        // the same transition searches come round again and again
+        Map<String, Object> cache = (Map<String, Object>)matcher.getStats().get("searchCache");
+
+        assertTrue((Double)cache.get("hitRate") > 0.9);
+
+        // with ample room to spare for a slower machine or a bigger graph
+        assertTrue(String.format("%.0f fixes/s", rate), rate > 5 * needed);
+    }
+
+    // a random neighbour of node other than back (-1 for any)
+    static int next(int node, int back, Random random) {
+        List<Integer> choices = new ArrayList<Integer>();
+
+        for(int e : streets[node])
+        {
+            if(e >= 0 && router.getHead(e) != back)
+                choices.add(router.getHead(e));
+        }
+
+        return choices.isEmpty() ? back : choices.get(random.nextInt(choices.size()));
+    }
+}
@@ -0,0 +1,62 @@
+import org.junit.*;
+import java.util.*;
+import play.test.*;
+import utils.*;
+
+public class MatchFeedTest extends UnitTest {
+
+    @Test
+    public void stopFeedsEverythingQueued() {
+        MapMatcherTest.grid();
+
+        MapMatcher matcher = new MapMatcher(MapMatcherTest.router, MapMatcherTest.index);
+        MatchFeed feed = new MatchFeed(matcher, null, 100);
+
+        final List<MapMatcher.Traversal> traversed = new ArrayList<MapMatcher.Traversal>();
+
+        matcher.addListener(new MapMatcher.Listener() {
+            public void traversed(MapMatcher.Traversal traversal) {
+                traversed.add(traversal);
+            }
+        });
+
+        // east along a row, half a block per fix, plus one without a location
+        int row = 2 * MapMatcherTest.SIZE;
+
+        List<IngestRecord> records = new ArrayList<IngestRecord>();
+
+        for(int i = 0; i < 12; i++)
+        {
+            IngestRecord record = new IngestRecord();
+
+            record.imei = "feed";
+            record.adjustedTimestamp = new Date(1350000000000L + i * 5000L);
+            record.lat = MapMatcherTest.nodeLat[row] / 1e5;
+            record.lon = (MapMatcherTest.nodeLon[row] + (0.5 + i * 0.5) * 91) / 1e5;
+            record.gpsError = 5.0;
+
+            records.add(record);
+        }
+
+        IngestRecord status = new IngestRecord();
+        status.imei = "feed";
+        status.adjustedTimestamp = new Date();
+        records.add(status);
+
+        // nothing is taken before start
+        feed.offer(records);
+        assertEquals(0L, feed.getStats().get("enqueued"));
+
+        feed.start();
+        feed.offer(records);
+        feed.stop();
+
+        assertEquals(12L, feed.getStats().get("enqueued"));
+        assertEquals(12L, feed.getStats().get("fed"));
+        assertEquals(0, feed.getStats().get("queueDepth"));
+
+        matcher.expire(0);
+
+        assertFalse(traversed.isEmpty());
+    }
+}
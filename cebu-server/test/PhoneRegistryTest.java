@@ -0,0 +1,45 @@
+import org.junit.*;
+import java.util.*;
+import play.test.*;
+import models.*;
+import utils.*;
+
+public class PhoneRegistryTest extends UnitTest {
+
+    @Test
+    public void vehicleEditsRelabelPhones() {
+        Vehicle vehicle = new Vehicle();
+        vehicle.id = 9001L;
+        vehicle.bodyNumber = "A-1";
+
+        Driver driver = new Driver();
+        driver.id = 9002L;
+        driver.driverId = "D-1";
+        driver.name = "Driver One";
+
+        Phone phone = new Phone();
+        phone.id = 9003L;
+        phone.imei = "relabel";
+        phone.vehicle = vehicle;
+        phone.driver = driver;
+
+        FleetState.update(phone);
+
+        vehicle.bodyNumber = "A-2";
+        PhoneRegistry.update(vehicle, false);
+
+        assertEquals("A-2", PhoneRegistry.getById(9003L).bodyNumber);
+        assertEquals("A-2", FleetState.get(9003L).phone.bodyNumber);
+        assertEquals("D-1", PhoneRegistry.getById(9003L).driverCode);
+
+        // a removed driver is dropped from the phone, the vehicle kept
+        PhoneRegistry.update(driver, true);
+
+        assertNull(PhoneRegistry.getById(9003L).driverId);
+        assertNull(FleetState.get(9003L).phone.driverName);
+        assertEquals(9001L, (long)PhoneRegistry.getById(9003L).vehicleId);
+
+        PhoneRegistry.remove(phone);
+        FleetState.remove(phone);
+    }
+}
@@ -0,0 +1,128 @@
+import org.junit.*;
+import java.sql.SQLException;
+import java.util.*;
+import play.test.*;
+import utils.*;
+
+public class PositionBufferTest extends UnitTest {
+
+    static final long START = 1350000000000L;
+
+    // records what each flush wrote, optionally doing something mid-write
+    static class MemoryStore implements PositionBuffer.Store {
+
+        List<List<PositionBuffer.Position>> batches = new ArrayList<List<PositionBuffer.Position>>();
+
+        boolean fail = false;
+
+        Runnable during;
+
+        public void write(List<PositionBuffer.Position> batch) throws SQLException {
+            if(during != null)
+                during.run();
+
+            if(fail)
+                throw new SQLException("connection refused");
+
+            batches.add(batch);
+        }
+    }
+
+    // writes off whatever earlier tests left pending
+    static void empty() {
+        PositionBuffer.flush(new MemoryStore());
+    }
+
+    @Test
+    public void coalescesPerPhone() {
+        empty();
+
+        long recorded = PositionBuffer.getRecordedCount();
+
+        for(int i = 0; i < 3; i++)
+        {
+            PositionBuffer.record(9001L, 10.3 + i, 123.9, new Date(START + i * 1000));
+            PositionBuffer.record(9002L, 10.4, 123.8 + i, new Date(START + i * 1000));
+        }
+
+        assertEquals(2, PositionBuffer.getPendingCount());
+        assertEquals(recorded + 6, PositionBuffer.getRecordedCount());
+
+        assertEquals(12.3, PositionBuffer.get(9001L).lat, 1e-9);
+        assertEquals(new Date(START + 2000), PositionBuffer.get(9002L).lastUpdate);
+
+        // the live value is there for readers before any flush
+        assertEquals(125.8, FleetState.get(9002L).position.lon, 1e-9);
+
+        long flushed = PositionBuffer.getFlushedCount();
+
+        MemoryStore store = new MemoryStore();
+
+        PositionBuffer.flush(store);
+
+        // one row per phone, with its latest position
+        assertEquals(1, store.batches.size());
+        assertEquals(2, store.batches.get(0).size());
+
+        for(PositionBuffer.Position position : store.batches.get(0))
+            assertEquals(new Date(START + 2000), position.lastUpdate);
+
+        assertEquals(0, PositionBuffer.getPendingCount());
+        assertNull(PositionBuffer.get(9001L));
+        assertEquals(flushed + 2, PositionBuffer.getFlushedCount());
+
+        // nothing pending, nothing written
+        PositionBuffer.flush(store);
+
+        assertEquals(1, store.batches.size());
+    }
+
+    @Test
+    public void overwrittenDuringWriteStaysPending() {
+        empty();
+
+        PositionBuffer.record(9003L, 10.3, 123.9, new Date(START));
+        PositionBuffer.record(9004L, 10.3, 123.9, new Date(START));
+
+        MemoryStore store = new MemoryStore();
+
+        store.during = new Runnable() {
+            public void run() {
+                PositionBuffer.record(9003L, 10.5, 123.9, new Date(START + 5000));
+            }
+        };
+
+        PositionBuffer.flush(store);
+
+        // the batch had the old position, so the new one still has to go
+        assertEquals(1, PositionBuffer.getPendingCount());
+        assertEquals(new Date(START + 5000), PositionBuffer.get(9003L).lastUpdate);
+        assertNull(PositionBuffer.get(9004L));
+    }
+
+    @Test
+    public void failedWriteKeepsEverything() {
+        empty();
+
+        PositionBuffer.record(9005L, 10.3, 123.9, new Date(START));
+        PositionBuffer.record(9006L, 10.3, 123.9, new Date(START));
+
+        long flushed = PositionBuffer.getFlushedCount();
+
+        MemoryStore store = new MemoryStore();
+        store.fail = true;
+
+        PositionBuffer.flush(store);
+
+        assertEquals(2, PositionBuffer.getPendingCount());
+        assertEquals(flushed, PositionBuffer.getFlushedCount());
+
+        // and the next flush gets them
+        store.fail = false;
+
+        PositionBuffer.flush(store);
+
+        assertEquals(2, store.batches.get(0).size());
+        assertEquals(0, PositionBuffer.getPendingCount());
+    }
+}
@@ -0,0 +1,169 @@
+import org.junit.*;
+import java.util.*;
+import play.test.*;
+import gnu.trove.list.array.*;
+import models.LocationUpdate;
+import utils.*;
+
+public class RecentUpdatesTest extends UnitTest {
+
+    static final long START = 1350000000000L;
+
+    static IngestRecord record(long id, boolean boot, boolean failedNetwork) {
+        IngestRecord record = new IngestRecord();
+
+        record.id = id;
+        record.imei = "phone";
+        record.timestamp = new Date(START + id * 1000);
+        record.adjustedTimestamp = new Date(START + id * 1000 + 50);
+        record.received = new Date(START + id * 1000 + 200);
+        record.boot = boot;
+        record.failedNetwork = failedNetwork;
+        record.battery = 0.45;
+        record.signal = 17;
+
+        if(id % 2 == 0)
+        {
+            record.lat = 10.3;
+            record.lon = 123.9;
+        }
+
+        return record;
+    }
+
+    @Test
+    public void keepsNewestUpToCapacity() {
+        RecentUpdates.Ring ring = new RecentUpdates.Ring("phone", 5);
+
+        for(long id = 1; id <= 12; id++)
+            ring.add(record(id, id % 4 == 0, id % 3 == 0));
+
+        List<LocationUpdate> all = ring.select(0, 10, 0);
+
+        assertEquals(5, all.size());
+
+        for(int i = 0; i < all.size(); i++)
+            assertEquals(12 - i, (long)all.get(i).id);
+
+        LocationUpdate newest = all.get(0);
+
+        assertEquals("phone", newest.imei);
+        assertEquals(new Date(START + 12050), newest.adjustedTimestamp);
+        assertEquals(new Date(START + 12200), newest.received);
+        assertEquals(10.3, newest.lat, 0);
+        assertEquals(0.45, newest.battery, 0);
+        assertEquals(17, (int)newest.signal);
+        assertTrue(newest.boot);
+        assertTrue(newest.failedNetwork);
+        assertFalse(newest.shutdown);
+        assertNull(all.get(1).lat);
+
+        List<LocationUpdate> boots = ring.select(RecentUpdates.BOOT, 10, 0);
+
+        assertEquals(2, boots.size());
+        assertEquals(12, (long)boots.get(0).id);
+        assertEquals(8, (long)boots.get(1).id);
+
+        // the hot window cuts off the older ones
+        assertEquals(2, ring.select(0, 10, START + 11000).size());
+    }
+
+    @Test
+    public void loadsOlderRowsBehindAppends() {
+        RecentUpdates.Ring ring = new RecentUpdates.Ring("phone", 6);
+
+        // appended by the writers while the load was reading
+        ring.add(record(9, false, false));
+        ring.add(record(10, false, false));
+
+        List<LocationUpdate> latest = new ArrayList<LocationUpdate>();
+
+        RecentUpdates.Ring source = new RecentUpdates.Ring("phone", 10);
+
+        for(long id = 5; id <= 9; id++)
+            source.add(record(id, false, false));
+
+        latest.addAll(source.select(0, 10, 0));
+
+        ring.load(latest, false);
+
+        List<LocationUpdate> all = ring.select(0, 10, 0);
+
+        assertEquals(6, all.size());
+
+        // newest first with the duplicate 9 dropped, and the oldest falling off
+        long[] expected = new long[] { 10, 9, 8, 7, 6, 5 };
+
+        for(int i = 0; i < expected.length; i++)
+            assertEquals(expected[i], (long)all.get(i).id);
+
+        // a writer that committed before the load read it
+        ring.add(record(10, false, false));
+
+        assertEquals(10, (long)ring.select(0, 1, 0).get(0).id);
+        assertEquals(6, ring.size());
+    }
+
+    @Test
+    public void historyInReceivedOrder() {
+        RecentUpdates.Ring ring = new RecentUpdates.Ring("phone", 5);
+
+        // two nodes' id blocks, committed out of order
+        long[] ids = new long[] { 2001, 1002, 2002, 1001 };
+        long[] received = new long[] { 3000, 2000, 4000, 1000 };
+
+        for(int i = 0; i < ids.length; i++)
+        {
+            IngestRecord record = record(ids[i], false, false);
+            record.received = new Date(START + received[i]);
+            ring.add(record);
+        }
+
+        TLongArrayList historyIds = new TLongArrayList();
+        TLongArrayList historyReceived = new TLongArrayList();
+
+        ring.history(historyIds, historyReceived, new TIntArrayList());
+
+        long[] expected = new long[] { 1001, 1002, 2001, 2002 };
+
+        for(int i = 0; i < expected.length; i++)
+        {
+            assertEquals(expected[i], historyIds.get(i));
+            assertEquals(START + (i + 1) * 1000, historyReceived.get(i));
+        }
+    }
+
+    @Test
+    public void selectsNewestReceivedFirst() {
+        RecentUpdates.Ring ring = new RecentUpdates.Ring("phone", 5);
+
+        // the other node's block commits first but arrived later
+        long[] ids = new long[] { 2001, 1001, 2002, 1002 };
+        long[] received = new long[] { 3000, 1000, 4000, 2000 };
+
+        for(int i = 0; i < ids.length; i++)
+        {
+            IngestRecord record = record(ids[i], false, false);
+            record.received = new Date(START + received[i]);
+            ring.add(record);
+        }
+
+        List<LocationUpdate> all = ring.select(0, 10, 0);
+
+        long[] expected = new long[] { 2002, 2001, 1002, 1001 };
+
+        assertEquals(expected.length, all.size());
+
+        for(int i = 0; i < expected.length; i++)
+            assertEquals(expected[i], (long)all.get(i).id);
+
+        // the newest two by arrival, not by id or commit order
+        List<LocationUpdate> latest = ring.select(0, 2, 0);
+
+        assertEquals(2002, (long)latest.get(0).id);
+        assertEquals(2001, (long)latest.get(1).id);
+
+        // the window cut applies by received time too
+        assertEquals(2, ring.select(0, 10, START + 3000).size());
+    }
+}
@@ -0,0 +1,90 @@
+import org.junit.*;
+import java.util.*;
+import play.test.*;
+import utils.*;
+
+public class RouteCacheTest extends UnitTest {
+
+    static RouteCache.Route route(int edges) {
+        int[] ids = new int[edges];
+        double[] lengths = new double[edges];
+
+        for(int i = 0; i < edges; i++)
+        {
+            ids[i] = i;
+            lengths[i] = 10.0;
+        }
+
+        return new RouteCache.Route(ids, lengths, edges * 10.0, 5);
+    }
+
+    @Test
+    public void hitsUnderTheSameVersion() {
+        RouteCache cache = new RouteCache(1 << 20);
+
+        assertNull(cache.get(1, 2, 7));
+
+        RouteCache.Route route = route(3);
+        cache.put(1, 2, 7, route);
+
+        assertSame(route, cache.get(1, 2, 7));
+
+        // direction matters
+        assertNull(cache.get(2, 1, 7));
+
+        Map<String, Object> stats = cache.getStats();
+
+        assertEquals(1L, stats.get("hits"));
+        assertEquals(2L, stats.get("misses"));
+        assertEquals(5L, stats.get("savedMs"));
+    }
+
+    @Test
+    public void newerVersionEmptiesTheCache() {
+        RouteCache cache = new RouteCache(1 << 20);
+
+        cache.put(1, 2, 7, route(3));
+        cache.put(3, 4, 7, route(3));
+
+        assertNull(cache.get(1, 2, 8));
+        assertEquals(0, cache.getStats().get("routes"));
+
+        // computed against the weights just replaced
+        cache.put(3, 4, 7, route(3));
+        assertNull(cache.get(3, 4, 8));
+
+        cache.put(3, 4, 8, route(3));
+        assertNotNull(cache.get(3, 4, 8));
+
+        // an older version neither hits nor empties it again
+        assertNull(cache.get(3, 4, 7));
+        assertNotNull(cache.get(3, 4, 8));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedOverBudget() {
+        // room for two 10-edge routes (96 + 10 * 12 bytes each)
+        RouteCache cache = new RouteCache(2 * 216);
+
+        cache.put(1, 1, 0, route(10));
+        cache.put(2, 2, 0, route(10));
+
+        // touch the first so the second is the eldest
+        assertNotNull(cache.get(1, 1, 0));
+
+        cache.put(3, 3, 0, route(10));
+
+        assertNotNull(cache.get(1, 1, 0));
+        assertNull(cache.get(2, 2, 0));
+        assertNotNull(cache.get(3, 3, 0));
+
+        Map<String, Object> stats = cache.getStats();
+
+        assertEquals(1L, stats.get("evictions"));
+        assertEquals(432L, stats.get("bytes"));
+
+        // too big to keep at all
+        cache.put(4, 4, 0, route(100));
+        assertNull(cache.get(4, 4, 0));
+    }
+}
@@ -0,0 +1,163 @@
+import org.junit.*;
+import java.util.*;
+import play.test.*;
+import utils.*;
+
+public class SpeedProfilesTest extends UnitTest {
+
+    @Test
+    public void bucketsFollowLocalDayAndTime() {
+        Calendar cal = Calendar.getInstance();
+        cal.clear();
+
+        // Monday 2013-01-07 00:00
+        cal.set(2013, Calendar.JANUARY, 7, 0, 0, 0);
+        assertEquals(0, SpeedProfiles.bucket(cal.getTimeInMillis()));
+
+        cal.set(2013, Calendar.JANUARY, 7, 0, 14, 59);
+        assertEquals(0, SpeedProfiles.bucket(cal.getTimeInMillis()));
+
+        cal.set(2013, Calendar.JANUARY, 7, 8, 15, 0);
+        assertEquals(33, SpeedProfiles.bucket(cal.getTimeInMillis()));
+
+        // Sunday 23:45 is the last bucket
+        cal.set(2013, Calendar.JANUARY, 13, 23, 45, 0);
+        assertEquals(SpeedProfiles.BUCKETS - 1, SpeedProfiles.bucket(cal.getTimeInMillis()));
+    }
+
+    @Test
+    public void storedSpeedsRoundTrip() {
+        assertEquals(12.34, SpeedProfiles.fromStored(SpeedProfiles.toStored(12.34)), 0.005);
+        assertEquals(0, SpeedProfiles.toStored(Double.NaN));
+        assertEquals(0, SpeedProfiles.toStored(-1.0));
+        assertTrue(Double.isNaN(SpeedProfiles.fromStored((short)0)));
+    }
+
+    static long at(int day, int hour, int minute) {
+        Calendar cal = Calendar.getInstance();
+        cal.clear();
+
+        // Monday 2013-01-07 plus day
+        cal.set(2013, Calendar.JANUARY, 7 + day, hour, minute, 0);
+
+        return cal.getTimeInMillis();
+    }
+
+    @Test
+    public void samplesStartNewProfiles() {
+        SpeedProfileSamples samples = new SpeedProfileSamples(20);
+
+        // Monday 8:00-8:15 on edge 3, twice, and one Tuesday sample on edge 9
+        samples.record(3, 4.0, at(0, 8, 1));
+        samples.record(3, 6.0, at(0, 8, 14));
+        samples.record(9, 10.0, at(1, 17, 30));
+
+        // outside the plausible range
+        samples.record(3, 80.0, at(0, 8, 5));
+
+        assertEquals(3, samples.getSamples());
+        assertEquals(1, samples.getRejected());
+
+        SpeedProfiles.Update update = samples.merge(new SpeedProfiles.Builder().build());
+
+        assertTrue(Arrays.equals(new int[] { 3, 9 }, update.edgeIds));
+
+        int monday8 = SpeedProfiles.bucket(at(0, 8, 0));
+        int tuesday1730 = SpeedProfiles.bucket(at(1, 17, 30));
+
+        assertEquals(5.0, update.profiles[0][monday8], 1e-9);
+        assertEquals(10.0, update.profiles[1][tuesday1730], 1e-9);
+
+        // nothing else has data
+        assertTrue(Double.isNaN(update.profiles[0][monday8 + 1]));
+        assertTrue(Double.isNaN(update.profiles[0][tuesday1730]));
+
+        // taken by the merge
+        assertEquals(0, samples.pendingBuckets());
+    }
+
+    @Test
+    public void samplesNudgeExistingProfiles() {
+        int monday8 = SpeedProfiles.bucket(at(0, 8, 0));
+        int monday9 = SpeedProfiles.bucket(at(0, 9, 0));
+
+        short[] stored = new short[SpeedProfiles.BUCKETS];
+        stored[monday8] = SpeedProfiles.toStored(10.0);
+        stored[monday9] = SpeedProfiles.toStored(12.0);
+
+        SpeedProfiles.Builder builder = new SpeedProfiles.Builder();
+        builder.add(5, stored);
+
+        SpeedProfiles.Snapshot current = builder.build();
+
+        SpeedProfileSamples samples = new SpeedProfileSamples(20);
+
+        // five samples at 4 m/s against a prior of 20 moves 10 m/s a fifth of the way
+        for(int i = 0; i < 5; i++)
+            samples.record(5, 4.0, at(0, 8, i));
+
+        SpeedProfiles.Update update = samples.merge(current);
+
+        assertEquals(1, update.edgeIds.length);
+        assertEquals(10.0 - 6.0 * 5 / 25, update.profiles[0][monday8], 1e-9);
+
+        // the rest of the edge's profile is carried over
+        assertEquals(12.0, update.profiles[0][monday9], 1e-9);
+
+        // and stores back the same
+        assertEquals(SpeedProfiles.toStored(12.0), SpeedProfiles.toStored(update.profiles[0][monday9]));
+    }
+
+    @Test
+    public void traversalsBucketByMidpoint() {
+        SpeedProfileSamples samples = new SpeedProfileSamples(20);
+
+        // 8:14:00 to 8:16:00, 120m in 120s
+        samples.traversed(new MapMatcher.Traversal("phone", 7, at(0, 8, 14), at(0, 8, 16), 120));
+
+        SpeedProfiles.Update update = samples.merge(new SpeedProfiles.Builder().build());
+
+        assertEquals(1.0, update.profiles[0][SpeedProfiles.bucket(at(0, 8, 15))], 1e-9);
+        assertTrue(Double.isNaN(update.profiles[0][SpeedProfiles.bucket(at(0, 8, 0))]));
+    }
+
+    @Test
+    public void unloadedEdgesMergeIntoStoredProfiles() {
+        int monday8 = SpeedProfiles.bucket(at(0, 8, 0));
+        int monday9 = SpeedProfiles.bucket(at(0, 9, 0));
+
+        short[] profile = new short[SpeedProfiles.BUCKETS];
+        profile[monday8] = SpeedProfiles.toStored(10.0);
+        profile[monday9] = SpeedProfiles.toStored(12.0);
+
+        // edge 5 is stored but was over the in-memory limit
+        SpeedProfiles.Builder builder = new SpeedProfiles.Builder(1);
+        builder.add(5, profile);
+
+        SpeedProfiles.Snapshot stored = builder.build();
+
+        SpeedProfileSamples samples = new SpeedProfileSamples(20);
+
+        for(int i = 0; i < 5; i++)
+            samples.record(5, 4.0, at(0, 8, i));
+
+        // two edges with nothing stored and room for one more profile
+        samples.record(7, 3.0, at(0, 8, 0));
+        samples.record(8, 3.0, at(0, 8, 0));
+        samples.record(8, 3.0, at(0, 9, 0));
+
+        assertTrue(Arrays.equals(new int[] { 5, 7, 8 }, samples.pendingEdges()));
+
+        SpeedProfiles.Update update = samples.merge(new SpeedProfiles.Builder().build(), stored, 1);
+
+        assertTrue(Arrays.equals(new int[] { 5, 7 }, update.edgeIds));
+        assertEquals(1, update.refused);
+        assertEquals(2, samples.getOverLimit());
+
+        // nudged from the stored profile, which is otherwise kept, not restarted from the hour's samples
+        assertEquals(10.0 - 6.0 * 5 / 25, update.profiles[0][monday8], 1e-9);
+        assertEquals(12.0, update.profiles[0][monday9], 1e-9);
+
+        assertEquals(3.0, update.profiles[1][monday8], 1e-9);
+    }
+}
@@ -0,0 +1,160 @@
+import org.junit.*;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import play.test.*;
+import utils.*;
+
+public class StreetVelocityCacheTest extends UnitTest {
+
+    // hands out the next table on each reload, or fails
+    static class MemoryStore implements StreetVelocityCache.Store {
+
+        double[] velocities;
+
+        boolean fail = false;
+
+        MemoryStore(double... velocities) {
+            this.velocities = velocities;
+        }
+
+        public double[] getEdgeVelocities() throws SQLException {
+            if(fail)
+                throw new SQLException("connection refused");
+
+            return velocities.clone();
+        }
+    }
+
+    @Test
+    public void updatesPublishNewSnapshots() {
+        MemoryStore store = new MemoryStore(10.0, Double.NaN, 20.0);
+
+        StreetVelocityCache cache = new StreetVelocityCache(store);
+
+        StreetVelocityCache.Snapshot loaded = cache.getSnapshot();
+
+        assertEquals(1, loaded.reloads);
+        assertEquals(2, loaded.edgeCount);
+        assertEquals(10.0, cache.getStreetVelocity(0), 0);
+
+        // no speed of its own, or no such edge: the network mean
+        assertEquals(15.0, cache.getStreetVelocity(1), 0);
+        assertEquals(15.0, cache.getStreetVelocity(7), 0);
+        assertEquals(15.0, cache.getStreetVelocity(-1), 0);
+
+        cache.update(new int[] { 1, 5 }, new double[] { 4.0, 6.0 });
+
+        StreetVelocityCache.Snapshot updated = cache.getSnapshot();
+
+        assertEquals(4.0, updated.getStreetVelocity(1), 0);
+        assertEquals(6.0, updated.getStreetVelocity(5), 0);
+        assertEquals(10.0, updated.getStreetVelocity(0), 0);
+        assertEquals(loaded.version + 1, updated.version);
+        assertEquals(loaded.reloads, updated.reloads);
+
+        // the grown gap has no speeds
+        assertEquals(4, updated.edgeCount);
+        assertEquals(updated.meanVelocity, updated.getStreetVelocity(3), 0);
+
+        // a reader still holding the old table sees it unchanged
+        assertEquals(15.0, loaded.getStreetVelocity(1), 0);
+        assertEquals(15.0, loaded.getStreetVelocity(5), 0);
+    }
+
+    @Test
+    public void failedReloadKeepsTable() {
+        MemoryStore store = new MemoryStore(10.0, 20.0);
+
+        StreetVelocityCache cache = new StreetVelocityCache(store);
+
+        cache.update(new int[] { 0 }, new double[] { 12.0 });
+
+        StreetVelocityCache.Snapshot before = cache.getSnapshot();
+
+        store.fail = true;
+        cache.reload();
+
+        assertSame(before, cache.getSnapshot());
+
+        // a good reload replaces the updates with the stored speeds
+        store.fail = false;
+        store.velocities = new double[] { 11.0, 21.0 };
+        cache.reload();
+
+        assertEquals(11.0, cache.getStreetVelocity(0), 0);
+        assertEquals(2, cache.getSnapshot().reloads);
+        assertTrue(cache.getVersion() > before.version);
+    }
+
+    @Test
+    public void readersNeverSeeHalfSwappedTable() throws Exception {
+        final int edges = 10000;
+
+        final MemoryStore store = new MemoryStore(new double[edges]);
+
+        final StreetVelocityCache cache = new StreetVelocityCache(store);
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicLong torn = new AtomicLong();
+        final AtomicLong checked = new AtomicLong();
+
+        Thread[] readers = new Thread[4];
+
+        for(int t = 0; t < readers.length; t++)
+        {
+            readers[t] = new Thread() {
+                public void run() {
+                    while(!done.get())
+                    {
+                        // every table the writer publishes is one speed throughout
+                        StreetVelocityCache.Snapshot snapshot = cache.getSnapshot();
+
+                        double first = snapshot.getStreetVelocity(0);
+
+                        for(int e = 1; e < edges; e += 97)
+                        {
+                            if(snapshot.getStreetVelocity(e) != first)
+                                torn.incrementAndGet();
+                        }
+
+                        checked.incrementAndGet();
+                    }
+                }
+            };
+
+            readers[t].start();
+        }
+
+        for(int round = 1; round <= 200; round++)
+        {
+            double[] velocities = new double[edges];
+            Arrays.fill(velocities, round);
+
+            if(round % 2 == 0)
+            {
+                store.velocities = velocities;
+                cache.reload();
+            }
+            else
+            {
+                int[] all = new int[edges];
+
+                for(int e = 0; e < edges; e++)
+                    all[e] = e;
+
+                cache.update(all, velocities);
+            }
+        }
+
+        done.set(true);
+
+        for(Thread reader : readers)
+            reader.join();
+
+        assertTrue(checked.get() > 0);
+        assertEquals(0, torn.get());
+        assertEquals(200.0, cache.getStreetVelocity(edges - 1), 0);
+        assertEquals(101, cache.getSnapshot().reloads);
+    }
+}
@@ -0,0 +1,178 @@
+import org.junit.*;
+import java.util.*;
+import play.test.*;
+import models.JobCheckpoint;
+import utils.*;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+
+public class TimeAdjustmentTest extends UnitTest {
+
+    // locationupdate ids in memory, chunked four rows at a time like the LIMIT query
+    static class MemoryStore implements TimeAdjustment.Store {
+
+        final TreeSet<Long> ids = new TreeSet<Long>();
+        final Map<Long, Integer> adjusted = new HashMap<Long, Integer>();
+        final List<Long> pending = new ArrayList<Long>();
+        final List<Long> chunkEnds = new ArrayList<Long>();
+
+        JobCheckpoint saved;
+
+        // rows arriving once the run has taken its end id
+        long[] later = new long[0];
+
+        // cancel() after this many committed chunks, -1 for never
+        int cancelAfter = -1;
+        int committed = 0;
+
+        MemoryStore(long... ids) {
+            for(long id : ids)
+                this.ids.add(id);
+        }
+
+        public JobCheckpoint load() {
+            return saved != null ? copy(saved) : null;
+        }
+
+        static JobCheckpoint copy(JobCheckpoint checkpoint) {
+            JobCheckpoint copy = new JobCheckpoint();
+            copy.name = checkpoint.name;
+            copy.lastId = checkpoint.lastId;
+            copy.endId = checkpoint.endId;
+            copy.processed = checkpoint.processed;
+            copy.started = checkpoint.started;
+            copy.finished = checkpoint.finished;
+
+            return copy;
+        }
+
+        public long maxId() {
+            long max = ids.isEmpty() ? 0 : ids.last();
+
+            for(long id : later)
+                ids.add(id);
+
+            return max;
+        }
+
+        public long chunkEnd(long after, long end) {
+            long last = end;
+            int n = 0;
+
+            for(long id : ids.subSet(after, false, end, true))
+            {
+                last = id;
+
+                if(++n == 4)
+                    break;
+            }
+
+            chunkEnds.add(last);
+
+            return last;
+        }
+
+        public int adjust(long after, long through) {
+            Set<Long> chunk = ids.subSet(after, false, through, true);
+
+            pending.addAll(chunk);
+
+            return chunk.size();
+        }
+
+        public void commit(JobCheckpoint checkpoint) {
+            for(long id : pending)
+                adjusted.put(id, adjusted.containsKey(id) ? adjusted.get(id) + 1 : 1);
+
+            if(!pending.isEmpty() && ++committed == cancelAfter)
+                TimeAdjustment.cancel();
+
+            pending.clear();
+
+            // what was committed, not the run's live object
+            saved = copy(checkpoint);
+        }
+
+        public void rollback() {
+            pending.clear();
+        }
+
+        public void close() {
+        }
+    }
+
+    static final long[] IDS = { 1, 2, 3, 5, 8, 13, 21, 34, 55, 89 };
+
+    @Test
+    public void chunksEndOnIdsAndStopAtTheStartingMax() {
+        MemoryStore store = new MemoryStore(IDS);
+        store.later = new long[] { 144 };
+
+        TimeAdjustment.run(store, false);
+
+        assertEquals(Arrays.asList(5L, 34L, 89L), store.chunkEnds);
+
+        for(long id : IDS)
+            assertEquals(Integer.valueOf(1), store.adjusted.get(id));
+
+        // arrived after the run started, so adjusted on ingest instead
+        assertNull(store.adjusted.get(144L));
+
+        assertTrue(store.saved.finished);
+        assertEquals(89L, (long)store.saved.lastId);
+        assertEquals(10L, (long)store.saved.processed);
+    }
+
+    @Test
+    public void resumesFromCheckpointWithoutRedoingChunks() {
+        MemoryStore store = new MemoryStore(IDS);
+        store.cancelAfter = 1;
+
+        TimeAdjustment.run(store, false);
+
+        assertFalse(store.saved.finished);
+        assertEquals(5L, (long)store.saved.lastId);
+        assertEquals(4L, (long)store.saved.processed);
+
+        store.cancelAfter = -1;
+
+        TimeAdjustment.run(store, false);
+
+        assertEquals(Arrays.asList(5L, 34L, 89L), store.chunkEnds);
+
+        for(long id : IDS)
+            assertEquals(Integer.valueOf(1), store.adjusted.get(id));
+
+        assertTrue(store.saved.finished);
+        assertEquals(10L, (long)store.saved.processed);
+    }
+
+    @Test
+    public void emptiesRingsHoldingAdjustedRows() {
+        List<IngestRecord> records = new ArrayList<IngestRecord>();
+
+        for(long id : new long[] { 13, 21, 500 })
+        {
+            IngestRecord record = new IngestRecord();
+            record.id = id;
+            record.imei = id < 100 ? "adjusted" : "untouched";
+            record.received = new Date();
+            records.add(record);
+        }
+
+        RecentUpdates.add(records);
+
+        TimeAdjustment.run(new MemoryStore(IDS), false);
+
+        TLongArrayList ids = new TLongArrayList();
+        TLongArrayList received = new TLongArrayList();
+        TIntArrayList flags = new TIntArrayList();
+
+        RecentUpdates.history("adjusted", ids, received, flags);
+        assertEquals(0, ids.size());
+
+        RecentUpdates.history("untouched", ids, received, flags);
+        assertEquals(1, ids.size());
+    }
+}
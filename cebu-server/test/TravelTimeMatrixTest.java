@@ -0,0 +1,97 @@
+import org.junit.*;
+import java.util.*;
+import play.test.*;
+import utils.*;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+public class TravelTimeMatrixTest extends UnitTest {
+
+    // rows as the writer received them, checking they come in origin order
+    static class Rows implements TravelTimeMatrix.RowWriter {
+
+        List<int[]> seconds = new ArrayList<int[]>();
+        List<int[]> meters = new ArrayList<int[]>();
+
+        public void write(int origin, int[] rowSeconds, int[] rowMeters) {
+            assertEquals(seconds.size(), origin);
+
+            seconds.add(rowSeconds);
+            meters.add(rowMeters);
+        }
+    }
+
+    static ContractionHierarchy router() {
+        MapMatcherTest.grid();
+
+        ContractionHierarchy router = MapMatcherTest.router;
+
+        // cost in meters, so seconds and meters agree
+        router.setMetric(router.customize(router.getLengths(), 0));
+
+        return router;
+    }
+
+    // a point part way along the street from node a to node b
+    static Coordinate along(int a, int b, double f) {
+        Coordinate from = MapMatcherTest.coordinate(a);
+        Coordinate to = MapMatcherTest.coordinate(b);
+
+        return new Coordinate(from.x + f * (to.x - from.x), from.y + f * (to.y - from.y));
+    }
+
+    @Test
+    public void unsnappedPointsAreUnreachable() throws Exception {
+        ContractionHierarchy router = router();
+
+        // the grid is in Cebu; these are in Manila
+        Coordinate[] origins = { along(0, 1, 0.5), new Coordinate(121.0, 14.6), along(55, 56, 0.5) };
+        Coordinate[] destinations = { along(99, 98, 0.5), new Coordinate(121.0, 14.6), along(0, 1, 0.5) };
+
+        Rows rows = new Rows();
+
+        TravelTimeMatrix.compute(router, MapMatcherTest.index, 30, null, null, origins, destinations, rows);
+
+        assertEquals(3, rows.seconds.size());
+
+        for(int j = 0; j < destinations.length; j++)
+        {
+            assertEquals(TravelTimeMatrix.UNREACHABLE, rows.seconds.get(1)[j]);
+            assertEquals(TravelTimeMatrix.UNREACHABLE, rows.meters.get(1)[j]);
+        }
+
+        for(int i = 0; i < origins.length; i++)
+        {
+            assertEquals(TravelTimeMatrix.UNREACHABLE, rows.seconds.get(i)[1]);
+            assertEquals(TravelTimeMatrix.UNREACHABLE, rows.meters.get(i)[1]);
+        }
+
+        // the snapped pairs are costed like a path: both end edges in full
+        int from = MapMatcherTest.edgeBetween(0, 1);
+        int to = MapMatcherTest.edgeBetween(99, 98);
+
+        double expected = 0;
+
+        for(int e : router.routeEdges(router.getMetric(), from, to))
+            expected += router.getLength(e);
+
+        assertEquals((int)Math.round(expected), rows.meters.get(0)[0]);
+        assertEquals((int)Math.round(expected), rows.seconds.get(0)[0]);
+
+        // the same edge at both ends is just that edge
+        assertEquals((int)Math.round(router.getLength(from)), rows.meters.get(0)[2]);
+
+        assertTrue(rows.seconds.get(2)[0] > 0);
+        assertTrue(rows.seconds.get(2)[2] > 0);
+    }
+
+    @Test
+    public void cellLimit() {
+        assertTrue(TravelTimeMatrix.fits(1, 1));
+        assertTrue(TravelTimeMatrix.fits(500, 500));
+        assertFalse(TravelTimeMatrix.fits(501, 500));
+
+        // would wrap around to a small int if multiplied as one
+        assertFalse(TravelTimeMatrix.fits(65536, 65537));
+    }
+}
@@ -0,0 +1,212 @@
+import org.junit.*;
+import java.util.*;
+import play.Logger;
+import play.test.*;
+import utils.*;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+
+public class TripLineIndexTest extends UnitTest {
+
+    static GeometryFactory factory = new GeometryFactory();
+
+    static final double METERS_LAT = 111195.0;
+    static final double METERS_LON = 109400.0;
+
+    // random short edges around central Cebu, each with lines 30m wide a fifth of the way in from either end
+    static List<Coordinate[]> edges(Random random, int count) {
+        List<Coordinate[]> lines = new ArrayList<Coordinate[]>();
+
+        for(int e = 0; e < count; e++)
+        {
+            double lat = 10.28 + random.nextDouble() * 0.03;
+            double lon = 123.86 + random.nextDouble() * 0.03;
+
+            double angle = random.nextDouble() * 2 * Math.PI;
+            double length = 50 + random.nextDouble() * 150;
+
+            double dx = Math.cos(angle) * length;
+            double dy = Math.sin(angle) * length;
+
+            Coordinate[] ends = new Coordinate[4];
+
+            for(int i = 0; i < 2; i++)
+            {
+                double f = i == 0 ? 0.2 : 0.8;
+
+                double cx = dx * f;
+                double cy = dy * f;
+
+                // perpendicular, 15m either side
+                double px = -Math.sin(angle) * 15;
+                double py = Math.cos(angle) * 15;
+
+                ends[i * 2] = new Coordinate(lon + (cx - px) / METERS_LON, lat + (cy - py) / METERS_LAT);
+                ends[i * 2 + 1] = new Coordinate(lon + (cx + px) / METERS_LON, lat + (cy + py) / METERS_LAT);
+            }
+
+            lines.add(ends);
+        }
+
+        return lines;
+    }
+
+    static TripLineIndex index(List<Coordinate[]> edges) {
+        TripLineIndex.Builder builder = new TripLineIndex.Builder();
+
+        for(int e = 0; e < edges.size(); e++)
+        {
+            Coordinate[] ends = edges.get(e);
+
+            builder.add(e * 3, ends[0], ends[1], ends[2], ends[3]);
+        }
+
+        return builder.build(100);
+    }
+
+    @Test
+    public void crossingsMatchBruteForce() {
+        Random random = new Random(1);
+
+        List<Coordinate[]> edges = edges(random, 3000);
+
+        TripLineIndex index = index(edges);
+
+        int[] lines = new int[64];
+        long[] times = new long[64];
+
+        int total = 0;
+
+        for(int i = 0; i < 2000; i++)
+        {
+            double lat1 = 10.28 + random.nextDouble() * 0.03;
+            double lon1 = 123.86 + random.nextDouble() * 0.03;
+            double lat2 = lat1 + (random.nextDouble() - 0.5) * 0.004;
+            double lon2 = lon1 + (random.nextDouble() - 0.5) * 0.004;
+
+            int count = index.crossings(lat1, lon1, 0, lat2, lon2, 10000, lines, times);
+
+            LineString move = factory.createLineString(new Coordinate[] { new Coordinate(lon1, lat1), new Coordinate(lon2, lat2) });
+
+            Set<String> expected = new HashSet<String>();
+
+            for(int e = 0; e < edges.size(); e++)
+            {
+                Coordinate[] ends = edges.get(e);
+
+                // the direction of travel, from the middle of the first line to the middle of the second
+                double directionX = (ends[2].x + ends[3].x - ends[0].x - ends[1].x) * METERS_LON;
+                double directionY = (ends[2].y + ends[3].y - ends[0].y - ends[1].y) * METERS_LAT;
+
+                if((lon2 - lon1) * METERS_LON * directionX + (lat2 - lat1) * METERS_LAT * directionY <= 0)
+                    continue;
+
+                for(int k = 0; k < 2; k++)
+                {
+                    if(move.intersects(factory.createLineString(new Coordinate[] { ends[k * 2], ends[k * 2 + 1] })))
+                        expected.add(e * 3 + ":" + (k == 0));
+                }
+            }
+
+            Set<String> found = new HashSet<String>();
+
+            for(int k = 0; k < count; k++)
+            {
+                found.add(index.getEdgeId(lines[k]) + ":" + index.isFirst(lines[k]));
+
+                if(k > 0)
+                    assertTrue(times[k] >= times[k - 1]);
+
+                assertTrue(times[k] >= 0 && times[k] <= 10000);
+            }
+
+            assertEquals(expected, found);
+
+            total += count;
+        }
+
+        assertTrue(total > 0);
+    }
+
+    @Test
+    public void pairsCrossingsInDirectionOfTravel() {
+        // one edge heading east, lines 20m and 80m along it
+        Coordinate[] ends = new Coordinate[] {
+            new Coordinate(123.88 + 20 / METERS_LON, 10.30 - 15 / METERS_LAT), new Coordinate(123.88 + 20 / METERS_LON, 10.30 + 15 / METERS_LAT),
+            new Coordinate(123.88 + 80 / METERS_LON, 10.30 - 15 / METERS_LAT), new Coordinate(123.88 + 80 / METERS_LON, 10.30 + 15 / METERS_LAT)
+        };
+
+        TripLineDetector detector = new TripLineDetector(index(Arrays.asList(new Coordinate[][] { ends })));
+
+        final List<MapMatcher.Traversal> samples = new ArrayList<MapMatcher.Traversal>();
+
+        detector.addListener(new MapMatcher.Listener() {
+            public void traversed(MapMatcher.Traversal traversal) {
+                samples.add(traversal);
+            }
+        });
+
+        long start = 1350000000000L;
+
+        // east at 10m/s, a fix every 5s from the start of the edge
+        for(int i = 0; i <= 2; i++)
+            detector.observe("east", 10.30, 123.88 + i * 50 / METERS_LON, start + i * 5000);
+
+        // and back west, which shouldn't count
+        for(int i = 0; i <= 2; i++)
+            detector.observe("west", 10.30, 123.88 + (100 - i * 50) / METERS_LON, start + i * 5000);
+
+        assertEquals(1, samples.size());
+
+        MapMatcher.Traversal sample = samples.get(0);
+
+        assertEquals("east", sample.imei);
+        assertEquals(0, sample.edgeId);
+        assertEquals(start + 2000, sample.entered, 50);
+        assertEquals(start + 8000, sample.exited, 50);
+        assertEquals(60.0, sample.length, 0.5);
+    }
+
+    @Test
+    public void observationsPerSecond() {
+        Random random = new Random(3);
+
+        TripLineDetector detector = new TripLineDetector(index(edges(random, 20000)));
+
+        // vehicles wandering at up to 15m/s with a fix every 5s
+        int vehicles = 500;
+
+        double[] lats = new double[vehicles];
+        double[] lons = new double[vehicles];
+
+        for(int v = 0; v < vehicles; v++)
+        {
+            lats[v] = 10.28 + random.nextDouble() * 0.03;
+            lons[v] = 123.86 + random.nextDouble() * 0.03;
+        }
+
+        int iterations = 200000;
+
+        long start = System.nanoTime();
+
+        for(int i = 0; i < iterations; i++)
+        {
+            int v = i % vehicles;
+
+            lats[v] += (random.nextDouble() - 0.5) * 75 * 2 / METERS_LAT;
+            lons[v] += (random.nextDouble() - 0.5) * 75 * 2 / METERS_LON;
+
+            detector.observe("vehicle" + v, lats[v], lons[v], 1350000000000L + (i / vehicles) * 5000L);
+        }
+
+        long ns = System.nanoTime() - start;
+
+        Map<String, Object> stats = detector.getStats();
+
+        Logger.info("Trip line benchmark: " + (long)(iterations / (ns / 1e9)) + " observations/s, " + (ns / iterations) + "ns/observation, " + stats.get("crossings") + " crossings, " + stats.get("samples") + " samples");
+
+        assertTrue((Long)stats.get("crossings") > 0);
+    }
+}
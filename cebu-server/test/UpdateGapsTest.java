@@ -0,0 +1,134 @@
+import org.junit.*;
+import java.util.*;
+import play.test.*;
+import models.LocationUpdate;
+import utils.*;
+
+import gnu.trove.set.hash.TLongHashSet;
+
+public class UpdateGapsTest extends UnitTest {
+
+    static final long START = 1350000000000L;
+    static final long MINUTE = 60 * 1000L;
+
+    static IngestRecord record(String imei, long id, long minute, Boolean failedNetwork) {
+        IngestRecord record = new IngestRecord();
+
+        record.id = id;
+        record.imei = imei;
+        record.received = new Date(START + minute * MINUTE);
+        record.failedNetwork = failedNetwork;
+
+        return record;
+    }
+
+    @Test
+    public void passMatchesPerRowQueries() {
+        TLongHashSet wanted = new TLongHashSet(new long[] { 2, 4, 5, 7 });
+
+        UpdateGaps.Pass pass = new UpdateGaps.Pass(wanted, 15 * MINUTE);
+
+        // id, minute received, 1 good / -1 failed / 0 location only
+        long[][] rows = new long[][] {
+            { 1, 0, 1 }, { 2, 5, 0 }, { 3, 6, -1 }, { 4, 30, -1 }, { 5, 31, 1 }, { 6, 32, 0 }, { 7, 60, 0 }
+        };
+
+        for(long[] row : rows)
+            pass.next(row[0], START + row[1] * MINUTE, row[2] == 1, row[2] == -1);
+
+        assertTrue(pass.resolved());
+
+        assertEquals(5L, (long)pass.minutesSinceLast(2));
+        assertEquals(5L, (long)pass.minutesSinceLastGood(2));
+        assertEquals(24L, (long)pass.minutesSinceLast(4));
+        assertEquals(30L, (long)pass.minutesSinceLastGood(4));
+        assertEquals(1L, (long)pass.minutesSinceLast(5));
+        assertEquals(31L, (long)pass.minutesSinceLastGood(5));
+        assertEquals(28L, (long)pass.minutesSinceLast(7));
+        assertEquals(29L, (long)pass.minutesSinceLastGood(7));
+
+        // silences of 24 and 28 minutes, and failed network from minute 0 to 31
+        assertEquals(3, pass.gaps.size());
+        assertEquals("silence", pass.gaps.get(0).type);
+        assertEquals(24, pass.gaps.get(0).minutes);
+        assertEquals("network", pass.gaps.get(1).type);
+        assertEquals(31, pass.gaps.get(1).minutes);
+        assertEquals("silence", pass.gaps.get(2).type);
+        assertEquals(28, pass.gaps.get(2).minutes);
+    }
+
+    @Test
+    public void unresolvedWithoutEarlierHistory() {
+        TLongHashSet wanted = new TLongHashSet(new long[] { 1, 2 });
+
+        UpdateGaps.Pass pass = new UpdateGaps.Pass(wanted, 0);
+
+        pass.next(1, START, false, false);
+        pass.next(2, START + MINUTE, true, false);
+
+        // neither has a good-network predecessor in the walk, nor 1 any predecessor
+        assertTrue(pass.sawAll());
+        assertFalse(pass.resolved());
+
+        assertNull(pass.minutesSinceLast(1));
+        assertEquals(1L, (long)pass.minutesSinceLast(2));
+        assertNull(pass.minutesSinceLastGood(1));
+        assertNull(pass.minutesSinceLastGood(2));
+
+        // nothing found further back: left for the per-row queries
+        pass.before(Long.MIN_VALUE, Long.MIN_VALUE);
+
+        assertFalse(pass.resolved());
+        assertNull(pass.minutesSinceLast(1));
+    }
+
+    @Test
+    public void predecessorsBeforeWalk() {
+        TLongHashSet wanted = new TLongHashSet(new long[] { 1, 2, 3 });
+
+        UpdateGaps.Pass pass = new UpdateGaps.Pass(wanted, 0);
+
+        pass.next(1, START, false, true);
+        pass.next(2, START + MINUTE, false, true);
+        pass.next(3, START + 2 * MINUTE, true, false);
+
+        // the last update 10 minutes before the walk, the last good one 40
+        pass.before(START - 10 * MINUTE, START - 40 * MINUTE);
+
+        assertTrue(pass.resolved());
+
+        assertEquals(10L, (long)pass.minutesSinceLast(1));
+        assertEquals(1L, (long)pass.minutesSinceLast(2));
+        assertEquals(40L, (long)pass.minutesSinceLastGood(1));
+        assertEquals(41L, (long)pass.minutesSinceLastGood(2));
+        assertEquals(42L, (long)pass.minutesSinceLastGood(3));
+    }
+
+    @Test
+    public void fillsFromRing() {
+        List<IngestRecord> records = new ArrayList<IngestRecord>();
+
+        records.add(record("gaps", 10, 0, false));
+        records.add(record("gaps", 11, 2, null));
+        records.add(record("gaps", 12, 20, true));
+        records.add(record("gaps", 13, 45, true));
+
+        RecentUpdates.add(records);
+
+        List<LocationUpdate> updates = new ArrayList<LocationUpdate>();
+
+        for(long id = 12; id <= 13; id++)
+        {
+            LocationUpdate update = new LocationUpdate();
+            update.id = id;
+            updates.add(update);
+        }
+
+        UpdateGaps.fill("gaps", updates);
+
+        assertEquals(18, (long)updates.get(0).getMinutesSinceLastUpdate());
+        assertEquals(20, (long)updates.get(0).getMinutesSinceLastGoodNetwork());
+        assertEquals(25, (long)updates.get(1).getMinutesSinceLastUpdate());
+        assertEquals(45, (long)updates.get(1).getMinutesSinceLastGoodNetwork());
+    }
+}